@@ -0,0 +1,72 @@
+package ssw.mj;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Heap words in an int array on the Java heap (the default).
+ */
+final class ArrayMemory implements Memory {
+  private static final int CHUNK = 1 << 26; // words read from one mapping
+  private int[] words; // replaced by a larger array when growing
+
+  ArrayMemory(int size) {
+    words = new int[size];
+  }
+
+  /**
+   * Reads <code>size</code> words in byte order <code>order</code> from
+   * <code>file</code>, starting at byte <code>pos</code>.
+   */
+  static ArrayMemory read(FileChannel file, long pos, int size, ByteOrder order) throws IOException {
+    ArrayMemory m = new ArrayMemory(size);
+    for (int off = 0; off < size; off += CHUNK) {
+      int n = Math.min(CHUNK, size - off);
+      file.map(FileChannel.MapMode.READ_ONLY, pos + 4L * off, 4L * n).order(order).asIntBuffer()
+              .get(0, m.words, off, n);
+    }
+    return m;
+  }
+
+  @Override
+  public int size() {
+    return words.length;
+  }
+
+  @Override
+  public int get(int adr) {
+    return words[adr];
+  }
+
+  @Override
+  public void set(int adr, int val) {
+    words[adr] = val;
+  }
+
+  @Override
+  public void copy(int from, int to, int len) {
+    System.arraycopy(words, from, words, to, len);
+  }
+
+  @Override
+  public void fill(int from, int to, int val) {
+    Arrays.fill(words, from, to, val);
+  }
+
+  @Override
+  public boolean grow(int size) {
+    try {
+      words = Arrays.copyOf(words, size);
+      return true;
+    } catch (OutOfMemoryError e) {
+      return false;
+    }
+  }
+
+  @Override
+  public Memory table(int size) {
+    return new ArrayMemory(size);
+  }
+}
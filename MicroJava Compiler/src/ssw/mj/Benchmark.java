@@ -0,0 +1,85 @@
+package ssw.mj;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Measures how long a program runs interpreted ({@link Interpreter#run()}),
+ * compiled ({@link Interpreter#runCompiled()}) and tiered
+ * ({@link Interpreter#runTiered(int)}), all in one JVM. The modes take turns,
+ * each run on a new interpreter, so that compiled code is translated again
+ * every time. The first round is not counted, while HotSpot is still
+ * compiling the interpreter and the translator. Prints the median time of
+ * every mode and its speedup over the interpreter.
+ * <p>
+ * The program reads the input in the file of the same name with the
+ * extension <code>.in</code> if there is one. All modes must print the same
+ * output. Bench.mj in the compiler directory, with its input in Bench.in,
+ * spends its time in array accesses (a sieve), in calls (a recursive
+ * Fibonacci) and in arithmetic (Collatz sequences).
+ * <p>
+ * Syntax: <code>java ssw.mj.Benchmark [-runs count] [-tiered threshold] file.obj</code>
+ */
+public class Benchmark {
+  private static final String[] modes = {"interpreted", "compiled", "tiered"};
+
+  public static void main(String[] args) throws IOException {
+    int runs = 5;
+    int threshold = Interpreter.tierThreshold;
+    String file = null;
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "-runs" -> runs = Integer.parseInt(args[++i]);
+        case "-tiered" -> threshold = Integer.parseInt(args[++i]);
+        default -> file = args[i];
+      }
+    }
+    if (file == null || runs < 1 || threshold < 1) {
+      System.out.println("Syntax: java ssw.mj.Benchmark [-runs count] [-tiered threshold] file.obj");
+      return;
+    }
+    Program program = Run.read(file);
+    Path inputFile = Path.of(file.replaceFirst("\\.obj$", "") + ".in");
+    String input = Files.exists(inputFile) ? Files.readString(inputFile, StandardCharsets.ISO_8859_1) : "";
+
+    long[][] times = new long[modes.length][runs];
+    String output = null;
+    for (int r = -1; r < runs; r++) { // round -1 warms up the JVM
+      for (int m = 0; m < modes.length; m++) {
+        Interpreter.BufferIO io = new Interpreter.BufferIO(input);
+        Interpreter vm = new Interpreter.Builder().program(program).io(io).build();
+        long start = System.nanoTime();
+        switch (m) {
+          case 0 -> vm.run();
+          case 1 -> vm.runCompiled();
+          default -> vm.runTiered(threshold);
+        }
+        long time = System.nanoTime() - start;
+        if (output == null) {
+          output = io.getOutput();
+        } else if (!output.equals(io.getOutput())) {
+          throw new IllegalStateException(modes[m] + " output differs: " + io.getOutput());
+        }
+        if (r >= 0) {
+          times[m][r] = time;
+        }
+      }
+    }
+
+    System.out.println(output);
+    long base = median(times[0]);
+    for (int m = 0; m < modes.length; m++) {
+      long t = median(times[m]);
+      System.out.printf("%-12s %8d ms %6.1fx%n", modes[m], t / 1_000_000, (double) base / t);
+    }
+  }
+
+  private static long median(long[] times) {
+    long[] sorted = times.clone();
+    Arrays.sort(sorted);
+    return sorted[sorted.length / 2];
+  }
+}
@@ -1,9 +1,14 @@
 package ssw.mj;
 
+import ssw.mj.impl.ParallelScanner;
 import ssw.mj.impl.Parser;
 import ssw.mj.impl.Scanner;
 
 import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 
 /**
  * <code>Compiler</code> is the driver for the MicroJava-Compiler.
@@ -13,6 +18,11 @@ import java.io.*;
  * to start compilation.
  */
 public class Compiler {
+  /**
+   * Sources of at least this many bytes are scanned by a
+   * {@link ParallelScanner} if there is more than one processor.
+   */
+  private static final long PARALLEL_SCAN_SIZE = 1 << 20;
 
   private static String objFileName(String s) {
     int i = s.lastIndexOf('.');
@@ -22,6 +32,22 @@ public class Compiler {
     return s.substring(0, i) + ".obj";
   }
 
+  /**
+   * Writes the object file to a new file that then replaces
+   * <code>obj</code>, so that a VM that has mapped the old file (see
+   * {@link ObjectFile}) keeps its bytes instead of failing on a truncated
+   * file.
+   */
+  private static void write(Parser parser, Path obj) throws IOException {
+    Path tmp = obj.resolveSibling(obj.getFileName() + ".tmp");
+    try {
+      parser.code.write(new BufferedOutputStream(Files.newOutputStream(tmp)));
+      Files.move(tmp, obj, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
   public static void main(String[] args) {
     // --- get the filename
     if (args.length != 1) {
@@ -32,7 +58,13 @@ public class Compiler {
     String outFilename = objFileName(inFilename);
 
     try {
-      Scanner scanner = new Scanner(new BufferedReader(new FileReader(inFilename)));
+      Scanner scanner;
+      File file = new File(inFilename);
+      if (file.length() >= PARALLEL_SCAN_SIZE && Runtime.getRuntime().availableProcessors() > 1) {
+        scanner = new ParallelScanner(new String(Files.readAllBytes(file.toPath()), Charset.defaultCharset()).toCharArray());
+      } else {
+        scanner = new Scanner(new BufferedReader(new FileReader(file)));
+      }
 
       System.out.println("-----------------------------------");
       System.out.println("Parsing file " + inFilename);
@@ -40,7 +72,7 @@ public class Compiler {
       Parser parser = new Parser(scanner);
       parser.parse();
       if (scanner.errors.numErrors() == 0) {
-        parser.code.write(new BufferedOutputStream(new FileOutputStream(outFilename)));
+        write(parser, Path.of(outFilename));
       }
 
       if (scanner.errors.numErrors() > 0) {
@@ -0,0 +1,442 @@
+package ssw.mj;
+
+import ssw.mj.impl.Code.OpCode;
+import ssw.mj.verify.VerifiedProgram;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Pre-decoded form of a MicroJava code array as executed by the
+ * {@link Interpreter}.
+ * <p>
+ * Every instruction is stored as its decoded opcode followed by its operands,
+ * one <code>int</code> each. Operands are already widened (sign extended as
+ * the VM reads them) and jump targets are absolute indices into the decoded
+ * stream. Instruction families that only differ in an implicit operand
+ * (<code>load_0</code>..<code>load_3</code>, <code>const_m1</code>..
+ * <code>const_5</code>, ...) are mapped to their general form.
+ * <p>
+ * {@link #fused} is a second copy of the stream in which frequent instruction
+ * sequences (see {@link ssw.mj.codegen.NGramMiner}) start with a
+ * superinstruction that executes the whole sequence in one dispatch. Only the
+ * opcode slot of the first instruction is replaced: the superinstruction reads
+ * its operands from the original operand slots and continues after the last
+ * instruction of the sequence, so both copies have the same indices and jump
+ * targets. Sequences containing a jump target after their first instruction
+ * are not fused.
+ */
+public final class DecodedCode {
+
+  // ----- decoded opcodes (operands in brackets)
+  public static final int LOAD = 0; // [n]
+  public static final int STORE = 1; // [n]
+  public static final int GETSTATIC = 2; // [adr]
+  public static final int PUTSTATIC = 3; // [adr]
+  public static final int GETFIELD = 4; // [off]
+  public static final int PUTFIELD = 5; // [off]
+  public static final int CONST = 6; // [val]
+  public static final int ADD = 7;
+  public static final int SUB = 8;
+  public static final int MUL = 9;
+  public static final int DIV = 10;
+  public static final int REM = 11;
+  public static final int NEG = 12;
+  public static final int SHL = 13;
+  public static final int SHR = 14;
+  public static final int INC = 15; // [n, val]
+  public static final int NEW = 16; // [size in bytes]
+  public static final int NEWARRAY = 17; // [0 = byte elements, else word elements]
+  public static final int ALOAD = 18;
+  public static final int ASTORE = 19;
+  public static final int BALOAD = 20;
+  public static final int BASTORE = 21;
+  public static final int ARRAYLENGTH = 22;
+  public static final int POP = 23;
+  public static final int DUP = 24;
+  public static final int DUP2 = 25;
+  public static final int JMP = 26; // [target]
+  public static final int JEQ = 27; // [target]
+  public static final int JNE = 28; // [target]
+  public static final int JLT = 29; // [target]
+  public static final int JLE = 30; // [target]
+  public static final int JGT = 31; // [target]
+  public static final int JGE = 32; // [target]
+  public static final int CALL = 33; // [target]
+  public static final int RETURN = 34;
+  public static final int ENTER = 35; // [psize, lsize]
+  public static final int EXIT = 36;
+  public static final int READ = 37;
+  public static final int PRINT = 38;
+  public static final int BREAD = 39;
+  public static final int BPRINT = 40;
+  public static final int TRAP = 41; // [n]
+  public static final int NOP = 42;
+  public static final int ILLEGAL = 43; // [raw opcode byte]
+  public static final int BAD_PC = 44; // end of code, target of unresolvable jumps
+
+  // ----- superinstructions (replaced sequence in brackets)
+  public static final int LOAD2 = 45; // [load a, load b]
+  public static final int IFLL = 46; // [load a, load b, jcc target]
+  public static final int IFLC = 47; // [load a, const k, jcc target]
+  public static final int ADDC = 48; // [const k, add]
+  public static final int AINC = 49; // [dup2, aload, const k, add, astore]
+  public static final int STATINC = 50; // [getstatic g, const k, add, putstatic g]
+  public static final int INCJMP = 51; // [inc n val, jmp target]
+
+  // ----- sentinel after BAD_PC, where the interpreter suspends (see Interpreter#run(long))
+  public static final int SUSPEND = 52;
+
+  // ----- array accesses that are always in bounds (see #withoutBoundsChecks)
+  public static final int ALOADU = 53;
+  public static final int ASTOREU = 54;
+  public static final int BALOADU = 55;
+  public static final int BASTOREU = 56;
+  public static final int AINCU = 57; // [dup2, aload, const k, add, astore]
+
+  // ----- fields of scalar-replaced objects (see ssw.mj.verify.EscapeAnalysis)
+  public static final int GETLOCAL = 58; // [n] (replaces getfield)
+  public static final int PUTLOCAL = 59; // [n] (replaces putfield)
+  public static final int CLEAR = 60; // [first, count, -] (replaces new, store)
+
+  /**
+   * Superinstruction followed by the sequence it replaces, longest first. JEQ
+   * stands for any conditional jump.
+   */
+  private static final int[][] PATTERNS = {
+          {STATINC, GETSTATIC, CONST, ADD, PUTSTATIC},
+          {AINC, DUP2, ALOAD, CONST, ADD, ASTORE},
+          {IFLL, LOAD, LOAD, JEQ},
+          {IFLC, LOAD, CONST, JEQ},
+          {INCJMP, INC, JMP},
+          {LOAD2, LOAD, LOAD},
+          {ADDC, CONST, ADD}};
+
+  private static final String[] NAMES = {"load", "store", "getstatic", "putstatic", "getfield", "putfield",
+          "const", "add", "sub", "mul", "div", "rem", "neg", "shl", "shr", "inc", "new", "newarray", "aload",
+          "astore", "baload", "bastore", "arraylength", "pop", "dup", "dup2", "jmp", "jeq", "jne", "jlt", "jle",
+          "jgt", "jge", "call", "return", "enter", "exit", "read", "print", "bread", "bprint", "trap", "nop",
+          "illegal", "bad_pc", "load2", "ifll", "iflc", "addc", "ainc", "statinc", "incjmp", "suspend",
+          "aloadu", "astoreu", "baloadu", "bastoreu", "aincu", "getlocal", "putlocal", "clear"};
+
+  /**
+   * Decoded instruction stream.
+   */
+  public final int[] code;
+
+  /**
+   * Decoded instruction stream with superinstructions.
+   */
+  public final int[] fused;
+
+  /**
+   * Byte address -> index into <code>code</code>, -1 if no instruction
+   * starts at this address. Has one extra entry for the end of the code.
+   */
+  private final int[] index;
+
+  /**
+   * Index into <code>code</code> -> byte address of the instruction starting
+   * there, -1 for operand slots.
+   */
+  private final int[] address;
+
+  /**
+   * Index of the trailing <code>BAD_PC</code> sentinel, which is followed by
+   * the <code>SUSPEND</code> sentinel.
+   */
+  private final int end;
+
+  private DecodedCode(int[] code, int[] index, int[] address, int end) {
+    this.code = code;
+    this.fused = fuse(code, end);
+    this.index = index;
+    this.address = address;
+    this.end = end;
+  }
+
+  /**
+   * Returns the index of the instruction starting at byte address
+   * <code>adr</code>, or -1 if there is none.
+   */
+  public int indexOf(int adr) {
+    if (adr < 0 || adr >= index.length) {
+      return -1;
+    }
+    return index[adr];
+  }
+
+  /**
+   * Returns the byte address of the instruction starting at
+   * <code>idx</code>, or -1 if <code>idx</code> is no instruction start.
+   */
+  public int addressOf(int idx) {
+    if (idx < 0 || idx >= address.length) {
+      return -1;
+    }
+    return address[idx];
+  }
+
+  /**
+   * Index of the first slot after the last instruction.
+   */
+  public int end() {
+    return end;
+  }
+
+  /**
+   * Index of the <code>SUSPEND</code> sentinel, which no jump targets.
+   */
+  public int suspend() {
+    return end + 1;
+  }
+
+  /**
+   * Number of operand slots following decoded opcode <code>op</code>.
+   */
+  public static int operands(int op) {
+    return switch (op) {
+      case STATINC -> 6;
+      case IFLL, IFLC, AINC, AINCU -> 5;
+      case INCJMP -> 4;
+      case CLEAR -> 3;
+      case LOAD2 -> 3;
+      case INC, ENTER, ADDC -> 2;
+      case LOAD, STORE, GETSTATIC, PUTSTATIC, GETFIELD, PUTFIELD, CONST, NEW, NEWARRAY, JMP, JEQ, JNE, JLT, JLE,
+           JGT, JGE, CALL, TRAP, ILLEGAL, GETLOCAL,
+           PUTLOCAL -> 1;
+      default -> 0;
+    };
+  }
+
+  /**
+   * Name of decoded opcode <code>op</code>.
+   */
+  public static String name(int op) {
+    return op >= 0 && op < NAMES.length ? NAMES[op] : "--error--";
+  }
+
+  /**
+   * Decodes the whole byte array. Bytes that do not form a valid
+   * instruction are decoded to <code>ILLEGAL</code>, which fails only when
+   * it is executed.
+   */
+  public static DecodedCode decode(byte[] buf) {
+    return decode(ByteBuffer.wrap(buf));
+  }
+
+  /**
+   * Decodes the bytes of <code>buf</code> from index 0 to its limit, e.g.
+   * the code of a mapped object file (see {@link ObjectFile}).
+   */
+  public static DecodedCode decode(ByteBuffer buf) {
+    int len = buf.limit();
+    int[] code = new int[2 * len + 2];
+    int[] index = new int[len + 1];
+    int[] address = new int[code.length];
+    int[] jumpAdr = new int[code.length]; // byte target of jumps, by operand slot
+    Arrays.fill(index, -1);
+    Arrays.fill(address, -1);
+
+    int n = 0; // next free slot in code
+    int adr = 0;
+    while (adr < len) {
+      int start = adr;
+      OpCode opCode = OpCode.get(buf.get(adr++));
+      int size = opCode == null ? 0 : operandBytes(opCode);
+      if (adr + size > len) { // truncated instruction
+        opCode = null;
+      }
+      index[start] = n;
+      address[n] = start;
+      if (opCode == null) {
+        code[n++] = ILLEGAL;
+        code[n++] = buf.get(start);
+        continue;
+      }
+      switch (opCode) {
+        case load -> n = put(code, n, LOAD, buf.get(adr));
+        case load_0, load_1, load_2, load_3 -> n = put(code, n, LOAD, opCode.code() - OpCode.load_0.code());
+        case store -> n = put(code, n, STORE, buf.get(adr));
+        case store_0, store_1, store_2, store_3 -> n = put(code, n, STORE, opCode.code() - OpCode.store_0.code());
+        case getstatic -> n = put(code, n, GETSTATIC, get2(buf, adr));
+        case putstatic -> n = put(code, n, PUTSTATIC, get2(buf, adr));
+        case getfield -> n = put(code, n, GETFIELD, get2(buf, adr));
+        case putfield -> n = put(code, n, PUTFIELD, get2(buf, adr));
+        case const_0, const_1, const_2, const_3, const_4, const_5 ->
+                n = put(code, n, CONST, opCode.code() - OpCode.const_0.code());
+        case const_m1 -> n = put(code, n, CONST, -1);
+        case const_ -> n = put(code, n, CONST, get4(buf, adr));
+        case add -> code[n++] = ADD;
+        case sub -> code[n++] = SUB;
+        case mul -> code[n++] = MUL;
+        case div -> code[n++] = DIV;
+        case rem -> code[n++] = REM;
+        case neg -> code[n++] = NEG;
+        case shl -> code[n++] = SHL;
+        case shr -> code[n++] = SHR;
+        case inc -> {
+          code[n++] = INC;
+          code[n++] = buf.get(adr);
+          code[n++] = buf.get(adr + 1);
+        }
+        case new_ -> n = put(code, n, NEW, get2(buf, adr) * 4);
+        case newarray -> n = put(code, n, NEWARRAY, buf.get(adr));
+        case aload -> code[n++] = ALOAD;
+        case astore -> code[n++] = ASTORE;
+        case baload -> code[n++] = BALOAD;
+        case bastore -> code[n++] = BASTORE;
+        case arraylength -> code[n++] = ARRAYLENGTH;
+        case pop -> code[n++] = POP;
+        case dup -> code[n++] = DUP;
+        case dup2 -> code[n++] = DUP2;
+        case jmp, jeq, jne, jlt, jle, jgt, jge, call -> {
+          code[n++] = switch (opCode) {
+            case jmp -> JMP;
+            case jeq -> JEQ;
+            case jne -> JNE;
+            case jlt -> JLT;
+            case jle -> JLE;
+            case jgt -> JGT;
+            case jge -> JGE;
+            default -> CALL;
+          };
+          jumpAdr[n] = start + get2(buf, adr);
+          address[n] = -2; // marks a slot to be resolved below
+          n++;
+        }
+        case return_ -> code[n++] = RETURN;
+        case enter -> {
+          code[n++] = ENTER;
+          code[n++] = buf.get(adr);
+          code[n++] = buf.get(adr + 1);
+        }
+        case exit -> code[n++] = EXIT;
+        case read -> code[n++] = READ;
+        case print -> code[n++] = PRINT;
+        case bread -> code[n++] = BREAD;
+        case bprint -> code[n++] = BPRINT;
+        case trap -> n = put(code, n, TRAP, buf.get(adr));
+        case nop -> code[n++] = NOP;
+      }
+      adr += size;
+    }
+    int end = n;
+    index[len] = end;
+    address[end] = len;
+    code[n++] = BAD_PC;
+    code[n++] = SUSPEND;
+
+    // resolve jump targets
+    for (int i = 0; i < end; i++) {
+      if (address[i] == -2) {
+        int target = jumpAdr[i] >= 0 && jumpAdr[i] < len ? index[jumpAdr[i]] : -1;
+        code[i] = target >= 0 ? target : end;
+        address[i] = -1;
+      }
+    }
+    return new DecodedCode(Arrays.copyOf(code, n), index, Arrays.copyOf(address, n), end);
+  }
+
+  /**
+   * Copy of <code>code</code> with the first opcode of each fusable sequence
+   * replaced by its superinstruction.
+   */
+  private static int[] fuse(int[] code, int end) {
+    boolean[] target = new boolean[code.length];
+    for (int i = 0; i < end; i += 1 + operands(code[i])) {
+      switch (code[i]) {
+        case JMP, JEQ, JNE, JLT, JLE, JGT, JGE, CALL -> target[code[i + 1]] = true;
+        default -> {
+        }
+      }
+    }
+    int[] fused = code.clone();
+    int i = 0;
+    while (i < end) {
+      int op = superinstruction(code, i, target);
+      fused[i] = op;
+      i += 1 + operands(op);
+    }
+    return fused;
+  }
+
+  /**
+   * Copy of <code>stream</code>, {@link #fused} or a variant of it with the
+   * same instruction indices, in which the array accesses that are always in
+   * bounds in the verified <code>program</code> (see
+   * {@link VerifiedProgram#inBounds}) are replaced by variants without null
+   * and index checks. An <code>ainc</code> is replaced if both of its
+   * accesses are in bounds.
+   */
+  public int[] withoutBoundsChecks(int[] stream, VerifiedProgram program) {
+    int[] c = stream.clone();
+    for (int i = 0; i < end; i += 1 + operands(stream[i])) {
+      c[i] = switch (stream[i]) {
+        case ALOAD -> program.inBounds(i) ? ALOADU : ALOAD;
+        case ASTORE -> program.inBounds(i) ? ASTOREU : ASTORE;
+        case BALOAD -> program.inBounds(i) ? BALOADU : BALOAD;
+        case BASTORE -> program.inBounds(i) ? BASTOREU : BASTORE;
+        case AINC -> program.inBounds(i + 1) && program.inBounds(i + 5) ? AINCU : AINC;
+        default -> stream[i];
+      };
+    }
+    return c;
+  }
+
+  /**
+   * The superinstruction for the longest fusable sequence starting at index
+   * <code>i</code>, or <code>code[i]</code> if there is none.
+   */
+  private static int superinstruction(int[] code, int i, boolean[] target) {
+    for (int[] p : PATTERNS) {
+      if (matches(code, i, p, target)) {
+        return p[0];
+      }
+    }
+    return code[i];
+  }
+
+  private static boolean matches(int[] code, int i, int[] pattern, boolean[] target) {
+    int j = i;
+    for (int k = 1; k < pattern.length; k++) {
+      if (j >= code.length || k > 1 && target[j]) {
+        return false;
+      }
+      int op = code[j];
+      boolean ok = pattern[k] == JEQ ? op >= JEQ && op <= JGE : op == pattern[k];
+      if (!ok) {
+        return false;
+      }
+      j += 1 + operands(op);
+    }
+    // a global increment must store to the global it loaded
+    return pattern[0] != STATINC || code[i + 1] == code[i + 6];
+  }
+
+  /**
+   * Number of operand bytes following <code>opCode</code> in the byte code.
+   */
+  public static int operandBytes(OpCode opCode) {
+    return switch (opCode) {
+      case load, store, newarray, trap -> 1;
+      case getstatic, putstatic, getfield, putfield, new_, jmp, jeq, jne, jlt, jle, jgt, jge, call, inc, enter -> 2;
+      case const_ -> 4;
+      default -> 0;
+    };
+  }
+
+  private static int put(int[] code, int n, int op, int operand) {
+    code[n] = op;
+    code[n + 1] = operand;
+    return n + 2;
+  }
+
+  private static int get2(ByteBuffer buf, int adr) {
+    return buf.getShort(adr);
+  }
+
+  private static int get4(ByteBuffer buf, int adr) {
+    return (get2(buf, adr) << 16) + (get2(buf, adr + 2) & 0xffff);
+  }
+}
@@ -0,0 +1,147 @@
+package ssw.mj;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Heap words off the Java heap, in direct buffers or mapped to a file, so
+ * that a large MicroJava heap neither counts against the Java heap nor is
+ * scanned by the JVM's garbage collector. A buffer holds at most 2 GB, so
+ * the words are split into chunks of {@link #CHUNK} words; only the last
+ * chunk may be smaller, and it is replaced by a larger one when growing.
+ * A mapped file is truncated first, and its contents are the heap words in
+ * native byte order. The heap of a {@link Snapshot} is mapped privately
+ * instead (see {@link #map}).
+ */
+final class DirectMemory implements Memory {
+  private static final int SHIFT = 26, CHUNK = 1 << SHIFT, MASK = CHUNK - 1;
+
+  private final FileChannel file; // null if not mapped
+  private IntBuffer[] chunks = new IntBuffer[0];
+  private int size;
+
+  /**
+   * Creates a memory of <code>size</code> zeroed words, mapped to
+   * <code>file</code> unless it is null.
+   */
+  DirectMemory(int size, Path file) throws IOException {
+    this.file = file == null ? null : FileChannel.open(file, CREATE, TRUNCATE_EXISTING, READ, WRITE);
+    resize(size);
+  }
+
+  private DirectMemory(IntBuffer[] chunks, int size) {
+    this.file = null;
+    this.chunks = chunks;
+    this.size = size;
+  }
+
+  /**
+   * Maps <code>size</code> words in byte order <code>order</code> from
+   * <code>file</code>, starting at byte <code>pos</code>. The mapping is
+   * private: a page is only read when it is first accessed, and changes are
+   * not written back. When growing, the last chunk is copied to a direct
+   * buffer.
+   */
+  static DirectMemory map(FileChannel file, long pos, int size, ByteOrder order) throws IOException {
+    int n = (int) (((long) size + MASK) >>> SHIFT);
+    IntBuffer[] chunks = new IntBuffer[n];
+    for (int k = 0; k < n; k++) {
+      int words = (int) Math.min(CHUNK, size - ((long) k << SHIFT));
+      chunks[k] = file.map(FileChannel.MapMode.PRIVATE, pos + ((long) k << SHIFT + 2), 4L * words)
+              .order(order).asIntBuffer();
+    }
+    return new DirectMemory(chunks, size);
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public int get(int adr) {
+    return chunks[adr >>> SHIFT].get(adr & MASK);
+  }
+
+  @Override
+  public void set(int adr, int val) {
+    chunks[adr >>> SHIFT].put(adr & MASK, val);
+  }
+
+  @Override
+  public void copy(int from, int to, int len) {
+    if (to < from) {
+      for (int i = 0; i < len; i++) {
+        set(to + i, get(from + i));
+      }
+    } else {
+      for (int i = len - 1; i >= 0; i--) {
+        set(to + i, get(from + i));
+      }
+    }
+  }
+
+  @Override
+  public void fill(int from, int to, int val) {
+    for (int i = from; i < to; i++) {
+      set(i, val);
+    }
+  }
+
+  @Override
+  public boolean grow(int size) {
+    try {
+      resize(size);
+      return true;
+    } catch (IOException | OutOfMemoryError e) {
+      return false;
+    }
+  }
+
+  @Override
+  public Memory table(int size) {
+    try {
+      return new DirectMemory(size, null);
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // not thrown without a file
+    }
+  }
+
+  private void resize(int size) throws IOException {
+    int n = (int) (((long) size + MASK) >>> SHIFT);
+    IntBuffer[] c = Arrays.copyOf(chunks, n);
+    for (int k = Math.max(0, chunks.length - 1); k < n; k++) {
+      int words = (int) Math.min(CHUNK, size - ((long) k << SHIFT));
+      if (c[k] == null || c[k].capacity() < words) {
+        c[k] = chunk(k, words, c[k]);
+      }
+    }
+    chunks = c;
+    this.size = size;
+  }
+
+  /**
+   * A buffer of <code>words</code> words for the <code>k</code>-th chunk,
+   * with the contents of <code>old</code> (if not null).
+   */
+  private IntBuffer chunk(int k, int words, IntBuffer old) throws IOException {
+    ByteBuffer b;
+    if (file != null) { // the file keeps the old contents
+      b = file.map(FileChannel.MapMode.READ_WRITE, (long) k << SHIFT + 2, 4L * words);
+    } else {
+      b = ByteBuffer.allocateDirect(4 * words);
+    }
+    IntBuffer buf = b.order(ByteOrder.nativeOrder()).asIntBuffer();
+    if (old != null && file == null) {
+      buf.put(0, old, 0, old.capacity());
+    }
+    return buf;
+  }
+}
@@ -3,6 +3,7 @@ package ssw.mj;
 import java.io.Serial;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class Errors {
@@ -97,11 +98,26 @@ public class Errors {
     }
   }
 
+  /**
+   * An error message and the position it refers to.
+   */
+  public record Diagnostic(int line, int col, String message) {
+    @Override
+    public String toString() {
+      return "-- line " + line + " col " + col + ": " + message;
+    }
+  }
+
   /**
    * List of error messages.
    */
   private final List<String> errors;
 
+  /**
+   * The error messages with their positions.
+   */
+  private final List<Diagnostic> diagnostics = new ArrayList<>();
+
   /**
    * Initialization (must be called before compilation).
    */
@@ -113,7 +129,16 @@ public class Errors {
    * Add a new error message to the list of errors.
    */
   public void error(int line, int col, Message msg, Object... msgParams) {
-    errors.add("-- line " + line + " col " + col + ": " + msg.format(msgParams));
+    add(new Diagnostic(line, col, msg.format(msgParams)));
+  }
+
+  /**
+   * Adds an error message that was reported elsewhere, e.g. while scanning
+   * ahead.
+   */
+  public void add(Diagnostic d) {
+    diagnostics.add(d);
+    errors.add(d.toString());
   }
 
   /**
@@ -137,4 +162,8 @@ public class Errors {
   public List<String> getErrors() {
     return errors;
   }
+
+  public List<Diagnostic> getDiagnostics() {
+    return Collections.unmodifiableList(diagnostics);
+  }
 }
@@ -0,0 +1,72 @@
+package ssw.mj;
+
+/**
+ * Observes the execution of a program by an {@link Interpreter} (see
+ * {@link Interpreter.Builder#listener}). All addresses are byte addresses in
+ * the code of the object file.
+ * <p>
+ * An interpreter with a listener runs every instruction in a separate,
+ * instrumented loop (and never in compiled code), which reports the events
+ * below. Without a listener, the interpreter does not check for one at all,
+ * so listening costs nothing unless it is used. The debug output of
+ * <code>-debug</code> is produced by such a listener, {@link Interpreter.Trace}.
+ * <p>
+ * Every method does nothing by default.
+ */
+public interface ExecutionListener {
+
+  /**
+   * The program is started (not called when a suspended program is
+   * continued).
+   */
+  default void started(Interpreter vm) {
+  }
+
+  /**
+   * The instruction at <code>adr</code> is about to be executed.
+   */
+  default void instruction(Interpreter vm, int adr) {
+  }
+
+  /**
+   * The instruction at <code>adr</code> has been executed (not called for
+   * the <code>return</code> that terminates the program).
+   */
+  default void executed(Interpreter vm, int adr) {
+  }
+
+  /**
+   * The <code>call</code> at <code>adr</code> calls the method whose
+   * <code>enter</code> is at <code>method</code>.
+   */
+  default void call(Interpreter vm, int adr, int method) {
+  }
+
+  /**
+   * The <code>return</code> at <code>adr</code> returns to
+   * <code>to</code>, or terminates the program if <code>to</code> is -1.
+   */
+  default void returned(Interpreter vm, int adr, int to) {
+  }
+
+  /**
+   * The <code>new</code> or <code>newarray</code> at <code>adr</code> has
+   * allocated the heap block at <code>ref</code>.
+   */
+  default void allocated(Interpreter vm, int adr, int ref) {
+  }
+
+  /**
+   * The <code>read</code> or <code>bread</code> at <code>adr</code> has read
+   * <code>value</code>.
+   */
+  default void input(Interpreter vm, int adr, int value) {
+  }
+
+  /**
+   * The <code>print</code> or <code>bprint</code> at <code>adr</code> has
+   * printed <code>value</code> with <code>width</code>.
+   */
+  default void output(Interpreter vm, int adr, int value, int width) {
+  }
+}
@@ -0,0 +1,229 @@
+package ssw.mj;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs many independent executions of one {@link Program} concurrently, each
+ * by its own {@link Interpreter} on its own virtual thread.
+ * <p>
+ * The interpreters share the code, its decoded form and the verification
+ * results, but each has its own global data, heap, stacks and IO: the input
+ * of an execution is a string, and its output is collected in a
+ * {@link Interpreter.BufferIO}. Executions are interpreted in slices of
+ * {@link #slice} fuel (see {@link Interpreter#run(long)}); after each slice
+ * the virtual thread yields, so that long executions share the carrier
+ * threads fairly with short ones. An execution that uses up its fuel
+ * (unlimited by default) is stopped.
+ * <p>
+ * Throughput and latency (from submission to completion) are reported by
+ * {@link #stats()}.
+ */
+public final class ExecutionService implements AutoCloseable {
+
+  /**
+   * Outcome of an execution.
+   *
+   * @param output       everything the program printed
+   * @param error        the runtime error, null if there was none
+   * @param finished     false if the program was stopped because it used up
+   *                     its fuel
+   * @param fuel         fuel used
+   * @param latencyNanos time from submission to completion
+   */
+  public record Result(String output, String error, boolean finished, long fuel, long latencyNanos) {
+  }
+
+  /**
+   * Counters and latencies of the executions so far. Latencies are accurate
+   * to 1/8 of their magnitude.
+   *
+   * @param submitted        executions submitted
+   * @param completed        executions completed (including failed and
+   *                         stopped ones)
+   * @param failed           executions that terminated with a runtime error
+   * @param stopped          executions stopped because they used up their
+   *                         fuel
+   * @param elapsedNanos     time since the service was created
+   * @param meanLatencyNanos mean latency of the completed executions
+   * @param p50LatencyNanos  median latency
+   * @param p99LatencyNanos  99th percentile of the latencies
+   * @param maxLatencyNanos  longest latency
+   */
+  public record Stats(long submitted, long completed, long failed, long stopped, long elapsedNanos,
+                      long meanLatencyNanos, long p50LatencyNanos, long p99LatencyNanos, long maxLatencyNanos) {
+
+    /**
+     * Completed executions per second.
+     */
+    public double throughput() {
+      return elapsedNanos == 0 ? 0 : completed * 1e9 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d submitted, %d completed (%d failed, %d stopped), %.1f executions/s, "
+                      + "latency mean %.3f ms, p50 %.3f ms, p99 %.3f ms, max %.3f ms",
+              submitted, completed, failed, stopped, throughput(), meanLatencyNanos / 1e6,
+              p50LatencyNanos / 1e6, p99LatencyNanos / 1e6, maxLatencyNanos / 1e6);
+    }
+  }
+
+  /**
+   * Fuel of an execution between two yields.
+   */
+  public static final long slice = 100_000;
+
+  /**
+   * Fuel of an execution, unless given otherwise.
+   */
+  public static final long maxFuel = Long.MAX_VALUE;
+
+  private static final int BUCKETS = 8 * 61; // latency histogram: 8 buckets per power of 2
+
+  private final Interpreter.Builder options;
+  private final long fuel;
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+  private final long start = System.nanoTime();
+  private final LongAdder submitted = new LongAdder(), completed = new LongAdder();
+  private final LongAdder failed = new LongAdder(), stopped = new LongAdder();
+  private final LongAdder totalLatency = new LongAdder();
+  private final AtomicLongArray latencies = new AtomicLongArray(BUCKETS);
+
+  /**
+   * Creates a service that runs <code>program</code> with unlimited fuel.
+   * The interpreters are configured by a copy of <code>options</code>, so
+   * later changes of <code>options</code> do not affect the service; their
+   * code and IO are set by the service, and they run without debug output
+   * and listeners.
+   */
+  public ExecutionService(Program program, Interpreter.Builder options) {
+    this(program, options, maxFuel);
+  }
+
+  /**
+   * Creates a service that runs <code>program</code>, stopping every
+   * execution after <code>fuel</code>.
+   */
+  public ExecutionService(Program program, Interpreter.Builder options, long fuel) {
+    if (fuel <= 0) {
+      throw new IllegalArgumentException("invalid fuel " + fuel);
+    }
+    this.options = options.copy().program(program).debug(false).listener(null).heapFile(null);
+    this.fuel = fuel;
+  }
+
+  /**
+   * Starts an execution of the program on <code>input</code>.
+   */
+  public CompletableFuture<Result> submit(String input) {
+    long submittedAt = System.nanoTime();
+    submitted.increment();
+    return CompletableFuture.supplyAsync(() -> execute(input, submittedAt), executor);
+  }
+
+  private Result execute(String input, long submittedAt) {
+    Interpreter.BufferIO io = new Interpreter.BufferIO(input);
+    String error = null;
+    boolean finished = false;
+    long left = fuel;
+    try {
+      Interpreter vm = options.build(io);
+      for (; ; ) {
+        long f = Math.min(slice, left);
+        if (vm.run(f)) {
+          left -= f - vm.fuel();
+          finished = true;
+          break;
+        }
+        left -= f - vm.fuel();
+        if (left <= 0) {
+          break;
+        }
+        Thread.yield();
+      }
+    } catch (RuntimeException | IOException e) { // runtime error, or options that do not fit the program
+      error = e.getMessage() != null ? e.getMessage() : e.toString();
+      finished = true;
+    } catch (Error e) {
+      record(System.nanoTime() - submittedAt, true, false);
+      throw e;
+    }
+    long latency = System.nanoTime() - submittedAt;
+    record(latency, error != null, !finished);
+    return new Result(io.getOutput(), error, finished, fuel - Math.max(left, 0), latency);
+  }
+
+  private void record(long latency, boolean failure, boolean stop) {
+    if (failure) {
+      failed.increment();
+    } else if (stop) {
+      stopped.increment();
+    }
+    totalLatency.add(latency);
+    latencies.incrementAndGet(bucket(latency));
+    completed.increment();
+  }
+
+  /**
+   * Histogram bucket of <code>nanos</code>: the value itself below 8,
+   * otherwise the power of 2 and the next 3 bits.
+   */
+  private static int bucket(long nanos) {
+    if (nanos < 8) {
+      return (int) Math.max(nanos, 0);
+    }
+    int exp = 63 - Long.numberOfLeadingZeros(nanos);
+    return Math.min((exp - 2) * 8 + (int) ((nanos >>> (exp - 3)) & 7), BUCKETS - 1);
+  }
+
+  /**
+   * Largest value in bucket <code>b</code>.
+   */
+  private static long bucketMax(int b) {
+    if (b < 8) {
+      return b;
+    }
+    int exp = b / 8 + 2;
+    return ((8L + b % 8 + 1) << (exp - 3)) - 1;
+  }
+
+  /**
+   * Throughput and latencies so far.
+   */
+  public Stats stats() {
+    long[] counts = new long[BUCKETS];
+    long n = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = latencies.get(i);
+      n += counts[i];
+    }
+    return new Stats(submitted.sum(), completed.sum(), failed.sum(), stopped.sum(), System.nanoTime() - start,
+            n == 0 ? 0 : totalLatency.sum() / n, percentile(counts, n, 0.5), percentile(counts, n, 0.99),
+            percentile(counts, n, 1));
+  }
+
+  private static long percentile(long[] counts, long n, double p) {
+    long rank = (long) Math.ceil(p * n);
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank && seen > 0) {
+        return bucketMax(i);
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Waits for the submitted executions and stops the service.
+   */
+  @Override
+  public void close() {
+    executor.close();
+  }
+}
@@ -0,0 +1,17 @@
+package ssw.mj;
+
+import java.io.IOException;
+import java.io.Serial;
+
+/**
+ * Thrown for a corrupted object file or snapshot.
+ */
+class FormatException extends IOException {
+
+  @Serial
+  private static final long serialVersionUID = 1L;
+
+  FormatException(String s) {
+    super(s);
+  }
+}
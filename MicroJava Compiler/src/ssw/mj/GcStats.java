@@ -0,0 +1,25 @@
+package ssw.mj;
+
+/**
+ * Garbage collection statistics of an {@link Interpreter} (see
+ * {@link Interpreter#gcStats()}). Sizes include the block headers.
+ *
+ * @param bytesAllocated   bytes allocated on the heap so far
+ * @param bytesPromoted    bytes of young blocks moved to the old generation
+ * @param minorCollections number of minor (nursery) collections
+ * @param majorCollections number of major (whole heap) collections
+ * @param minorPauseNanos  total time spent in minor collections
+ * @param majorPauseNanos  total time spent in major collections
+ * @param maxPauseNanos    longest single collection
+ */
+public record GcStats(long bytesAllocated, long bytesPromoted, int minorCollections, int majorCollections,
+                      long minorPauseNanos, long majorPauseNanos, long maxPauseNanos) {
+
+  @Override
+  public String toString() {
+    return String.format("allocated %d bytes, promoted %d bytes, %d minor collections (%.3f ms), "
+                    + "%d major collections (%.3f ms), max pause %.3f ms",
+            bytesAllocated, bytesPromoted, minorCollections, minorPauseNanos / 1e6,
+            majorCollections, majorPauseNanos / 1e6, maxPauseNanos / 1e6);
+  }
+}
@@ -0,0 +1,572 @@
+package ssw.mj;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The heap of the MicroJava VM with a generational garbage collector.
+ * <p>
+ * Every block has a header of two words in front of its address: a tag that
+ * tells which of its words hold references, and its length (the number of
+ * fields of an object, the number of elements of an array, which is what
+ * <code>arraylength</code> reads at <code>adr - 1</code>).
+ * <p>
+ * The heap is split into an old generation at the low addresses and a
+ * nursery at the top, which consists of an allocation area (eden) and two
+ * survivor spaces. New blocks are allocated in eden, except for blocks
+ * larger than a survivor space, which go to the old generation directly.
+ * When eden is full, a minor collection copies the live blocks of eden and
+ * of the current survivor space to the other survivor space, or to the old
+ * generation once they have survived {@link #TENURE_AGE} minor collections
+ * (or do not fit). Its pause only depends on the number of live young
+ * blocks, since most temporary blocks die young. The references from old to
+ * young blocks are found in a remembered set, which the VM maintains with a
+ * write barrier (see {@link #remember}).
+ * <p>
+ * When the old generation might not be able to take all young blocks, a
+ * major collection marks all reachable blocks and slides them down to the
+ * start of the heap in address order, updating all references to them, so
+ * that the old generation is compacted and the nursery is empty again.
+ * <p>
+ * The heap starts small and grows up to a maximum size when a block does
+ * not fit even after a collection, or when a major collection leaves the old
+ * generation more than half full. Its size at least doubles every time, so
+ * that copying the words costs a constant amount per allocated word. The old
+ * generation keeps its addresses; the nursery moves to the top of the larger
+ * heap. If the nursery is not empty, its blocks stay where they are and
+ * become old, with the free words between them filled with unused blocks.
+ * <p>
+ * The words of the heap are kept in a {@link Memory}, either in an int
+ * array or off the Java heap.
+ * <p>
+ * The collector only knows where references are through the tags and the
+ * roots given to {@link #allocSlow}; it must not run if one of them might
+ * be wrong.
+ */
+final class Heap {
+  static final int HEADER = 2; // tag, length
+  static final int BYTES = 0, // array of bytes (packed into words)
+          WORDS = 1, // array of ints
+          REFS = 2, // array of references
+          OBJECT = 3; // object; OBJECT + k for the k-th layout registered with tag()
+  static final int TENURE_AGE = 2; // number of minor collections a block survives in the nursery
+  private static final int MARK = 1 << 31, // reachable (major collection)
+          FORWARDED = 1 << 30, // copied (minor collection), the new address is in the length word
+          REMEMBERED = 1 << 29, // old block in the remembered set
+          AGE_SHIFT = 24, // number of survived minor collections
+          TAG_MASK = (1 << AGE_SHIFT) - 1,
+          GAP = TAG_MASK; // header of a single unused word in the old generation
+
+  /**
+   * A word holding a reference (or 0 for null).
+   */
+  @FunctionalInterface
+  interface Slot {
+    void visit(int[] words, int idx);
+  }
+
+  /**
+   * The references from outside the heap.
+   */
+  @FunctionalInterface
+  interface Roots {
+    void scan(Slot slot);
+  }
+
+  final Memory words;
+  int youngStart; // first address of the nursery; all lower addresses are old
+  private final int maxSize;
+  private int oldEnd, edenEnd, survivorSize;
+  private int oldFree = 1; // next free address (no block should start at address 0)
+  private int edenFree;
+  private int fromStart, fromFree; // survivor space with the survivors of the last minor collection
+  private int toStart; // empty survivor space
+  private final List<int[]> layouts = new ArrayList<>(); // offsets of the reference fields of each object layout
+  private final Map<BitSet, Integer> tags = new HashMap<>();
+  private int[] remembered = new int[64]; // old blocks that may reference young blocks
+  private int nRemembered;
+  private Memory forward; // new address of every marked block (at its old address), allocated on first use
+  private int[] marked = new int[64]; // marked blocks whose references are not yet marked
+  private int nMarked;
+  private int toFree; // during a minor collection
+
+  // statistics (in words and nanoseconds)
+  private long allocated, promoted;
+  private int minorCollections, majorCollections;
+  private long minorPause, majorPause, maxPause;
+
+  /**
+   * Creates a heap in <code>words</code>, which can grow up to
+   * <code>maxSize</code> words.
+   */
+  Heap(Memory words, int maxSize) {
+    this.maxSize = Math.max(words.size(), maxSize);
+    this.words = words;
+    layout();
+    tag(new BitSet()); // OBJECT: no reference fields
+  }
+
+  /**
+   * Places an empty nursery at the top of the heap.
+   */
+  private void layout() {
+    int size = words.size();
+    int nursery = size / 5;
+    survivorSize = nursery / 10;
+    oldEnd = size - nursery;
+    youngStart = oldEnd;
+    edenEnd = size - 2 * survivorSize;
+    edenFree = youngStart;
+    fromStart = fromFree = edenEnd;
+    toStart = edenEnd + survivorSize;
+  }
+
+  /**
+   * The tag for objects whose fields <code>refFields</code> hold references.
+   */
+  int tag(BitSet refFields) {
+    return tags.computeIfAbsent(refFields, refs -> {
+      layouts.add(refs.stream().toArray());
+      return OBJECT + layouts.size() - 1;
+    });
+  }
+
+  /**
+   * Allocates a zeroed block of <code>size</code> words with the given tag
+   * and length in eden. Returns its address, or 0 if it does not fit or is
+   * to be allocated in the old generation.
+   */
+  int alloc(int tag, int length, int size) {
+    int adr = edenFree + HEADER;
+    if (size > survivorSize || size > edenEnd - adr) {
+      return 0;
+    }
+    words.set(edenFree, tag);
+    words.set(edenFree + 1, length);
+    edenFree = adr + size;
+    allocated += HEADER + size;
+    return adr;
+  }
+
+  /**
+   * Allocates a block that did not fit into eden, collecting garbage if
+   * <code>roots</code> are given. Returns its address, or 0 if the heap is
+   * full.
+   */
+  int allocSlow(int tag, int length, int size, Roots roots) {
+    if (roots != null && size <= survivorSize) {
+      if (oldEnd - oldFree >= (edenFree - youngStart) + (fromFree - fromStart)) {
+        minor(roots);
+      } else if (!major(roots) || oldFree > oldEnd / 2) { // the live blocks do not fit or fill the old generation
+        grow(0);
+      }
+      int adr = alloc(tag, length, size);
+      if (adr != 0) {
+        return adr;
+      }
+    }
+    int adr = allocOld(tag, length, size);
+    if (adr == 0 && roots != null && major(roots)) {
+      adr = allocOld(tag, length, size);
+    }
+    if (adr == 0 && grow(HEADER + size)) {
+      adr = alloc(tag, length, size);
+      if (adr == 0) {
+        adr = allocOld(tag, length, size);
+      }
+    }
+    return adr;
+  }
+
+  private int allocOld(int tag, int length, int size) {
+    int adr = oldFree + HEADER;
+    if (size > oldEnd - adr) {
+      return 0;
+    }
+    words.set(oldFree, tag);
+    words.set(oldFree + 1, length);
+    oldFree = adr + size;
+    allocated += HEADER + size;
+    return adr;
+  }
+
+  /**
+   * Grows the heap so that the old generation has at least <code>need</code>
+   * free words, or as far as possible if <code>need</code> is 0. Returns
+   * false if the heap cannot grow that much.
+   */
+  private boolean grow(int need) {
+    int used = edenFree > youngStart || fromFree > fromStart ? words.size() : oldFree;
+    long min = (long) used + need + (need + used) / 4 + 1; // the nursery takes a fifth
+    long size = Math.min(maxSize, Math.max(2L * words.size(), min));
+    if (size <= words.size() || size < min && (need > 0 || used == words.size())) { // young blocks must fit below the nursery
+      return false;
+    }
+    if (used == words.size()) { // the young blocks become old
+      gap(oldFree, oldEnd);
+      gap(edenFree, edenEnd);
+      gap(fromFree, fromStart + survivorSize);
+      gap(toStart, toStart + survivorSize);
+      for (int k = 0; k < nRemembered; k++) {
+        words.set(remembered[k] - HEADER, words.get(remembered[k] - HEADER) & ~REMEMBERED);
+      }
+      nRemembered = 0;
+      oldFree = used;
+    }
+    if (!words.grow((int) size)) {
+      return false;
+    }
+    forward = null;
+    layout();
+    return oldEnd - oldFree >= need;
+  }
+
+  /**
+   * Fills the unused words from <code>start</code> to <code>end</code> with
+   * a block without references, so that the old generation can be walked
+   * block by block.
+   */
+  private void gap(int start, int end) {
+    if (end - start == 1) {
+      words.set(start, GAP);
+    } else if (end > start) {
+      words.set(start, WORDS);
+      words.set(start + 1, end - start - HEADER);
+    }
+  }
+
+  /**
+   * Write barrier: must be called when a young address is stored into the
+   * old block at <code>adr</code>.
+   */
+  void remember(int adr) {
+    if ((words.get(adr - HEADER) & REMEMBERED) == 0) {
+      words.set(adr - HEADER, words.get(adr - HEADER) | REMEMBERED);
+      if (nRemembered == remembered.length) {
+        remembered = Arrays.copyOf(remembered, 2 * nRemembered);
+      }
+      remembered[nRemembered++] = adr;
+    }
+  }
+
+  /**
+   * Number of words of the block with the given tag and length, without
+   * header.
+   */
+  private static int size(int tag, int length) {
+    return Math.max(0, tag == BYTES ? (length + 3) >> 2 : length);
+  }
+
+  /**
+   * Number of words of the block whose header is at <code>p</code>,
+   * including the header.
+   */
+  private int blockSize(int p) {
+    if (words.get(p) == GAP) {
+      return 1;
+    }
+    return HEADER + size(words.get(p) & TAG_MASK, words.get(p + 1));
+  }
+
+  // ----- minor collection
+
+  /**
+   * Copies the young blocks reachable from <code>roots</code> and from the
+   * remembered set to the empty survivor space or to the old generation.
+   * The old generation must have room for all young blocks.
+   */
+  private void minor(Roots roots) {
+    long start = System.nanoTime();
+    toFree = toStart;
+    int oldScan = oldFree;
+    roots.scan((w, i) -> w[i] = evacuate(w[i]));
+    int n = nRemembered;
+    nRemembered = 0;
+    for (int k = 0; k < n; k++) {
+      int adr = remembered[k];
+      words.set(adr - HEADER, words.get(adr - HEADER) & ~REMEMBERED);
+      if (evacuateReferences(adr)) {
+        remember(adr);
+      }
+    }
+    int toScan = toStart;
+    while (toScan < toFree || oldScan < oldFree) {
+      for (; toScan < toFree; toScan += blockSize(toScan)) {
+        evacuateReferences(toScan + HEADER);
+      }
+      for (; oldScan < oldFree; oldScan += blockSize(oldScan)) {
+        if (evacuateReferences(oldScan + HEADER)) {
+          remember(oldScan + HEADER);
+        }
+      }
+    }
+    words.fill(youngStart, edenFree, 0);
+    words.fill(fromStart, fromFree, 0);
+    edenFree = youngStart;
+    int s = fromStart;
+    fromStart = toStart;
+    fromFree = toFree;
+    toStart = s;
+    minorCollections++;
+    minorPause += pause(start);
+  }
+
+  /**
+   * The new address of the block at <code>adr</code>, which is copied if it
+   * is young and not yet copied.
+   */
+  private int evacuate(int adr) {
+    if (adr < youngStart) { // null or old
+      return adr;
+    }
+    int p = adr - HEADER;
+    int header = words.get(p);
+    if ((header & FORWARDED) != 0) {
+      return words.get(p + 1);
+    }
+    int size = blockSize(p);
+    int age = (header >>> AGE_SHIFT & 0xF) + 1;
+    int dest;
+    if (age < TENURE_AGE && size <= toStart + survivorSize - toFree) {
+      dest = toFree;
+      toFree += size;
+      words.copy(p, dest, size);
+      words.set(dest, header & TAG_MASK | age << AGE_SHIFT);
+    } else {
+      dest = oldFree;
+      oldFree += size;
+      promoted += size;
+      words.copy(p, dest, size);
+      words.set(dest, header & TAG_MASK);
+    }
+    words.set(p, FORWARDED);
+    words.set(p + 1, dest + HEADER);
+    return dest + HEADER;
+  }
+
+  /**
+   * Evacuates the young blocks referenced by the block at <code>adr</code>.
+   * Returns true if it still references young blocks afterwards.
+   */
+  private boolean evacuateReferences(int adr) {
+    boolean young = false;
+    int tag = words.get(adr - HEADER) & TAG_MASK;
+    if (tag == REFS) {
+      for (int i = adr, end = adr + size(tag, words.get(adr - 1)); i < end; i++) {
+        int ref = evacuate(words.get(i));
+        words.set(i, ref);
+        young |= ref >= youngStart;
+      }
+    } else if (tag >= OBJECT) {
+      for (int off : layouts.get(tag - OBJECT)) {
+        int ref = evacuate(words.get(adr + off));
+        words.set(adr + off, ref);
+        young |= ref >= youngStart;
+      }
+    }
+    return young;
+  }
+
+  // ----- major collection
+
+  /**
+   * Frees all blocks that are not reachable from <code>roots</code> and
+   * compacts the others into the old generation. The roots are scanned
+   * twice: once to mark the blocks they reference and once to update them
+   * to the new addresses. Returns false (and leaves the heap unchanged) if
+   * the reachable blocks do not fit into the old generation.
+   */
+  private boolean major(Roots roots) {
+    long start = System.nanoTime();
+    if (forward == null) {
+      forward = words.table(words.size());
+    }
+    int[] regions = {1, oldFree, youngStart, edenFree, fromStart, fromFree};
+    // mark
+    roots.scan((w, i) -> mark(w[i]));
+    while (nMarked > 0) {
+      references(marked[--nMarked], false);
+    }
+    // compute new addresses
+    int to = 1;
+    long survivors = 0;
+    for (int r = 0; r < regions.length; r += 2) {
+      for (int p = regions[r]; p < regions[r + 1]; p += blockSize(p)) {
+        if ((words.get(p) & MARK) != 0) {
+          forward.set(p + HEADER, to + HEADER);
+          to += blockSize(p);
+          if (p >= youngStart) {
+            survivors += blockSize(p);
+          }
+        }
+      }
+    }
+    if (to > oldEnd) {
+      for (int r = 0; r < regions.length; r += 2) {
+        for (int p = regions[r]; p < regions[r + 1]; p += blockSize(p)) {
+          words.set(p, words.get(p) & ~MARK);
+        }
+      }
+      majorCollections++;
+      majorPause += pause(start);
+      return false;
+    }
+    // update references
+    roots.scan((w, i) -> w[i] = forward(w[i]));
+    for (int r = 0; r < regions.length; r += 2) {
+      for (int p = regions[r]; p < regions[r + 1]; p += blockSize(p)) {
+        if ((words.get(p) & MARK) != 0) {
+          references(p + HEADER, true);
+        }
+      }
+    }
+    // slide
+    for (int r = 0; r < regions.length; r += 2) {
+      for (int p = regions[r], next; p < regions[r + 1]; p = next) {
+        next = p + blockSize(p);
+        if ((words.get(p) & MARK) != 0) {
+          words.set(p, words.get(p) & TAG_MASK);
+          words.copy(p, forward.get(p + HEADER) - HEADER, next - p);
+        }
+      }
+    }
+    words.fill(Math.min(to, oldFree), oldFree, 0);
+    words.fill(youngStart, edenFree, 0);
+    words.fill(fromStart, fromFree, 0);
+    oldFree = to;
+    edenFree = youngStart;
+    fromFree = fromStart;
+    nRemembered = 0;
+    promoted += survivors;
+    majorCollections++;
+    majorPause += pause(start);
+    return true;
+  }
+
+  private void mark(int adr) {
+    if (adr != 0 && (words.get(adr - HEADER) & MARK) == 0) {
+      words.set(adr - HEADER, words.get(adr - HEADER) | MARK);
+      if (nMarked == marked.length) {
+        marked = Arrays.copyOf(marked, 2 * nMarked);
+      }
+      marked[nMarked++] = adr;
+    }
+  }
+
+  private int forward(int adr) {
+    return adr == 0 ? 0 : forward.get(adr);
+  }
+
+  /**
+   * Marks the blocks referenced by the block at <code>adr</code>, or updates
+   * its references to their new addresses if <code>update</code> is set.
+   */
+  private void references(int adr, boolean update) {
+    int tag = words.get(adr - HEADER) & TAG_MASK;
+    if (tag == REFS) {
+      for (int i = adr, end = adr + size(tag, words.get(adr - 1)); i < end; i++) {
+        reference(i, update);
+      }
+    } else if (tag >= OBJECT) {
+      for (int off : layouts.get(tag - OBJECT)) {
+        reference(adr + off, update);
+      }
+    }
+  }
+
+  private void reference(int i, boolean update) {
+    if (update) {
+      words.set(i, forward(words.get(i)));
+    } else {
+      mark(words.get(i));
+    }
+  }
+
+  // ----- statistics
+
+  private long pause(long start) {
+    long pause = System.nanoTime() - start;
+    maxPause = Math.max(maxPause, pause);
+    return pause;
+  }
+
+  /**
+   * Writes the allocation state, the layouts, the remembered set and the
+   * statistics, i.e. everything but the words (see {@link Snapshot}).
+   */
+  void save(DataOutputStream out) throws IOException {
+    out.writeInt(oldFree);
+    out.writeInt(edenFree);
+    out.writeInt(fromStart);
+    out.writeInt(fromFree);
+    out.writeInt(toStart);
+    out.writeInt(layouts.size());
+    for (int[] refs : layouts) {
+      out.writeInt(refs.length);
+      for (int off : refs) {
+        out.writeInt(off);
+      }
+    }
+    out.writeInt(nRemembered);
+    for (int k = 0; k < nRemembered; k++) {
+      out.writeInt(remembered[k]);
+    }
+    out.writeLong(allocated);
+    out.writeLong(promoted);
+    out.writeInt(minorCollections);
+    out.writeInt(majorCollections);
+    out.writeLong(minorPause);
+    out.writeLong(majorPause);
+    out.writeLong(maxPause);
+  }
+
+  /**
+   * Reads the state written by {@link #save} into a heap whose words have
+   * been restored.
+   */
+  void restore(DataInputStream in) throws IOException {
+    oldFree = in.readInt();
+    edenFree = in.readInt();
+    fromStart = in.readInt();
+    fromFree = in.readInt();
+    toStart = in.readInt();
+    boolean survivors = fromStart == edenEnd && toStart == edenEnd + survivorSize
+            || toStart == edenEnd && fromStart == edenEnd + survivorSize;
+    if (!survivors || oldFree < 1 || oldFree > oldEnd || edenFree < youngStart || edenFree > edenEnd
+            || fromFree < fromStart || fromFree > fromStart + survivorSize) {
+      throw new FormatException("heap does not match its size");
+    }
+    layouts.clear();
+    tags.clear();
+    int n = in.readInt();
+    for (int i = 0; i < n; i++) {
+      int[] refs = new int[in.readInt()];
+      BitSet fields = new BitSet();
+      for (int j = 0; j < refs.length; j++) {
+        refs[j] = in.readInt();
+        fields.set(refs[j]);
+      }
+      layouts.add(refs);
+      tags.put(fields, OBJECT + i);
+    }
+    nRemembered = in.readInt();
+    remembered = new int[Math.max(64, nRemembered)];
+    for (int k = 0; k < nRemembered; k++) {
+      remembered[k] = in.readInt();
+    }
+    allocated = in.readLong();
+    promoted = in.readLong();
+    minorCollections = in.readInt();
+    majorCollections = in.readInt();
+    minorPause = in.readLong();
+    majorPause = in.readLong();
+    maxPause = in.readLong();
+  }
+
+  GcStats stats() {
+    return new GcStats(4 * allocated, 4 * promoted, minorCollections, majorCollections,
+            minorPause, majorPause, maxPause);
+  }
+}
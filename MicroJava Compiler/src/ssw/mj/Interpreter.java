@@ -1,51 +1,97 @@
 // MicroJava Virtual Machine
 // -------------------------
-// Syntax: java ssw.mj.Run fileName [-debug]
+// Syntax: java ssw.mj.Run fileName [-debug] [-compile | -tiered[=threshold]]
 // ===========================================================================
 // by Hanspeter Moessenboeck, 2002-10-28
 // edited by Albrecht Woess, 2002-10-30
 package ssw.mj;
 
-import ssw.mj.impl.Code;
 import ssw.mj.impl.Code.OpCode;
+import ssw.mj.verify.EscapeAnalysis;
+import ssw.mj.verify.StackMaps;
+import ssw.mj.verify.VerifiedProgram;
+import ssw.mj.verify.VerifyException;
+import ssw.mj.verify.Verifier;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import static ssw.mj.DecodedCode.*;
 
 public class Interpreter {
 
-  private final boolean debug; // debug output on or off
-  private final byte[] code; // code array
-  private final int[] data; // global data
-  private final int[] heap; // dynamic heap
-  private final int[] stack; // expression stack
-  private final int[] local; // method stack
+  private final ExecutionListener listener; // null if none is attached
+  private final Program shared; // the program, possibly shared with other interpreters
+  private final ByteBuffer code; // code array
+  private final DecodedCode decoded; // pre-decoded code
+  final int[] data; // global data
+  private final Heap blocks; // dynamic heap with garbage collector
+  final Memory heap; // words of the dynamic heap
+  private int young; // first address of the nursery (for the write barrier)
+  final int[] stack; // expression stack
+  private int[] local; // method stack (replaced when it grows)
+  private final int eStackLimit; // size of the expression stack
+  private final int mStackLimit; // maximum size of the method stack
   private final int startPC; // address of main() method
-  private int pc; // program counter
+  private int pc; // program counter (index into decoded code)
   private int fp, sp; // frame pointer, stack pointer on method stack
   private int esp; // expression stack pointer
-  private int free; // next free heap address
-  private static final int heapSize = 100000, // size of the heap in words
-          mStackSize = 4000, // size of the method stack in words
-          eStackSize = 30; // size of the expression stack in words
-
-  private void write(String s, int len) {
-    for (int i = 0; i < len; i++) {
-      io.write(' ');
-    }
-    for (int i = 0; i < s.length(); i++) {
-      io.write(s.charAt(i));
-    }
-  }
+  private VerifiedProgram program; // verified code, null if not (yet) verified
+  private int[] maxStack; // verified maximum expression stack depth of each method (at enter)
+  private int[] unchecked; // code for runUnchecked, without redundant bounds checks (see Program#uncheckedCode)
+  private boolean scalar; // the frames use the code with scalar-replaced objects (see EscapeAnalysis)
+  private Translator tier; // compiler tier in tiered mode, null if only interpreting
+  private int threshold; // invocations or backward jumps before code is compiled
+  private int[] counters; // invocation counters (at enter) and back-edge counters (at jump operands)
+  private MethodHandle[] compiled; // compiled methods (at enter) and OSR entries (at loop headers)
+  private int returnPC; // a return instruction, to leave a frame after OSR
+  private final RefMaps refMaps; // reference maps from the compiler, null if not available
+  private StackMaps stackMaps; // reference maps by instruction, null if the heap cannot be collected
+  private int[] tags; // heap block tag for each new and newarray instruction, null if not yet computed
+  private int compiledBase = Integer.MAX_VALUE; // fp of the first frame of compiled code, above which all frames are compiled
+  private final Profile profile; // null if not profiling
+  private final Sampler sampler; // null if not sampling
+  volatile boolean sample; // a sample is requested (set by the sampler's timer thread)
+  private int[] frames = new int[64]; // instruction addresses of a sample
+  private long fuel; // budget left before the program is suspended (see run(long))
+  private int resumePC; // where a suspended program continues
+  private boolean suspended; // the program has run out of fuel and can be resumed
+  private boolean checked; // a suspended program continues in runChecked
+  private boolean suspendAtInput; // suspend before the first read or bread
+  static final int heapSize = 1 << 14, // default initial size of the heap in words
+          maxHeapSize = 1 << 24, // default maximum size of the heap in words
+          mStackSize = 1 << 10, // default initial size of the method stack in words
+          maxMStackSize = 1 << 20, // default maximum size of the method stack in words
+          eStackSize = 30, // default size of the expression stack in words
+          tierThreshold = 10000; // default threshold for tiered execution
 
   public static class BufferIO implements IO {
 
-    private final StringBuffer output;
+    private final StringBuilder output;
     private final String input;
 
     private int inputPos;
 
     public BufferIO(String input) {
-      output = new StringBuffer();
+      output = new StringBuilder();
       this.input = input;
     }
 
@@ -63,59 +109,636 @@ public class Interpreter {
       output.append(c);
     }
 
+    @Override
+    public void write(char c, int n) {
+      if (n > 0) {
+        output.repeat(c, n);
+      }
+    }
+
+    @Override
+    public void writeInt(int val) {
+      output.append(val);
+    }
+
     public String getOutput() {
       return output.toString();
     }
   }
 
-  public static final IO ConsoleIO = new IO() {
+  /**
+   * Input from a channel and output to a channel.
+   * <p>
+   * The input is read in blocks into a reusable buffer, and numbers are
+   * parsed directly from it. If the input is a file (e.g. redirected
+   * standard input), it is mapped into memory instead, in windows of up to
+   * {@link #WINDOW} bytes. Every byte is read as one char.
+   * <p>
+   * The output is collected in a char buffer, encoded into a byte buffer
+   * (both are reused) and written to the channel when the char buffer is
+   * full, before input is read and when the program terminates.
+   * <p>
+   * Errors on the channels are ignored, like those of {@link System#in} and
+   * {@link System#out} before, and the end of the input reads as 0.
+   */
+  public static class ChannelIO implements IO {
+    private static final int WINDOW = 1 << 26;
+
+    private final ReadableByteChannel in;
+    private final FileChannel file; // in, if it is a file to be mapped
+    private long mapped; // position of the next window of the file
+    private ByteBuffer input = ByteBuffer.allocate(1 << 16).limit(0);
+    private final WritableByteChannel out;
+    private final CharsetEncoder encoder;
+    private final CharBuffer chars = CharBuffer.allocate(8192);
+    private final ByteBuffer bytes;
+    private final char[] digits = new char[11]; // "-2147483648"
+
+    public ChannelIO(ReadableByteChannel in, WritableByteChannel out, Charset charset) {
+      this.in = in;
+      FileChannel f = null;
+      if (in instanceof FileChannel fc) {
+        try {
+          if (fc.size() > 0) { // a file, not a pipe or terminal
+            mapped = fc.position();
+            f = fc;
+          }
+        } catch (IOException ex) {
+          // not mapped
+        }
+      }
+      file = f;
+      this.out = out;
+      encoder = charset.newEncoder()
+              .onMalformedInput(CodingErrorAction.REPLACE)
+              .onUnmappableCharacter(CodingErrorAction.REPLACE);
+      bytes = ByteBuffer.allocate((int) Math.ceil(chars.capacity() * encoder.maxBytesPerChar()));
+    }
 
     @Override
     public char read() {
+      flush();
+      return (char) next();
+    }
+
+    @Override
+    public int readInt() {
+      flush();
+      int val = 0;
+      int prev = ' ';
+      int b = next();
+      while ((b < '0' || b > '9') && b != 0) { // 0 at the end of the input
+        prev = b;
+        b = next();
+      }
+      while (b >= '0' && b <= '9') {
+        val = 10 * val + b - '0';
+        b = next();
+      }
+      return prev == '-' ? -val : val;
+    }
+
+    /**
+     * The next byte of the input, 0 at its end.
+     */
+    private int next() {
+      if (!input.hasRemaining() && !fill()) {
+        return 0;
+      }
+      return input.get() & 0xFF;
+    }
+
+    /**
+     * Reads the next block of input or maps the next window of the file.
+     * Returns false at the end of the input.
+     */
+    private boolean fill() {
       try {
-        int i = System.in.read();
-        if (i == -1) {
-          return 0;
+        if (file != null) {
+          long size = file.size();
+          if (mapped >= size) {
+            return false;
+          }
+          input = file.map(FileChannel.MapMode.READ_ONLY, mapped, Math.min(WINDOW, size - mapped));
+          mapped += input.limit();
+          return true;
         }
-        return (char) i;
+        input.clear();
+        int n = in.read(input);
+        input.flip();
+        return n > 0;
       } catch (IOException ex) {
-        return 0;
+        input.limit(0);
+        return false;
       }
     }
 
     @Override
     public void write(char c) {
-      System.out.print(c);
+      if (!chars.hasRemaining()) {
+        flush();
+      }
+      chars.put(c);
+    }
+
+    @Override
+    public void write(char c, int n) {
+      while (n > 0) {
+        if (!chars.hasRemaining()) {
+          flush();
+        }
+        for (int k = Math.min(n, chars.remaining()); k > 0; k--, n--) {
+          chars.put(c);
+        }
+      }
+    }
+
+    @Override
+    public void writeInt(int val) {
+      if (chars.remaining() < digits.length) {
+        flush();
+      }
+      int i = digits.length;
+      int v = val;
+      do {
+        digits[--i] = (char) ('0' + Math.abs(v % 10));
+        v /= 10;
+      } while (v != 0);
+      if (val < 0) {
+        digits[--i] = '-';
+      }
+      chars.put(digits, i, digits.length - i);
+    }
+
+    @Override
+    public void flush() {
+      if (chars.position() == 0) {
+        return;
+      }
+      chars.flip();
+      try {
+        CoderResult result;
+        do {
+          result = encoder.encode(chars, bytes, false);
+          bytes.flip();
+          while (bytes.hasRemaining()) {
+            out.write(bytes);
+          }
+          bytes.clear();
+        } while (result.isOverflow());
+        chars.compact(); // keeps the first half of a surrogate pair
+      } catch (IOException ex) {
+        chars.clear();
+        bytes.clear();
+      }
     }
-  };
+  }
+
+  public static final IO ConsoleIO = new ChannelIO(new FileInputStream(FileDescriptor.in).getChannel(),
+          Channels.newChannel(System.out), System.out.charset());
 
   public interface IO {
     char read();
 
     void write(char c);
+
+    /**
+     * Reads a decimal number, skipping everything up to its first digit. It
+     * is negative if a '-' is right in front of it. The char after it is
+     * consumed as well. Returns 0 at the end of the input.
+     */
+    default int readInt() {
+      int val = 0;
+      int prev = ' ';
+      int b = read();
+      while ((b < '0' || b > '9') && b != 0) { // 0 at the end of the input
+        prev = b;
+        b = read();
+      }
+      while (b >= '0' && b <= '9') {
+        val = 10 * val + b - '0';
+        b = read();
+      }
+      return prev == '-' ? -val : val;
+    }
+
+    /**
+     * Writes <code>c</code> <code>n</code> times (not at all if
+     * <code>n</code> is not positive).
+     */
+    default void write(char c, int n) {
+      for (; n > 0; n--) {
+        write(c);
+      }
+    }
+
+    /**
+     * Writes <code>val</code> in decimal.
+     */
+    default void writeInt(int val) {
+      String s = String.valueOf(val);
+      for (int i = 0; i < s.length(); i++) {
+        write(s.charAt(i));
+      }
+    }
+
+    /**
+     * Writes buffered output. Called before the program terminates.
+     */
+    default void flush() {
+    }
+  }
+
+  /**
+   * The listener that prints the debug output (see {@link Builder#debug}):
+   * every instruction with its operands, followed by the expression stack
+   * after it. Details of every <code>astore</code> are printed as well.
+   */
+  public static final class Trace implements ExecutionListener {
+
+    @Override
+    public void started(Interpreter vm) {
+      System.out.println();
+      System.out.println("  pos: instruction operands");
+      System.out.println("     | expressionstack");
+      System.out.println("-----------------------------");
+    }
+
+    @Override
+    public void instruction(Interpreter vm, int adr) {
+      ByteBuffer code = vm.code;
+      OpCode opCode = OpCode.get(code.get(adr));
+      String instr = (opCode != null) ? opCode.cleanName() : "???";
+      System.out.printf("%5d: %s ", adr, instr);
+      if (opCode == null) {
+        return;
+      }
+      int p = adr + 1;
+      switch (DecodedCode.operandBytes(opCode)) {
+        case 1 -> System.out.print(code.get(p) + " ");
+        case 2 -> {
+          if (opCode == OpCode.inc || opCode == OpCode.enter) {
+            System.out.print(code.get(p) + " " + code.get(p + 1) + " ");
+          } else {
+            System.out.print(code.getShort(p) + " ");
+          }
+        }
+        case 4 -> System.out.print(code.getInt(p) + " ");
+        default -> {
+        }
+      }
+      int esp = vm.esp;
+      if (opCode == OpCode.astore && esp >= 3 && vm.stack[esp - 3] != 0) {
+        int a = vm.stack[esp - 3];
+        System.out.println("\nArraylength = " + vm.heap.get(a - 1));
+        System.out.println("Address = " + a);
+        System.out.println("Index = " + vm.stack[esp - 2]);
+        System.out.println("Value = " + vm.stack[esp - 1]);
+      }
+    }
+
+    @Override
+    public void executed(Interpreter vm, int adr) {
+      vm.io.flush();
+      System.out.println();
+      System.out.print("     | ");
+      for (int i = 0; i < vm.esp; i++) {
+        System.out.print(vm.stack[i] + " ");
+      }
+      System.out.println();
+    }
+  }
+
+  /**
+   * Reports to two listeners.
+   */
+  private record Both(ExecutionListener first, ExecutionListener second) implements ExecutionListener {
+
+    @Override
+    public void started(Interpreter vm) {
+      first.started(vm);
+      second.started(vm);
+    }
+
+    @Override
+    public void instruction(Interpreter vm, int adr) {
+      first.instruction(vm, adr);
+      second.instruction(vm, adr);
+    }
+
+    @Override
+    public void executed(Interpreter vm, int adr) {
+      first.executed(vm, adr);
+      second.executed(vm, adr);
+    }
+
+    @Override
+    public void call(Interpreter vm, int adr, int method) {
+      first.call(vm, adr, method);
+      second.call(vm, adr, method);
+    }
+
+    @Override
+    public void returned(Interpreter vm, int adr, int to) {
+      first.returned(vm, adr, to);
+      second.returned(vm, adr, to);
+    }
+
+    @Override
+    public void allocated(Interpreter vm, int adr, int ref) {
+      first.allocated(vm, adr, ref);
+      second.allocated(vm, adr, ref);
+    }
+
+    @Override
+    public void input(Interpreter vm, int adr, int value) {
+      first.input(vm, adr, value);
+      second.input(vm, adr, value);
+    }
+
+    @Override
+    public void output(Interpreter vm, int adr, int value, int width) {
+      first.output(vm, adr, value, width);
+      second.output(vm, adr, value, width);
+    }
   }
 
-  private final IO io;
+  final IO io;
+
+  /**
+   * Creates an interpreter with other than the default sizes of its memory
+   * areas. The heap and the method stack start with their initial size and
+   * grow on demand up to their maximum size, the expression stack has a
+   * fixed size. All sizes are in words. The heap can also be kept off the
+   * Java heap.
+   */
+  public static class Builder {
+
+    private Program program;
+    private byte[] code;
+    private int startPC, dataSize;
+    private RefMaps refMaps;
+    private IO io = ConsoleIO;
+    private boolean debug;
+    private ExecutionListener listener;
+    private boolean profile;
+    private Duration sampleInterval;
+    private MethodTable methods;
+    private boolean offHeap;
+    private Path heapFile;
+    private Path snapshot;
+    private boolean suspendAtInput;
+    private int heapSize = Interpreter.heapSize, maxHeapSize = Interpreter.maxHeapSize;
+    private int mStackSize = Interpreter.mStackSize, maxMStackSize = Interpreter.maxMStackSize;
+    private int eStackSize = Interpreter.eStackSize;
+
+    public Builder() {
+    }
+
+    private Builder(Builder b) {
+      program = b.program;
+      code = b.code;
+      startPC = b.startPC;
+      dataSize = b.dataSize;
+      refMaps = b.refMaps;
+      io = b.io;
+      debug = b.debug;
+      listener = b.listener;
+      profile = b.profile;
+      sampleInterval = b.sampleInterval;
+      methods = b.methods;
+      offHeap = b.offHeap;
+      heapFile = b.heapFile;
+      snapshot = b.snapshot;
+      suspendAtInput = b.suspendAtInput;
+      heapSize = b.heapSize;
+      maxHeapSize = b.maxHeapSize;
+      mStackSize = b.mStackSize;
+      maxMStackSize = b.maxMStackSize;
+      eStackSize = b.eStackSize;
+    }
+
+    /**
+     * A builder with the same settings, which can be changed independently.
+     */
+    public Builder copy() {
+      return new Builder(this);
+    }
+
+    /**
+     * The program to be interpreted, as stored in an object file.
+     */
+    public Builder code(byte[] code, int startPC, int dataSize) {
+      this.code = code;
+      this.startPC = startPC;
+      this.dataSize = dataSize;
+      return this;
+    }
+
+    /**
+     * The program to be interpreted, which can be shared with other
+     * interpreters. Takes precedence over {@link #code}, {@link #refMaps}
+     * and {@link #methods}.
+     */
+    public Builder program(Program program) {
+      this.program = program;
+      return this;
+    }
+
+    /**
+     * The compiler's reference maps, without which the heap is not garbage
+     * collected.
+     */
+    public Builder refMaps(RefMaps refMaps) {
+      this.refMaps = refMaps;
+      return this;
+    }
+
+    public Builder io(IO io) {
+      this.io = io;
+      return this;
+    }
+
+    /**
+     * Traces every instruction and the expression stack after it on
+     * System.out (see {@link Trace}).
+     */
+    public Builder debug(boolean debug) {
+      this.debug = debug;
+      return this;
+    }
+
+    /**
+     * Reports the execution to <code>listener</code> (null for none), in
+     * addition to the debug trace. The listener is shared by all
+     * interpreters built afterwards.
+     */
+    public Builder listener(ExecutionListener listener) {
+      this.listener = listener;
+      return this;
+    }
+
+    /**
+     * Collects a {@link Profile} of the execution. The program is only
+     * interpreted then, like with a listener.
+     */
+    public Builder profile(boolean profile) {
+      this.profile = profile;
+      return this;
+    }
+
+    /**
+     * Samples the method stack every <code>interval</code> (see
+     * {@link Sampler}).
+     */
+    public Builder sample(Duration interval) {
+      this.sampleInterval = interval;
+      return this;
+    }
+
+    /**
+     * The names of the methods for the sampler, as stored in an object file.
+     */
+    public Builder methods(MethodTable methods) {
+      this.methods = methods;
+      return this;
+    }
+
+    /**
+     * Keeps the heap off the Java heap (see {@link DirectMemory}).
+     */
+    public Builder offHeap(boolean offHeap) {
+      this.offHeap = offHeap;
+      return this;
+    }
+
+    /**
+     * Keeps the heap off the Java heap, mapped to <code>file</code>, which is
+     * overwritten.
+     */
+    public Builder heapFile(Path file) {
+      this.heapFile = file;
+      this.offHeap |= file != null;
+      return this;
+    }
+
+    /**
+     * Restores the state of the interpreter from a snapshot (see
+     * {@link #checkpoint}), so that it continues the program where it was
+     * suspended. With {@link #offHeap}, the heap is mapped from the file.
+     */
+    public Builder restore(Path snapshot) {
+      this.snapshot = snapshot;
+      return this;
+    }
+
+    /**
+     * Suspends the program before it reads its first input (see
+     * {@link #run(long)}), e.g. to take a {@link #checkpoint} after its
+     * initialization.
+     */
+    public Builder suspendAtInput(boolean suspend) {
+      this.suspendAtInput = suspend;
+      return this;
+    }
+
+    public Builder heapSize(int initial, int max) {
+      check(initial, max, "heap");
+      heapSize = initial;
+      maxHeapSize = max;
+      return this;
+    }
+
+    public Builder methodStackSize(int initial, int max) {
+      check(initial, max, "method stack");
+      mStackSize = initial;
+      maxMStackSize = max;
+      return this;
+    }
+
+    public Builder expressionStackSize(int size) {
+      check(size, size, "expression stack");
+      eStackSize = size;
+      return this;
+    }
+
+    private static void check(int initial, int max, String area) {
+      if (initial <= 0 || max < initial) {
+        throw new IllegalArgumentException("invalid " + area + " size " + initial + ", maximum " + max);
+      }
+    }
+
+    /**
+     * Creates the interpreter. Fails if the heap file cannot be mapped.
+     */
+    public Interpreter build() throws IOException {
+      return build(io);
+    }
+
+    /**
+     * Creates an interpreter with its own <code>io</code>, without changing
+     * the builder, so that several threads can build interpreters from the
+     * same builder.
+     */
+    Interpreter build(IO io) throws IOException {
+      if (program == null && code == null) {
+        throw new IllegalStateException("no code");
+      }
+      Program p = program != null ? program : new Program(code, startPC, dataSize, refMaps, methods);
+      if (snapshot != null) {
+        Snapshot s = Snapshot.read(snapshot, p, offHeap);
+        if (s.esp > eStackSize || s.sp > maxMStackSize) {
+          throw new IllegalArgumentException("stacks too small for snapshot " + snapshot);
+        }
+        Interpreter vm = new Interpreter(this, p, io, s.words);
+        vm.restore(s);
+        return vm;
+      }
+      return new Interpreter(this, p, io, offHeap ? new DirectMemory(heapSize, heapFile) : new ArrayMemory(heapSize));
+    }
+  }
 
   public Interpreter(byte[] code, int startPC, int dataSize, IO io, boolean debug) {
-    this.code = code;
-    this.startPC = startPC;
+    this(code, startPC, dataSize, null, io, debug);
+  }
+
+  /**
+   * Creates an interpreter whose heap is garbage collected with the help of
+   * the compiler's reference maps.
+   */
+  public Interpreter(byte[] code, int startPC, int dataSize, RefMaps refMaps, IO io, boolean debug) {
+    this(new Builder().debug(debug), new Program(code, startPC, dataSize, refMaps, null), io,
+            new ArrayMemory(heapSize));
+  }
+
+  private Interpreter(Builder b, Program p, IO io, Memory words) {
+    this.shared = p;
+    this.code = p.code;
+    this.refMaps = p.refMaps;
+    this.decoded = p.decoded;
+    this.startPC = p.startPC;
     this.io = io;
-    this.debug = debug;
-    heap = new int[heapSize]; // fixed sized heap
-    data = new int[dataSize]; // global data as specified in
+    this.listener = !b.debug ? b.listener : b.listener == null ? new Trace() : new Both(new Trace(), b.listener);
+    this.suspendAtInput = b.suspendAtInput;
+    this.profile = b.profile ? new Profile(code, decoded) : null;
+    this.sampler = b.sampleInterval != null ? new Sampler(decoded, p.methods, b.sampleInterval) : null;
+    blocks = new Heap(words, b.maxHeapSize);
+    heap = blocks.words;
+    young = blocks.youngStart;
+    data = new int[p.dataSize]; // global data as specified in
     // classfile
-    stack = new int[eStackSize]; // expression stack
-    local = new int[mStackSize]; // method stack
+    stack = new int[b.eStackSize]; // expression stack
+    eStackLimit = b.eStackSize;
+    local = new int[b.mStackSize]; // method stack
+    mStackLimit = b.maxMStackSize;
     fp = 0;
     sp = 0;
     esp = 0;
-    free = 1; // no block should start at address 0
   }
 
   // ----- expression stack
   private void push(int val) throws IllegalStateException {
-    if (esp == eStackSize) {
+    if (esp == eStackLimit) {
       throw new IllegalStateException("expression stack overflow");
     }
     stack[esp++] = val;
@@ -128,14 +751,50 @@ public class Interpreter {
     return stack[--esp];
   }
 
+  /**
+   * Checks that <code>n</code> more words fit on the expression stack, where
+   * a superinstruction pushes intermediate values only virtually.
+   */
+  private void reserve(int n) throws IllegalStateException {
+    if (esp + n > eStackLimit) {
+      throw new IllegalStateException("expression stack overflow");
+    }
+  }
+
+  /**
+   * Condition of the conditional jump <code>op</code> for operands
+   * <code>x</code> and <code>y</code>.
+   */
+  private static boolean branch(int op, int x, int y) {
+    return switch (op) {
+      case JEQ -> x == y;
+      case JNE -> x != y;
+      case JLT -> x < y;
+      case JLE -> x <= y;
+      case JGT -> x > y;
+      default -> x >= y;
+    };
+  }
+
   // ----- method stack
   private void PUSH(int val) throws IllegalStateException {
-    if (sp == mStackSize) {
-      throw new IllegalStateException("method stack overflow");
+    if (sp == local.length) {
+      growStack(sp + 1);
     }
     local[sp++] = val;
   }
 
+  /**
+   * Grows the method stack to at least <code>size</code> words, at least
+   * doubling it, up to its maximum size.
+   */
+  private void growStack(int size) throws IllegalStateException {
+    if (size > mStackLimit) {
+      throw new IllegalStateException("method stack overflow");
+    }
+    local = Arrays.copyOf(local, Math.max(size, (int) Math.min(mStackLimit, 2L * local.length)));
+  }
+
   private int POP() throws IllegalStateException {
     if (sp == 0) {
       throw new IllegalStateException("method stack underflow");
@@ -143,47 +802,93 @@ public class Interpreter {
     return local[--sp];
   }
 
-  // ----- instruction fetch
-  private byte next(boolean dbgPrint) {
-    byte b = code[pc++];
-    if (debug && dbgPrint) {
-      System.out.print(b + " ");
+  /**
+   * Allocates a heap block of <code>size</code> words, collecting garbage if
+   * the nursery is full.
+   */
+  private int alloc(int site, int length, int size) throws IllegalStateException {
+    if (tags == null) {
+      initTags();
     }
-    return b;
-  }
-
-  private short next2(boolean dbgPrint) {
-    short s = (short) (((next(false) << 8)
-            + (next(false) & 0xff)) << 16 >> 16);
-    if (debug && dbgPrint) {
-      System.out.print(s + " ");
+    int adr = blocks.alloc(tags[site], length, size);
+    if (adr == 0) {
+      adr = blocks.allocSlow(tags[site], length, size, stackMaps != null ? slot -> roots(site, slot) : null);
+      if (adr == 0) {
+        throw new IllegalStateException("heap overflow");
+      }
+      young = blocks.youngStart;
     }
-    return s;
-  }
-
-  private int next4() {
-    return next4(true);
+    return adr;
   }
 
-  private int next4(boolean dbgPrint) {
-    int n = (next2(false) << 16) + (next2(false) & 0xffff);
-    if (debug && dbgPrint) {
-      System.out.print(n + " ");
+  /**
+   * Computes the tag of the blocks allocated by each <code>new</code> and
+   * <code>newarray</code>. Without reference maps for the whole program,
+   * the heap is not collected.
+   */
+  private void initTags() {
+    int[] c = decoded.code;
+    if (refMaps != null && verified() != null) {
+      stackMaps = shared.stackMaps();
+    }
+    tags = new int[c.length];
+    for (int i = 0; i < c.length; i++) {
+      if (c[i] == NEW) {
+        tags[i] = stackMaps == null ? Heap.OBJECT : blocks.tag(stackMaps.objectFields(i));
+      } else if (c[i] == NEWARRAY) {
+        tags[i] = c[i + 1] == 0 ? Heap.BYTES : stackMaps != null && stackMaps.refArray(i) ? Heap.REFS : Heap.WORDS;
+      }
+      i += operands(c[i]);
     }
-    return n;
   }
 
   /**
-   * Allocate heap block of size bytes
+   * Visits the words outside the heap that hold references: the global
+   * variables, and the local variables and the expression stack of every
+   * frame, using the reference maps of the instruction at which the frame is
+   * suspended. The innermost frame is at the allocation <code>site</code>
+   * (its part of the expression stack ends at <code>esp</code>), all others
+   * at a call. Frames of compiled code keep their references there as well
+   * while the heap can be collected (see {@link Translator}), but in the
+   * layout of the code without replaced objects.
    */
-  private int alloc(int size) throws IllegalStateException {
-    int adr = free;
-    free += ((size + 3) >> 2); // skip to next free adr
-    // (>> 2 to convert byte to word)
-    if (free > heapSize) {
-      throw new IllegalStateException("heap overflow");
+  private void roots(int site, Heap.Slot slot) {
+    BitSet globals = stackMaps.globals();
+    for (int i = globals.nextSetBit(0); i >= 0 && i < data.length; i = globals.nextSetBit(i + 1)) {
+      slot.visit(data, i);
+    }
+    int n = 0;
+    int[] frames = new int[8]; // fp and instruction index of each frame, innermost first
+    int f = fp;
+    int i = site;
+    for (; ; ) {
+      if (n == frames.length) {
+        frames = Arrays.copyOf(frames, 2 * n);
+      }
+      frames[n++] = f;
+      frames[n++] = i;
+      if (f <= 1) { // main
+        break;
+      }
+      i = local[f - 2] - 2; // call (before the return address)
+      f = local[f - 1];
+    }
+    int base = 0;
+    for (int k = n - 2; k >= 0; k -= 2) {
+      f = frames[k];
+      i = frames[k + 1];
+      int method = program.owner(i);
+      BitSet locals = scalar && f < compiledBase ? shared.scalarLocals(method) : stackMaps.locals(method);
+      for (int j = locals.nextSetBit(0); j >= 0; j = locals.nextSetBit(j + 1)) {
+        slot.visit(local, f + j);
+      }
+      int len = k == 0 ? esp - base : program.depth(i) - decoded.code[decoded.code[i + 1] + 1];
+      BitSet refs = stackMaps.stack(i);
+      for (int j = refs.nextSetBit(0); j >= 0 && j < len; j = refs.nextSetBit(j + 1)) {
+        slot.visit(stack, base + j);
+      }
+      base += len;
     }
-    return adr;
   }
 
   /**
@@ -206,222 +911,1282 @@ public class Interpreter {
   /**
    * Read int from standard input stream
    */
-  private int readInt() {
-    int val = 0;
-    int prev = ' ';
-    int b = io.read();
-    while (b < '0' || b > '9') {
-      prev = b;
-      b = io.read();
+  int readInt() {
+    return io.readInt();
+  }
+
+  // ----- heap access (also called from code generated by the Translator)
+  int getField(int adr, int off) throws IllegalStateException {
+    if (adr == 0) {
+      throw new IllegalStateException("null reference used");
     }
-    while (b >= '0' && b <= '9') {
-      val = 10 * val + b - '0';
-      b = io.read();
+    return heap.get(adr + off);
+  }
+
+  void putField(int adr, int off, int val) throws IllegalStateException {
+    if (adr == 0) {
+      throw new IllegalStateException("null reference used");
     }
-    if (prev == '-') {
-      val = -val;
+    heap.set(adr + off, val);
+    if (adr < young && val >= young) { // write barrier: old block references young block
+      blocks.remember(adr);
     }
-    return val;
   }
 
-  private void printInstr() {
-    int op = code[pc - 1];
-    OpCode opCode = Code.OpCode.get(op);
-    String instr = (opCode != null) ? opCode.cleanName() : "???";
-    System.out.printf("%5d: %s ", pc - 1, instr);
+  /**
+   * Creates the object of the <code>new</code> at index <code>site</code>.
+   */
+  int newObject(int site) throws IllegalStateException {
+    int size = (decoded.code[site + 1] + 3) >> 2; // bytes to words
+    return alloc(site, size, size);
   }
 
-  private void printStack() {
-    for (int i = 0; i < esp; i++) {
-      System.out.print(stack[i] + " ");
+  /**
+   * Creates the array of the <code>newarray</code> at index
+   * <code>site</code>.
+   */
+  int newArray(int len, int site) throws IllegalStateException {
+    if (decoded.code[site + 1] == 0) {
+      return alloc(site, len, Math.max(0, (len + 3) >> 2));
     }
-    System.out.println();
+    return alloc(site, len, Math.max(0, len));
   }
 
-  // ----- actual interpretation
-  public void run() throws IllegalStateException {
-    Code.OpCode op;
-    int adr, val, val2, off, idx, len, i;
-    pc = startPC;
+  /**
+   * {@link #newObject} for compiled code, whose innermost frame is at
+   * <code>fp</code> and whose part of the expression stack ends at
+   * <code>esp</code>.
+   */
+  int newObject(int site, int fp, int esp) throws IllegalStateException {
+    int f = this.fp, e = this.esp;
+    this.fp = fp;
+    this.esp = esp;
+    try {
+      return newObject(site);
+    } finally {
+      this.fp = f;
+      this.esp = e;
+    }
+  }
 
-    if (debug) { // header for debug output
-      System.out.println();
-      System.out.println("  pos: instruction operands");
-      System.out.println("     | expressionstack");
-      System.out.println("-----------------------------");
+  /**
+   * {@link #newArray} for compiled code, like {@link #newObject(int, int, int)}.
+   */
+  int newArray(int len, int site, int fp, int esp) throws IllegalStateException {
+    int f = this.fp, e = this.esp;
+    this.fp = fp;
+    this.esp = esp;
+    try {
+      return newArray(len, site);
+    } finally {
+      this.fp = f;
+      this.esp = e;
     }
+  }
 
-    for (; ; ) { // terminated by return instruction
-      op = Code.OpCode.get(next(false));
-      if (debug) {
-        printInstr();
-      }
+  /**
+   * The method stack, grown to at least <code>size</code> words, in which
+   * compiled code keeps its frames while the heap can be collected.
+   */
+  int[] methodStack(int size) throws IllegalStateException {
+    if (size > local.length) {
+      growStack(size);
+    }
+    return local;
+  }
 
-      switch (op) {
-        // load/store local variables
-        case load -> push(local[fp + next(true)]);
-        case load_0, load_1, load_2, load_3 -> push(local[fp + op.code() - OpCode.load_0.code()]); // mapping
-
-        // on
-        // range
-        // 0..3
-        case store -> local[fp + next(true)] = pop();
-        case store_0, store_1, store_2, store_3 -> local[fp + op.code() - OpCode.store_0.code()] = pop(); // mapping
-
-        // on
-        // range
-        // 0..3
-        // load/store global variables
-        case getstatic -> push(data[next2(true)]);
-        case putstatic -> data[next2(true)] = pop();
+  int arrayLoad(int adr, int idx) throws IllegalStateException {
+    checkIndex(adr, idx);
+    return heap.get(adr + idx);
+  }
 
+  void arrayStore(int adr, int idx, int val) throws IllegalStateException {
+    checkIndex(adr, idx);
+    arrayStoreUnchecked(adr, idx, val);
+  }
 
-        // load/store object fields
-        case getfield -> {
-          adr = pop();
-          if (adr == 0) {
-            throw new IllegalStateException("null reference used");
-          }
-          push(heap[adr + next2(true)]);
-        }
-        case putfield -> {
-          val = pop();
-          adr = pop();
-          if (adr == 0) {
-            throw new IllegalStateException("null reference used");
-          }
-          heap[adr + next2(true)] = val;
-        }
+  int byteLoad(int adr, int idx) throws IllegalStateException {
+    checkIndex(adr, idx);
+    return byteLoadUnchecked(adr, idx);
+  }
+
+  void byteStore(int adr, int idx, int val) throws IllegalStateException {
+    checkIndex(adr, idx);
+    byteStoreUnchecked(adr, idx, val);
+  }
+
+  // ----- array accesses that are always in bounds (see BoundsChecks)
+  int arrayLoadUnchecked(int adr, int idx) {
+    return heap.get(adr + idx);
+  }
+
+  void arrayStoreUnchecked(int adr, int idx, int val) {
+    heap.set(adr + idx, val);
+    if (adr < young && val >= young) { // write barrier: old block references young block
+      blocks.remember(adr);
+    }
+  }
+
+  int byteLoadUnchecked(int adr, int idx) {
+    return getByte(heap.get(adr + idx / 4), idx % 4);
+  }
+
+  void byteStoreUnchecked(int adr, int idx, int val) {
+    heap.set(adr + idx / 4, setByte(heap.get(adr + idx / 4), idx % 4,
+            (byte) val));
+  }
+
+  int arrayLength(int adr) throws IllegalStateException {
+    if (adr == 0) {
+      throw new IllegalStateException("null reference used");
+    }
+    return heap.get(adr - 1);
+  }
+
+  private void checkIndex(int adr, int idx) throws IllegalStateException {
+    if (adr == 0) {
+      throw new IllegalStateException("null reference used");
+    }
+    int len = heap.get(adr - 1);
+    if (idx < 0 || idx >= len) {
+      throw new IllegalStateException("index out of bounds");
+    }
+  }
+
+  /**
+   * Statistics of the garbage collector so far.
+   */
+  public GcStats gcStats() {
+    return blocks.stats();
+  }
+
+  /**
+   * The execution profile so far, null if not profiling.
+   */
+  public Profile profile() {
+    return profile;
+  }
+
+  /**
+   * The stack samples so far, null if not sampling. Samples are only taken
+   * while code is interpreted, i.e. not by {@link #runCompiled()}.
+   */
+  public Sampler sampler() {
+    return sampler;
+  }
+
+  /**
+   * Fuel left after the last {@link #run(long)}, at most 0 if the program
+   * has been suspended.
+   */
+  public long fuel() {
+    return fuel;
+  }
+
+  /**
+   * Writes the state of the suspended program to <code>file</code> (see
+   * {@link Snapshot}), from which {@link Builder#restore} creates an
+   * interpreter that continues where this one stopped. Output already
+   * written is not part of the state.
+   */
+  public void checkpoint(Path file) throws IOException {
+    if (!suspended) {
+      throw new IllegalStateException("program is not suspended");
+    }
+    io.flush();
+    Snapshot s = new Snapshot();
+    s.pc = pc;
+    s.fp = fp;
+    s.sp = sp;
+    s.esp = esp;
+    s.checked = checked;
+    s.scalar = scalar;
+    s.data = data;
+    s.stack = stack;
+    s.local = local;
+    s.write(file, code, blocks);
+  }
+
+  /**
+   * Continues from the state of a snapshot.
+   */
+  private void restore(Snapshot s) throws IOException {
+    blocks.restore(new DataInputStream(new ByteArrayInputStream(s.heapState)));
+    young = blocks.youngStart;
+    System.arraycopy(s.data, 0, data, 0, data.length);
+    System.arraycopy(s.stack, 0, stack, 0, s.esp);
+    if (s.sp > local.length) {
+      growStack(s.sp);
+    }
+    System.arraycopy(s.local, 0, local, 0, s.sp);
+    pc = s.pc;
+    fp = s.fp;
+    sp = s.sp;
+    esp = s.esp;
+    checked = s.checked;
+    scalar = s.scalar && verified() != null;
+    suspended = true;
+  }
+
+  /**
+   * Suspends the program as soon as the current instruction is finished:
+   * returns the index of the <code>SUSPEND</code> sentinel, to be executed
+   * instead of the instruction at <code>resume</code>.
+   */
+  private int suspend(int resume) {
+    resumePC = resume;
+    return decoded.suspend();
+  }
+
+  /**
+   * Takes the sample requested by the {@link Sampler} at the instruction at
+   * index <code>idx</code>, with the method at index <code>compiled</code>
+   * running in compiled code (-1 if none).
+   */
+  private void takeSample(int idx, int compiled) {
+    sample = false;
+    if (sampler == null) {
+      return;
+    }
+    int n = 0;
+    frames[n++] = decoded.addressOf(idx);
+    for (int f = fp; f > 1; f = local[f - 1]) { // main's frame is at 1
+      if (n == frames.length) {
+        frames = Arrays.copyOf(frames, 2 * n);
+      }
+      frames[n++] = decoded.addressOf(local[f - 2] - 2); // call before the return address
+    }
+    sampler.record(frames, n, compiled < 0 ? -1 : decoded.addressOf(compiled));
+  }
+
+  // ----- output (also called from code generated by the Translator)
+  void print(int val, int width) {
+    int len = val < 0 ? 2 : 1;
+    for (int v = val; v <= -10 || v >= 10; v /= 10) {
+      len++;
+    }
+    io.write(' ', width - len);
+    io.writeInt(val);
+  }
+
+  void bprint(int val, int width) {
+    io.write(' ', width - 1);
+    io.write((char) val);
+  }
+
+  /**
+   * Depth of the expression stack.
+   */
+  public int stackDepth() {
+    return esp;
+  }
+
+  /**
+   * Value at <code>i</code> on the expression stack, counted from the
+   * bottom.
+   */
+  public int stackValue(int i) {
+    if (i < 0 || i >= esp) {
+      throw new IndexOutOfBoundsException(i);
+    }
+    return stack[i];
+  }
+
+  /**
+   * Translates the program to JVM byte code (see {@link Translator}) and
+   * executes it. Output and runtime errors are the same as with
+   * {@link #run()}, which is used if the code cannot be translated or a
+   * listener is attached. A recursive program runs on a thread of its own,
+   * whose stack is as deep as the method stack.
+   */
+  public void runCompiled() throws IllegalStateException {
+    VerifiedProgram p = listener != null || profile != null || suspended ? null : verified();
+    Translator t = p == null ? null : new Translator(p, shared.stackMaps(), eStackLimit, mStackLimit);
+    MethodHandle main = t == null ? null : t.compileMain(this);
+    if (main == null) {
+      run();
+      return;
+    }
+    compiledBase = 0;
+    try {
+      onStack(t.stackSize(), () -> {
+        main.invokeExact();
+        return 0;
+      });
+    } catch (StackOverflowError e) { // JVM stack exhausted before the method stack
+      throw new IllegalStateException("method stack overflow");
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new IllegalStateException(e);
+    } finally {
+      compiledBase = Integer.MAX_VALUE;
+      io.flush();
+    }
+  }
+
+  /**
+   * Interprets the program like {@link #run()}, but counts method
+   * invocations and backward jumps. A method called more than
+   * <code>threshold</code> times is translated to JVM byte code (see
+   * {@link Translator}) and called directly from then on. A loop that jumps
+   * back more than <code>threshold</code> times continues in compiled code
+   * entered at its header (on-stack replacement), so that a long loop in
+   * main speeds up while it is running. Short programs are interpreted
+   * without the cost of translation. As with {@link #runCompiled()}, a
+   * recursive program runs on a thread with a deep stack.
+   */
+  public void runTiered(int threshold) throws IllegalStateException {
+    VerifiedProgram p = listener != null || profile != null ? null : verified();
+    tier = p == null ? null : new Translator(p, shared.stackMaps(), eStackLimit, mStackLimit);
+    if (tier != null) {
+      int[] c = decoded.code;
+      this.threshold = threshold;
+      counters = new int[c.length];
+      compiled = new MethodHandle[c.length];
+      returnPC = -1;
+      for (int i = 0; i < c.length && returnPC < 0; i++) {
+        if (c[i] == RETURN && decoded.addressOf(i) >= 0) {
+          returnPC = i;
+        }
+      }
+      // the compiled code of a loop expects the original frame, without replaced objects
+      EscapeAnalysis escapes = shared.escapes();
+      for (int i = 0; i < decoded.end(); i += 1 + operands(c[i])) {
+        if (c[i] >= JMP && c[i] <= JGE && escapes.replaces(p.owner(i))) {
+          counters[i + 1] = Integer.MIN_VALUE;
+        }
+      }
+      try {
+        onStack(tier.stackSize(), () -> {
+          run();
+          return 0;
+        });
+      } catch (RuntimeException | Error e) {
+        throw e;
+      } catch (Throwable e) {
+        throw new IllegalStateException(e);
+      }
+      return;
+    }
+    run();
+  }
+
+  /**
+   * Target of the jump whose operand is at index <code>at</code>. A backward
+   * jump is charged the length of the loop it closes (see {@link #run(long)}).
+   * In tiered mode, backward jumps are counted and a hot loop continues in
+   * compiled code.
+   */
+  private int jump(int at) {
+    int target = decoded.code[at];
+    if (target < at) {
+      if (sample) {
+        takeSample(at - 1, -1);
+      }
+      if ((fuel -= at - target) <= 0) {
+        return suspend(target);
+      }
+      if (tier != null && ++counters[at] >= threshold) {
+        return osr(at, target);
+      }
+    }
+    return target;
+  }
+
+  /**
+   * Runs the rest of the current frame in compiled code, entered at the loop
+   * header <code>header</code>, and leaves the frame as <code>exit</code>
+   * does. Returns the index of a return instruction to continue with, or
+   * <code>header</code> if the loop cannot be compiled.
+   */
+  private int osr(int at, int header) {
+    MethodHandle h = compiled[header];
+    if (h == null) {
+      h = tier.compileOsr(header, this);
+      if (h == null) {
+        counters[at] = Integer.MIN_VALUE; // do not try again
+        return header;
+      }
+      compiled[header] = h;
+    }
+    int method = tier.owner(header);
+    boolean value = tier.returnsValue(method);
+    int result = invoke(h, Arrays.copyOfRange(local, fp, fp + decoded.code[method + 2]), value, fp);
+    sp = fp;
+    fp = POP();
+    if (value) {
+      push(result);
+    }
+    return returnPC;
+  }
+
+  /**
+   * Calls the method whose <code>enter</code> is at index <code>method</code>
+   * in compiled code once it is hot. Returns false if the call is to be
+   * interpreted.
+   */
+  private boolean callCompiled(int method) {
+    MethodHandle h = compiled[method];
+    if (h == null) {
+      if (++counters[method] < threshold) {
+        return false;
+      }
+      h = tier.compile(method, this);
+      if (h == null) {
+        counters[method] = Integer.MIN_VALUE; // do not try again
+        return false;
+      }
+      compiled[method] = h;
+    }
+    int[] args = new int[decoded.code[method + 1]];
+    for (int i = args.length - 1; i >= 0; i--) {
+      args[i] = pop();
+    }
+    boolean value = tier.returnsValue(method);
+    int[] l = methodStack(sp + 2); // the link to this frame, like the one of a call in compiled code
+    l[sp] = pc + 1;
+    l[sp + 1] = fp;
+    int result = invoke(h, args, value, sp + 2);
+    if (sample) {
+      takeSample(pc - 1, method);
+    }
+    if (value) {
+      push(result);
+    }
+    return true;
+  }
+
+  /**
+   * Code that runs on the stacks of the interpreter.
+   */
+  @FunctionalInterface
+  private interface Body {
+    int run() throws Throwable;
+  }
+
+  /**
+   * Runs <code>body</code> on a new thread with a JVM stack of
+   * <code>size</code> bytes, waiting for it, or on the current thread if
+   * <code>size</code> is 0. Whatever <code>body</code> throws is rethrown.
+   */
+  private static int onStack(long size, Body body) throws Throwable {
+    if (size == 0) {
+      return body.run();
+    }
+    int[] result = new int[1];
+    Throwable[] thrown = new Throwable[1];
+    Thread t = new Thread(null, () -> {
+      try {
+        result[0] = body.run();
+      } catch (Throwable e) {
+        thrown[0] = e;
+      }
+    }, "MicroJava", size);
+    t.start();
+    boolean interrupted = false;
+    for (; ; ) {
+      try {
+        t.join(); // the code cannot be stopped, so wait even if interrupted
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (thrown[0] != null) {
+      throw thrown[0];
+    }
+    return result[0];
+  }
+
+  /**
+   * Invokes a handle returned by the {@link Translator} on the current
+   * stacks, whose first frame is at <code>base</code>.
+   */
+  private int invoke(MethodHandle h, int[] args, boolean value, int base) {
+    compiledBase = base;
+    try {
+      if (value) {
+        return (int) h.invokeExact(args, esp, sp);
+      }
+      h.invokeExact(args, esp, sp);
+      return 0;
+    } catch (StackOverflowError e) { // JVM stack exhausted before the method stack
+      throw new IllegalStateException("method stack overflow");
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new IllegalStateException(e);
+    } finally {
+      compiledBase = Integer.MAX_VALUE;
+    }
+  }
+
+  /**
+   * Verifies the code (see {@link Verifier}). A verified program is
+   * interpreted without most of the stack checks.
+   */
+  public VerifiedProgram verify() throws VerifyException {
+    if (program == null) {
+      program = shared.verify();
+      maxStack = shared.maxStack();
+      unchecked = shared.uncheckedCode();
+    }
+    return program;
+  }
+
+  /**
+   * The verified program, null if the code is malformed.
+   */
+  private VerifiedProgram verified() {
+    if (program == null) {
+      program = shared.verified();
+      maxStack = shared.maxStack();
+      unchecked = shared.uncheckedCode();
+    }
+    return program;
+  }
+
+  // ----- actual interpretation
+  public void run() throws IllegalStateException {
+    run(Long.MAX_VALUE);
+  }
+
+  /**
+   * Runs the program until it terminates or has used up <code>fuel</code>.
+   * Returns true if it has terminated. Otherwise, it has been suspended with
+   * its state intact, and the next call continues where it stopped, e.g.
+   * with new fuel in the next time slice. A program that is not continued
+   * is simply dropped, so a runaway program can be stopped without stopping
+   * the thread running it.
+   * <p>
+   * Fuel approximates the number of executed instructions but is only
+   * charged where a program can run for long: a backward jump costs the
+   * length of the loop it closes (in decoded slots), and a method call
+   * costs 1. So the check costs next to nothing, and straight-line code
+   * between two checks is bounded by the size of a method. Code compiled in
+   * tiered mode is not charged.
+   */
+  public boolean run(long fuel) throws IllegalStateException {
+    boolean resume = suspended;
+    if (!resume) {
+      pc = decoded.indexOf(startPC);
+      if (pc < 0) {
+        throw new IllegalStateException("startPC is not an instruction");
+      }
+      checked = false;
+      scalar = listener == null && profile == null && verified() != null;
+    }
+    this.fuel = fuel;
+    suspended = false;
+
+    if (sampler != null) {
+      sampler.start(this);
+    }
+    try {
+      if (listener != null || profile != null) {
+        if (listener != null && !resume) {
+          listener.started(this);
+        }
+        checked = true;
+        runTraced();
+        return !suspended;
+      }
+      if (!checked && scalar && runUnchecked(resume)) {
+        return !suspended;
+      }
+      checked = true;
+      runChecked();
+      return !suspended;
+    } finally {
+      io.flush();
+      if (profile != null && !suspended) { // a suspended program continues in its methods
+        profile.finish();
+      }
+      if (sampler != null) {
+        sampler.stop();
+      }
+    }
+  }
+
+  /**
+   * Interprets a verified program without checking the stacks on every
+   * operation. Before a method is called, it is checked once whether its
+   * frame fits on the method stack and whether its verified maximum depth
+   * fits on the expression stack. If the latter fails, the method might
+   * overflow the expression stack at some point, so the rest of the program
+   * is interpreted by {@link #runChecked()}, starting with the call. Returns
+   * true if the program has terminated or has been suspended, false if it is
+   * to be continued with checks. A <code>resume</code>d program continues at
+   * pc, in a method whose frame has been checked before.
+   */
+  private boolean runUnchecked(boolean resume) throws IllegalStateException {
+    final int[] c = unchecked;
+    final int[] s = stack;
+    int adr, val, val2, idx;
+    if (!resume) {
+      if (esp + maxStack[pc] > eStackLimit || sp + 1 + c[pc + 2] > mStackLimit) {
+        return false;
+      }
+      if (sp + 1 + c[pc + 2] > local.length) {
+        growStack(sp + 1 + c[pc + 2]);
+      }
+    }
+
+    for (; ; ) { // terminated by return instruction or suspended
+      switch (c[pc++]) {
+        // load/store local variables
+        case LOAD -> s[esp++] = local[fp + c[pc++]];
+        case STORE -> local[fp + c[pc++]] = s[--esp];
+
+        // load/store global variables
+        case GETSTATIC -> s[esp++] = data[c[pc++]];
+        case PUTSTATIC -> data[c[pc++]] = s[--esp];
+
+        // load/store object fields
+        case GETFIELD -> s[esp - 1] = getField(s[esp - 1], c[pc++]);
+        case PUTFIELD -> {
+          esp -= 2;
+          putField(s[esp], c[pc++], s[esp + 1]);
+        }
+
+        // fields of scalar-replaced objects
+        case GETLOCAL -> s[esp - 1] = local[fp + c[pc++]];
+        case PUTLOCAL -> {
+          esp -= 2;
+          local[fp + c[pc++]] = s[esp + 1];
+        }
+        case CLEAR -> {
+          Arrays.fill(local, fp + c[pc], fp + c[pc] + c[pc + 1], 0);
+          pc += 3;
+        }
 
         // load constants
-        case const_0, const_1, const_2, const_3, const_4, const_5 ->
-                push(op.code() - OpCode.const_0.code()); // map opcode to
+        case CONST -> s[esp++] = c[pc++];
+
+        // arithmetic operations
+        case ADD -> {
+          esp--;
+          s[esp - 1] += s[esp];
+        }
+        case SUB -> {
+          esp--;
+          s[esp - 1] -= s[esp];
+        }
+        case MUL -> {
+          esp--;
+          s[esp - 1] *= s[esp];
+        }
+        case DIV -> {
+          val = s[--esp];
+          if (val == 0) {
+            throw new IllegalStateException("division by zero");
+          }
+          s[esp - 1] /= val;
+        }
+        case REM -> {
+          val = s[--esp];
+          if (val == 0) {
+            throw new IllegalStateException("division by zero");
+          }
+          s[esp - 1] %= val;
+        }
+        case NEG -> s[esp - 1] = -s[esp - 1];
+        case SHL -> {
+          val = s[--esp];
+          s[esp - 1] <<= val;
+        }
+        case SHR -> {
+          val = s[--esp];
+          s[esp - 1] >>= val;
+        }
+        case INC -> {
+          local[fp + c[pc]] += c[pc + 1];
+          pc += 2;
+        }
+
+        // object creation
+        case NEW -> {
+          s[esp] = newObject(pc - 1);
+          esp++;
+          pc++;
+        }
+        case NEWARRAY -> {
+          s[esp - 1] = newArray(s[esp - 1], pc - 1);
+          pc++;
+        }
+
+        // array access
+        case ALOAD -> {
+          esp--;
+          s[esp - 1] = arrayLoad(s[esp - 1], s[esp]);
+        }
+        case ASTORE -> {
+          esp -= 3;
+          arrayStore(s[esp], s[esp + 1], s[esp + 2]);
+        }
+        case BALOAD -> {
+          esp--;
+          s[esp - 1] = byteLoad(s[esp - 1], s[esp]);
+        }
+        case BASTORE -> {
+          esp -= 3;
+          byteStore(s[esp], s[esp + 1], s[esp + 2]);
+        }
+        case ALOADU -> {
+          esp--;
+          s[esp - 1] = heap.get(s[esp - 1] + s[esp]);
+        }
+        case ASTOREU -> {
+          esp -= 3;
+          arrayStoreUnchecked(s[esp], s[esp + 1], s[esp + 2]);
+        }
+        case BALOADU -> {
+          esp--;
+          s[esp - 1] = byteLoadUnchecked(s[esp - 1], s[esp]);
+        }
+        case BASTOREU -> {
+          esp -= 3;
+          byteStoreUnchecked(s[esp], s[esp + 1], s[esp + 2]);
+        }
+        case ARRAYLENGTH -> s[esp - 1] = arrayLength(s[esp - 1]);
 
-        // 0..5
-        case const_m1 -> push(-1);
-        case const_ -> push(next4());
+        // stack manipulation
+        case POP -> esp--;
+        case DUP -> {
+          s[esp] = s[esp - 1];
+          esp++;
+        }
+        case DUP2 -> {
+          s[esp] = s[esp - 2];
+          s[esp + 1] = s[esp - 1];
+          esp += 2;
+        }
 
+        // jumps (operand is the absolute target index)
+        case JMP -> pc = jump(pc);
+        case JEQ, JNE, JLT, JLE, JGT, JGE -> {
+          esp -= 2;
+          pc = branch(c[pc - 1], s[esp], s[esp + 1]) ? jump(pc) : pc + 1;
+        }
+
+        // method calls
+        case CALL -> {
+          adr = c[pc];
+          if (tier != null && callCompiled(adr)) {
+            pc++;
+          } else {
+            if (esp - c[adr + 1] + maxStack[adr] > eStackLimit) {
+              pc--; // continue with this call
+              return false;
+            }
+            if (sp + 2 + c[adr + 2] > local.length) {
+              growStack(sp + 2 + c[adr + 2]);
+            }
+            local[sp++] = pc + 1;
+            pc = adr;
+          }
+        }
+        case RETURN -> {
+          if (sp == 0) {
+            return true;
+          }
+          pc = local[--sp];
+        }
+        case ENTER -> {
+          int psize = c[pc++];
+          int lsize = c[pc++];
+          local[sp++] = fp;
+          fp = sp;
+          sp += lsize;
+          Arrays.fill(local, fp + psize, sp, 0);
+          esp -= psize;
+          System.arraycopy(s, esp, local, fp, psize);
+          if (sample) {
+            takeSample(pc - 3, -1);
+          }
+          if (--fuel <= 0) {
+            pc = suspend(pc);
+          }
+        }
+        case EXIT -> {
+          sp = fp;
+          fp = local[--sp];
+        }
+
+        // I/O
+        case READ, BREAD -> {
+          if (suspendAtInput) {
+            suspendAtInput = false;
+            pc = suspend(pc - 1);
+          } else {
+            s[esp++] = c[pc - 1] == READ ? readInt() : io.read();
+          }
+        }
+        case PRINT -> {
+          esp -= 2;
+          print(s[esp], s[esp + 1]);
+        }
+        case BPRINT -> {
+          esp -= 2;
+          bprint(s[esp], s[esp + 1]);
+        }
+        case NOP -> {
+        }
+        // nothing to do
+        case TRAP -> throw new IllegalStateException("trap(" + c[pc++] + ")");
+
+        // superinstructions (operands stay in the slots of the replaced sequence)
+        case LOAD2 -> {
+          s[esp++] = local[fp + c[pc]];
+          s[esp++] = local[fp + c[pc + 2]];
+          pc += 3;
+        }
+        case IFLL -> {
+          val = local[fp + c[pc]];
+          val2 = local[fp + c[pc + 2]];
+          pc = branch(c[pc + 3], val, val2) ? jump(pc + 4) : pc + 5;
+        }
+        case IFLC -> {
+          val = local[fp + c[pc]];
+          pc = branch(c[pc + 3], val, c[pc + 2]) ? jump(pc + 4) : pc + 5;
+        }
+        case ADDC -> {
+          s[esp - 1] += c[pc];
+          pc += 2;
+        }
+        case AINC -> {
+          esp -= 2;
+          adr = s[esp];
+          idx = s[esp + 1];
+          arrayStore(adr, idx, arrayLoad(adr, idx) + c[pc + 2]);
+          pc += 5;
+        }
+        case AINCU -> {
+          esp -= 2;
+          adr = s[esp];
+          idx = s[esp + 1];
+          arrayStoreUnchecked(adr, idx, heap.get(adr + idx) + c[pc + 2]);
+          pc += 5;
+        }
+        case STATINC -> {
+          data[c[pc]] += c[pc + 2];
+          pc += 6;
+        }
+        case INCJMP -> {
+          local[fp + c[pc]] += c[pc + 1];
+          pc = jump(pc + 3);
+        }
+        case SUSPEND -> {
+          pc = resumePC;
+          suspended = true;
+          return true;
+        }
+        default -> throw new IllegalStateException("wrong opcode " + c[pc - 1]);
+      }
+    }
+  }
+
+  /**
+   * Interprets the program from the current state, checking every stack
+   * operation, until it terminates or is suspended.
+   */
+  private void runChecked() throws IllegalStateException {
+    final int[] c = scalar ? shared.scalarFused() : decoded.fused;
+    int adr, val, val2, idx, len, i;
+
+    for (; ; ) { // terminated by return instruction or suspended
+      switch (c[pc++]) {
+        // load/store local variables
+        case LOAD -> push(local[fp + c[pc++]]);
+        case STORE -> local[fp + c[pc++]] = pop();
+
+        // load/store global variables
+        case GETSTATIC -> push(data[c[pc++]]);
+        case PUTSTATIC -> data[c[pc++]] = pop();
+
+        // load/store object fields
+        case GETFIELD -> push(getField(pop(), c[pc++]));
+        case PUTFIELD -> {
+          val = pop();
+          putField(pop(), c[pc++], val);
+        }
+
+        // fields of scalar-replaced objects
+        case GETLOCAL -> {
+          pop();
+          push(local[fp + c[pc++]]);
+        }
+        case PUTLOCAL -> {
+          val = pop();
+          pop();
+          local[fp + c[pc++]] = val;
+        }
+        case CLEAR -> {
+          Arrays.fill(local, fp + c[pc], fp + c[pc] + c[pc + 1], 0);
+          pc += 3;
+        }
+
+        // load constants
+        case CONST -> push(c[pc++]);
 
         // arithmetic operations
-        case add -> push(pop() + pop());
-        case sub -> push(-pop() + pop());
-        case mul -> push(pop() * pop());
-        case div -> {
+        case ADD -> push(pop() + pop());
+        case SUB -> push(-pop() + pop());
+        case MUL -> push(pop() * pop());
+        case DIV -> {
           val = pop();
           if (val == 0) {
             throw new IllegalStateException("division by zero");
           }
           push(pop() / val);
         }
-        case rem -> {
+        case REM -> {
           val = pop();
           if (val == 0) {
             throw new IllegalStateException("division by zero");
           }
           push(pop() % val);
         }
-        case neg -> push(-pop());
-        case shl -> {
+        case NEG -> push(-pop());
+        case SHL -> {
           val = pop();
           push(pop() << val);
         }
-        case shr -> {
+        case SHR -> {
           val = pop();
           push(pop() >> val);
         }
-        case inc -> {
-          off = fp + next(true);
-          local[off] += next(true);
+        case INC -> {
+          local[fp + c[pc]] += c[pc + 1];
+          pc += 2;
         }
 
         // object creation
-        case new_ -> push(alloc(next2(true) * 4));
-        case newarray -> {
-          val = next(true);
-          len = pop();
-          if (val == 0) {
-            adr = alloc(len + 4);
-          } else {
-            adr = alloc(len * 4 + 4);
-          }
-          heap[adr] = len;
-          push(adr + 1); // skip length field of array
+        case NEW -> {
+          push(newObject(pc - 1));
+          pc++;
+        }
+        case NEWARRAY -> {
+          push(newArray(pop(), pc - 1));
+          pc++;
         }
 
         // array access
-        case aload -> {
+        case ALOAD -> {
           idx = pop();
-          adr = pop();
-          if (adr == 0) {
-            throw new IllegalStateException("null reference used");
-          }
-          len = heap[adr - 1];
-          if (idx < 0 || idx >= len) {
-            throw new IllegalStateException("index out of bounds");
-          }
-          push(heap[adr + idx]);
+          push(arrayLoad(pop(), idx));
         }
-        case astore -> {
+        case ASTORE -> {
           val = pop();
           idx = pop();
           adr = pop();
-          if (adr == 0) {
-            throw new IllegalStateException("null reference used");
+          arrayStore(adr, idx, val);
+        }
+        case BALOAD -> {
+          idx = pop();
+          push(byteLoad(pop(), idx));
+        }
+        case BASTORE -> {
+          val = pop();
+          idx = pop();
+          byteStore(pop(), idx, val);
+        }
+        case ARRAYLENGTH -> push(arrayLength(pop()));
+
+        // stack manipulation
+        case POP -> pop();
+        case DUP -> {
+          val = pop();
+          push(val);
+          push(val);
+        }
+        case DUP2 -> {
+          val = pop();
+          val2 = pop();
+          push(val2);
+          push(val);
+          push(val2);
+          push(val);
+        }
+
+        // jumps (operand is the absolute target index)
+        case JMP -> pc = jump(pc);
+        case JEQ -> {
+          val2 = pop();
+          val = pop();
+          pc = val == val2 ? jump(pc) : pc + 1;
+        }
+        case JNE -> {
+          val2 = pop();
+          val = pop();
+          pc = val != val2 ? jump(pc) : pc + 1;
+        }
+        case JLT -> {
+          val2 = pop();
+          val = pop();
+          pc = val < val2 ? jump(pc) : pc + 1;
+        }
+        case JLE -> {
+          val2 = pop();
+          val = pop();
+          pc = val <= val2 ? jump(pc) : pc + 1;
+        }
+        case JGT -> {
+          val2 = pop();
+          val = pop();
+          pc = val > val2 ? jump(pc) : pc + 1;
+        }
+        case JGE -> {
+          val2 = pop();
+          val = pop();
+          pc = val >= val2 ? jump(pc) : pc + 1;
+        }
+
+        // method calls
+        case CALL -> {
+          if (tier != null && callCompiled(c[pc])) {
+            pc++;
+          } else {
+            PUSH(pc + 1);
+            pc = c[pc];
+          }
+        }
+        case RETURN -> {
+          if (sp == 0) {
+            return;
+          }
+          pc = POP();
+        }
+        case ENTER -> {
+          int psize = c[pc++];
+          int lsize = c[pc++];
+          PUSH(fp);
+          fp = sp;
+          for (i = 0; i < lsize; i++) {
+            PUSH(0);
+          }
+          assert sp == (fp + lsize);
+          for (i = psize - 1; i >= 0; i--) {
+            local[fp + i] = pop();
+          }
+          if (sample) {
+            takeSample(pc - 3, -1);
           }
-          len = heap[adr - 1];
-          if (debug) {
-            System.out.println("\nArraylength = " + len);
-            System.out.println("Address = " + adr);
-            System.out.println("Index = " + idx);
-            System.out.println("Value = " + val);
+          if (--fuel <= 0) {
+            pc = suspend(pc);
           }
-          if (idx < 0 || idx >= len) {
-            throw new IllegalStateException("index out of bounds");
+        }
+        case EXIT -> {
+          sp = fp;
+          fp = POP();
+        }
+
+        // I/O
+        case READ, BREAD -> {
+          if (suspendAtInput) {
+            suspendAtInput = false;
+            pc = suspend(pc - 1);
+          } else {
+            push(c[pc - 1] == READ ? readInt() : io.read());
           }
-          heap[adr + idx] = val;
         }
-        case baload -> {
+        case PRINT -> {
+          len = pop();
+          print(pop(), len);
+        }
+        case BPRINT -> {
+          len = pop();
+          bprint(pop(), len);
+        }
+        case NOP -> {
+        }
+        // nothing to do
+        case TRAP -> throw new IllegalStateException("trap(" + c[pc++] + ")");
+        case ILLEGAL -> throw new IllegalStateException("wrong opcode " + c[pc]);
+        case BAD_PC -> throw new IllegalStateException("program counter out of code area");
+        case SUSPEND -> {
+          pc = resumePC;
+          suspended = true;
+          return;
+        }
+
+        // superinstructions (operands stay in the slots of the replaced sequence)
+        case LOAD2 -> {
+          push(local[fp + c[pc]]);
+          push(local[fp + c[pc + 2]]);
+          pc += 3;
+        }
+        case IFLL -> {
+          reserve(2);
+          val = local[fp + c[pc]];
+          val2 = local[fp + c[pc + 2]];
+          pc = branch(c[pc + 3], val, val2) ? jump(pc + 4) : pc + 5;
+        }
+        case IFLC -> {
+          reserve(2);
+          val = local[fp + c[pc]];
+          pc = branch(c[pc + 3], val, c[pc + 2]) ? jump(pc + 4) : pc + 5;
+        }
+        case ADDC -> {
+          reserve(1);
+          push(pop() + c[pc]);
+          pc += 2;
+        }
+        case AINC -> {
           idx = pop();
           adr = pop();
-          if (adr == 0) {
-            throw new IllegalStateException("null reference used");
+          reserve(4);
+          arrayStore(adr, idx, arrayLoad(adr, idx) + c[pc + 2]);
+          pc += 5;
+        }
+        case STATINC -> {
+          reserve(2);
+          data[c[pc]] += c[pc + 2];
+          pc += 6;
+        }
+        case INCJMP -> {
+          local[fp + c[pc]] += c[pc + 1];
+          pc = jump(pc + 3);
+        }
+        default -> throw new IllegalStateException("wrong opcode " + c[pc - 1]);
+      }
+    }
+  }
+
+  /**
+   * Interprets the program like {@link #runChecked()}, without
+   * superinstructions, and reports every instruction to the listener and
+   * the profile. Only used if one of them is attached, so that the other
+   * loops need not check for them.
+   */
+  private void runTraced() throws IllegalStateException {
+    final int[] c = scalar ? shared.scalarCode() : decoded.code;
+    final ExecutionListener l = listener != null ? listener : new ExecutionListener() {
+    };
+    int at, adr, val, val2, idx, len, i;
+
+    for (; ; ) { // terminated by return instruction or suspended
+      at = decoded.addressOf(pc);
+      if (c[pc] != SUSPEND) {
+        l.instruction(this, at);
+        if (profile != null) {
+          profile.step(pc, c[pc]);
+        }
+      }
+
+      switch (c[pc++]) {
+        // load/store local variables
+        case LOAD -> push(local[fp + c[pc++]]);
+        case STORE -> local[fp + c[pc++]] = pop();
+
+        // load/store global variables
+        case GETSTATIC -> push(data[c[pc++]]);
+        case PUTSTATIC -> data[c[pc++]] = pop();
+
+        // load/store object fields
+        case GETFIELD -> push(getField(pop(), c[pc++]));
+        case PUTFIELD -> {
+          val = pop();
+          putField(pop(), c[pc++], val);
+        }
+
+        // fields of scalar-replaced objects
+        case GETLOCAL -> {
+          pop();
+          push(local[fp + c[pc++]]);
+        }
+        case PUTLOCAL -> {
+          val = pop();
+          pop();
+          local[fp + c[pc++]] = val;
+        }
+        case CLEAR -> {
+          Arrays.fill(local, fp + c[pc], fp + c[pc] + c[pc + 1], 0);
+          pc += 3;
+        }
+
+        // load constants
+        case CONST -> push(c[pc++]);
+
+        // arithmetic operations
+        case ADD -> push(pop() + pop());
+        case SUB -> push(-pop() + pop());
+        case MUL -> push(pop() * pop());
+        case DIV -> {
+          val = pop();
+          if (val == 0) {
+            throw new IllegalStateException("division by zero");
           }
-          len = heap[adr - 1];
-          if (idx < 0 || idx >= len) {
-            throw new IllegalStateException("index out of bounds");
+          push(pop() / val);
+        }
+        case REM -> {
+          val = pop();
+          if (val == 0) {
+            throw new IllegalStateException("division by zero");
           }
-          push(getByte(heap[adr + idx / 4], idx % 4));
+          push(pop() % val);
+        }
+        case NEG -> push(-pop());
+        case SHL -> {
+          val = pop();
+          push(pop() << val);
         }
-        case bastore -> {
+        case SHR -> {
           val = pop();
+          push(pop() >> val);
+        }
+        case INC -> {
+          local[fp + c[pc]] += c[pc + 1];
+          pc += 2;
+        }
+
+        // object creation
+        case NEW -> {
+          adr = newObject(pc - 1);
+          push(adr);
+          pc++;
+          l.allocated(this, at, adr);
+        }
+        case NEWARRAY -> {
+          adr = newArray(pop(), pc - 1);
+          push(adr);
+          pc++;
+          l.allocated(this, at, adr);
+        }
+
+        // array access
+        case ALOAD -> {
           idx = pop();
-          adr = pop();
-          if (adr == 0) {
-            throw new IllegalStateException("null reference used");
-          }
-          len = heap[adr - 1];
-          if (idx < 0 || idx >= len) {
-            throw new IllegalStateException("index out of bounds");
-          }
-          heap[adr + idx / 4] = setByte(heap[adr + idx / 4], idx % 4,
-                  (byte) val);
+          push(arrayLoad(pop(), idx));
         }
-        case arraylength -> {
-          adr = pop();
-          if (adr == 0) {
-            throw new IllegalStateException("null reference used");
-          }
-          push(heap[adr - 1]);
+        case ASTORE -> {
+          val = pop();
+          idx = pop();
+          arrayStore(pop(), idx, val);
+        }
+        case BALOAD -> {
+          idx = pop();
+          push(byteLoad(pop(), idx));
+        }
+        case BASTORE -> {
+          val = pop();
+          idx = pop();
+          byteStore(pop(), idx, val);
         }
+        case ARRAYLENGTH -> push(arrayLength(pop()));
 
         // stack manipulation
-        case pop -> pop();
-        case dup -> {
+        case POP -> pop();
+        case DUP -> {
           val = pop();
           push(val);
           push(val);
         }
-        case dup2 -> {
+        case DUP2 -> {
           val = pop();
           val2 = pop();
           push(val2);
@@ -430,47 +2195,56 @@ public class Interpreter {
           push(val);
         }
 
-        // jumps
-        case jmp -> {
-          off = next2(true);
-          pc += off - 3;
+        // jumps (operand is the absolute target index)
+        case JMP -> pc = tracedJump(pc);
+        case JEQ -> {
+          val2 = pop();
+          val = pop();
+          pc = val == val2 ? tracedJump(pc) : pc + 1;
         }
-        case jeq, jne, jlt, jle, jgt, jge -> {
-          off = next2(true);
+        case JNE -> {
           val2 = pop();
           val = pop();
-          boolean cond = false;
-          switch (op) {
-            case jeq -> cond = val == val2;
-            case jne -> cond = val != val2;
-            case jlt -> cond = val < val2;
-            case jle -> cond = val <= val2;
-            case jgt -> cond = val > val2;
-            case jge -> cond = val >= val2;
-            default -> {
-              assert false;
-            }
-          }
-          if (cond) {
-            pc += off - 3;
-          }
+          pc = val != val2 ? tracedJump(pc) : pc + 1;
+        }
+        case JLT -> {
+          val2 = pop();
+          val = pop();
+          pc = val < val2 ? tracedJump(pc) : pc + 1;
+        }
+        case JLE -> {
+          val2 = pop();
+          val = pop();
+          pc = val <= val2 ? tracedJump(pc) : pc + 1;
+        }
+        case JGT -> {
+          val2 = pop();
+          val = pop();
+          pc = val > val2 ? tracedJump(pc) : pc + 1;
+        }
+        case JGE -> {
+          val2 = pop();
+          val = pop();
+          pc = val >= val2 ? tracedJump(pc) : pc + 1;
         }
 
-        // method calls
-        case call -> {
-          off = next2(true);
-          PUSH(pc);
-          pc += off - 3;
+        // method calls (never compiled: tiered mode is off)
+        case CALL -> {
+          PUSH(pc + 1);
+          pc = c[pc];
+          l.call(this, at, decoded.addressOf(pc));
         }
-        case return_ -> {
+        case RETURN -> {
           if (sp == 0) {
+            l.returned(this, at, -1);
             return;
           }
           pc = POP();
+          l.returned(this, at, decoded.addressOf(pc));
         }
-        case enter -> {
-          int psize = next(true);
-          int lsize = next(true);
+        case ENTER -> {
+          int psize = c[pc++];
+          int lsize = c[pc++];
           PUSH(fp);
           fp = sp;
           for (i = 0; i < lsize; i++) {
@@ -480,38 +2254,66 @@ public class Interpreter {
           for (i = psize - 1; i >= 0; i--) {
             local[fp + i] = pop();
           }
+          if (sample) {
+            takeSample(pc - 3, -1);
+          }
+          if (--fuel <= 0) {
+            pc = suspend(pc);
+          }
         }
-        case exit -> {
+        case EXIT -> {
           sp = fp;
           fp = POP();
         }
 
         // I/O
-        case read -> push(readInt());
-        case print -> {
+        case READ, BREAD -> {
+          if (suspendAtInput) {
+            suspendAtInput = false;
+            pc = suspend(pc - 1);
+          } else {
+            val = c[pc - 1] == READ ? readInt() : io.read();
+            push(val);
+            l.input(this, at, val);
+          }
+        }
+        case PRINT -> {
           len = pop();
           val = pop();
-          String s = String.valueOf(val);
-          len = len - s.length();
-          write(s, len);
+          print(val, len);
+          l.output(this, at, val, len);
         }
-        case bread -> push(io.read());
-        case bprint -> {
-          len = pop() - 1;
+        case BPRINT -> {
+          len = pop();
           val = pop();
-          write(Character.toString((char) val), len);
+          bprint(val, len);
+          l.output(this, at, val, len);
         }
-        case nop -> {
+        case NOP -> {
         }
         // nothing to do
-        case trap -> throw new IllegalStateException("trap(" + next(true) + ")");
-        default -> throw new IllegalStateException("wrong opcode " + op);
-      }
-      if (debug) {
-        System.out.println();
-        System.out.print("     | ");
-        printStack();
+        case TRAP -> throw new IllegalStateException("trap(" + c[pc++] + ")");
+        case ILLEGAL -> throw new IllegalStateException("wrong opcode " + c[pc]);
+        case BAD_PC -> throw new IllegalStateException("program counter out of code area");
+        case SUSPEND -> {
+          pc = resumePC;
+          suspended = true;
+          return;
+        }
+        default -> throw new IllegalStateException("wrong opcode " + c[pc - 1]);
       }
+      l.executed(this, at);
+    }
+  }
+
+  /**
+   * {@link #jump} for {@link #runTraced()}, which also counts the jump in
+   * the profile.
+   */
+  private int tracedJump(int at) {
+    if (profile != null) {
+      profile.jump(at - 1);
     }
+    return jump(at);
   }
 }
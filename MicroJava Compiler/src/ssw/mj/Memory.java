@@ -0,0 +1,43 @@
+package ssw.mj;
+
+/**
+ * The words of the VM heap (see {@link Heap}), by address. All accesses of
+ * the interpreter and the garbage collector to heap blocks go through this
+ * interface, so that the heap can be kept in an int array
+ * ({@link ArrayMemory}) or off the Java heap ({@link DirectMemory}).
+ */
+interface Memory {
+
+  /**
+   * Number of words.
+   */
+  int size();
+
+  int get(int adr);
+
+  void set(int adr, int val);
+
+  /**
+   * Copies <code>len</code> words from <code>from</code> to <code>to</code>
+   * like {@link System#arraycopy}, also if the two areas overlap.
+   */
+  void copy(int from, int to, int len);
+
+  /**
+   * Sets the words from <code>from</code> (inclusive) to <code>to</code>
+   * (exclusive) to <code>val</code>.
+   */
+  void fill(int from, int to, int val);
+
+  /**
+   * Grows to <code>size</code> words, keeping all words at their addresses
+   * and zeroing the new ones. Returns false if there is not enough memory.
+   */
+  boolean grow(int size);
+
+  /**
+   * A new zeroed memory of the same kind (but not mapped to a file) for a
+   * table as large as the heap.
+   */
+  Memory table(int size);
+}
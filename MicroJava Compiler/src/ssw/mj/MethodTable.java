@@ -0,0 +1,69 @@
+package ssw.mj;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Names of the methods of a program by the address of their
+ * <code>enter</code> instruction (<code>Obj.adr</code> of the method), so
+ * that addresses can be shown as method names, e.g. by the
+ * {@link Sampler}.
+ * <p>
+ * The table is stored in the object file after the reference maps (see
+ * {@link RefMaps}), starting with the marker "MN".
+ */
+public final class MethodTable {
+  /**
+   * Address of <code>enter</code> -> method name.
+   */
+  public final NavigableMap<Integer, String> names = new TreeMap<>();
+
+  /**
+   * Name of the method containing the instruction at <code>adr</code>, i.e.
+   * the one with the closest <code>enter</code> below it, or
+   * <code>"@adr"</code> if there is none.
+   */
+  public String nameAt(int adr) {
+    Map.Entry<Integer, String> e = names.floorEntry(adr);
+    return e != null ? e.getValue() : "@" + adr;
+  }
+
+  public void write(DataOutputStream out) throws IOException {
+    out.writeByte('M');
+    out.writeByte('N');
+    out.writeInt(names.size());
+    for (Map.Entry<Integer, String> e : names.entrySet()) {
+      out.writeInt(e.getKey());
+      out.writeUTF(e.getValue());
+    }
+  }
+
+  /**
+   * Reads the table following the reference maps of an object file, null if
+   * there is none.
+   */
+  public static MethodTable read(DataInputStream in) throws IOException {
+    byte[] marker = new byte[2];
+    if (in.read(marker, 0, 2) < 2 || marker[0] != 'M' || marker[1] != 'N') {
+      return null;
+    }
+    try {
+      MethodTable table = new MethodTable();
+      int n = in.readInt();
+      if (n < 0 || n > in.available() / 6) {
+        throw new FormatException("corrupted method table");
+      }
+      for (int i = 0; i < n; i++) {
+        table.names.put(in.readInt(), in.readUTF());
+      }
+      return table;
+    } catch (EOFException e) {
+      throw new FormatException("truncated method table");
+    }
+  }
+}
@@ -0,0 +1,200 @@
+package ssw.mj;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32C;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * An object file as written by the compiler: the marker "MJ", the code size,
+ * the data size and the start address, followed by the code and optionally
+ * the {@link RefMaps} and the {@link MethodTable}.
+ * <p>
+ * The file is mapped into memory, and the code is a read-only view of the
+ * mapped bytes, so it is never copied. The header is validated when the file
+ * is loaded. Loaded files are cached by path, so that loading the same
+ * program again in one JVM shares its {@link Program}, together with its
+ * decoded form and verification results. A cached file is used again without
+ * reading it if its file key, size, modification time and change time are
+ * unchanged. A write changes the change time, which the writer cannot reset,
+ * but the time has a coarse resolution: a file that was changed shortly
+ * before it was loaded might be rewritten with the same times. The contents
+ * of such a file, or of one whose attributes differ, are compared by
+ * checksum, so that a rewrite with the same contents still shares the cached
+ * file.
+ * <p>
+ * A mapped file must not be truncated while it is in use. The compiler
+ * therefore replaces an object file by a new one instead of rewriting it (see
+ * {@link Compiler}), so that the old mapping keeps its bytes.
+ */
+public final class ObjectFile {
+  private static final int HEADER = 14; // marker, codeSize, dataSize, startPC
+
+  private static final long RACY = 2000; // coarsest resolution in ms of the change time of a file
+
+  private static final ConcurrentMap<Path, Entry> cache = new ConcurrentHashMap<>();
+
+  /**
+   * The attributes of a file that a write changes.
+   *
+   * @param changed the change time, null if the file system has none
+   */
+  private record Stamp(Object fileKey, long size, FileTime modified, FileTime changed) {
+    static Stamp of(Path file) throws IOException {
+      try {
+        Map<String, Object> a = Files.readAttributes(file, "unix:dev,ino,size,lastModifiedTime,ctime");
+        return new Stamp(List.of(a.get("dev"), a.get("ino")), (Long) a.get("size"),
+                (FileTime) a.get("lastModifiedTime"), (FileTime) a.get("ctime"));
+      } catch (UnsupportedOperationException e) {
+        BasicFileAttributes a = Files.readAttributes(file, BasicFileAttributes.class);
+        return new Stamp(a.fileKey(), a.size(), a.lastModifiedTime(), null);
+      }
+    }
+  }
+
+  /**
+   * A cached file, with the stamp of the file it was read from and the size
+   * and checksum of its bytes. It is <code>settled</code> if its stamp was
+   * taken when the change time was already too old to be repeated by a
+   * later write.
+   */
+  private record Entry(ObjectFile file, Stamp stamp, long size, long checksum, boolean settled) {
+  }
+
+  private final ByteBuffer code; // read-only, big-endian
+  private final int dataSize, startPC;
+  private final RefMaps refMaps; // null if not available
+  private final MethodTable methods; // null if not available
+  private Program program; // created on first use
+
+  private ObjectFile(ByteBuffer code, int dataSize, int startPC, RefMaps refMaps, MethodTable methods) {
+    this.code = code;
+    this.dataSize = dataSize;
+    this.startPC = startPC;
+    this.refMaps = refMaps;
+    this.methods = methods;
+  }
+
+  /**
+   * Loads the object file <code>file</code>, or returns the cached one if the
+   * file is unchanged since it was loaded, or has the same contents.
+   *
+   * @throws FormatException if the file is not a valid object file
+   */
+  public static ObjectFile load(Path file) throws IOException {
+    Path key = file.toAbsolutePath().normalize();
+    long now = System.currentTimeMillis();
+    Stamp stamp = Stamp.of(key); // before the contents, which are at least as new
+    Entry e = cache.get(key);
+    if (e != null && e.settled() && e.stamp().equals(stamp)) {
+      return e.file();
+    }
+    ByteBuffer buf = map(key);
+    CRC32C crc = new CRC32C();
+    crc.update(buf.duplicate());
+    long checksum = crc.getValue();
+    ObjectFile f = e != null && e.size() == buf.limit() && e.checksum() == checksum ? e.file() : read(buf);
+    boolean settled = stamp.changed() != null && stamp.changed().toMillis() < now - RACY;
+    cache.put(key, new Entry(f, stamp, buf.limit(), checksum, settled));
+    return f;
+  }
+
+  private static ByteBuffer map(Path file) throws IOException {
+    try (FileChannel ch = FileChannel.open(file, READ)) {
+      long size = ch.size();
+      if (size < HEADER) {
+        throw new FormatException("truncated header");
+      }
+      if (size > Integer.MAX_VALUE) {
+        throw new FormatException("file too large");
+      }
+      return ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+  }
+
+  private static ObjectFile read(ByteBuffer buf) throws IOException {
+    if (buf.get(0) != 'M' || buf.get(1) != 'J') {
+      throw new FormatException("wrong marker");
+    }
+    int codeSize = buf.getInt(2);
+    if (codeSize <= 0) {
+      throw new FormatException("codeSize <= 0");
+    }
+    if (codeSize > buf.limit() - HEADER) {
+      throw new FormatException("truncated code");
+    }
+    int dataSize = buf.getInt(6);
+    if (dataSize < 0) {
+      throw new FormatException("dataSize < 0");
+    }
+    int startPC = buf.getInt(10);
+    if (startPC < 0 || startPC >= codeSize) {
+      throw new FormatException("startPC not in code area");
+    }
+    ByteBuffer code = buf.slice(HEADER, codeSize).asReadOnlyBuffer();
+
+    // the tables after the code are small, and read as a whole
+    byte[] tail = new byte[buf.limit() - HEADER - codeSize];
+    buf.get(HEADER + codeSize, tail);
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(tail));
+    RefMaps refMaps = RefMaps.read(in);
+    MethodTable methods = refMaps != null ? MethodTable.read(in) : null;
+    return new ObjectFile(code, dataSize, startPC, refMaps, methods);
+  }
+
+  /**
+   * The code, as a read-only buffer from index 0 to its limit.
+   */
+  public ByteBuffer code() {
+    return code.duplicate();
+  }
+
+  public int codeSize() {
+    return code.limit();
+  }
+
+  public int dataSize() {
+    return dataSize;
+  }
+
+  public int startPC() {
+    return startPC;
+  }
+
+  /**
+   * The reference maps, null if the file has none.
+   */
+  public RefMaps refMaps() {
+    return refMaps;
+  }
+
+  /**
+   * The method names, null if the file has none.
+   */
+  public MethodTable methods() {
+    return methods;
+  }
+
+  /**
+   * The program in this file, not yet verified. Every call returns the same
+   * program.
+   */
+  public synchronized Program program() {
+    if (program == null) {
+      program = new Program(code, startPC, dataSize, refMaps, methods);
+    }
+    return program;
+  }
+}
@@ -0,0 +1,208 @@
+package ssw.mj;
+
+import com.google.gson.GsonBuilder;
+import ssw.mj.impl.Code.OpCode;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static ssw.mj.DecodedCode.*;
+
+/**
+ * Execution profile of a MicroJava program, collected by an
+ * {@link Interpreter} in profiling mode (see
+ * {@link Interpreter.Builder#profile}).
+ * <p>
+ * Every executed instruction is counted, and so is every taken jump. From
+ * these counts, the profile derives the executions of every opcode and the
+ * taken and not taken counts of every conditional jump. Methods are
+ * identified by the address of their <code>enter</code> instruction. An
+ * instruction is attributed to the method that executes it; from its
+ * <code>enter</code> to its <code>return</code>, these are the method's own
+ * (exclusive) instructions, and together with those of the methods it calls
+ * its inclusive instructions. A recursive method's inclusive count only
+ * covers its outermost activation, so that nothing is counted twice.
+ */
+public final class Profile {
+
+  /**
+   * Executions of the instruction <code>opcode</code>.
+   */
+  public record OpcodeProfile(String opcode, long count) {
+  }
+
+  /**
+   * Calls and instruction counts of the method whose <code>enter</code> is
+   * at <code>address</code>.
+   */
+  public record MethodProfile(int address, long calls, long inclusive, long exclusive) {
+  }
+
+  /**
+   * Executions of the conditional jump at <code>address</code>.
+   */
+  public record BranchProfile(int address, String opcode, long taken, long notTaken) {
+  }
+
+  private final ByteBuffer code;
+  private final DecodedCode decoded;
+  private final long[] counts; // executions per instruction index
+  private final long[] taken; // taken jumps per instruction index
+  private final long[] calls, inclusive, exclusive; // per index of enter
+  private final int[] active; // activations of each method on the call chain
+  private int[] chain = new int[64]; // methods on the call chain
+  private long[] starts = new long[64]; // instructions executed before each method on the chain was entered
+  private int depth;
+  private int current = -1; // running method
+  private long total;
+
+  Profile(ByteBuffer code, DecodedCode decoded) {
+    this.code = code;
+    this.decoded = decoded;
+    int n = decoded.code.length;
+    counts = new long[n];
+    taken = new long[n];
+    calls = new long[n];
+    inclusive = new long[n];
+    exclusive = new long[n];
+    active = new int[n];
+  }
+
+  /**
+   * Counts the instruction <code>op</code> at index <code>idx</code>, which
+   * is about to be executed.
+   */
+  void step(int idx, int op) {
+    counts[idx]++;
+    total++;
+    if (op == ENTER) {
+      enter(idx);
+    }
+    if (current >= 0) {
+      exclusive[current]++;
+    }
+    if (op == RETURN) {
+      leave();
+    }
+  }
+
+  /**
+   * Counts the jump at index <code>idx</code> as taken.
+   */
+  void jump(int idx) {
+    taken[idx]++;
+  }
+
+  private void enter(int method) {
+    if (depth == chain.length) {
+      chain = Arrays.copyOf(chain, 2 * depth);
+      starts = Arrays.copyOf(starts, 2 * depth);
+    }
+    chain[depth] = method;
+    starts[depth++] = total - 1; // including this enter
+    calls[method]++;
+    active[method]++;
+    current = method;
+  }
+
+  private void leave() {
+    if (depth == 0) {
+      return;
+    }
+    int method = chain[--depth];
+    if (--active[method] == 0) {
+      inclusive[method] += total - starts[depth];
+    }
+    current = depth > 0 ? chain[depth - 1] : -1;
+  }
+
+  /**
+   * Closes the methods still on the call chain when the program has
+   * terminated with an error.
+   */
+  void finish() {
+    while (depth > 0) {
+      leave();
+    }
+  }
+
+  /**
+   * Number of executed instructions.
+   */
+  public long instructions() {
+    return total;
+  }
+
+  /**
+   * Executions of the instruction at byte address <code>adr</code>, 0 if no
+   * instruction starts there.
+   */
+  public long executions(int adr) {
+    int idx = decoded.indexOf(adr);
+    return idx < 0 ? 0 : counts[idx];
+  }
+
+  /**
+   * Executions of every opcode that was executed, most frequent first.
+   */
+  public List<OpcodeProfile> opcodes() {
+    Map<String, Long> map = new HashMap<>();
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] > 0) {
+        map.merge(opcode(i), counts[i], Long::sum);
+      }
+    }
+    List<OpcodeProfile> list = new ArrayList<>();
+    map.forEach((op, n) -> list.add(new OpcodeProfile(op, n)));
+    list.sort(Comparator.comparingLong(OpcodeProfile::count).reversed().thenComparing(OpcodeProfile::opcode));
+    return list;
+  }
+
+  /**
+   * Every method that was called, by decreasing exclusive count.
+   */
+  public List<MethodProfile> methods() {
+    List<MethodProfile> list = new ArrayList<>();
+    for (int i = 0; i < calls.length; i++) {
+      if (calls[i] > 0) {
+        list.add(new MethodProfile(decoded.addressOf(i), calls[i], inclusive[i], exclusive[i]));
+      }
+    }
+    list.sort(Comparator.comparingLong(MethodProfile::exclusive).reversed()
+            .thenComparingInt(MethodProfile::address));
+    return list;
+  }
+
+  /**
+   * Every conditional jump that was executed, by address.
+   */
+  public List<BranchProfile> branches() {
+    List<BranchProfile> list = new ArrayList<>();
+    int[] c = decoded.code;
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] > 0 && c[i] >= JEQ && c[i] <= JGE) {
+        list.add(new BranchProfile(decoded.addressOf(i), opcode(i), taken[i], counts[i] - taken[i]));
+      }
+    }
+    return list;
+  }
+
+  /**
+   * The profile as a JSON object with the fields <code>instructions</code>,
+   * <code>opcodes</code>, <code>methods</code> and <code>branches</code>.
+   */
+  public String toJson() {
+    Map<String, Object> report = new LinkedHashMap<>();
+    report.put("instructions", total);
+    report.put("opcodes", opcodes());
+    report.put("methods", methods());
+    report.put("branches", branches());
+    return new GsonBuilder().setPrettyPrinting().create().toJson(report);
+  }
+
+  private String opcode(int idx) {
+    int adr = decoded.addressOf(idx);
+    OpCode op = adr < 0 || adr >= code.limit() ? null : OpCode.get(code.get(adr) & 0xFF);
+    return op == null ? "illegal" : op.cleanName();
+  }
+}
@@ -0,0 +1,180 @@
+package ssw.mj;
+
+import ssw.mj.verify.EscapeAnalysis;
+import ssw.mj.verify.StackMaps;
+import ssw.mj.verify.VerifiedMethod;
+import ssw.mj.verify.VerifiedProgram;
+import ssw.mj.verify.VerifyException;
+import ssw.mj.verify.Verifier;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A MicroJava program as stored in an object file, together with its
+ * pre-decoded form and the results of verifying it. A program does not
+ * change while it is executed, so it can be shared by any number of
+ * {@link Interpreter}s (see {@link Interpreter.Builder#program}), each with
+ * its own global data, heap, stacks and IO. It is verified once, when an
+ * interpreter needs it first.
+ * <p>
+ * Once verified, the program also has variants of the decoded code in which
+ * the objects that do not escape their method are replaced by local
+ * variables (see {@link EscapeAnalysis}). Interpreters without a listener
+ * execute these.
+ */
+public final class Program {
+  final ByteBuffer code; // read-only
+  final int startPC, dataSize;
+  final RefMaps refMaps; // reference maps from the compiler, null if not available
+  final MethodTable methods; // method names, null if not available
+  final DecodedCode decoded;
+
+  private VerifiedProgram verified; // null if not (yet) verified
+  private int[] maxStack; // verified maximum expression stack depth of each method (at enter)
+  private EscapeAnalysis escapes; // objects replaced by local variables, once verified
+  private int[] scalarCode, scalarFused; // code and fused code with the replaced objects, once verified
+  private int[] unchecked; // scalarFused without the bounds checks proven redundant, once verified
+  private boolean malformed; // verification failed
+  private StackMaps stackMaps; // null if the heap cannot be collected
+  private boolean stackMapsDone;
+  private final Map<Integer, BitSet> scalarLocals = new HashMap<>(); // by method, with the replaced fields
+
+  public Program(byte[] code, int startPC, int dataSize, RefMaps refMaps, MethodTable methods) {
+    this(ByteBuffer.wrap(code), startPC, dataSize, refMaps, methods);
+  }
+
+  /**
+   * Creates a program whose code is the bytes of <code>code</code> from index
+   * 0 to its limit, e.g. the code of an {@link ObjectFile}. The bytes must
+   * not change.
+   */
+  public Program(ByteBuffer code, int startPC, int dataSize, RefMaps refMaps, MethodTable methods) {
+    this.code = code.asReadOnlyBuffer();
+    this.startPC = startPC;
+    this.dataSize = dataSize;
+    this.refMaps = refMaps;
+    this.methods = methods;
+    this.decoded = DecodedCode.decode(code);
+  }
+
+  /**
+   * Verifies the code (see {@link Verifier}).
+   */
+  public synchronized VerifiedProgram verify() throws VerifyException {
+    if (verified == null) {
+      int main = decoded.indexOf(startPC);
+      if (main < 0) {
+        throw new VerifyException("startPC is not an instruction", startPC);
+      }
+      VerifiedProgram p = Verifier.verify(decoded, main);
+      maxStack = new int[decoded.code.length];
+      for (VerifiedMethod m : p.methods()) {
+        maxStack[m.start()] = m.maxStack();
+      }
+      escapes = EscapeAnalysis.analyze(p);
+      scalarCode = escapes.apply(decoded.code);
+      scalarFused = escapes.apply(decoded.fused);
+      unchecked = decoded.withoutBoundsChecks(scalarFused, p);
+      verified = p;
+    }
+    return verified;
+  }
+
+  /**
+   * The verified program, null if the code is malformed.
+   */
+  synchronized VerifiedProgram verified() {
+    if (verified == null && !malformed) {
+      try {
+        verify();
+      } catch (VerifyException e) {
+        malformed = true;
+      }
+    }
+    return verified;
+  }
+
+  /**
+   * Verified maximum expression stack depth of each method, by index of its
+   * <code>enter</code>. Only valid once the program is verified.
+   */
+  synchronized int[] maxStack() {
+    return maxStack;
+  }
+
+  /**
+   * The objects replaced by local variables. Only valid once the program is
+   * verified.
+   */
+  synchronized EscapeAnalysis escapes() {
+    return escapes;
+  }
+
+  /**
+   * The decoded code with the replaced objects. Only valid once the program
+   * is verified.
+   */
+  synchronized int[] scalarCode() {
+    return scalarCode;
+  }
+
+  /**
+   * The fused code with the replaced objects. Only valid once the program is
+   * verified.
+   */
+  synchronized int[] scalarFused() {
+    return scalarFused;
+  }
+
+  /**
+   * The fused code with the replaced objects and with unchecked variants of
+   * the array accesses that are always in bounds (see
+   * {@link DecodedCode#withoutBoundsChecks}). Only valid once the program is
+   * verified.
+   */
+  synchronized int[] uncheckedCode() {
+    return unchecked;
+  }
+
+  /**
+   * Reference maps by instruction, null if there are no reference maps for
+   * the whole program.
+   */
+  synchronized StackMaps stackMaps() {
+    if (!stackMapsDone) {
+      VerifiedProgram p = refMaps == null ? null : verified();
+      if (p != null) {
+        try {
+          stackMaps = StackMaps.compute(p, refMaps);
+          for (EscapeAnalysis.Replacement r : escapes.replacements()) {
+            BitSet refs = scalarLocals.computeIfAbsent(r.method(), m -> (BitSet) stackMaps.locals(m).clone());
+            for (int site : r.sites()) {
+              BitSet fields = stackMaps.objectFields(site);
+              for (int f = fields.nextSetBit(0); f >= 0; f = fields.nextSetBit(f + 1)) {
+                refs.set(r.first() + f);
+              }
+            }
+          }
+        } catch (VerifyException e) {
+          stackMaps = null;
+          scalarLocals.clear();
+        }
+      }
+      stackMapsDone = true;
+    }
+    return stackMaps;
+  }
+
+  /**
+   * Local variables of reference type of the method whose <code>enter</code>
+   * is at index <code>start</code>, in the code with the replaced objects.
+   * Only valid if there are stack maps.
+   */
+  synchronized BitSet scalarLocals(int start) {
+    BitSet refs = scalarLocals.get(start);
+    return refs != null ? refs : stackMaps.locals(start);
+  }
+}
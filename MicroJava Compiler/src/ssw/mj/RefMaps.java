@@ -0,0 +1,142 @@
+package ssw.mj;
+
+import ssw.mj.symtab.Obj;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reference maps emitted by the compiler, which tell the garbage collector
+ * which words hold heap addresses. MicroJava code does not distinguish
+ * references from ints, so this information comes from the declared types:
+ * <ul>
+ * <li>the global variables of reference type,</li>
+ * <li>the local variables of reference type of every method,</li>
+ * <li>the <code>getfield</code> and <code>aload</code> instructions that
+ * load a reference,</li>
+ * <li>the fields of reference type of the class created by every
+ * <code>new</code>,</li>
+ * <li>the <code>newarray</code> instructions that create an array of
+ * references.</li>
+ * </ul>
+ * Instructions and methods are identified by their byte address. The types
+ * of the expression stack are derived from these maps by
+ * {@link ssw.mj.verify.StackMaps}.
+ * <p>
+ * The maps are stored in the object file after the code, starting with the
+ * marker "RM". Object files without them can still be run, but their heap
+ * is not collected.
+ */
+public final class RefMaps {
+  /**
+   * Global variables of reference type.
+   */
+  public final BitSet globals = new BitSet();
+  /**
+   * Address of <code>enter</code> -> local variables of reference type.
+   */
+  public final Map<Integer, BitSet> locals = new TreeMap<>();
+  /**
+   * Addresses of <code>getfield</code> and <code>aload</code> instructions
+   * that load a reference.
+   */
+  public final BitSet refLoads = new BitSet();
+  /**
+   * Address of <code>new</code> -> fields of reference type of the new
+   * object.
+   */
+  public final Map<Integer, BitSet> objects = new TreeMap<>();
+  /**
+   * Addresses of <code>newarray</code> instructions that create an array of
+   * references.
+   */
+  public final BitSet refArrays = new BitSet();
+
+  /**
+   * The variables of reference type among <code>vars</code>, by address.
+   */
+  public static BitSet refVars(Map<String, Obj> vars) {
+    BitSet refs = new BitSet();
+    for (Obj obj : vars.values()) {
+      if (obj.kind == Obj.Kind.Var && obj.type.isRefType()) {
+        refs.set(obj.adr);
+      }
+    }
+    return refs;
+  }
+
+  public void write(DataOutputStream out) throws IOException {
+    out.writeByte('R');
+    out.writeByte('M');
+    writeBits(out, globals);
+    writeMap(out, locals);
+    writeBits(out, refLoads);
+    writeMap(out, objects);
+    writeBits(out, refArrays);
+  }
+
+  /**
+   * Reads the maps following the code of an object file, null if there are
+   * none.
+   */
+  public static RefMaps read(DataInputStream in) throws IOException {
+    byte[] marker = new byte[2];
+    if (in.read(marker, 0, 2) < 2 || marker[0] != 'R' || marker[1] != 'M') {
+      return null;
+    }
+    try {
+      RefMaps maps = new RefMaps();
+      maps.globals.or(readBits(in));
+      readMap(in, maps.locals);
+      maps.refLoads.or(readBits(in));
+      readMap(in, maps.objects);
+      maps.refArrays.or(readBits(in));
+      return maps;
+    } catch (EOFException e) {
+      throw new FormatException("truncated reference maps");
+    }
+  }
+
+  private static void writeBits(DataOutputStream out, BitSet bits) throws IOException {
+    long[] words = bits.toLongArray();
+    out.writeInt(words.length);
+    for (long w : words) {
+      out.writeLong(w);
+    }
+  }
+
+  private static BitSet readBits(DataInputStream in) throws IOException {
+    int n = in.readInt();
+    if (n < 0 || n > in.available() / 8) {
+      throw new FormatException("corrupted reference maps");
+    }
+    long[] words = new long[n];
+    for (int i = 0; i < n; i++) {
+      words[i] = in.readLong();
+    }
+    return BitSet.valueOf(words);
+  }
+
+  private static void writeMap(DataOutputStream out, Map<Integer, BitSet> map) throws IOException {
+    out.writeInt(map.size());
+    for (Map.Entry<Integer, BitSet> e : map.entrySet()) {
+      out.writeInt(e.getKey());
+      writeBits(out, e.getValue());
+    }
+  }
+
+  private static void readMap(DataInputStream in, Map<Integer, BitSet> map) throws IOException {
+    int n = in.readInt();
+    if (n < 0 || n > in.available() / 8) {
+      throw new FormatException("corrupted reference maps");
+    }
+    for (int i = 0; i < n; i++) {
+      map.put(in.readInt(), readBits(in));
+    }
+  }
+}
@@ -1,84 +1,306 @@
 // MicroJava Virtual Machine
 // -------------------------
-// Syntax: java ssw.mj.Run fileName [-debug]
+// Syntax: java ssw.mj.Run fileName [-debug] [-compile | -tiered[=threshold] | -fuel=units] [-jobs=n]
+//         [-heap=words] [-maxheap=words] [-stack=words] [-maxstack=words] [-estack=words]
+//         [-offheap | -heapfile=file] [-profile[=file]] [-sample[=file]]
+//         [-checkpoint=file | -restore=file]
 // ===========================================================================
 // by Hanspeter Moessenboeck, 2002-10-28
 // edited by Albrecht Woess, 2002-10-30
 package ssw.mj;
 
+import ssw.mj.verify.VerifyException;
+
 import java.io.*;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public class Run {
+  private static final Duration sampleInterval = Duration.ofMillis(1);
 
   // ----- VM internals
-  static Interpreter load(String name, boolean debug) throws IOException {
-    int codeSize;
-    byte[] sig = new byte[2];
-    DataInputStream in = new DataInputStream(new FileInputStream(name));
-    in.read(sig, 0, 2);
-    if (sig[0] != 'M' || sig[1] != 'J') {
-      in.close();
-      throw new FormatException("wrong marker");
-    }
-    codeSize = in.readInt();
-    if (codeSize <= 0) {
-      in.close();
-      throw new FormatException("codeSize <= 0");
-    }
-    int dataSize = in.readInt();
-    if (dataSize < 0) {
-      in.close();
-      throw new FormatException("dataSize < 0");
-    }
-    int startPC = in.readInt();
-    if (startPC < 0 || startPC >= codeSize) {
-      in.close();
-      throw new FormatException("startPC not in code area");
-    }
-    byte[] code = new byte[codeSize];
-    in.read(code, 0, codeSize);
-    in.close();
+  static Interpreter load(String name, Interpreter.Builder options) throws IOException {
+    return options.program(read(name)).build();
+  }
 
-    return new Interpreter(code, startPC, dataSize, Interpreter.ConsoleIO, debug);
+  /**
+   * Reads and verifies the program in object file <code>name</code>.
+   */
+  static Program read(String name) throws IOException {
+    Program p = ObjectFile.load(Path.of(name)).program();
+    try {
+      p.verify();
+    } catch (VerifyException e) {
+      throw new FormatException(e.getMessage());
+    }
+    return p;
   }
 
   public static void main(String[] args) {
     String fileName = null;
     boolean debug = false;
+    boolean compile = false;
+    int threshold = 0; // tiered execution if > 0
+    long fuel = 0; // stop after this much fuel if > 0
+    int jobs = 0; // run this many executions concurrently if > 0
+    int heap = 0, maxHeap = 0, mStack = 0, maxMStack = 0, eStack = 0; // 0 if not given
+    boolean offHeap = false;
+    Path heapFile = null;
+    boolean profile = false;
+    Path profileFile = null; // print the profile if null
+    boolean sample = false;
+    Path sampleFile = null; // print the samples if null
+    Path checkpoint = null; // write a snapshot before the first input to this file
+    Path restore = null; // continue from this snapshot
     for (String arg : args) {
-      if (arg.equals("-debug")) {
+      if (arg.startsWith("-heap=")) {
+        heap = size(arg);
+      } else if (arg.startsWith("-maxheap=")) {
+        maxHeap = size(arg);
+      } else if (arg.startsWith("-stack=")) {
+        mStack = size(arg);
+      } else if (arg.startsWith("-maxstack=")) {
+        maxMStack = size(arg);
+      } else if (arg.startsWith("-estack=")) {
+        eStack = size(arg);
+      } else if (arg.equals("-offheap")) {
+        offHeap = true;
+      } else if (arg.startsWith("-heapfile=")) {
+        heapFile = Path.of(arg.substring("-heapfile=".length()));
+      } else if (arg.equals("-profile")) {
+        profile = true;
+      } else if (arg.startsWith("-profile=")) {
+        profile = true;
+        profileFile = Path.of(arg.substring("-profile=".length()));
+      } else if (arg.equals("-sample")) {
+        sample = true;
+      } else if (arg.startsWith("-sample=")) {
+        sample = true;
+        sampleFile = Path.of(arg.substring("-sample=".length()));
+      } else if (arg.startsWith("-checkpoint=")) {
+        checkpoint = Path.of(arg.substring("-checkpoint=".length()));
+      } else if (arg.startsWith("-restore=")) {
+        restore = Path.of(arg.substring("-restore=".length()));
+      } else if (arg.equals("-debug")) {
         debug = true;
+      } else if (arg.equals("-compile")) {
+        compile = true;
+      } else if (arg.equals("-tiered")) {
+        threshold = Interpreter.tierThreshold;
+      } else if (arg.startsWith("-tiered=")) {
+        try {
+          threshold = Integer.parseInt(arg.substring("-tiered=".length()));
+        } catch (NumberFormatException e) {
+          threshold = -1;
+        }
+        if (threshold <= 0) {
+          System.out.println("-- threshold must be a positive number: " + arg);
+          return;
+        }
+      } else if (arg.startsWith("-jobs=")) {
+        jobs = size(arg);
+        if (jobs < 0) {
+          System.out.println("-- number of jobs must be a positive number: " + arg);
+          return;
+        }
+      } else if (arg.startsWith("-fuel=")) {
+        try {
+          fuel = Long.parseLong(arg.substring("-fuel=".length()));
+        } catch (NumberFormatException e) {
+          fuel = -1;
+        }
+        if (fuel <= 0) {
+          System.out.println("-- fuel must be a positive number: " + arg);
+          return;
+        }
       } else {
         fileName = arg;
       }
     }
     if (fileName == null) {
-      System.out.println("Syntax: java ssw.mj.Run filename [-debug]");
+      System.out.println("Syntax: java ssw.mj.Run filename [-debug] [-compile | -tiered[=threshold] | -fuel=units]"
+              + " [-jobs=n]"
+              + " [-heap=words] [-maxheap=words] [-stack=words] [-maxstack=words] [-estack=words]"
+              + " [-offheap | -heapfile=file] [-profile[=file]] [-sample[=file]]"
+              + " [-checkpoint=file | -restore=file]");
       return;
     }
+    Interpreter.Builder options = new Interpreter.Builder().debug(debug).profile(profile)
+            .sample(sample ? sampleInterval : null).offHeap(offHeap).heapFile(heapFile)
+            .suspendAtInput(checkpoint != null).restore(restore);
     try {
-      Interpreter r = load(fileName, debug);
-
-      long startTime = System.currentTimeMillis();
-      r.run();
-
-      System.out.print("\nCompletion took " + (System.currentTimeMillis() - startTime) + " ms");
-    } catch (FileNotFoundException e) {
+      options.heapSize(initial(heap, maxHeap, Interpreter.heapSize), max(heap, maxHeap, Interpreter.maxHeapSize))
+              .methodStackSize(initial(mStack, maxMStack, Interpreter.mStackSize),
+                      max(mStack, maxMStack, Interpreter.maxMStackSize))
+              .expressionStackSize(eStack != 0 ? eStack : Interpreter.eStackSize);
+    } catch (IllegalArgumentException e) {
+      System.out.println("-- " + e.getMessage());
+      return;
+    }
+    Program program;
+    try {
+      program = read(fileName);
+    } catch (FileNotFoundException | NoSuchFileException e) {
       System.out.println("-- file " + fileName + " not found");
+      return;
     } catch (FormatException e) {
       System.out.println("-- corrupted object file " + fileName + ": " + e.getMessage());
+      return;
     } catch (IOException e) {
       System.out.println("-- error reading file " + fileName);
+      return;
+    }
+    try {
+      if (jobs > 0) {
+        runJobs(program, options, jobs, fuel > 0 ? fuel : ExecutionService.maxFuel);
+        return;
+      }
+      Interpreter r = options.program(program).build();
+
+      long startTime = System.currentTimeMillis();
+      try {
+        if (checkpoint != null) {
+          if (r.run(Long.MAX_VALUE)) {
+            System.out.println();
+            System.out.println("-- no checkpoint: program terminated before reading input");
+          } else {
+            r.checkpoint(checkpoint);
+            System.out.println();
+            System.out.println("-- checkpoint written to " + checkpoint);
+          }
+          return;
+        } else if (fuel > 0) {
+          if (!r.run(fuel)) {
+            System.out.println();
+            System.out.println("-- program stopped: out of fuel");
+            return;
+          }
+        } else if (compile) {
+          r.runCompiled();
+        } else if (threshold > 0) {
+          r.runTiered(threshold);
+        } else {
+          r.run();
+        }
+
+        System.out.print("\nCompletion took " + (System.currentTimeMillis() - startTime) + " ms");
+      } finally {
+        if (profile) {
+          writeProfile(r.profile(), profileFile);
+        }
+        if (sample) {
+          writeSamples(r.sampler(), sampleFile);
+        }
+      }
+    } catch (FileSystemException e) {
+      System.out.println("-- cannot access file " + e.getFile());
+    } catch (FormatException e) {
+      System.out.println("-- corrupted snapshot " + restore + ": " + e.getMessage());
+    } catch (IOException e) {
+      System.out.println("-- " + e.getMessage());
+    } catch (IllegalArgumentException e) {
+      System.out.println("-- " + e.getMessage());
     }
   }
-}
 
-class FormatException extends IOException {
+  /**
+   * Runs <code>jobs</code> executions of <code>program</code> concurrently
+   * (see {@link ExecutionService}), all on the whole standard input. Prints
+   * the output of the first one and the statistics of the service.
+   */
+  private static void runJobs(Program program, Interpreter.Builder options, int jobs, long fuel)
+          throws IOException {
+    String input = new String(System.in.readAllBytes());
+    List<CompletableFuture<ExecutionService.Result>> results = new ArrayList<>();
+    ExecutionService service = new ExecutionService(program, options, fuel);
+    try (service) {
+      for (int i = 0; i < jobs; i++) {
+        results.add(service.submit(input));
+      }
+    }
+    ExecutionService.Result first = results.get(0).join();
+    System.out.print(first.output());
+    System.out.println();
+    if (first.error() != null) {
+      System.out.println("-- " + first.error());
+    } else if (!first.finished()) {
+      System.out.println("-- program stopped: out of fuel");
+    }
+    System.out.println(service.stats());
+  }
 
-  @Serial
-  private static final long serialVersionUID = 1L;
+  /**
+   * Prints the profile as JSON or writes it to <code>file</code> (if not
+   * null), also if the program has terminated with an error.
+   */
+  private static void writeProfile(Profile profile, Path file) {
+    if (file == null) {
+      System.out.println();
+      System.out.println(profile.toJson());
+      return;
+    }
+    try {
+      Files.writeString(file, profile.toJson());
+    } catch (IOException e) {
+      System.out.println("-- cannot write profile file " + file);
+    }
+  }
 
-  FormatException(String s) {
-    super(s);
+  /**
+   * Prints the samples in collapsed format or writes them to
+   * <code>file</code> (if not null), e.g. for flamegraph.pl.
+   */
+  private static void writeSamples(Sampler sampler, Path file) {
+    if (file == null) {
+      StringBuilder sb = new StringBuilder();
+      try {
+        sampler.writeCollapsed(sb);
+      } catch (IOException e) {
+        // not thrown by a StringBuilder
+      }
+      System.out.println();
+      System.out.print(sb);
+      return;
+    }
+    try (Writer w = Files.newBufferedWriter(file)) {
+      sampler.writeCollapsed(w);
+    } catch (IOException e) {
+      System.out.println("-- cannot write sample file " + file);
+    }
+  }
+
+  /**
+   * The size given by a flag of the form <code>-name=words</code>, -1 if it
+   * is not a positive number.
+   */
+  private static int size(String arg) {
+    try {
+      int size = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+      return size > 0 ? size : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * The initial size of a memory area, which is lowered to the maximum size
+   * if only that is given.
+   */
+  private static int initial(int initial, int max, int dflt) {
+    return initial != 0 ? initial : max != 0 ? Math.min(max, dflt) : dflt;
   }
-}
\ No newline at end of file
+
+  /**
+   * The maximum size of a memory area, which is raised to the initial size if
+   * only that is given.
+   */
+  private static int max(int initial, int max, int dflt) {
+    return max != 0 ? max : Math.max(initial, dflt);
+  }
+}
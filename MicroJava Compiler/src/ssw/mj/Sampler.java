@@ -0,0 +1,122 @@
+package ssw.mj;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+import static ssw.mj.DecodedCode.ENTER;
+
+/**
+ * Sampling profiler of an {@link Interpreter} (see
+ * {@link Interpreter.Builder#sample}).
+ * <p>
+ * While the program runs, a timer thread requests a sample at every
+ * interval. The interpreter takes it at the next method entry or backward
+ * jump, where it walks the method stack: the method of the current
+ * instruction, and the method of the <code>call</code> before each return
+ * address. So between two samples, the only cost is checking a flag.
+ * A method called in compiled code (tiered mode) shows up as a leaf with
+ * the suffix "_[j]"; time in code compiled for a running loop counts for
+ * the interpreted frame.
+ * <p>
+ * The stacks are reported in the collapsed format of flame graph tools:
+ * one line per distinct stack, with the method names from the root to the
+ * leaf separated by ';', followed by the number of samples.
+ */
+public final class Sampler {
+  private final MethodTable methods;
+  private final long interval; // nanoseconds
+  private final Map<String, Long> stacks = new HashMap<>();
+  private long samples;
+  private Thread timer;
+
+  /**
+   * Creates a sampler for <code>code</code>, whose methods are named by
+   * <code>methods</code>. If they are not known, methods are named
+   * "@adr" by the address of their <code>enter</code>.
+   */
+  Sampler(DecodedCode code, MethodTable methods, Duration interval) {
+    if (methods == null) {
+      methods = new MethodTable();
+      for (int i = 0; i < code.end(); i++) {
+        int adr = code.addressOf(i);
+        if (adr >= 0 && code.code[i] == ENTER) {
+          methods.names.put(adr, "@" + adr);
+        }
+      }
+    }
+    this.methods = methods;
+    this.interval = Math.max(1, interval.toNanos());
+  }
+
+  /**
+   * Starts requesting samples from <code>vm</code>, unless already
+   * running.
+   */
+  void start(Interpreter vm) {
+    if (timer != null) {
+      return;
+    }
+    timer = Thread.ofPlatform().daemon().name("MicroJava sampler").start(() -> {
+      for (; ; ) {
+        LockSupport.parkNanos(interval);
+        if (Thread.currentThread().isInterrupted()) { // stopped, maybe already followed by a new timer
+          return;
+        }
+        vm.sample = true;
+      }
+    });
+  }
+
+  void stop() {
+    if (timer != null) {
+      timer.interrupt();
+      timer = null;
+    }
+  }
+
+  /**
+   * Records a stack given by the byte addresses of its instructions, from
+   * the leaf to the root, optionally with a compiled leaf method (by the
+   * address of its <code>enter</code>, -1 if none).
+   */
+  void record(int[] frames, int n, int compiled) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = n - 1; i >= 0; i--) {
+      sb.append(methods.nameAt(frames[i]));
+      if (i > 0) {
+        sb.append(';');
+      }
+    }
+    if (compiled >= 0) {
+      sb.append(';').append(methods.nameAt(compiled)).append("_[j]");
+    }
+    stacks.merge(sb.toString(), 1L, Long::sum);
+    samples++;
+  }
+
+  /**
+   * Number of samples taken.
+   */
+  public long samples() {
+    return samples;
+  }
+
+  /**
+   * Number of samples of every stack, in collapsed format ("main;m;n").
+   */
+  public Map<String, Long> stacks() {
+    return Collections.unmodifiableMap(stacks);
+  }
+
+  /**
+   * Writes the stacks in collapsed format, one line per stack, sorted by
+   * stack.
+   */
+  public void writeCollapsed(Appendable out) throws IOException {
+    for (Map.Entry<String, Long> e : new TreeMap<>(stacks).entrySet()) {
+      out.append(e.getKey()).append(' ').append(String.valueOf(e.getValue())).append('\n');
+    }
+  }
+}
@@ -0,0 +1,157 @@
+package ssw.mj;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * The state of a suspended {@link Interpreter}, as written to a file by
+ * {@link Interpreter#checkpoint} and read by
+ * {@link Interpreter.Builder#restore}.
+ * <p>
+ * The file starts with the marker "MS", a version and a checksum of the code
+ * the snapshot belongs to. Then follow the registers, the global data, the
+ * used parts of the expression stack and the method stack, the state of the
+ * {@link Heap} and the size and byte order of the heap words. The heap words
+ * come last, at a page boundary, so that they can be mapped: a heap kept off
+ * the Java heap is mapped privately from the file, and a page is only read
+ * when the restored program first touches it.
+ */
+final class Snapshot {
+  private static final int VERSION = 2;
+  private static final int PAGE = 4096;
+
+  int pc, fp, sp, esp;
+  boolean checked; // continues in runChecked
+  boolean scalar; // the frames use the code with scalar-replaced objects
+  int[] data, stack, local; // stack and local are only as long as used
+  byte[] heapState; // see Heap.save
+  Memory words; // heap words, when read
+
+  /**
+   * Writes the snapshot of a program with code <code>code</code> and the
+   * given <code>heap</code> to <code>file</code>.
+   */
+  void write(Path file, ByteBuffer code, Heap heap) throws IOException {
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(header);
+    out.writeByte('M');
+    out.writeByte('S');
+    out.writeInt(VERSION);
+    out.writeInt(code.limit());
+    out.writeLong(checksum(code));
+    out.writeInt(pc);
+    out.writeInt(fp);
+    out.writeInt(sp);
+    out.writeInt(esp);
+    out.writeBoolean(checked);
+    out.writeBoolean(scalar);
+    writeInts(out, data, data.length);
+    writeInts(out, stack, esp);
+    writeInts(out, local, sp);
+    ByteArrayOutputStream state = new ByteArrayOutputStream();
+    heap.save(new DataOutputStream(state));
+    out.writeInt(state.size());
+    state.writeTo(out);
+    Memory w = heap.words;
+    ByteOrder order = ByteOrder.nativeOrder();
+    out.writeInt(w.size());
+    out.writeBoolean(order == ByteOrder.BIG_ENDIAN);
+    long pos = (header.size() + 8 + PAGE - 1) / PAGE * PAGE;
+    out.writeLong(pos);
+
+    try (FileChannel ch = FileChannel.open(file, CREATE, TRUNCATE_EXISTING, WRITE)) {
+      ch.write(ByteBuffer.wrap(header.toByteArray()));
+      ch.position(pos);
+      ByteBuffer buf = ByteBuffer.allocateDirect(1 << 16).order(order);
+      for (int i = 0; i < w.size(); i++) {
+        if (!buf.hasRemaining()) {
+          ch.write(buf.flip());
+          buf.clear();
+        }
+        buf.putInt(w.get(i));
+      }
+      ch.write(buf.flip());
+    }
+  }
+
+  /**
+   * Reads the snapshot in <code>file</code>, which must belong to
+   * <code>program</code>. The heap words are mapped if
+   * <code>offHeap</code> (which needs a writable file, although the file is
+   * not changed), otherwise read into an int array.
+   */
+  static Snapshot read(Path file, Program program, boolean offHeap) throws IOException {
+    Snapshot s = new Snapshot();
+    try (FileChannel ch = offHeap ? FileChannel.open(file, READ, WRITE) : FileChannel.open(file, READ)) {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch)));
+      if (in.readByte() != 'M' || in.readByte() != 'S' || in.readInt() != VERSION) {
+        throw new FormatException("wrong marker");
+      }
+      if (in.readInt() != program.code.limit() || in.readLong() != checksum(program.code)) {
+        throw new FormatException("snapshot of another program");
+      }
+      s.pc = in.readInt();
+      s.fp = in.readInt();
+      s.sp = in.readInt();
+      s.esp = in.readInt();
+      s.checked = in.readBoolean();
+      s.scalar = in.readBoolean();
+      s.data = readInts(in, ch.size());
+      s.stack = readInts(in, ch.size());
+      s.local = readInts(in, ch.size());
+      int n = in.readInt();
+      if (n < 0 || n > ch.size()) {
+        throw new FormatException("corrupted heap state");
+      }
+      s.heapState = in.readNBytes(n);
+      int size = in.readInt();
+      ByteOrder order = in.readBoolean() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+      long pos = in.readLong();
+      if (s.data.length != program.dataSize || s.stack.length != s.esp || s.local.length != s.sp
+              || s.pc < 0 || s.pc >= program.decoded.code.length || s.fp < 0 || s.fp > s.sp
+              || size <= 0 || pos < 0 || pos + 4L * size > ch.size()) {
+        throw new FormatException("corrupted snapshot");
+      }
+      s.words = offHeap ? DirectMemory.map(ch, pos, size, order) : ArrayMemory.read(ch, pos, size, order);
+    } catch (EOFException e) {
+      throw new FormatException("truncated snapshot");
+    }
+    return s;
+  }
+
+  private static long checksum(ByteBuffer code) {
+    CRC32 crc = new CRC32();
+    crc.update(code.duplicate().position(0));
+    return crc.getValue();
+  }
+
+  private static void writeInts(DataOutputStream out, int[] a, int n) throws IOException {
+    out.writeInt(n);
+    for (int i = 0; i < n; i++) {
+      out.writeInt(a[i]);
+    }
+  }
+
+  /**
+   * Reads an array written by {@link #writeInts} from a file of
+   * <code>fileSize</code> bytes.
+   */
+  private static int[] readInts(DataInputStream in, long fileSize) throws IOException {
+    int n = in.readInt();
+    if (n < 0 || n > fileSize / 4) {
+      throw new FormatException("corrupted snapshot");
+    }
+    int[] a = new int[n];
+    for (int i = 0; i < n; i++) {
+      a[i] = in.readInt();
+    }
+    return a;
+  }
+}
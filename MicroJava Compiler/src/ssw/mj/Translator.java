@@ -0,0 +1,855 @@
+package ssw.mj;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.bytecode.*;
+import ssw.mj.verify.StackMaps;
+import ssw.mj.verify.VerifiedMethod;
+import ssw.mj.verify.VerifiedProgram;
+import ssw.mj.verify.Verifier;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serial;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.*;
+
+import static ssw.mj.DecodedCode.*;
+
+/**
+ * Load-time translation of MicroJava code into JVM byte code.
+ * <p>
+ * Every MicroJava method (an <code>enter</code> instruction and all code
+ * reachable from it without following calls) becomes a static method of a
+ * hidden class, so that HotSpot can JIT-compile it. The expression stack is
+ * mapped to the JVM operand stack and the method's locals to JVM locals.
+ * Globals and the heap stay in the {@link Interpreter}, which is reached
+ * through a static field of the generated class.
+ * <p>
+ * The garbage collector cannot see JVM locals and operands, so where the
+ * heap can be collected (at every <code>new</code> and
+ * <code>newarray</code>, and at every <code>call</code> of a method that
+ * allocates, directly or not), a translated method spills the words that hold
+ * references (see {@link StackMaps}) to where the interpreter keeps them: its
+ * locals to its frame on the method stack, together with the link to the
+ * frame of the caller, and its operands to the expression stack. Afterwards,
+ * it reloads them, because the collector moves blocks. So the collector finds
+ * the frames of translated methods like interpreted ones, and no other words
+ * are spilled.
+ * <p>
+ * A translated method <code>m</code> with <code>n</code> parameters has the
+ * descriptor <code>(I..I II)V</code> or <code>(I..I II)I</code>. The two
+ * trailing parameters are the depth of the caller's expression stack below the
+ * parameters and the method stack pointer at the time of the call. They are
+ * used to raise stack overflows at exactly the same points as the interpreter.
+ * A call in MicroJava is a call in the JVM, so a recursive program needs a
+ * JVM stack that is sized for the method stack (see {@link #stackSize()});
+ * should the JVM stack be exhausted first anyway, this is reported as a method
+ * stack overflow as well.
+ * <p>
+ * Only verified programs (see {@link Verifier}) are translated, using the
+ * stack depths computed by the verifier. Single methods (together with the
+ * methods they call) are compiled on demand, also with an entry point at a
+ * loop header for on-stack replacement of a running interpreter frame.
+ */
+final class Translator {
+
+  private static final String VM = "ssw.mj.Interpreter";
+  private static final String VM_DESC = "Lssw/mj/Interpreter;";
+  private static final String SELF = Translator.class.getName();
+  private static final String GENERATED = "ssw.mj.TranslatedProgram";
+  private static final String ERROR_DESC = "Ljava/lang/IllegalStateException;";
+  private static final String OSR = "osr";
+
+  private static final int UNKNOWN = -1;
+  private static final int FRAME_OVERHEAD = 16; // slots of a JVM frame besides its locals and operands
+  private static final long BASE_STACK = 1 << 20; // bytes of JVM stack for the code that runs translated code
+  private static final long MAX_STACK = 1L << 30; // bytes of JVM stack at most
+
+  /**
+   * A MicroJava method, identified by the index of its <code>enter</code>.
+   */
+  private static final class Method {
+    final int start;
+    final int psize, lsize;
+    final boolean returnsValue;
+    final Set<Integer> callees;
+    Flow flow;
+    boolean allocates; // the method or one of the methods it calls, directly or not
+
+    Method(VerifiedMethod m) {
+      start = m.start();
+      psize = m.psize();
+      lsize = m.lsize();
+      returnsValue = m.returnsValue();
+      callees = m.callees();
+    }
+
+    int body() {
+      return start + 3;
+    }
+
+    String name(DecodedCode code) {
+      return "m" + code.addressOf(start);
+    }
+
+    String descriptor(int nArgs) {
+      return "(" + "I".repeat(nArgs) + "II)" + (returnsValue ? "I" : "V");
+    }
+  }
+
+  /**
+   * The instructions of a method reachable from one entry point, with their
+   * stack depths (UNKNOWN for all other instructions).
+   */
+  private record Flow(int entry, int[] depth, int maxDepth) {
+  }
+
+  /**
+   * Raised internally for code that cannot be translated.
+   */
+  private static final class Rejected extends Exception {
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    Rejected(String msg) {
+      super(msg, null, false, false);
+    }
+  }
+
+  private final VerifiedProgram program;
+  private final StackMaps maps; // null if the heap is not collected
+  private final DecodedCode code;
+  private final int[] c;
+  private final int eStackSize;
+  private final int mStackSize;
+  private final Map<Integer, Method> methods = new LinkedHashMap<>();
+
+  /**
+   * Prepares the translation of a verified program (see {@link Verifier})
+   * whose heap is collected with <code>maps</code> (null if it is not
+   * collected).
+   */
+  Translator(VerifiedProgram program, StackMaps maps, int eStackSize, int mStackSize) {
+    this.program = program;
+    this.maps = maps;
+    this.code = program.code();
+    this.c = code.code;
+    this.eStackSize = eStackSize;
+    this.mStackSize = mStackSize;
+    for (VerifiedMethod vm : program.methods()) {
+      Method m = new Method(vm);
+      m.flow = flow(m, m.body());
+      int[] depth = m.flow.depth();
+      for (int i = 0; i < c.length && !m.allocates; i++) {
+        m.allocates = depth[i] != UNKNOWN && (c[i] == NEW || c[i] == NEWARRAY);
+      }
+      methods.put(m.start, m);
+    }
+    for (boolean changed = true; changed; ) {
+      changed = false;
+      for (Method m : methods.values()) {
+        if (!m.allocates && m.callees.stream().anyMatch(callee -> methods.get(callee).allocates)) {
+          m.allocates = true;
+          changed = true;
+        }
+      }
+    }
+  }
+
+  /**
+   * Translates the whole program. Returns a handle of type <code>()V</code>
+   * that runs the program on <code>vm</code>, or null if the code cannot be
+   * translated.
+   */
+  MethodHandle compileMain(Interpreter vm) {
+    MethodHandle main = compile(program.main().start(), vm);
+    if (main == null) {
+      return null;
+    }
+    // main is entered without a call: no return address on the method stack
+    return MethodHandles.insertArguments(main.asType(MethodType.methodType(void.class, int[].class, int.class, int.class)),
+            0, new int[0], 0, -1);
+  }
+
+  /**
+   * Size in bytes of a JVM stack on which translated code can fill the
+   * method stack, or 0 if no method is recursive, so that the stack of any
+   * thread does. Every JVM frame takes 8 bytes for each of its locals and
+   * operands and for some bookkeeping (in the bytecode interpreter of
+   * HotSpot, where the deepest frames of a recursion run, as they are
+   * entered before the method is JIT-compiled).
+   */
+  long stackSize() {
+    double bytesPerWord = 0;
+    for (Method m : methods.values()) {
+      if (recursive(m)) {
+        int slots = new Frame(m, m.psize).maxLocals(m.flow) + m.flow.maxDepth() + 4 + FRAME_OVERHEAD;
+        bytesPerWord = Math.max(bytesPerWord, 8.0 * slots / (2 + m.lsize));
+      }
+    }
+    return bytesPerWord == 0 ? 0 : Math.min(BASE_STACK + (long) (bytesPerWord * mStackSize), MAX_STACK);
+  }
+
+  /**
+   * True if <code>m</code> calls itself, directly or not.
+   */
+  private boolean recursive(Method m) {
+    Set<Integer> reached = new HashSet<>();
+    Deque<Integer> todo = new ArrayDeque<>(m.callees);
+    while (!todo.isEmpty()) {
+      int start = todo.pop();
+      if (start == m.start) {
+        return true;
+      }
+      if (reached.add(start)) {
+        todo.addAll(methods.get(start).callees);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Compiles the method whose <code>enter</code> is at index
+   * <code>start</code>, together with all methods it calls. Returns a handle
+   * of type <code>(int[] args, int ebase, int sp)</code> returning
+   * <code>int</code> or <code>void</code> (see {@link #returnsValue}), or null
+   * if compilation fails.
+   */
+  MethodHandle compile(int start, Interpreter vm) {
+    Method m = methods.get(start);
+    if (m == null) {
+      return null;
+    }
+    try {
+      MethodHandles.Lookup lookup = define(m, null, vm);
+      return lookup.findStatic(lookup.lookupClass(), m.name(code), descriptor(m, m.psize))
+              .asSpreader(0, int[].class, m.psize);
+    } catch (Rejected | BadBytecode | CannotCompileException | IOException | ReflectiveOperationException
+             | LinkageError e) {
+      return null;
+    }
+  }
+
+  /**
+   * Compiles the method containing the loop header at index
+   * <code>header</code> with an entry point at this header, for on-stack
+   * replacement of an interpreted frame. The expression stack must be empty
+   * at the header. Returns a handle of type
+   * <code>(int[] locals, int ebase, int sp)</code> returning <code>int</code>
+   * or <code>void</code>, or null if compilation fails.
+   */
+  MethodHandle compileOsr(int header, Interpreter vm) {
+    Method m = methods.get(program.owner(header));
+    if (m == null || program.depth(header) != 0) {
+      return null;
+    }
+    try {
+      MethodHandles.Lookup lookup = define(m, flow(m, header), vm);
+      return lookup.findStatic(lookup.lookupClass(), OSR, descriptor(m, m.lsize))
+              .asSpreader(0, int[].class, m.lsize);
+    } catch (Rejected | BadBytecode | CannotCompileException | IOException | ReflectiveOperationException
+             | LinkageError e) {
+      return null;
+    }
+  }
+
+  /**
+   * True if the method whose <code>enter</code> is at index
+   * <code>start</code> returns a value.
+   */
+  boolean returnsValue(int start) {
+    return methods.get(start).returnsValue;
+  }
+
+  /**
+   * Index of the <code>enter</code> of the method that the instruction at
+   * index <code>idx</code> belongs to, -1 if unknown.
+   */
+  int owner(int idx) {
+    return program.owner(idx);
+  }
+
+  private static MethodType descriptor(Method m, int nArgs) {
+    return MethodType.fromMethodDescriptorString(m.descriptor(nArgs), null);
+  }
+
+  /**
+   * The instructions of <code>m</code> reachable from <code>entry</code>.
+   */
+  private Flow flow(Method m, int entry) {
+    int[] depth = new int[c.length];
+    Arrays.fill(depth, UNKNOWN);
+    Deque<Integer> work = new ArrayDeque<>(List.of(entry));
+    while (!work.isEmpty()) {
+      int i = work.pop();
+      if (depth[i] == UNKNOWN) {
+        depth[i] = program.depth(i);
+        for (int s : Verifier.successors(c, i)) {
+          work.push(s);
+        }
+      }
+    }
+    return new Flow(entry, depth, program.method(m.start).maxStack());
+  }
+
+  // ----- code generation
+
+  /**
+   * JVM local variables of a translated method: the first <code>nArgs</code>
+   * MicroJava locals are parameters, followed by ebase and sp, the remaining
+   * MicroJava locals, one temporary, the method stack while references are
+   * spilled and one temporary for every word of the expression stack.
+   */
+  private record Frame(Method m, int nArgs) {
+    int slot(int n) {
+      return n < nArgs ? n : n + 2;
+    }
+
+    int ebase() {
+      return nArgs;
+    }
+
+    int sp() {
+      return nArgs + 1;
+    }
+
+    int tmp() {
+      return m.lsize + 2;
+    }
+
+    int methodStack() {
+      return m.lsize + 3;
+    }
+
+    int spill(int j) {
+      return m.lsize + 4 + j;
+    }
+
+    int maxLocals(Flow flow) {
+      return spill(flow.maxDepth());
+    }
+  }
+
+  /**
+   * Defines a hidden class containing <code>entry</code> and all methods
+   * reachable from it, plus an OSR entry for <code>entry</code> if
+   * <code>osr</code> is set, and binds it to <code>vm</code>.
+   */
+  private MethodHandles.Lookup define(Method entry, Flow osr, Interpreter vm)
+          throws Rejected, BadBytecode, CannotCompileException, IOException, ReflectiveOperationException {
+    MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(generate(entry, osr), true);
+    MethodHandle init = lookup.findStatic(lookup.lookupClass(), "init", MethodType.methodType(void.class, Interpreter.class));
+    try {
+      init.invokeExact(vm);
+    } catch (Throwable e) {
+      throw new IllegalStateException(e);
+    }
+    return lookup;
+  }
+
+  private byte[] generate(Method entry, Flow osr) throws Rejected, BadBytecode, CannotCompileException, IOException {
+    ClassFile cf = new ClassFile(false, GENERATED, null);
+    cf.setAccessFlags(AccessFlag.FINAL | AccessFlag.SUPER);
+    ConstPool cp = cf.getConstPool();
+
+    FieldInfo vm = new FieldInfo(cp, "vm", VM_DESC);
+    vm.setAccessFlags(AccessFlag.PRIVATE | AccessFlag.STATIC);
+    cf.addField(vm);
+    FieldInfo data = new FieldInfo(cp, "data", "[I");
+    data.setAccessFlags(AccessFlag.PRIVATE | AccessFlag.STATIC);
+    cf.addField(data);
+    FieldInfo stack = new FieldInfo(cp, "stack", "[I");
+    stack.setAccessFlags(AccessFlag.PRIVATE | AccessFlag.STATIC);
+    cf.addField(stack);
+
+    Bytecode init = new Bytecode(cp, 2, 1);
+    init.addAload(0);
+    init.addPutstatic(GENERATED, "vm", VM_DESC);
+    init.addAload(0);
+    init.addGetfield(VM, "data", "[I");
+    init.addPutstatic(GENERATED, "data", "[I");
+    init.addAload(0);
+    init.addGetfield(VM, "stack", "[I");
+    init.addPutstatic(GENERATED, "stack", "[I");
+    init.addOpcode(Opcode.RETURN);
+    addMethod(cf, "init", "(" + VM_DESC + ")V", init);
+
+    Set<Method> reachable = new LinkedHashSet<>();
+    Deque<Method> todo = new ArrayDeque<>(List.of(entry));
+    while (!todo.isEmpty()) {
+      Method m = todo.pop();
+      if (reachable.add(m)) {
+        for (int callee : m.callees) {
+          todo.push(methods.get(callee));
+        }
+      }
+    }
+    for (Method m : reachable) {
+      addMethod(cf, m.name(code), m.descriptor(m.psize), generate(new Frame(m, m.psize), m.flow, true, cp));
+    }
+    if (osr != null) {
+      addMethod(cf, OSR, entry.descriptor(entry.lsize), generate(new Frame(entry, entry.lsize), osr, false, cp));
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      cf.write(out);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void addMethod(ClassFile cf, String name, String desc, Bytecode b) throws BadBytecode, CannotCompileException {
+    MethodInfo mi = new MethodInfo(cf.getConstPool(), name, desc);
+    mi.setAccessFlags(AccessFlag.STATIC);
+    mi.setCodeAttribute(b.toCodeAttribute());
+    mi.rebuildStackMap(ClassPool.getDefault());
+    cf.addMethod(mi);
+  }
+
+  /**
+   * Generates the JVM code of a method with the stack depths in
+   * <code>flow</code>. A regular method receives its parameters and
+   * <code>enter</code>s a new frame; an OSR entry receives all locals of the
+   * running frame and starts at the entry of <code>flow</code>.
+   */
+  private Bytecode generate(Frame f, Flow flow, boolean enter, ConstPool cp) throws Rejected {
+    Method m = f.m();
+    Bytecode b = new Bytecode(cp, flow.maxDepth() + 4, f.maxLocals(flow));
+    int[] depth = flow.depth();
+
+    Map<Integer, Integer> jvmPc = new HashMap<>(); // instruction index -> JVM pc
+    Map<Integer, Integer> fixups = new HashMap<>(); // JVM pc of branch opcode -> instruction index
+    if (enter) {
+      // prologue: method stack check (return address, frame pointer, locals), zeroed locals
+      b.addIload(f.sp());
+      b.addIconst(2 + m.lsize);
+      b.addOpcode(Opcode.IADD);
+      b.addOpcode(Opcode.DUP);
+      b.addIstore(f.sp());
+      b.addIconst(mStackSize);
+      throwUnless(b, Opcode.IF_ICMPLE, "methodStackOverflow");
+      for (int n = m.psize; n < m.lsize; n++) {
+        b.addIconst(0);
+        b.addIstore(f.slot(n));
+      }
+    }
+    int first = 0;
+    while (first < c.length && depth[first] == UNKNOWN) {
+      first++;
+    }
+    if (flow.entry() != first) {
+      fixups.put(b.currentPc(), flow.entry());
+      b.addOpcode(Opcode.GOTO);
+      b.addIndex(0);
+    }
+
+    int i = first;
+    while (i < c.length) {
+      if (depth[i] == UNKNOWN) {
+        i++;
+        continue;
+      }
+      int d = depth[i];
+      int op = c[i];
+      jvmPc.put(i, b.currentPc());
+      switch (op) {
+        case LOAD -> {
+          b.addIload(f.slot(c[i + 1]));
+          checkDepth(b, f, d + 1);
+        }
+        case STORE -> b.addIstore(f.slot(c[i + 1]));
+        case GETSTATIC -> {
+          b.addGetstatic(GENERATED, "data", "[I");
+          b.addIconst(c[i + 1]);
+          b.addOpcode(Opcode.IALOAD);
+          checkDepth(b, f, d + 1);
+        }
+        case PUTSTATIC -> {
+          b.addIstore(f.tmp());
+          b.addGetstatic(GENERATED, "data", "[I");
+          b.addIconst(c[i + 1]);
+          b.addIload(f.tmp());
+          b.addOpcode(Opcode.IASTORE);
+        }
+        case GETFIELD -> callVm(b, c[i + 1], "getField", "(II" + VM_DESC + ")I");
+        case PUTFIELD -> callVm(b, c[i + 1], "putField", "(III" + VM_DESC + ")V");
+        case CONST -> {
+          b.addIconst(c[i + 1]);
+          checkDepth(b, f, d + 1);
+        }
+        case ADD -> b.addOpcode(Opcode.IADD);
+        case SUB -> b.addOpcode(Opcode.ISUB);
+        case MUL -> b.addOpcode(Opcode.IMUL);
+        case DIV -> b.addInvokestatic(SELF, "div", "(II)I");
+        case REM -> b.addInvokestatic(SELF, "rem", "(II)I");
+        case NEG -> b.addOpcode(Opcode.INEG);
+        case SHL -> b.addOpcode(Opcode.ISHL);
+        case SHR -> b.addOpcode(Opcode.ISHR);
+        case INC -> {
+          b.addOpcode(Opcode.IINC);
+          b.add(f.slot(c[i + 1]));
+          b.add(c[i + 2]);
+        }
+        case NEW -> {
+          if (maps != null) {
+            BitSet refs = spill(b, f, i, d, 0);
+            allocate(b, f, i, d, "newObject", "(III" + VM_DESC + ")I");
+            reload(b, f, d, refs, true);
+          } else {
+            callVm(b, i, "newObject", "(I" + VM_DESC + ")I");
+          }
+          checkDepth(b, f, d + 1);
+        }
+        case NEWARRAY -> {
+          if (maps != null) {
+            BitSet refs = spill(b, f, i, d, 1);
+            allocate(b, f, i, d - 1, "newArray", "(IIII" + VM_DESC + ")I");
+            reload(b, f, d - 1, refs, true);
+          } else {
+            callVm(b, i, "newArray", "(II" + VM_DESC + ")I");
+          }
+        }
+        case ALOAD -> callVm(b, program.inBounds(i) ? "arrayLoadUnchecked" : "arrayLoad", "(II" + VM_DESC + ")I");
+        case ASTORE -> callVm(b, program.inBounds(i) ? "arrayStoreUnchecked" : "arrayStore",
+                "(III" + VM_DESC + ")V");
+        case BALOAD -> callVm(b, program.inBounds(i) ? "byteLoadUnchecked" : "byteLoad", "(II" + VM_DESC + ")I");
+        case BASTORE -> callVm(b, program.inBounds(i) ? "byteStoreUnchecked" : "byteStore",
+                "(III" + VM_DESC + ")V");
+        case ARRAYLENGTH -> callVm(b, "arrayLength", "(I" + VM_DESC + ")I");
+        case POP -> b.addOpcode(Opcode.POP);
+        case DUP -> {
+          b.addOpcode(Opcode.DUP);
+          checkDepth(b, f, d + 1);
+        }
+        case DUP2 -> {
+          b.addOpcode(Opcode.DUP2);
+          checkDepth(b, f, d + 2);
+        }
+        case JMP, JEQ, JNE, JLT, JLE, JGT, JGE -> {
+          fixups.put(b.currentPc(), c[i + 1]);
+          b.addOpcode(switch (op) {
+            case JEQ -> Opcode.IF_ICMPEQ;
+            case JNE -> Opcode.IF_ICMPNE;
+            case JLT -> Opcode.IF_ICMPLT;
+            case JLE -> Opcode.IF_ICMPLE;
+            case JGT -> Opcode.IF_ICMPGT;
+            case JGE -> Opcode.IF_ICMPGE;
+            default -> Opcode.GOTO;
+          });
+          b.addIndex(0);
+        }
+        case CALL -> {
+          Method callee = methods.get(c[i + 1]);
+          BitSet refs = maps != null && callee.allocates ? spill(b, f, i, d, callee.psize) : null;
+          b.addIload(f.ebase());
+          if (d != callee.psize) {
+            b.addIconst(d - callee.psize);
+            b.addOpcode(Opcode.IADD);
+          }
+          b.addIload(f.sp());
+          b.addInvokestatic(GENERATED, callee.name(code), callee.descriptor(callee.psize));
+          if (refs != null) {
+            reload(b, f, d - callee.psize, refs, callee.returnsValue);
+          }
+        }
+        case RETURN -> b.addOpcode(m.returnsValue ? Opcode.IRETURN : Opcode.RETURN);
+        case READ, BREAD -> {
+          callVm(b, op == READ ? "read" : "bread", "(" + VM_DESC + ")I");
+          checkDepth(b, f, d + 1);
+        }
+        case PRINT -> callVm(b, "print", "(II" + VM_DESC + ")V");
+        case BPRINT -> callVm(b, "bprint", "(II" + VM_DESC + ")V");
+        case TRAP -> {
+          b.addIconst(c[i + 1]);
+          b.addInvokestatic(SELF, "trap", "(I)" + ERROR_DESC);
+          b.addOpcode(Opcode.ATHROW);
+        }
+        default -> { // EXIT, NOP
+        }
+      }
+      int next = i + 1 + operands(op);
+      boolean fallsThrough = op != JMP && op != RETURN && op != TRAP;
+      if (fallsThrough && (next >= c.length || depth[next] == UNKNOWN)) {
+        // should not happen for verified code, but keep the JVM verifier happy
+        fixups.put(b.currentPc(), next);
+        b.addOpcode(Opcode.GOTO);
+        b.addIndex(0);
+      }
+      i = next;
+    }
+    for (Map.Entry<Integer, Integer> fix : fixups.entrySet()) {
+      int from = fix.getKey();
+      Integer to = jvmPc.get(fix.getValue());
+      if (to == null) {
+        throw new Rejected("branch to untranslated code");
+      }
+      b.write16bit(from + 1, to - from);
+    }
+    b.setMaxStack(flow.maxDepth() + 4);
+    return b;
+  }
+
+  /**
+   * Spills the references of the frame before the <code>new</code>,
+   * <code>newarray</code> or <code>call</code> at index <code>i</code>, at
+   * which the expression stack has <code>depth</code> words, of which the
+   * instruction pops <code>pops</code>: the references below these go to the
+   * expression stack, the local variables of reference type go to the frame
+   * on the method stack. Before a call, the link to the frame is stored where
+   * the callee's frame starts, as a call in the interpreter does. Returns the
+   * references of the expression stack, which are to be reloaded.
+   */
+  private BitSet spill(Bytecode b, Frame f, int i, int depth, int pops) {
+    Method m = f.m();
+    BitSet refs = maps.stack(i).get(0, depth - pops);
+    if (!refs.isEmpty()) {
+      for (int j = depth - 1; j >= refs.nextSetBit(0); j--) {
+        b.addIstore(f.spill(j));
+      }
+      for (int j = refs.nextSetBit(0); j >= 0; j = refs.nextSetBit(j + 1)) {
+        b.addGetstatic(GENERATED, "stack", "[I");
+        addIndex(b, f.ebase(), j);
+        b.addIload(f.spill(j));
+        b.addOpcode(Opcode.IASTORE);
+      }
+      for (int j = depth - pops; j < depth; j++) {
+        b.addIload(f.spill(j));
+      }
+    }
+    BitSet locals = maps.locals(m.start);
+    if (locals.isEmpty() && c[i] != CALL) {
+      return refs;
+    }
+    b.addIload(f.sp());
+    b.addIconst(c[i] == CALL ? 2 : 0);
+    b.addOpcode(Opcode.IADD);
+    callVm(b, "methodStack", "(I" + VM_DESC + ")[I");
+    b.addAstore(f.methodStack());
+    for (int n = locals.nextSetBit(0); n >= 0; n = locals.nextSetBit(n + 1)) {
+      b.addAload(f.methodStack());
+      addIndex(b, f.sp(), n - m.lsize); // fp + n
+      b.addIload(f.slot(n));
+      b.addOpcode(Opcode.IASTORE);
+    }
+    if (c[i] == CALL) {
+      b.addAload(f.methodStack());
+      b.addIload(f.sp());
+      b.addIconst(i + 2); // return address
+      b.addOpcode(Opcode.IASTORE);
+      b.addAload(f.methodStack());
+      addIndex(b, f.sp(), 1);
+      addIndex(b, f.sp(), -m.lsize); // fp
+      b.addOpcode(Opcode.IASTORE);
+    }
+    return refs;
+  }
+
+  /**
+   * Calls the allocation <code>name</code> for the instruction at index
+   * <code>i</code>, telling it where the frame is and that its part of the
+   * expression stack holds <code>depth</code> words.
+   */
+  private static void allocate(Bytecode b, Frame f, int i, int depth, String name, String desc) {
+    b.addIconst(i);
+    addIndex(b, f.sp(), -f.m().lsize); // fp
+    addIndex(b, f.ebase(), depth);
+    callVm(b, name, desc);
+  }
+
+  /**
+   * Reloads the references spilled by {@link #spill}, which the collector
+   * might have moved, after the instruction, below its <code>result</code>
+   * (if it has one). The expression stack held <code>depth</code> words
+   * below the instruction's operands, of which <code>refs</code> are
+   * references.
+   */
+  private void reload(Bytecode b, Frame f, int depth, BitSet refs, boolean result) {
+    Method m = f.m();
+    BitSet locals = maps.locals(m.start);
+    if (!locals.isEmpty()) {
+      b.addIload(f.sp());
+      callVm(b, "methodStack", "(I" + VM_DESC + ")[I"); // it might have grown
+      b.addAstore(f.methodStack());
+      for (int n = locals.nextSetBit(0); n >= 0; n = locals.nextSetBit(n + 1)) {
+        b.addAload(f.methodStack());
+        addIndex(b, f.sp(), n - m.lsize);
+        b.addOpcode(Opcode.IALOAD);
+        b.addIstore(f.slot(n));
+      }
+    }
+    if (!refs.isEmpty()) {
+      if (result) {
+        b.addIstore(f.tmp());
+      }
+      for (int j = refs.nextSetBit(0); j < depth; j++) {
+        if (refs.get(j)) {
+          b.addGetstatic(GENERATED, "stack", "[I");
+          addIndex(b, f.ebase(), j);
+          b.addOpcode(Opcode.IALOAD);
+        } else {
+          b.addIload(f.spill(j));
+        }
+      }
+      if (result) {
+        b.addIload(f.tmp());
+      }
+    }
+  }
+
+  /**
+   * Pushes the value of the JVM local <code>slot</code> plus
+   * <code>offset</code>.
+   */
+  private static void addIndex(Bytecode b, int slot, int offset) {
+    b.addIload(slot);
+    if (offset != 0) {
+      b.addIconst(offset);
+      b.addOpcode(Opcode.IADD);
+    }
+  }
+
+  /**
+   * Throws an expression stack overflow if the caller's stack plus
+   * <code>depth</code> exceeds the expression stack.
+   */
+  private void checkDepth(Bytecode b, Frame f, int depth) {
+    b.addIload(f.ebase());
+    b.addIconst(eStackSize - depth);
+    throwUnless(b, Opcode.IF_ICMPLE, "stackOverflow");
+  }
+
+  /**
+   * Emits <code>if (!cond) throw factory();</code> for a compare branch
+   * <code>cond</code> on the two topmost operands.
+   */
+  private static void throwUnless(Bytecode b, int cond, String factory) {
+    int branch = b.currentPc();
+    b.addOpcode(cond);
+    b.addIndex(0);
+    b.addInvokestatic(SELF, factory, "()" + ERROR_DESC);
+    b.addOpcode(Opcode.ATHROW);
+    b.write16bit(branch + 1, b.currentPc() - branch);
+  }
+
+  private static void callVm(Bytecode b, String name, String desc) {
+    b.addGetstatic(GENERATED, "vm", VM_DESC);
+    b.addInvokestatic(SELF, name, desc);
+  }
+
+  private static void callVm(Bytecode b, int operand, String name, String desc) {
+    b.addIconst(operand);
+    callVm(b, name, desc);
+  }
+
+  // ----- runtime support, called from generated code
+
+  static int getField(int adr, int off, Interpreter vm) {
+    return vm.getField(adr, off);
+  }
+
+  static void putField(int adr, int val, int off, Interpreter vm) {
+    vm.putField(adr, off, val);
+  }
+
+  static int div(int x, int y) {
+    if (y == 0) {
+      throw new IllegalStateException("division by zero");
+    }
+    return x / y;
+  }
+
+  static int rem(int x, int y) {
+    if (y == 0) {
+      throw new IllegalStateException("division by zero");
+    }
+    return x % y;
+  }
+
+  static int newObject(int site, Interpreter vm) {
+    return vm.newObject(site);
+  }
+
+  static int newArray(int len, int site, Interpreter vm) {
+    return vm.newArray(len, site);
+  }
+
+  static int newObject(int site, int fp, int esp, Interpreter vm) {
+    return vm.newObject(site, fp, esp);
+  }
+
+  static int newArray(int len, int site, int fp, int esp, Interpreter vm) {
+    return vm.newArray(len, site, fp, esp);
+  }
+
+  static int[] methodStack(int size, Interpreter vm) {
+    return vm.methodStack(size);
+  }
+
+  static int arrayLoad(int adr, int idx, Interpreter vm) {
+    return vm.arrayLoad(adr, idx);
+  }
+
+  static void arrayStore(int adr, int idx, int val, Interpreter vm) {
+    vm.arrayStore(adr, idx, val);
+  }
+
+  static int byteLoad(int adr, int idx, Interpreter vm) {
+    return vm.byteLoad(adr, idx);
+  }
+
+  static void byteStore(int adr, int idx, int val, Interpreter vm) {
+    vm.byteStore(adr, idx, val);
+  }
+
+  static int arrayLoadUnchecked(int adr, int idx, Interpreter vm) {
+    return vm.arrayLoadUnchecked(adr, idx);
+  }
+
+  static void arrayStoreUnchecked(int adr, int idx, int val, Interpreter vm) {
+    vm.arrayStoreUnchecked(adr, idx, val);
+  }
+
+  static int byteLoadUnchecked(int adr, int idx, Interpreter vm) {
+    return vm.byteLoadUnchecked(adr, idx);
+  }
+
+  static void byteStoreUnchecked(int adr, int idx, int val, Interpreter vm) {
+    vm.byteStoreUnchecked(adr, idx, val);
+  }
+
+  static int arrayLength(int adr, Interpreter vm) {
+    return vm.arrayLength(adr);
+  }
+
+  static int read(Interpreter vm) {
+    return vm.readInt();
+  }
+
+  static int bread(Interpreter vm) {
+    return vm.io.read();
+  }
+
+  static void print(int val, int width, Interpreter vm) {
+    vm.print(val, width);
+  }
+
+  static void bprint(int val, int width, Interpreter vm) {
+    vm.bprint(val, width);
+  }
+
+  static IllegalStateException trap(int n) {
+    return new IllegalStateException("trap(" + n + ")");
+  }
+
+  static IllegalStateException stackOverflow() {
+    return new IllegalStateException("expression stack overflow");
+  }
+
+  static IllegalStateException methodStackOverflow() {
+    return new IllegalStateException("method stack overflow");
+  }
+}
@@ -1,12 +1,13 @@
 package ssw.mj.codegen;
 
+import ssw.mj.DecodedCode;
+import ssw.mj.ObjectFile;
 import ssw.mj.impl.Code;
 import ssw.mj.impl.Code.OpCode;
 
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
 
 public class Decoder {
   private byte[] codeBuf; // code buffer
@@ -73,25 +74,72 @@ public class Decoder {
     };
   }
 
+  /**
+   * Lists the pre-decoded form of a code buffer as executed by the
+   * interpreter, with superinstructions (see {@link DecodedCode#fused}).
+   * Jump targets are shown as byte addresses.
+   */
+  public String decodeFused(byte[] buf, int len) {
+    DecodedCode decoded = DecodedCode.decode(Arrays.copyOf(buf, len));
+    int[] c = decoded.fused;
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < decoded.end(); i += 1 + DecodedCode.operands(c[i])) {
+      sb.append(decoded.addressOf(i));
+      sb.append(": ");
+      sb.append(DecodedCode.name(c[i]));
+      String operands = switch (c[i]) {
+        case DecodedCode.JMP, DecodedCode.JEQ, DecodedCode.JNE, DecodedCode.JLT, DecodedCode.JLE, DecodedCode.JGT,
+             DecodedCode.JGE, DecodedCode.CALL -> target(decoded, c[i + 1]);
+        case DecodedCode.LOAD2, DecodedCode.ADDC -> c[i + 1] + (c[i] == DecodedCode.LOAD2 ? ", " + c[i + 3] : "");
+        case DecodedCode.IFLL, DecodedCode.IFLC ->
+                c[i + 1] + ", " + c[i + 3] + ", " + DecodedCode.name(c[i + 4]) + " " + target(decoded, c[i + 5]);
+        case DecodedCode.AINC -> String.valueOf(c[i + 3]);
+        case DecodedCode.STATINC -> c[i + 1] + ", " + c[i + 3];
+        case DecodedCode.INCJMP -> c[i + 1] + ", " + c[i + 2] + " " + target(decoded, c[i + 4]);
+        default -> {
+          StringBuilder ops = new StringBuilder();
+          for (int k = 1; k <= DecodedCode.operands(c[i]); k++) {
+            ops.append(k > 1 ? ", " : "").append(c[i + k]);
+          }
+          yield ops.toString();
+        }
+      };
+      if (!operands.isEmpty()) {
+        sb.append(' ').append(operands);
+      }
+      sb.append("\n");
+    }
+    return sb.toString();
+  }
+
+  private static String target(DecodedCode decoded, int idx) {
+    return "(=" + decoded.addressOf(idx) + ")";
+  }
+
   public void decodeFile(String filename) throws IOException {
-    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)));
-    byte[] sig = new byte[2];
-    in.read(sig, 0, 2);
-    System.out.println("" + (char) sig[0] + (char) sig[1]);
-    int codeSize = in.readInt();
+    decodeFile(filename, false);
+  }
+
+  /**
+   * Prints the header and code of an object file, in the pre-decoded form
+   * with superinstructions if <code>fused</code> is set.
+   */
+  public void decodeFile(String filename, boolean fused) throws IOException {
+    ObjectFile file = ObjectFile.load(Path.of(filename));
+    System.out.println("MJ");
+    int codeSize = file.codeSize();
     System.out.println("codesize = " + codeSize);
-    System.out.println("datasize = " + in.readInt());
-    System.out.println("startPC  = " + in.readInt());
+    System.out.println("datasize = " + file.dataSize());
+    System.out.println("startPC  = " + file.startPC());
     byte[] code = new byte[codeSize];
-    in.read(code);
-    System.out.println(decode(code, 0, codeSize));
-    in.close();
+    file.code().get(code);
+    System.out.println(fused ? decodeFused(code, codeSize) : decode(code, 0, codeSize));
   }
 
   public static void main(String[] args) throws IOException {
     if (args.length > 0) {
       Decoder dec = new Decoder();
-      dec.decodeFile(args[0]);
+      dec.decodeFile(args[0], args.length > 1 && args[1].equals("-fused"));
     }
   }
 }
@@ -0,0 +1,196 @@
+package ssw.mj.codegen;
+
+import ssw.mj.DecodedCode;
+import ssw.mj.Interpreter;
+import ssw.mj.ObjectFile;
+import ssw.mj.Profile;
+import ssw.mj.impl.Code.OpCode;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Counts opcode n-grams in a corpus of object files, as a guide for choosing
+ * the superinstructions of {@link DecodedCode}.
+ * <p>
+ * Instruction families that only differ in an implicit operand
+ * (<code>load_0</code>..<code>load_3</code>, <code>const_m1</code>..) are
+ * counted as their general form. Only sequences within a basic block are
+ * counted, since a sequence containing a jump target cannot be fused.
+ * <p>
+ * With <code>-run</code>, every program is run with a {@link Profile}, on
+ * the input in the file of the same name with the extension
+ * <code>.in</code> if there is one, and each occurrence is weighted by how
+ * often it was executed. Otherwise, each occurrence is weighted by 10 per
+ * enclosing loop (backward jump), as a static estimate.
+ * <p>
+ * Syntax: <code>java ssw.mj.codegen.NGramMiner [-n maxLength] [-top count] [-run] file.obj...</code>
+ */
+public class NGramMiner {
+  /**
+   * Fuel of a profiled run (see {@link Interpreter#run(long)}); a longer run
+   * is counted as far as it got.
+   */
+  public static final long FUEL = 10_000_000_000L;
+
+  private final int maxLength;
+  private final Map<String, Long> counts = new HashMap<>();
+
+  public NGramMiner(int maxLength) {
+    this.maxLength = maxLength;
+  }
+
+  /**
+   * Adds the n-grams (2 <= n <= maxLength) of a code buffer to the counts,
+   * weighted by the loops around them.
+   */
+  public void add(byte[] code, int len) {
+    add(code, len, null);
+  }
+
+  /**
+   * Adds the n-grams (2 <= n <= maxLength) of a code buffer to the counts,
+   * weighted by the executions of their first instruction in
+   * <code>profile</code>, or by the loops around them if it is null.
+   */
+  public void add(byte[] code, int len, Profile profile) {
+    List<Integer> starts = new ArrayList<>();
+    BitSet leaders = new BitSet();
+    List<int[]> loops = new ArrayList<>(); // {header, backward jump}
+    int adr = 0;
+    while (adr < len) {
+      OpCode opCode = OpCode.get(code[adr]);
+      if (opCode == null) {
+        break;
+      }
+      starts.add(adr);
+      int next = adr + 1 + DecodedCode.operandBytes(opCode);
+      switch (opCode) {
+        case jmp, jeq, jne, jlt, jle, jgt, jge -> {
+          int target = adr + (short) ((code[adr + 1] << 8) + (code[adr + 2] & 0xff));
+          leaders.set(target);
+          leaders.set(next);
+          if (target <= adr) {
+            loops.add(new int[]{target, adr});
+          }
+        }
+        case return_, trap -> leaders.set(next);
+        case enter -> leaders.set(adr);
+        default -> {
+        }
+      }
+      adr = next;
+    }
+    for (int i = 0; i < starts.size(); i++) {
+      long weight = profile != null ? profile.executions(starts.get(i)) : loopWeight(loops, starts.get(i));
+      if (weight == 0) {
+        continue;
+      }
+      StringBuilder gram = new StringBuilder(name(code[starts.get(i)]));
+      for (int n = 2; n <= maxLength && i + n - 1 < starts.size(); n++) {
+        int s = starts.get(i + n - 1);
+        if (leaders.get(s)) {
+          break;
+        }
+        gram.append(' ').append(name(code[s]));
+        counts.merge(gram.toString(), weight, Long::sum);
+      }
+    }
+  }
+
+  /**
+   * 10 per loop around the instruction at <code>adr</code>.
+   */
+  private static long loopWeight(List<int[]> loops, int adr) {
+    long weight = 1;
+    for (int[] loop : loops) {
+      if (loop[0] <= adr && adr <= loop[1] && weight < 1_000_000) {
+        weight *= 10;
+      }
+    }
+    return weight;
+  }
+
+  /**
+   * The <code>top</code> most frequent n-grams, most frequent first.
+   */
+  public List<Map.Entry<String, Long>> top(int top) {
+    List<Map.Entry<String, Long>> list = new ArrayList<>(counts.entrySet());
+    list.sort(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+    return list.subList(0, Math.min(top, list.size()));
+  }
+
+  private static String name(byte b) {
+    OpCode opCode = OpCode.get(b);
+    return switch (opCode) {
+      case load_0, load_1, load_2, load_3 -> OpCode.load.cleanName();
+      case store_0, store_1, store_2, store_3 -> OpCode.store.cleanName();
+      case const_0, const_1, const_2, const_3, const_4, const_5, const_m1 -> OpCode.const_.cleanName();
+      default -> opCode.cleanName();
+    };
+  }
+
+  /**
+   * Adds the n-grams of the code of an object file, whose header is
+   * validated by {@link ObjectFile#load}.
+   */
+  public void addFile(String filename) throws IOException {
+    ObjectFile file = ObjectFile.load(Path.of(filename));
+    byte[] code = new byte[file.codeSize()];
+    file.code().get(code);
+    add(code, code.length);
+  }
+
+  /**
+   * Runs the program in an object file on <code>input</code> and adds the
+   * n-grams of its code, weighted by their executions. A run that fails
+   * with a runtime error is counted up to the error.
+   */
+  public void addRun(String filename, String input) throws IOException {
+    ObjectFile file = ObjectFile.load(Path.of(filename));
+    Interpreter vm = new Interpreter.Builder().program(file.program()).profile(true)
+            .io(new Interpreter.BufferIO(input)).build();
+    try {
+      vm.run(FUEL);
+    } catch (IllegalStateException e) {
+      System.out.println("-- " + filename + ": " + e.getMessage());
+    }
+    byte[] code = new byte[file.codeSize()];
+    file.code().get(code);
+    add(code, code.length, vm.profile());
+  }
+
+  public static void main(String[] args) throws IOException {
+    int maxLength = 4;
+    int top = 30;
+    boolean run = false;
+    List<String> files = new ArrayList<>();
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "-n" -> maxLength = Integer.parseInt(args[++i]);
+        case "-top" -> top = Integer.parseInt(args[++i]);
+        case "-run" -> run = true;
+        default -> files.add(args[i]);
+      }
+    }
+    if (files.isEmpty()) {
+      System.out.println("Syntax: java ssw.mj.codegen.NGramMiner [-n maxLength] [-top count] [-run] file.obj...");
+      return;
+    }
+    NGramMiner miner = new NGramMiner(maxLength);
+    for (String file : files) {
+      if (run) {
+        Path input = Path.of(file.replaceFirst("\\.obj$", "") + ".in");
+        miner.addRun(file, Files.exists(input) ? Files.readString(input, StandardCharsets.ISO_8859_1) : "");
+      } else {
+        miner.addFile(file);
+      }
+    }
+    for (Map.Entry<String, Long> e : miner.top(top)) {
+      System.out.printf("%12d  %s%n", e.getValue(), e.getKey());
+    }
+  }
+}
@@ -1,5 +1,7 @@
 package ssw.mj.impl;
 
+import ssw.mj.MethodTable;
+import ssw.mj.RefMaps;
 import ssw.mj.codegen.Label;
 import ssw.mj.codegen.Operand;
 
@@ -74,6 +76,8 @@ public final class Code {
     trap,
     nop;
 
+    private static final OpCode[] VALUES = values();
+
     public int code() {
       return ordinal() + 1;
     }
@@ -87,10 +91,10 @@ public final class Code {
     }
 
     public static OpCode get(int code) {
-      if (code < 1 || code > values().length) {
+      if (code < 1 || code > VALUES.length) {
         return null;
       }
-      return values()[code - 1];
+      return VALUES[code - 1];
     }
   }
 
@@ -147,6 +151,17 @@ public final class Code {
    */
   public int dataSize;
 
+  /**
+   * Reference maps for the garbage collector (filled by parser and code
+   * generation).
+   */
+  public final RefMaps refMaps = new RefMaps();
+
+  /**
+   * Method names by address (filled by the parser).
+   */
+  public final MethodTable methods = new MethodTable();
+
   /**
    * According parser.
    */
@@ -210,6 +225,11 @@ public final class Code {
     os.write(header.toByteArray());
 
     os.write(buf, 0, codeSize);
+
+    DataOutputStream mapWriter = new DataOutputStream(os);
+    refMaps.write(mapWriter);
+    methods.write(mapWriter);
+    mapWriter.flush();
     os.flush();
     os.close();
   }
@@ -238,8 +258,12 @@ public final class Code {
         break;
       case Static: put(OpCode.getstatic); put2(x.adr); break;
       case Stack: break; // nothing to do (already loaded)
-      case Fld: put(OpCode.getfield); put2(x.adr); break;
+      case Fld:
+        if (x.type.isRefType()) { refMaps.refLoads.set(pc); }
+        put(OpCode.getfield); put2(x.adr);
+        break;
       case Elem:
+        if (x.type.isRefType()) { refMaps.refLoads.set(pc); }
         if (x.type == Tab.charType) { put(OpCode.baload); }
         else { put(OpCode.aload); }
         break;
@@ -0,0 +1,101 @@
+package ssw.mj.impl;
+
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * The text of a source being edited (see {@link IncrementalCompiler}): the
+ * characters are kept in one array with a gap at the last edit, so that an
+ * edit only moves the characters between it and the previous edit.
+ */
+final class GapBuffer {
+  private char[] buf;
+  private int gapStart, gapEnd; // the gap is buf[gapStart..gapEnd)
+
+  GapBuffer(String text) {
+    buf = Arrays.copyOf(text.toCharArray(), text.length() + 1024);
+    gapStart = text.length();
+    gapEnd = buf.length;
+  }
+
+  int length() {
+    return buf.length - (gapEnd - gapStart);
+  }
+
+  char charAt(int i) {
+    return buf[i < gapStart ? i : i + gapEnd - gapStart];
+  }
+
+  /**
+   * Replaces the <code>length</code> characters at <code>offset</code> by
+   * <code>text</code>.
+   */
+  void replace(int offset, int length, String text) {
+    if (offset < 0 || length < 0 || offset + length > length()) {
+      throw new IllegalArgumentException("invalid range " + offset + "+" + length + " in text of length " + length());
+    }
+    moveGap(offset);
+    gapEnd += length;
+    if (text.length() > gapEnd - gapStart) {
+      int n = Math.max(2 * buf.length, length() + text.length() + 1024);
+      char[] b = new char[n];
+      System.arraycopy(buf, 0, b, 0, gapStart);
+      int tail = buf.length - gapEnd;
+      System.arraycopy(buf, gapEnd, b, n - tail, tail);
+      buf = b;
+      gapEnd = n - tail;
+    }
+    text.getChars(0, text.length(), buf, gapStart);
+    gapStart += text.length();
+  }
+
+  private void moveGap(int offset) {
+    if (offset < gapStart) {
+      int n = gapStart - offset;
+      System.arraycopy(buf, offset, buf, gapEnd - n, n);
+      gapStart -= n;
+      gapEnd -= n;
+    } else if (offset > gapStart) {
+      int n = offset - gapStart;
+      System.arraycopy(buf, gapEnd, buf, gapStart, n);
+      gapStart += n;
+      gapEnd += n;
+    }
+  }
+
+  /**
+   * Reads the text from <code>offset</code> on. The text must not be edited
+   * while it is read.
+   */
+  Reader reader(int offset) {
+    return new Reader() {
+      private int pos = offset;
+
+      @Override
+      public int read(char[] cbuf, int off, int len) {
+        int end = length();
+        if (pos >= end) {
+          return -1;
+        }
+        int n = Math.min(len, end - pos);
+        for (int i = 0; i < n; ) { // at most two runs, before and after the gap
+          int p = pos < gapStart ? pos : pos + gapEnd - gapStart;
+          int run = Math.min(n - i, pos < gapStart ? gapStart - pos : buf.length - p);
+          System.arraycopy(buf, p, cbuf, off + i, run);
+          i += run;
+          pos += run;
+        }
+        return n;
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+
+  @Override
+  public String toString() {
+    return new String(buf, 0, gapStart) + new String(buf, gapEnd, buf.length - gapEnd);
+  }
+}
@@ -0,0 +1,666 @@
+package ssw.mj.impl;
+
+import ssw.mj.Errors.Diagnostic;
+import ssw.mj.scanner.NameTable;
+import ssw.mj.scanner.Token;
+import ssw.mj.scanner.Token.Kind;
+import ssw.mj.scanner.TokenBuffer;
+import ssw.mj.symtab.Obj;
+import ssw.mj.symtab.Scope;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Compiles a source while it is edited, e.g. in an editor: after an edit,
+ * only the tokens around it are scanned again, and only the method
+ * declarations containing them are parsed again. The errors and the symbol
+ * table are those of a compilation of the whole source by {@link Scanner}
+ * and {@link Parser}.
+ * <p>
+ * The tokens are kept in units: the declarations before the methods, every
+ * method declaration (with the tokens skipped after it in error recovery),
+ * and the end of the program. A unit keeps its tokens and the errors
+ * reported while it was parsed with lines relative to its start, so that
+ * the units after an edit are moved without changing them.
+ * <p>
+ * An edit is scanned from the token before it until the scanner reaches the
+ * end of an old token after the edit; from there on, the tokens are the old
+ * ones. The methods whose tokens changed are parsed in a copy of the program
+ * scope with the declarations and the methods before them, and the parse
+ * stops at the next old method where the parser is in the same state: the
+ * same error distance, and the methods parsed so far have the same
+ * signatures as before, so that the methods after them are not affected.
+ * An edit of the declarations or the end of the program compiles the whole
+ * source again, and an edit after which the methods do not get in step again
+ * parses all methods after it.
+ * <p>
+ * Code is generated but not kept; the addresses of the methods in the symbol
+ * table are those of a compilation.
+ */
+public final class IncrementalCompiler {
+  private static final char LF = '\n';
+
+  /**
+   * The state after a compilation or an edit.
+   *
+   * @param errors  the errors of the source, in the order of a compilation
+   * @param program the program, whose locals are the global declarations
+   * @param scanned the number of tokens scanned for the edit
+   * @param parsed  the number of tokens parsed for the edit
+   */
+  public record Update(List<Diagnostic> errors, Obj program, int scanned, int parsed) {
+  }
+
+  /**
+   * Maps the positions of a text to those of another one: offsets and lines
+   * move, and the columns on one line (where an edit ends).
+   */
+  private record Shift(int offset, int line, int colLine, int col) {
+    static Shift of(int offset, int line) {
+      return new Shift(offset, line, Integer.MIN_VALUE, 0);
+    }
+
+    int line(int l) {
+      return l + line;
+    }
+
+    int col(int l, int c) {
+      return l == colLine ? c + col : c;
+    }
+
+    Diagnostic map(Diagnostic d) {
+      return new Diagnostic(line(d.line()), col(d.line(), d.col()), d.message());
+    }
+  }
+
+  /**
+   * Tokens with their ends (the state of the scanner after them) and their
+   * lexical errors.
+   */
+  private static final class Tokens {
+    Kind[] kind;
+    int[] line, col, numVal, id;
+    String[] val;
+    int[] end, endLine, endCol; // position of the lookahead character after the token
+    int[] errorEnd; // number of lexical errors up to the token
+    final List<Diagnostic> lexical = new ArrayList<>();
+    int size;
+
+    Tokens(int capacity) {
+      capacity = Math.max(capacity, 4);
+      kind = new Kind[capacity];
+      line = new int[capacity];
+      col = new int[capacity];
+      numVal = new int[capacity];
+      id = new int[capacity];
+      val = new String[capacity];
+      end = new int[capacity];
+      endLine = new int[capacity];
+      endCol = new int[capacity];
+      errorEnd = new int[capacity];
+    }
+
+    void add(Kind kind, int line, int col, int numVal, String val, int id, int end, int endLine, int endCol) {
+      if (size == this.kind.length) {
+        int n = 2 * size;
+        this.kind = Arrays.copyOf(this.kind, n);
+        this.line = Arrays.copyOf(this.line, n);
+        this.col = Arrays.copyOf(this.col, n);
+        this.numVal = Arrays.copyOf(this.numVal, n);
+        this.id = Arrays.copyOf(this.id, n);
+        this.val = Arrays.copyOf(this.val, n);
+        this.end = Arrays.copyOf(this.end, n);
+        this.endLine = Arrays.copyOf(this.endLine, n);
+        this.endCol = Arrays.copyOf(this.endCol, n);
+        errorEnd = Arrays.copyOf(errorEnd, n);
+      }
+      this.kind[size] = kind;
+      this.line[size] = line;
+      this.col[size] = col;
+      this.numVal[size] = numVal;
+      this.val[size] = val;
+      this.id[size] = id;
+      this.end[size] = end;
+      this.endLine[size] = endLine;
+      this.endCol[size] = endCol;
+      errorEnd[size] = lexical.size();
+      size++;
+    }
+
+    /**
+     * Appends token <code>i</code> of <code>t</code> and its errors, with
+     * the positions mapped by <code>s</code>.
+     */
+    void add(Tokens t, int i, Shift s) {
+      int l = t.line[i], el = t.endLine[i];
+      add(t.kind[i], s.line(l), s.col(l, t.col[i]), t.numVal[i], t.val[i], t.id[i], t.end[i] + s.offset(),
+              s.line(el), s.col(el, t.endCol[i]));
+      for (Diagnostic d : t.errors(i)) {
+        lexical.add(s.map(d));
+      }
+      errorEnd[size - 1] = lexical.size();
+    }
+
+    List<Diagnostic> errors(int i) {
+      return lexical.subList(i == 0 ? 0 : errorEnd[i - 1], errorEnd[i]);
+    }
+
+    /**
+     * Index of the first token ending at or after <code>pos</code>.
+     */
+    int endingAfter(int pos) {
+      int lo = 0, hi = size - 1;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (end[mid] < pos) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return lo;
+    }
+  }
+
+  /**
+   * A part of the tokens, with positions relative to the state of the
+   * scanner at its start (except for columns), and the errors reported
+   * while parsing it.
+   */
+  private static final class Unit {
+    final Tokens tokens;
+    final List<Diagnostic> errors;
+    int offset, line, col; // the end of the token before
+    final int errorDist; // of the parser at the start
+    final Obj method; // the declared method, null for the declarations and the end of the program
+    final int methodId;
+    final int codeSize;
+
+    Unit(Tokens tokens, List<Diagnostic> errors, int offset, int line, int col, int errorDist, Obj method,
+         int methodId, int codeSize) {
+      this.tokens = tokens;
+      this.errors = errors;
+      this.offset = offset;
+      this.line = line;
+      this.col = col;
+      this.errorDist = errorDist;
+      this.method = method;
+      this.methodId = methodId;
+      this.codeSize = codeSize;
+    }
+
+    Shift absolute() {
+      return Shift.of(offset, line);
+    }
+
+    int lastEnd() {
+      return tokens.size > 0 ? offset + tokens.end[tokens.size - 1] : offset;
+    }
+
+    /**
+     * Moves the unit by <code>offset</code> characters and
+     * <code>lines</code> lines, and its first line by <code>cols</code>
+     * columns.
+     */
+    void move(int offset, int lines, int cols) {
+      if (cols != 0) {
+        Shift s = new Shift(0, 0, 0, cols);
+        for (int i = 0; i < tokens.size && tokens.line[i] == 0; i++) {
+          tokens.col[i] += cols;
+          if (tokens.endLine[i] == 0) {
+            tokens.endCol[i] += cols;
+          }
+        }
+        tokens.lexical.replaceAll(s::map);
+        errors.replaceAll(s::map);
+        col += cols;
+      }
+      this.offset += offset;
+      line += lines;
+    }
+  }
+
+  private final GapBuffer text;
+  private NameTable names;
+  private final List<Unit> units = new ArrayList<>(); // the declarations, the methods, the end of the program
+  private Scope declarations; // the program scope before the first method
+  private Obj program;
+  private Update last;
+
+  /**
+   * Compiles <code>source</code>.
+   */
+  public IncrementalCompiler(String source) {
+    text = new GapBuffer(source);
+    last = compile();
+  }
+
+  /**
+   * The source.
+   */
+  public String text() {
+    return text.toString();
+  }
+
+  /**
+   * The state after the last compilation or edit.
+   */
+  public Update update() {
+    return last;
+  }
+
+  /**
+   * Replaces the <code>length</code> characters at <code>offset</code> of
+   * the source by <code>insert</code>, and compiles the source again.
+   */
+  public Update edit(int offset, int length, String insert) {
+    text.replace(offset, length, insert);
+    last = recompile(offset, offset + length, insert.length() - length);
+    return last;
+  }
+
+  /**
+   * Compiles the whole source.
+   */
+  private Update compile() {
+    names = new NameTable();
+    units.clear();
+    Tokens all = new Tokens(text.length() / 4);
+    Scanner s = new Scanner(text.reader(0), 1, 0, names);
+    TokenBuffer buffer = new TokenBuffer();
+    do {
+      scan(s, 0, all, buffer);
+    } while (all.kind[all.size - 1] != Kind.eof);
+    Replay src = new Replay(all, 0, 0, 1, 0, true);
+    Parser p = new Parser(src);
+    Recorder rec = new Recorder(src, 0, 0, 0);
+    p.observer = rec;
+    p.parse();
+    units.addAll(rec.units(p));
+    declarations = rec.declarations;
+    for (Obj o : p.tab.curScope.locals().values()) {
+      if (o.kind == Obj.Kind.Prog) {
+        program = o;
+      }
+    }
+    return update(all.size, src.stream.size);
+  }
+
+  /**
+   * Compiles the source after the text from <code>a</code> to
+   * <code>b</code> was replaced by <code>delta</code> more characters.
+   */
+  private Update recompile(int a, int b, int delta) {
+    // the first token ending at or after the edit
+    int ur = 0, hi = units.size() - 1;
+    while (ur < hi) {
+      int mid = (ur + hi) >>> 1;
+      if (units.get(mid).lastEnd() < a || units.get(mid).tokens.size == 0) {
+        ur = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    Unit u = units.get(ur);
+    int rl = u.tokens.endingAfter(a - u.offset);
+    int first = rl == 0 ? ur - 1 : ur; // the first unit that has read a changed token
+    if (first <= 0) {
+      return compile();
+    }
+
+    // scan from the end of the token before, until a token ends where an old one does after the edit
+    int from = rl == 0 ? u.offset : u.offset + u.tokens.end[rl - 1];
+    int line = rl == 0 ? u.line : u.line + u.tokens.endLine[rl - 1];
+    int col = rl == 0 ? u.col : u.tokens.endCol[rl - 1];
+    Scanner s = text.charAt(from) == LF
+            ? new Scanner(text.reader(from), line - 1, 0, names)
+            : new Scanner(text.reader(from), line, col - 1, names);
+    Tokens scanned = new Tokens(16);
+    TokenBuffer buffer = new TokenBuffer();
+    int uq = ur, ql = rl; // the first old token that does not end before the new ones
+    while (true) {
+      scan(s, from, scanned, buffer);
+      if (scanned.kind[scanned.size - 1] == Kind.eof) {
+        return compile();
+      }
+      int e = scanned.end[scanned.size - 1];
+      if (e >= b + delta) {
+        while (units.get(uq).offset + units.get(uq).tokens.end[ql] < e - delta) {
+          if (++ql == units.get(uq).tokens.size) {
+            uq++;
+            ql = 0;
+          }
+        }
+        if (units.get(uq).offset + units.get(uq).tokens.end[ql] == e - delta) {
+          break;
+        }
+      }
+    }
+    int lastChanged = uq; // the last unit with a changed token
+    if (lastChanged == units.size() - 1) {
+      return compile();
+    }
+    Unit q = units.get(uq);
+    int syncLine = q.line + q.tokens.endLine[ql];
+    Shift edit = new Shift(delta, s.line() - syncLine, syncLine, s.col() - q.tokens.endCol[ql]);
+
+    // the tokens from the first changed unit to the last one, in the new text
+    Tokens region = new Tokens(scanned.size + q.tokens.size);
+    for (int k = first; k <= ur; k++) {
+      Unit x = units.get(k);
+      for (int i = 0; i < (k < ur ? x.tokens.size : rl); i++) {
+        region.add(x.tokens, i, x.absolute());
+      }
+    }
+    for (int i = 0; i < scanned.size; i++) {
+      region.add(scanned, i, Shift.of(0, 0));
+    }
+    Shift moved = new Shift(q.offset + delta, q.line + edit.line(), syncLine - q.line, edit.col());
+    for (int i = ql + 1; i < q.tokens.size; i++) {
+      region.add(q.tokens, i, moved);
+    }
+    for (int k = lastChanged + 1; k < units.size(); k++) {
+      Unit x = units.get(k);
+      x.move(delta, edit.line(), x.line == syncLine ? edit.col() : 0);
+    }
+
+    // parse from the first changed method until the methods are in step again
+    Unit f = units.get(first);
+    Replay src = new Replay(region, lastChanged + 1, f.offset, f.line, f.col, false);
+    Parser p = new Parser(src);
+    Recorder rec = new Recorder(src, first, lastChanged + 1, region.size);
+    p.observer = rec;
+    p.tab.curScope.insert(program, names.id(program.name)); // as declared in the universe by Program
+    Scope scope = declarations.copy(p.tab.curScope);
+    int mainpc = -1;
+    for (int k = 1; k < first; k++) {
+      Unit m = units.get(k);
+      scope.insert(m.method, m.methodId);
+      if ("main".equals(m.method.name)) {
+        mainpc = m.method.adr;
+      }
+    }
+    p.parseMethods(scope, f.errorDist, mainpc);
+    List<Unit> parsed = rec.units(p);
+    List<Unit> replaced = units.subList(first, rec.synced ? rec.next : units.size());
+    int oldMethods = rec.synced ? replaced.size() : replaced.size() - 1;
+    boolean same = rec.same && rec.methods.size() == oldMethods;
+    for (int i = 0; i < parsed.size(); i++) {
+      Unit n = parsed.get(i);
+      if (same && n.method != null) { // keep the method object in the symbol table
+        Obj old = replaced.get(i).method;
+        old.nPars = n.method.nPars;
+        old.locals = n.method.locals;
+        parsed.set(i, new Unit(n.tokens, n.errors, n.offset, n.line, n.col, n.errorDist, old, n.methodId,
+                n.codeSize));
+      }
+    }
+    replaced.clear();
+    units.addAll(first, parsed);
+
+    int adr = 0;
+    if (first > 1) {
+      Unit m = units.get(first - 1);
+      adr = m.method.adr + m.codeSize;
+    }
+    for (int k = first; k < units.size() - 1; k++) {
+      Unit m = units.get(k);
+      m.method.adr = adr;
+      adr += m.codeSize;
+    }
+    if (!same) {
+      Scope s2 = declarations.copy(null);
+      for (int k = 1; k < units.size() - 1; k++) {
+        s2.insert(units.get(k).method, units.get(k).methodId);
+      }
+      program.locals = s2.locals();
+    }
+    return update(scanned.size, src.stream.size);
+  }
+
+  /**
+   * Scans a token of the text from <code>from</code> on with
+   * <code>s</code> into <code>tokens</code>.
+   */
+  private static void scan(Scanner s, int from, Tokens tokens, TokenBuffer buffer) {
+    int errors = s.errors.numErrors();
+    int i = s.next(buffer);
+    buffer.release(i);
+    tokens.add(buffer.kind(i), buffer.line(i), buffer.col(i), buffer.numVal(i), buffer.val(i), buffer.id(i),
+            from + s.position(), s.line(), s.col());
+    List<Diagnostic> d = s.errors.getDiagnostics();
+    tokens.lexical.addAll(d.subList(errors, d.size()));
+    tokens.errorEnd[tokens.size - 1] = tokens.lexical.size();
+  }
+
+  private Update update(int scanned, int parsed) {
+    List<Diagnostic> errors = new ArrayList<>();
+    for (Unit u : units) {
+      Shift s = u.absolute();
+      for (Diagnostic d : u.errors) {
+        errors.add(s.map(d));
+      }
+    }
+    return new Update(Collections.unmodifiableList(errors), program, scanned, parsed);
+  }
+
+  private static boolean sameSignature(Obj a, Obj b) {
+    if (!Objects.equals(a.name, b.name) || !a.type.isEqual(b.type) || a.nPars != b.nPars) {
+      return false;
+    }
+    Iterator<Obj> i = a.locals.values().iterator(), j = b.locals.values().iterator();
+    for (int k = 0; k < a.nPars && i.hasNext() && j.hasNext(); k++) {
+      if (!i.next().type.isEqual(j.next().type)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the tokens of a region followed by those of the units after it,
+   * and collects them in the new text.
+   */
+  private final class Replay extends Scanner {
+    private final Tokens region;
+    private int unit; // unit after the region
+    private int next; // next token in the region or the unit
+    private boolean inRegion = true;
+    private final boolean reportFirst; // report the errors of the first token
+    final int offset, line, col; // the state of the scanner before the first token
+    final Tokens stream = new Tokens(64);
+
+    Replay(Tokens region, int unit, int offset, int line, int col, boolean reportFirst) {
+      super(Reader.nullReader(), 1, 0, IncrementalCompiler.this.names);
+      this.region = region;
+      this.unit = unit;
+      this.offset = offset;
+      this.line = line;
+      this.col = col;
+      this.reportFirst = reportFirst;
+    }
+
+    /**
+     * Appends the next token to stream; false at the end.
+     */
+    boolean advance() {
+      if (inRegion) {
+        if (next < region.size) {
+          stream.add(region, next++, Shift.of(0, 0));
+          return true;
+        }
+        inRegion = false;
+        next = 0;
+      }
+      while (unit < units.size() && next == units.get(unit).tokens.size) {
+        unit++;
+        next = 0;
+      }
+      if (unit == units.size()) {
+        return false;
+      }
+      Unit u = units.get(unit);
+      stream.add(u.tokens, next++, u.absolute());
+      return true;
+    }
+
+    /**
+     * Index of the next token in stream, whose errors are reported now.
+     * After eof, eof is returned again without errors.
+     */
+    private int nextIndex() {
+      if (!advance()) {
+        return stream.size - 1;
+      }
+      int i = stream.size - 1;
+      if (i > 0 || reportFirst) {
+        for (Diagnostic d : stream.errors(i)) {
+          errors.add(d);
+        }
+      }
+      return i;
+    }
+
+    @Override
+    public Token next() {
+      int i = nextIndex();
+      Token t = new Token(stream.kind[i], stream.line[i], stream.col[i]);
+      t.numVal = stream.numVal[i];
+      t.val = stream.val[i];
+      t.id = stream.id[i];
+      return t;
+    }
+
+    @Override
+    public int next(TokenBuffer buffer) {
+      int i = nextIndex();
+      return buffer.add(stream.kind[i], stream.line[i], stream.col[i], stream.numVal[i], stream.val[i],
+              stream.id[i]);
+    }
+  }
+
+  /**
+   * Records the method declarations of a parse, and stops it at the start
+   * of an old method where it is in step again.
+   */
+  private final class Recorder implements Parser.MethodObserver {
+    private final Replay src;
+    private final int first; // the first unit parsed (0 for the whole source)
+    private final List<int[]> starts = new ArrayList<>(); // {token, error distance, errors, pc} of each method
+    final List<Obj> methods = new ArrayList<>();
+    private int[] end; // {token, errors, pc} where the methods end or the parse stopped
+    Scope declarations;
+    boolean synced; // stopped at unit next
+    boolean same = true; // the methods so far have the signatures of the old ones
+    int next; // the next old unit that may be in step
+    private int nextStart; // index of its first token in the stream
+
+    Recorder(Replay src, int first, int next, int nextStart) {
+      this.src = src;
+      this.first = first;
+      this.next = next;
+      this.nextStart = nextStart;
+    }
+
+    @Override
+    public boolean method(Parser p) {
+      finishMethod(p);
+      int k = p.lookahead() - 1;
+      if (first == 0) {
+        if (declarations == null) {
+          declarations = p.tab.curScope.copy(null);
+        }
+      } else {
+        while (next < units.size() - 1 && nextStart < k) {
+          nextStart += units.get(next).tokens.size;
+          next++;
+        }
+        if (next < units.size() - 1 && nextStart == k && same && methods.size() == next - first
+                && Math.min(p.errorDist(), Parser.MIN_ERROR_DIST)
+                == Math.min(units.get(next).errorDist, Parser.MIN_ERROR_DIST)) {
+          synced = true;
+          end = new int[]{k, p.scanner.errors.numErrors(), p.code.pc};
+          return false;
+        }
+      }
+      starts.add(new int[]{k, p.errorDist(), p.scanner.errors.numErrors(), p.code.pc});
+      return true;
+    }
+
+    @Override
+    public void end(Parser p) {
+      finishMethod(p);
+      if (first == 0 && declarations == null) {
+        declarations = p.tab.curScope.copy(null);
+      }
+      end = new int[]{p.lookahead() - 1, p.scanner.errors.numErrors(), p.code.pc};
+    }
+
+    private void finishMethod(Parser p) {
+      if (starts.size() > methods.size()) {
+        Obj m = p.lastMethod;
+        int old = first + methods.size();
+        methods.add(m);
+        if (first == 0 || old >= units.size() - 1 || !sameSignature(units.get(old).method, m)) {
+          same = false;
+        }
+      }
+    }
+
+    /**
+     * The units parsed: the declarations (for the whole source), the
+     * methods, and the end of the program unless the parse stopped before.
+     */
+    List<Unit> units(Parser p) {
+      List<Diagnostic> errors = p.scanner.errors.getDiagnostics();
+      List<Unit> list = new ArrayList<>();
+      if (first == 0) {
+        int[] s = starts.isEmpty() ? end : starts.get(0);
+        list.add(unit(0, s[0], errors.subList(0, starts.isEmpty() ? end[1] : s[2]), 0, null, 0));
+      }
+      for (int i = 0; i < starts.size(); i++) {
+        int[] s = starts.get(i);
+        int[] e = i + 1 < starts.size() ? starts.get(i + 1) : null;
+        int to = e != null ? e[0] : end[0];
+        int errTo = e != null ? e[2] : end[1];
+        int pcTo = e != null ? e[3] : end[2];
+        list.add(unit(s[0], to, errors.subList(s[2], errTo), s[1], methods.get(i), pcTo - s[3]));
+      }
+      if (!synced) {
+        while (src.advance()) {
+          // the tokens after the program
+        }
+        list.add(unit(end[0], src.stream.size, errors.subList(end[1], errors.size()), 0, null, 0));
+      }
+      return list;
+    }
+
+    /**
+     * A unit of the tokens from <code>from</code> to <code>to</code> of the
+     * stream.
+     */
+    private Unit unit(int from, int to, List<Diagnostic> errors, int errorDist, Obj method, int codeSize) {
+      Tokens t = src.stream;
+      int offset = from == 0 ? src.offset : t.end[from - 1];
+      int line = from == 0 ? src.line : t.endLine[from - 1];
+      int col = from == 0 ? src.col : t.endCol[from - 1];
+      Shift rel = Shift.of(-offset, -line);
+      Tokens tokens = new Tokens(to - from);
+      for (int i = from; i < to; i++) {
+        tokens.add(t, i, rel);
+      }
+      List<Diagnostic> errs = new ArrayList<>(errors.size());
+      for (Diagnostic d : errors) {
+        errs.add(rel.map(d));
+      }
+      int id = method == null ? -1 : names.id(method.name);
+      return new Unit(tokens, errs, offset, line, col, errorDist, method, id, codeSize);
+    }
+  }
+}
@@ -0,0 +1,274 @@
+package ssw.mj.impl;
+
+import ssw.mj.scanner.NameTable;
+import ssw.mj.scanner.Token;
+import ssw.mj.scanner.Token.Kind;
+import ssw.mj.scanner.TokenBuffer;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+
+/**
+ * A {@link Scanner} for large sources, which scans the whole source in
+ * advance, in chunks in parallel, and then returns the tokens one by one.
+ * The tokens and the errors (which are reported when their token is
+ * returned) are the same as those of a sequential <code>Scanner</code>.
+ * <p>
+ * The source is split into chunks at line starts, and every chunk is
+ * scanned on a fork-join pool as if it started outside of comments and
+ * constants, so a chunk that starts inside a <code>/* *&#47;</code> comment or
+ * a char constant gets wrong tokens at first. The chunks are then joined:
+ * the scanner of a chunk whose tokens are correct scans a token beyond the
+ * chunk's end, and the next chunk's tokens are used from the first token
+ * whose scan starts where that token ends, because from there both
+ * scanners see the same input in the same state. Until such a token is
+ * found, the correct scanner goes on scanning, sequentially. Line numbers
+ * are counted per chunk in advance, and every chunk starts at column 1.
+ */
+public final class ParallelScanner extends Scanner {
+  /**
+   * Default number of characters per chunk. Shorter sources are scanned as
+   * one chunk.
+   */
+  public static final int CHUNK_SIZE = 1 << 18;
+
+  private static final char LF = '\n';
+
+  // The tokens are those of segments[k] from index segmentStart[k] to
+  // segmentEnd[k] (exclusive), for all k.
+  private final List<Chunk> segments = new ArrayList<>();
+  private int[] segmentStart = new int[16], segmentEnd = new int[16];
+  private int segment; // segment of the next token
+  private int next; // index of the next token in its chunk
+
+  /**
+   * Scans <code>text</code> on the common pool.
+   */
+  public ParallelScanner(char[] text) {
+    this(text, ForkJoinPool.commonPool(), CHUNK_SIZE);
+  }
+
+  /**
+   * Scans <code>text</code> on <code>pool</code>, in chunks of about
+   * <code>chunkSize</code> characters.
+   */
+  public ParallelScanner(char[] text, ForkJoinPool pool, int chunkSize) {
+    super(Reader.nullReader());
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("chunk size must be positive: " + chunkSize);
+    }
+    Chunk[] chunks = split(text, chunkSize);
+    pool.invoke(ForkJoinTask.adapt(() -> run(chunks, Chunk::countLines)));
+    int line = 1;
+    for (Chunk c : chunks) {
+      int lines = c.line;
+      c.line = line;
+      line += lines;
+    }
+    pool.invoke(ForkJoinTask.adapt(() -> run(chunks, Chunk::scan)));
+    join(chunks);
+  }
+
+  private static void run(Chunk[] chunks, Consumer<Chunk> action) {
+    List<ForkJoinTask<?>> tasks = new ArrayList<>();
+    for (Chunk c : chunks) {
+      tasks.add(ForkJoinTask.adapt(() -> action.accept(c)));
+    }
+    ForkJoinTask.invokeAll(tasks);
+  }
+
+  /**
+   * Splits <code>text</code> into chunks that start at line starts.
+   */
+  private static Chunk[] split(char[] text, int chunkSize) {
+    List<Chunk> chunks = new ArrayList<>();
+    int start = 0;
+    while (true) {
+      int end = start + chunkSize;
+      while (end < text.length && text[end - 1] != LF) {
+        end++;
+      }
+      if (end >= text.length) {
+        chunks.add(new Chunk(text, start, text.length));
+        return chunks.toArray(new Chunk[0]);
+      }
+      chunks.add(new Chunk(text, start, end));
+      start = end;
+    }
+  }
+
+  /**
+   * Collects the correct tokens of <code>chunks</code> into segments.
+   */
+  private void join(Chunk[] chunks) {
+    Chunk c = chunks[0]; // its scanner is in the state of a sequential scanner
+    int i = 0; // first correct token of c
+    int k = 1; // next chunk
+    while (true) {
+      if (c.tokens.kind(c.size - 1) == Kind.eof) {
+        addSegment(c, i, c.size);
+        next = segmentStart[0];
+        return;
+      }
+      int p = c.end[c.size - 1];
+      while (k < chunks.length && chunks[k].from(chunks[k].size - 1) < p) {
+        k++; // passed by c
+      }
+      int j = k < chunks.length ? chunks[k].indexFrom(p) : -1;
+      if (j >= 0) {
+        addSegment(c, i, c.size);
+        c = chunks[k++];
+        i = j;
+      } else {
+        c.scanOne();
+      }
+    }
+  }
+
+  private void addSegment(Chunk c, int start, int end) {
+    int k = segments.size();
+    if (k == segmentStart.length) {
+      segmentStart = Arrays.copyOf(segmentStart, 2 * k);
+      segmentEnd = Arrays.copyOf(segmentEnd, 2 * k);
+    }
+    segments.add(c);
+    segmentStart[k] = start;
+    segmentEnd[k] = end;
+  }
+
+  @Override
+  public Token next() {
+    Chunk c = segments.get(segment);
+    int i = advance();
+    Token t = c.tokens.token(i);
+    if (t.id >= 0) {
+      t.id = c.globalId(t.id, names);
+      t.val = names.name(t.id);
+    }
+    return t;
+  }
+
+  @Override
+  public int next(TokenBuffer buffer) {
+    Chunk c = segments.get(segment);
+    int i = advance();
+    TokenBuffer b = c.tokens;
+    int id = b.id(i);
+    String val = b.val(i);
+    if (id >= 0) {
+      id = c.globalId(id, names);
+      val = names.name(id);
+    }
+    return buffer.add(b.kind(i), b.line(i), b.col(i), b.numVal(i), val, id);
+  }
+
+  /**
+   * Index of the next token in its chunk, whose errors are reported now.
+   * After the end of the source, the eof token is returned again, without
+   * errors.
+   */
+  private int advance() {
+    if (next == segmentEnd[segment]) { // after eof
+      return next - 1;
+    }
+    Chunk c = segments.get(segment);
+    int i = next++;
+    int from = i == 0 ? 0 : c.errorEnd[i - 1];
+    for (int e = from; e < c.errorEnd[i]; e++) {
+      errors.add(c.scanner.errors.getDiagnostics().get(e));
+    }
+    if (next == segmentEnd[segment] && segment + 1 < segments.size()) {
+      segments.set(segment, null); // every chunk has one segment, whose tokens can be collected now
+      segment++;
+      next = segmentStart[segment];
+    }
+    return i;
+  }
+
+  /**
+   * A part of the source and the tokens scanned from its start.
+   */
+  private static final class Chunk {
+    final char[] text;
+    final int start, limit; // the chunk is text[start..limit)
+    int line; // number of lines in the chunk, then the line at start
+    Scanner scanner;
+    final TokenBuffer tokens;
+    int[] end; // position after each token
+    int[] errorEnd; // number of errors of the scanner up to each token
+    int size;
+    int[] ids; // id + 1 in the joined names for each id of the scanner's names, 0 if unknown
+
+    Chunk(char[] text, int start, int limit) {
+      this.text = text;
+      this.start = start;
+      this.limit = limit;
+      int n = (limit - start) / 3 + 16; // an estimate, the arrays grow if needed
+      tokens = new TokenBuffer(n);
+      end = new int[n];
+      errorEnd = new int[n];
+    }
+
+    void countLines() {
+      for (int i = start; i < limit; i++) {
+        if (text[i] == LF) {
+          line++;
+        }
+      }
+    }
+
+    /**
+     * Scans the tokens whose scan starts in the chunk, up to eof.
+     */
+    void scan() {
+      scanner = new Scanner(text, start, line);
+      do {
+        scanOne();
+      } while (tokens.kind(size - 1) != Kind.eof && end[size - 1] < limit);
+    }
+
+    void scanOne() {
+      int i = scanner.next(tokens);
+      if (i == end.length) {
+        end = Arrays.copyOf(end, 2 * i);
+        errorEnd = Arrays.copyOf(errorEnd, 2 * i);
+      }
+      end[i] = scanner.position();
+      errorEnd[i] = scanner.errors.numErrors();
+      size = i + 1;
+    }
+
+    /**
+     * Position where the scan of token <code>i</code> started.
+     */
+    int from(int i) {
+      return i == 0 ? start : end[i - 1];
+    }
+
+    /**
+     * Index of the token whose scan started at <code>p</code>, -1 if none.
+     */
+    int indexFrom(int p) {
+      if (p == start) {
+        return 0;
+      }
+      int i = Arrays.binarySearch(end, 0, size - 1, p);
+      return i >= 0 ? i + 1 : -1;
+    }
+
+    int globalId(int id, NameTable names) {
+      if (ids == null || id >= ids.length) {
+        ids = Arrays.copyOf(ids == null ? new int[0] : ids, scanner.names.size());
+      }
+      if (ids[id] == 0) {
+        ids[id] = names.id(scanner.names.name(id)) + 1;
+      }
+      return ids[id] - 1;
+    }
+  }
+}
@@ -1,10 +1,13 @@
 package ssw.mj.impl;
 
 import ssw.mj.Errors.Message;
+import ssw.mj.RefMaps;
 import ssw.mj.codegen.Label;
 import ssw.mj.codegen.Operand;
 import ssw.mj.scanner.Token;
+import ssw.mj.scanner.TokenBuffer;
 import ssw.mj.symtab.Obj;
+import ssw.mj.symtab.Scope;
 import ssw.mj.symtab.Struct;
 
 import java.util.BitSet;
@@ -31,7 +34,7 @@ public final class Parser {
    */
   private static final int MAX_LOCALS = 127;
 
-  private static final int MIN_ERROR_DIST = 3;
+  static final int MIN_ERROR_DIST = 3;
 
   private static final BitSet firstStatement;
   private static final BitSet firstFactor;
@@ -46,14 +49,21 @@ public final class Parser {
   private static final EnumSet<Token.Kind> breakRecoverStatementSet;
 
   /**
-   * Last recognized token;
+   * Tokens scanned so far. The scanner writes them into the buffer without
+   * creating {@link Token}s; index 0 is a pseudo token before the first one.
+   * Tokens before t are released.
    */
-  private Token t;
+  private final TokenBuffer tokens = new TokenBuffer();
 
   /**
-   * Lookahead token (not recognized).)
+   * Last recognized token (index into tokens);
    */
-  private Token la;
+  private int t;
+
+  /**
+   * Lookahead token (not recognized, index into tokens).)
+   */
+  private int la;
 
   /**
    * Shortcut to kind attribute of lookahead token (la).
@@ -80,12 +90,39 @@ public final class Parser {
    */
   public final Tab tab;
 
+  /**
+   * Observes the method declarations of a parse (see
+   * {@link IncrementalCompiler}).
+   */
+  interface MethodObserver {
+    /**
+     * A method declaration starts at the lookahead token. Returns false to
+     * stop the parse there.
+     */
+    boolean method(Parser p);
+
+    /**
+     * The method declarations end at the lookahead token.
+     */
+    void end(Parser p);
+  }
+
+  /**
+   * Observer of the method declarations, null if none.
+   */
+  MethodObserver observer;
+
+  /**
+   * The method declared last.
+   */
+  Obj lastMethod;
+
   public Parser(Scanner scanner) {
     this.scanner = scanner;
     tab = new Tab(this);
     code = new Code(this);
     // Pseudo token to avoid crash when 1st symbol has scanner error.
-    la = new Token(none, 1, 1);
+    la = tokens.add(none, 1, 1, 0, none.label(), -1);
     errorDist = MIN_ERROR_DIST;
   }
 
@@ -94,13 +131,22 @@ public final class Parser {
    */
   private void scan() {
     t = la;
-    la = scanner.next();
-    sym = la.kind;
+    tokens.release(t);
+    la = la + 1 < tokens.size() ? la + 1 : scanner.next(tokens);
+    sym = tokens.kind(la);
     if (errorDist != Integer.MAX_VALUE) {
       errorDist++;
     }
   }
 
+  /**
+   * Id of the name of the last recognized token (see {@link Scanner#names}),
+   * which is an identifier unless a syntax error has been reported.
+   */
+  private int name() {
+    return tokens.kind(t) == ident ? tokens.id(t) : scanner.names.id(tokens.val(t));
+  }
+
   /**
    * Verifies symbol and reads ahead.
    */
@@ -119,7 +165,7 @@ public final class Parser {
     // TODO Exercise UE-P-3: Replace panic mode with error recovery (i.e., keep track of error distance)
     // TODO Exercise UE-P-3: Hint: Replacing panic mode also affects scan() method
     if (errorDist >= MIN_ERROR_DIST) {
-      scanner.errors.error(la.line, la.col, msg, msgParams);
+      scanner.errors.error(tokens.line(la), tokens.col(la), msg, msgParams);
     }
     errorDist = 0;
   }
@@ -133,6 +179,34 @@ public final class Parser {
     check(eof);
   }
 
+  /**
+   * Continues the analysis of a program with method declarations that
+   * start at the first token, declared in the program scope
+   * <code>scope</code>, as after the error distance <code>errorDist</code>.
+   * <code>mainpc</code> is the address of a main method before, or -1.
+   */
+  void parseMethods(Scope scope, int errorDist, int mainpc) {
+    scan();
+    this.errorDist = errorDist;
+    tab.openScope(scope);
+    code.mainpc = mainpc;
+    if (MethodDecls()) {
+      check(eof);
+    }
+  }
+
+  /**
+   * Index of the lookahead token in the order of the scanner (the first
+   * token is 1).
+   */
+  int lookahead() {
+    return la;
+  }
+
+  int errorDist() {
+    return errorDist;
+  }
+
 
   // ===============================================
   // TODO Exercise UE-P-2: Implementation of parser
@@ -203,7 +277,7 @@ public final class Parser {
     // TODO Exercise UE-P-2
     check(program);
     check(ident);
-    Obj prog = tab.insert(Obj.Kind.Prog, t.val, Tab.noType);
+    Obj prog = tab.insert(Obj.Kind.Prog, name(), Tab.noType);
     tab.openScope();
 
     while (true) {
@@ -225,8 +299,23 @@ public final class Parser {
     }
 
     check(lbrace);
+    MethodDecls();
+    code.dataSize = tab.curScope.nVars();
+    code.refMaps.globals.or(RefMaps.refVars(tab.curScope.locals()));
+    prog.locals = tab.curScope.locals();
+    tab.closeScope();
+  }
+
+  /**
+   * { MethodDecl } "}", the end of Program. Returns false if the observer
+   * stopped the parse.
+   */
+  private boolean MethodDecls() {
     while (true) {
       if (firstRecoverMethodDeclSet.contains(sym)) {
+        if (observer != null && !observer.method(this)) {
+          return false;
+        }
         MethodDecl();
       } else if (breakRecoverMethodDeclSet.contains(sym)) {
         break;
@@ -234,14 +323,15 @@ public final class Parser {
         recoverMethodDecl();
       }
     }
+    if (observer != null) {
+      observer.end(this);
+    }
     check(rbrace);
 
     if (code.mainpc == -1) {
       error(MAIN_NOT_FOUND);
     }
-    code.dataSize = tab.curScope.nVars();
-    prog.locals = tab.curScope.locals();
-    tab.closeScope();
+    return true;
   }
 
   // ...
@@ -253,7 +343,7 @@ public final class Parser {
     check(final_);
     Struct type = Type();
     check(ident);
-    Obj const_ = tab.insert(Obj.Kind.Con, t.val, type);
+    Obj const_ = tab.insert(Obj.Kind.Con, name(), type);
 
     check(assign);
 
@@ -265,7 +355,7 @@ public final class Parser {
     switch (sym) {
       case charConst, number -> {
         scan();
-        const_.val = t.numVal;
+        const_.val = tokens.numVal(t);
       }
       default -> error(INVALID_CONST_TYPE);
     }
@@ -279,12 +369,12 @@ public final class Parser {
   private void VarDecl() {
     Struct type = Type();
     check(ident);
-    tab.insert(Obj.Kind.Var, t.val, type);
+    tab.insert(Obj.Kind.Var, name(), type);
 
     while (sym == comma) {
       scan();
       check(ident);
-      tab.insert(Obj.Kind.Var, t.val, type);
+      tab.insert(Obj.Kind.Var, name(), type);
     }
 
     check(semicolon);
@@ -296,7 +386,7 @@ public final class Parser {
   private void ClassDecl() {
     check(class_);
     check(ident);
-    Obj clazz = tab.insert(Obj.Kind.Type, t.val, new Struct(Struct.Kind.Class));
+    Obj clazz = tab.insert(Obj.Kind.Type, name(), new Struct(Struct.Kind.Class));
 
     check(lbrace);
     tab.openScope();
@@ -335,9 +425,10 @@ public final class Parser {
     }
 
     check(ident);
-    String methodName = t.val;
-    Obj meth = tab.insert(Obj.Kind.Meth, methodName, type);
+    String methodName = tokens.val(t);
+    Obj meth = tab.insert(Obj.Kind.Meth, name(), type);
     meth.adr = code.pc;
+    lastMethod = meth;
 
     check(lpar);
     tab.openScope();
@@ -377,6 +468,8 @@ public final class Parser {
     }
 
     meth.locals = tab.curScope.locals();
+    code.refMaps.locals.put(meth.adr, RefMaps.refVars(meth.locals));
+    code.methods.names.put(meth.adr, meth.name);
     tab.closeScope();
   }
 
@@ -388,14 +481,14 @@ public final class Parser {
 
     Struct type = Type();
     check(ident);
-    tab.insert(Obj.Kind.Var, t.val, type);
+    tab.insert(Obj.Kind.Var, name(), type);
     nPars++;
 
     while (sym == comma) {
       scan();
       type = Type();
       check(ident);
-      tab.insert(Obj.Kind.Var, t.val, type);
+      tab.insert(Obj.Kind.Var, name(), type);
       nPars++;
     }
 
@@ -407,7 +500,7 @@ public final class Parser {
    */
   private Struct Type() {
     check(ident);
-    Obj obj = tab.find(t.val);
+    Obj obj = tab.find(name());
     if (obj.kind != Obj.Kind.Type) {
       error(TYPE_EXPECTED);
     }
@@ -551,7 +644,7 @@ public final class Parser {
 
           if (typeOfCurMeth == Tab.noType) {
             // Prepare error position requested by CodeGenerationTest.returnVoid() test
-            Token tmp = la;
+            int tmp = la;
             la = t;
             error(UNEXPECTED_RETURN_VALUE);
             la = tmp;
@@ -598,7 +691,7 @@ public final class Parser {
         if (sym == comma) {
           scan();
           check(number);
-          constant = t.numVal;
+          constant = tokens.numVal(t);
         }
         code.loadConst(constant);
         if (x.type == Tab.charType) {
@@ -869,25 +962,23 @@ public final class Parser {
           }
 
           ActPars(x);
-
-          x.val = code.buf[code.pc];
         }
       }
       case number -> {
         scan();
-        x = new Operand(t.numVal);
+        x = new Operand(tokens.numVal(t));
       }
       case charConst -> {
         scan();
         x = new Operand(Tab.charType);
         x.kind = Operand.Kind.Con;
-        x.val = t.numVal;
+        x.val = tokens.numVal(t);
       }
       case new_ -> {
         scan();
 
         check(ident);
-        Obj obj = tab.find(t.val);
+        Obj obj = tab.find(name());
         if (obj.kind != Obj.Kind.Type) {
           error(TYPE_EXPECTED);
           return new Operand(1);
@@ -901,6 +992,9 @@ public final class Parser {
             error(ARRAY_SIZE_EXPECTS_INT);
           } else {
             code.load(y);
+            if (obj.type.isRefType()) {
+              code.refMaps.refArrays.set(code.pc);
+            }
             code.put(Code.OpCode.newarray);
             if (obj.type == Tab.charType) {
               code.put(0);
@@ -915,6 +1009,7 @@ public final class Parser {
             error(CLASS_TYPE_EXPECTED);
             return new Operand(1);
           }
+          code.refMaps.objects.put(code.pc, RefMaps.refVars(x.type.fields));
           code.put(Code.OpCode.new_);
           code.put2(x.type.fields.size());
         }
@@ -938,7 +1033,7 @@ public final class Parser {
    */
   private Operand Designator() {
     check(ident);
-    Operand x = new Operand(tab.find(t.val), this);
+    Operand x = new Operand(tab.find(name()), this);
     Operand.Kind kindBeforeLoad = x.kind;
 
     while (sym == period || sym == lbrack) {
@@ -950,7 +1045,7 @@ public final class Parser {
           scan();
           check(ident);
           code.load(x);
-          Obj obj = tab.findField(t.val, x.type);
+          Obj obj = tab.findField(name(), x.type);
           x.type = obj.type;
           x.adr = obj.adr;
           x.kind = Operand.Kind.Fld;
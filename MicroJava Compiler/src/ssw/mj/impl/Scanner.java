@@ -2,13 +2,14 @@ package ssw.mj.impl;
 
 import ssw.mj.Errors;
 import ssw.mj.Errors.Message;
+import ssw.mj.scanner.NameTable;
 import ssw.mj.scanner.Token;
 import ssw.mj.scanner.Token.Kind;
+import ssw.mj.scanner.TokenBuffer;
 
 import java.io.IOException;
 import java.io.Reader;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 public class Scanner {
 
@@ -16,12 +17,40 @@ public class Scanner {
   private static final char EOF = (char) -1;
   private static final char CR = '\r';
   private static final char LF = '\n';
+  private static final int BUFFER_SIZE = 1 << 16;
 
   /**
    * Input data to read from.
    */
   private final Reader in;
 
+  /**
+   * Block of the input, refilled when it is used up, or the whole input if
+   * it is a char array. Names and numbers are taken directly from it.
+   */
+  private char[] buf;
+
+  /**
+   * Index of ch in buf (= len at the end of the input).
+   */
+  private int pos = -1;
+
+  /**
+   * Index in the input of buf[0].
+   */
+  private int base;
+
+  /**
+   * Number of valid characters in buf.
+   */
+  private int len;
+
+  /**
+   * Index of the first character of the name or number being read in buf,
+   * -1 if none. It is kept in buf when buf is refilled.
+   */
+  private int mark = -1;
+
   /**
    * Lookahead character. (= next (unhandled) character in the input stream)
    */
@@ -42,18 +71,80 @@ public class Scanner {
    */
   public final Errors errors;
 
+  /**
+   * Names of this compilation, including the keywords.
+   */
+  public final NameTable names;
+
+  // The token being scanned (see scan()), copied to a Token or a TokenBuffer.
+  private Kind kind;
+  private int tokenLine, tokenCol;
+  private int numVal;
+  private String val;
+  private int id;
+
   public Scanner(Reader r) {
+    this(r, 1, 0, new NameTable());
+  }
+
+  /**
+   * Scans <code>r</code> as the rest of an input whose previous character
+   * was at <code>line</code> and <code>col</code> (see
+   * {@link IncrementalCompiler}), interning names in <code>names</code>.
+   */
+  Scanner(Reader r, int line, int col, NameTable names) {
     // store reader
     in = r;
+    buf = new char[BUFFER_SIZE];
+    this.names = names;
 
     // initialize error handling support
     errors = new Errors();
 
-    line = 1;
-    col = 0;
+    this.line = line;
+    this.col = col;
     nextCh(); // read 1st char into ch, increment col to 1
   }
 
+  /**
+   * Scans <code>text</code> from index <code>start</code>, which is at the
+   * start of line <code>line</code>, to its end (see
+   * {@link ParallelScanner}). The text is not copied and must not change.
+   */
+  Scanner(char[] text, int start, int line) {
+    in = null;
+    buf = text;
+    len = text.length;
+    pos = start - 1;
+    names = new NameTable();
+    errors = new Errors();
+    this.line = line;
+    col = 0;
+    nextCh();
+  }
+
+  /**
+   * Index of the lookahead character in the input, i.e. the end of the
+   * token scanned last.
+   */
+  int position() {
+    return base + pos;
+  }
+
+  /**
+   * Line of the lookahead character.
+   */
+  int line() {
+    return line;
+  }
+
+  /**
+   * Column of the lookahead character.
+   */
+  int col() {
+    return col;
+  }
+
   /**
    * Adds error message to the list of errors.
    */
@@ -71,83 +162,101 @@ public class Scanner {
   // ================================================
 
   // TODO Exercise UE-P-1: Keywords
+  // keywords are the first names of the NameTable (see NameTable#keyword)
+
   /**
-   * Mapping from keyword names to appropriate token codes.
+   * Adds error message for the token being scanned to the list of errors.
    */
-  private static final Map<String, Kind> keywords;
-
-  static {
-    keywords = new HashMap<>();
-    keywords.put(Kind.break_.label(), Kind.break_);
-    keywords.put(Kind.class_.label(), Kind.class_);
-    keywords.put(Kind.else_.label(), Kind.else_);
-    keywords.put(Kind.final_.label(), Kind.final_);
-    keywords.put(Kind.if_.label(), Kind.if_);
-    keywords.put(Kind.new_.label(), Kind.new_);
-    keywords.put(Kind.print.label(), Kind.print);
-    keywords.put(Kind.program.label(), Kind.program);
-    keywords.put(Kind.read.label(), Kind.read);
-    keywords.put(Kind.return_.label(), Kind.return_);
-    keywords.put(Kind.void_.label(), Kind.void_);
-    keywords.put(Kind.while_.label(), Kind.while_);
+  private void error(Message msg, Object... msgParams) {
+    errors.error(tokenLine, tokenCol, msg, msgParams);
+
+    // reset token content (consistent JUnit tests)
+    numVal = 0;
+    val = null;
   }
 
   /**
    * Returns next token. To be used by parser.
    */
   public Token next() {
+    scan();
+    Token t = new Token(kind, tokenLine, tokenCol);
+    t.val = val;
+    t.numVal = numVal;
+    t.id = id;
+    return t;
+  }
+
+  /**
+   * Scans the next token into <code>tokens</code>, without creating a
+   * {@link Token}, and returns its index there.
+   */
+  public int next(TokenBuffer tokens) {
+    scan();
+    return tokens.add(kind, tokenLine, tokenCol, numVal, val, id);
+  }
+
+  /**
+   * Scans the next token into kind, tokenLine, tokenCol, numVal, val and id.
+   */
+  private void scan() {
     // TODO Exercise UE-P-1: implementation of next method
 
     while (Character.isWhitespace(ch)) {
       nextCh();
     }
 
-    Token t = new Token(Kind.none, line, col);
+    kind = Kind.none;
+    tokenLine = line;
+    tokenCol = col;
+    numVal = 0;
+    val = Kind.none.label();
+    id = -1;
 
     if (isLetter(ch)) {
-      readName(t);
+      readName();
     } else if (isDigit(ch)) {
-      readNumber(t);
+      readNumber();
     } else {
       switch (ch) {
         case '\'':
           nextCh();
-          readCharConst(t);
+          readCharConst();
           break;
         // --- cumulative tokens ---
         case '+':
           nextCh();
           if (ch == '=') {
-            setToken(t, Kind.plusas);
+            setToken(Kind.plusas);
             nextCh();
           } else if (ch == '+') {
-            setToken(t, Kind.pplus);
+            setToken(Kind.pplus);
             nextCh();
           } else {
-            setToken(t, Kind.plus);
+            setToken(Kind.plus);
             // no nextCh()
           }
           break;
         case '-':
           nextCh();
           if (ch == '=') {
-            setToken(t, Kind.minusas);
+            setToken(Kind.minusas);
             nextCh();
           } else if (ch == '-') {
-            setToken(t, Kind.mminus);
+            setToken(Kind.mminus);
             nextCh();
           } else {
-            setToken(t, Kind.minus);
+            setToken(Kind.minus);
             // no nextCh()
           }
           break;
         case '*':
           nextCh();
           if (ch == '=') {
-            setToken(t, Kind.timesas);
+            setToken(Kind.timesas);
             nextCh();
           } else {
-            setToken(t, Kind.times);
+            setToken(Kind.times);
             // no nextCh()
           }
           break;
@@ -155,156 +264,187 @@ public class Scanner {
           nextCh();
           if (ch == '*') {
             nextCh();
-            skipComment(t);
-            t = next();
+            skipComment();
+            scan();
           } else if (ch == '=') {
-            setToken(t, Kind.slashas);
+            setToken(Kind.slashas);
             nextCh();
           } else {
-            setToken(t, Kind.slash);
+            setToken(Kind.slash);
             // no nextCh()
           }
           break;
         case '%':
           nextCh();
           if (ch == '=') {
-            setToken(t, Kind.remas);
+            setToken(Kind.remas);
             nextCh();
           } else {
-            setToken(t, Kind.rem);
+            setToken(Kind.rem);
             // no nextCh()
           }
           break;
         case '=':
           nextCh();
           if (ch == '=') {
-            setToken(t, Kind.eql);
+            setToken(Kind.eql);
             nextCh();
           } else {
-            setToken(t, Kind.assign);
+            setToken(Kind.assign);
             // no nextCh()
           }
           break;
         case '!':
           nextCh();
           if (ch == '='){
-            setToken(t, Kind.neq);
+            setToken(Kind.neq);
             nextCh();
           } else {
-            error(t, Message.INVALID_CHAR, '!');
+            error(Message.INVALID_CHAR, '!');
             // no nextCh()
           }
           break;
         case '<':
           nextCh();
           if (ch == '=') {
-            setToken(t, Kind.leq);
+            setToken(Kind.leq);
             nextCh();
           } else {
-            setToken(t, Kind.lss);
+            setToken(Kind.lss);
             // no nextCh()
           }
           break;
         case '>':
           nextCh();
           if (ch == '=') {
-            setToken(t, Kind.geq);
+            setToken(Kind.geq);
             nextCh();
           } else {
-            setToken(t, Kind.gtr);
+            setToken(Kind.gtr);
             // no nextCh()
           }
           break;
         case '&':
           nextCh();
           if (ch == '&') {
-            setToken(t, Kind.and);
+            setToken(Kind.and);
             nextCh();
           } else {
-            error(t, Message.INVALID_CHAR, '&');
+            error(Message.INVALID_CHAR, '&');
             // no nextCh()
           }
           break;
         case '|':
           nextCh();
           if (ch == '|') {
-            setToken(t, Kind.or);
+            setToken(Kind.or);
             nextCh();
           } else {
-            error(t, Message.INVALID_CHAR, '|');
+            error(Message.INVALID_CHAR, '|');
             // no nextCh()
           }
           break;
         // --- simple tokens ---
         case ';':
-          setToken(t, Kind.semicolon);
+          setToken(Kind.semicolon);
           nextCh();
           break;
         case ',':
-          setToken(t, Kind.comma);
+          setToken(Kind.comma);
           nextCh();
           break;
         case '.':
-          setToken(t, Kind.period);
+          setToken(Kind.period);
           nextCh();
           break;
         case '(':
-          setToken(t, Kind.lpar);
+          setToken(Kind.lpar);
           nextCh();
           break;
         case ')':
-          setToken(t, Kind.rpar);
+          setToken(Kind.rpar);
           nextCh();
           break;
         case '[':
-          setToken(t, Kind.lbrack);
+          setToken(Kind.lbrack);
           nextCh();
           break;
         case ']':
-          setToken(t, Kind.rbrack);
+          setToken(Kind.rbrack);
           nextCh();
           break;
         case '{':
-          setToken(t, Kind.lbrace);
+          setToken(Kind.lbrace);
           nextCh();
           break;
         case '}':
-          setToken(t, Kind.rbrace);
+          setToken(Kind.rbrace);
           nextCh();
           break;
         case '~':
-          setToken(t, Kind.tilde);
+          setToken(Kind.tilde);
           nextCh();
           break;
         case EOF:
-          setToken(t, Kind.eof);
+          setToken(Kind.eof);
           // no nextCh() should be called after EOF
           break;
         default:
-          error(t, Message.INVALID_CHAR, ch);
+          error(Message.INVALID_CHAR, ch);
           nextCh();
           break;
       } // end switch
     } // end else
-
-    return t;
   }
 
   private void nextCh() {
     // TODO Exercise UE-P-1: implementation of nextCh method and other private helper methods
+    if (++pos >= len) {
+      pos = len;
+      fill();
+    }
+    ch = pos < len ? buf[pos] : EOF;
+    col++;
+    if (ch == LF) {
+      line++;
+      col = 0;
+      // TODO ? A test case might be missing. singleIdent rightfully fails with the following line statement uncommented, but nextChar
+      //  might still have to be called in some different way after recognizing an LF. Example where my code might
+      //  still fail: "+'\n'="
+      // nextCh();
+    } /*else if (ch == CR) {
+      // TODO do something instead of ignoring?
+    }*/
+  }
+
+  /**
+   * Reads the next block of the input into buf, after the marked
+   * characters (which are moved to the start of buf). At the end of the
+   * input, buf is left unchanged.
+   */
+  private void fill() {
+    if (in == null) { // the whole input is in buf
+      return;
+    }
+    int keep = mark >= 0 ? mark : pos;
+    System.arraycopy(buf, keep, buf, 0, len - keep);
+    base += keep;
+    len -= keep;
+    pos -= keep;
+    if (mark >= 0) {
+      mark = 0;
+    }
+    if (len == buf.length) { // a name or number as long as buf
+      buf = Arrays.copyOf(buf, 2 * buf.length);
+    }
     try {
-      ch = (char) in.read();
-      col++;
-      if (ch == LF) {
-        line++;
-        col = 0;
-        // TODO ? A test case might be missing. singleIdent rightfully fails with the following line statement uncommented, but nextChar
-        //  might still have to be called in some different way after recognizing an LF. Example where my code might
-        //  still fail: "+'\n'="
-        // nextCh();
-      } /*else if (ch == CR) {
-        // TODO do something instead of ignoring?
-      }*/
+      int n;
+      do {
+        n = in.read(buf, len, buf.length - len);
+      } while (n == 0);
+      if (n > 0) {
+        len += n;
+      }
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
@@ -312,70 +452,77 @@ public class Scanner {
 
   // TODO Exercise UE-P-1: private helper methods used by next(), as discussed in the exercise
 
-  private void readName(Token t) {
+  private void readName() {
     // ch should be a letter when this method is called
-    StringBuilder stringBuilder = new StringBuilder();
+    mark = pos;
 
     do {
-      stringBuilder.append(ch);
       nextCh();
     } while (isLetter(ch) || isDigit(ch) || ch == '_');
 
-    String ident = stringBuilder.toString();
+    id = names.id(buf, mark, pos - mark);
+    mark = -1;
 
-    if (keywords.containsKey(ident)) {
-      setToken(t, keywords.get(ident));
+    Kind keyword = names.keyword(id);
+    if (keyword != Kind.ident) {
+      setToken(keyword);
+      id = -1;
     } else { // is normal ident
-      t.kind = Kind.ident;
-      t.val = ident;
+      kind = Kind.ident;
+      val = names.name(id);
     }
 
     // next ch is already prepared
   }
 
-  private void readNumber(Token t) {
+  private void readNumber() {
     // ch should be a digit when this method is called
-    t.kind = Kind.number;
-    StringBuilder stringBuilder = new StringBuilder();
+    kind = Kind.number;
+    mark = pos;
 
     do {
-      stringBuilder.append(ch);
       nextCh();
     } while (isDigit(ch));
 
-    String stringOfNumber = stringBuilder.toString();
+    int start = mark;
+    int end = pos;
+    mark = -1;
+    String stringOfNumber = new String(buf, start, end - start);
 
-    if (stringOfNumber.length() >= 19) { // probably does not even fit in long => really big number
-      error(t, Message.BIG_NUM, stringOfNumber);
+    if (end - start >= 19) { // probably does not even fit in long => really big number
+      error(Message.BIG_NUM, stringOfNumber);
     } else {
-      long number = Long.parseLong(stringOfNumber);
+      long number = 0;
+      for (int i = start; i < end; i++) {
+        number = 10 * number + (buf[i] - '0');
+      }
       if (number > Integer.MAX_VALUE) { // fits in long, but not in int
-        error(t, Message.BIG_NUM, stringOfNumber);
+        error(Message.BIG_NUM, stringOfNumber);
       } else { // fits in int
-        t.val = stringOfNumber;
-        t.numVal = (int) number;
+        val = stringOfNumber;
+        numVal = (int) number;
       }
     }
 
     // next ch is already prepared
   }
 
-  private void readCharConst(Token t) {
-    t.kind = Kind.charConst;
+  private void readCharConst() {
+    kind = Kind.charConst;
 
     // ch set to first char after start of charConst
     char firstCh = ch;
     switch (firstCh) {
       case '\'':
-        error(t, Message.EMPTY_CHARCONST);
-        t.val = "\0";
-        t.numVal = '\0';
+        error(Message.EMPTY_CHARCONST);
+        val = "\0";
+        numVal = '\0';
         nextCh();
         return;
       case EOF:
-        error(t, Message.EOF_IN_CHAR);
-        t.val = "\0";
-        t.numVal = '\0';
+        error(Message.EOF_IN_CHAR);
+        val = "\0";
+        numVal = '\0';
         // no nextCh() should be called after EOF
         return;
       case CR:
@@ -383,14 +530,14 @@ public class Scanner {
         if (ch == LF) {
           nextCh();
         }
-        error(t, Message.ILLEGAL_LINE_END);
-        t.val = "\0";
-        t.numVal = '\0';
+        error(Message.ILLEGAL_LINE_END);
+        val = "\0";
+        numVal = '\0';
         return;
       case LF:
-        error(t, Message.ILLEGAL_LINE_END);
-        t.val = "\0";
-        t.numVal = '\0';
+        error(Message.ILLEGAL_LINE_END);
+        val = "\0";
+        numVal = '\0';
         nextCh();
         return;
       default: // no error yet
@@ -399,52 +546,52 @@ public class Scanner {
 
     nextCh();
     if (ch == EOF) {
-      //error(t, Message.EOF_IN_CHAR, ch);
-      error(t, Message.MISSING_QUOTE);
-      t.val = "\0";
-      t.numVal = '\0';
+      //error(Message.EOF_IN_CHAR, ch);
+      error(Message.MISSING_QUOTE);
+      val = "\0";
+      numVal = '\0';
       // no nextCh() should be called after EOF
     } else if (firstCh == '\\') { // found escape sequence
       if (ch == '\\') {
-        t.val = String.valueOf(ch);
-        t.numVal = ch;
+        val = String.valueOf(ch);
+        numVal = ch;
       } else if (ch == 'n') {
-        t.val = String.valueOf('\n');
-        t.numVal = '\n';
+        val = String.valueOf('\n');
+        numVal = '\n';
       } else if (ch == 'r') {
-        t.val = String.valueOf('\r');
-        t.numVal = '\r';
+        val = String.valueOf('\r');
+        numVal = '\r';
       } else if (ch == '\'') {
-        t.val = String.valueOf('\'');
-        t.numVal = '\'';
+        val = String.valueOf('\'');
+        numVal = '\'';
       } else {
-        error(t, Message.UNDEFINED_ESCAPE, ch);
-        t.val = "\0";
-        t.numVal = '\0';
+        error(Message.UNDEFINED_ESCAPE, ch);
+        val = "\0";
+        numVal = '\0';
       }
 
       nextCh();
       if (ch == '\'') {
         nextCh();
       } else {
-        error(t, Message.MISSING_QUOTE);
-        t.val = "\0";
-        t.numVal = '\0';
+        error(Message.MISSING_QUOTE);
+        val = "\0";
+        numVal = '\0';
         // no nextCh()
       }
     } else if (ch == '\'') { // found regular charConst
-      t.val = String.valueOf(firstCh);
-      t.numVal = firstCh;
+      val = String.valueOf(firstCh);
+      numVal = firstCh;
       nextCh();
     } else {
-      error(t, Message.MISSING_QUOTE);
-      t.val = "\0";
-      t.numVal = '\0';
+      error(Message.MISSING_QUOTE);
+      val = "\0";
+      numVal = '\0';
       // no nextCh()
     }
   }
 
-  private void skipComment(Token t) {
+  private void skipComment() {
     int nOpenComments = 1;
 
     while (nOpenComments > 0) {
@@ -461,8 +608,8 @@ public class Scanner {
           nextCh();
         }
       } else if (ch == EOF) {
-        setToken(t, Kind.eof);
-        error(t, Message.EOF_IN_COMMENT);
+        setToken(Kind.eof);
+        error(Message.EOF_IN_COMMENT);
         // no nextCh() should be called after EOF
         return;
       } else { // neither start, nor end of a comment, still before EOF
@@ -481,9 +628,9 @@ public class Scanner {
     return '0' <= c && c <= '9';
   }
 
-  private static void setToken(Token token, Kind kind) {
-    token.kind = kind;
-    token.val = kind.label();
+  private void setToken(Kind kind) {
+    this.kind = kind;
+    val = kind.label();
   }
 
   // ================================================
@@ -1,5 +1,6 @@
 package ssw.mj.impl;
 
+import ssw.mj.scanner.NameTable;
 import ssw.mj.symtab.Obj;
 import ssw.mj.symtab.Scope;
 import ssw.mj.symtab.Struct;
@@ -26,6 +27,11 @@ public final class Tab {
    */
   private final Parser parser;
 
+  /**
+   * Names of the compilation, by which objects are looked up.
+   */
+  private final NameTable names;
+
   /**
    * The current top scope.
    */
@@ -39,6 +45,7 @@ public final class Tab {
 
   public Tab(Parser p) {
     parser = p;
+    names = p.scanner.names;
 
     // setting up "universe" (= predefined names)
     // opening scope (curLevel goes to -1, which is the universe level)
@@ -90,16 +97,34 @@ public final class Tab {
     curLevel++;
   }
 
+  /**
+   * Opens <code>s</code>, a scope declared in the current scope, to
+   * continue its declarations (see {@link IncrementalCompiler}).
+   */
+  void openScope(Scope s) {
+    curScope = s;
+    curLevel++;
+  }
+
   public void closeScope() {
     curScope = curScope.outer();
     curLevel--;
   }
 
   public Obj insert(Obj.Kind kind, String name, Struct type) {
+    return insert(kind, names.id(name), type);
+  }
+
+  /**
+   * Declares the object with the name with <code>id</code> in the current
+   * scope.
+   */
+  public Obj insert(Obj.Kind kind, int id, Struct type) {
     // TODO Exercise UE-P-4
+    String name = names.name(id);
     Obj obj = new Obj(kind, name, type);
 
-    if (curScope.findLocal(name) != null) {
+    if (curScope.findLocal(id) != null) {
       parser.error(DUPLICATE_NAME_IN_SCOPE, name);
     }
 
@@ -108,7 +133,7 @@ public final class Tab {
       obj.level = curLevel;
     }
 
-    curScope.insert(obj);
+    curScope.insert(obj, id);
     return obj;
   }
 
@@ -116,10 +141,18 @@ public final class Tab {
    * Retrieves the object with <code>name</code> from the innermost scope.
    */
   public Obj find(String name) {
+    return find(names.id(name));
+  }
+
+  /**
+   * Retrieves the object with the name with <code>id</code> from the
+   * innermost scope.
+   */
+  public Obj find(int id) {
     // TODO Exercise UE-P-4
-    Obj obj = curScope.findGlobal(name);
+    Obj obj = curScope.findGlobal(id);
     if (obj == null) {
-      parser.error(NAME_NOT_FOUND, name);
+      parser.error(NAME_NOT_FOUND, names.name(id));
       return noObj;
     }
     return obj;
@@ -139,6 +172,14 @@ public final class Tab {
     return obj;
   }
 
+  /**
+   * Retrieves the field with the name with <code>id</code> from the fields of
+   * <code>type</code>.
+   */
+  public Obj findField(int id, Struct type) {
+    return findField(names.name(id), type); // the interned name has its hash code cached
+  }
+
   // ===============================================
   // ===============================================
 }
@@ -0,0 +1,127 @@
+package ssw.mj.scanner;
+
+import ssw.mj.scanner.Token.Kind;
+
+import java.util.Arrays;
+
+/**
+ * Intern table of the names (identifiers and keywords) of one compilation.
+ * Every distinct name gets a dense id and a single <code>String</code>, so
+ * that the scanner creates no string for a name it has seen before, and the
+ * symbol table looks names up by id (see {@link ssw.mj.symtab.Scope}). The
+ * keywords have the first ids.
+ */
+public final class NameTable {
+  private static final Kind[] keywords = {Kind.break_, Kind.class_, Kind.else_, Kind.final_, Kind.if_,
+          Kind.new_, Kind.print, Kind.program, Kind.read, Kind.return_, Kind.void_, Kind.while_};
+
+  private String[] names = new String[256]; // by id
+  private int[] hashes = new int[256]; // by id
+  private int[] table = new int[512]; // id + 1 of each name by hash (open addressing), 0 if empty
+  private int size;
+
+  public NameTable() {
+    for (Kind k : keywords) {
+      id(k.label());
+    }
+  }
+
+  /**
+   * Id of the name <code>buf[start..start+len)</code>, which is added if it
+   * is new.
+   */
+  public int id(char[] buf, int start, int len) {
+    int h = 0;
+    for (int i = start; i < start + len; i++) {
+      h = 31 * h + buf[i];
+    }
+    int mask = table.length - 1;
+    int i = spread(h) & mask;
+    for (int e; (e = table[i]) != 0; i = (i + 1) & mask) {
+      String s = names[e - 1];
+      if (hashes[e - 1] == h && s.length() == len && matches(s, buf, start)) {
+        return e - 1;
+      }
+    }
+    return add(new String(buf, start, len), h, i);
+  }
+
+  /**
+   * Id of <code>name</code>, which is added if it is new; -1 for null.
+   */
+  public int id(String name) {
+    if (name == null) {
+      return -1;
+    }
+    int h = name.hashCode();
+    int mask = table.length - 1;
+    int i = spread(h) & mask;
+    for (int e; (e = table[i]) != 0; i = (i + 1) & mask) {
+      if (hashes[e - 1] == h && names[e - 1].equals(name)) {
+        return e - 1;
+      }
+    }
+    return add(name, h, i);
+  }
+
+  /**
+   * The name with <code>id</code>; null for -1.
+   */
+  public String name(int id) {
+    return id >= 0 ? names[id] : null;
+  }
+
+  /**
+   * The keyword with <code>id</code>, or {@link Kind#ident} if the name is
+   * not a keyword.
+   */
+  public Kind keyword(int id) {
+    return id >= 0 && id < keywords.length ? keywords[id] : Kind.ident;
+  }
+
+  /**
+   * Number of names.
+   */
+  public int size() {
+    return size;
+  }
+
+  private int add(String name, int h, int slot) {
+    if (size == names.length) {
+      names = Arrays.copyOf(names, 2 * size);
+      hashes = Arrays.copyOf(hashes, 2 * size);
+    }
+    names[size] = name;
+    hashes[size] = h;
+    table[slot] = ++size;
+    if (2 * size > table.length) {
+      rehash();
+    }
+    return size - 1;
+  }
+
+  private void rehash() {
+    table = new int[2 * table.length];
+    int mask = table.length - 1;
+    for (int id = 0; id < size; id++) {
+      int i = spread(hashes[id]) & mask;
+      while (table[i] != 0) {
+        i = (i + 1) & mask;
+      }
+      table[i] = id + 1;
+    }
+  }
+
+  private static int spread(int h) {
+    return h ^ (h >>> 16);
+  }
+
+  private static boolean matches(String s, char[] buf, int start) {
+    for (int i = 0; i < s.length(); i++) {
+      if (s.charAt(i) != buf[start + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -99,6 +99,12 @@ public class Token {
    */
   public String val;
 
+  /**
+   * Only for identifiers: id of the name in the scanner's {@link NameTable},
+   * -1 otherwise.
+   */
+  public int id = -1;
+
   /**
    * Constructor that sets the fields required for all tokens.
    */
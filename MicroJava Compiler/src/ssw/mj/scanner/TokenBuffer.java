@@ -0,0 +1,145 @@
+package ssw.mj.scanner;
+
+import ssw.mj.scanner.Token.Kind;
+
+import java.util.Arrays;
+
+/**
+ * The tokens of a source, as written by
+ * {@link ssw.mj.impl.Scanner#next(TokenBuffer)}: the attributes of a
+ * {@link Token} are kept in one array each and accessed by the index of the
+ * token, so that scanning allocates no objects per token and any token read
+ * before can be looked at again. {@link #token} creates a <code>Token</code>
+ * where one is needed.
+ * <p>
+ * Indices count all tokens ever added. A reader that no longer needs the
+ * tokens before some index {@link #release}s them, and their space is
+ * reused, so that a long source is scanned in a buffer of bounded size.
+ */
+public final class TokenBuffer {
+  private static final Kind[] kinds = Kind.values();
+
+  private byte[] kind;
+  private int[] line;
+  private int[] col;
+  private int[] numVal;
+  private int[] id;
+  private String[] val; // the label for most tokens, interned names for identifiers
+  private int first; // index of the token at position 0 of the arrays
+  private int released; // tokens before this index are no longer needed
+  private int size;
+
+  public TokenBuffer() {
+    this(1024);
+  }
+
+  /**
+   * A buffer with room for <code>capacity</code> tokens before it grows.
+   */
+  public TokenBuffer(int capacity) {
+    capacity = Math.max(capacity, 1);
+    kind = new byte[capacity];
+    line = new int[capacity];
+    col = new int[capacity];
+    numVal = new int[capacity];
+    id = new int[capacity];
+    val = new String[capacity];
+  }
+
+  /**
+   * Appends a token and returns its index.
+   */
+  public int add(Kind kind, int line, int col, int numVal, String val, int id) {
+    int p = size - first;
+    if (p == this.kind.length) {
+      p = makeRoom();
+    }
+    this.kind[p] = (byte) kind.ordinal();
+    this.line[p] = line;
+    this.col[p] = col;
+    this.numVal[p] = numVal;
+    this.id[p] = id;
+    this.val[p] = val;
+    return size++;
+  }
+
+  /**
+   * Tokens before index <code>i</code> are no longer accessed.
+   */
+  public void release(int i) {
+    released = Math.max(released, Math.min(i, size));
+  }
+
+  /**
+   * Drops the released tokens, or grows the arrays if at most a quarter of
+   * them is released, and returns the position of the next token.
+   */
+  private int makeRoom() {
+    int drop = released - first;
+    int keep = size - released;
+    if (4 * drop > kind.length) {
+      System.arraycopy(kind, drop, kind, 0, keep);
+      System.arraycopy(line, drop, line, 0, keep);
+      System.arraycopy(col, drop, col, 0, keep);
+      System.arraycopy(numVal, drop, numVal, 0, keep);
+      System.arraycopy(id, drop, id, 0, keep);
+      System.arraycopy(val, drop, val, 0, keep);
+      Arrays.fill(val, keep, val.length, null);
+      first = released;
+    } else {
+      int n = 2 * kind.length;
+      kind = Arrays.copyOf(kind, n);
+      line = Arrays.copyOf(line, n);
+      col = Arrays.copyOf(col, n);
+      numVal = Arrays.copyOf(numVal, n);
+      id = Arrays.copyOf(id, n);
+      val = Arrays.copyOf(val, n);
+    }
+    return size - first;
+  }
+
+  /**
+   * Number of tokens.
+   */
+  public int size() {
+    return size;
+  }
+
+  public Kind kind(int i) {
+    return kinds[kind[i - first]];
+  }
+
+  public int line(int i) {
+    return line[i - first];
+  }
+
+  public int col(int i) {
+    return col[i - first];
+  }
+
+  public int numVal(int i) {
+    return numVal[i - first];
+  }
+
+  /**
+   * See {@link Token#id}.
+   */
+  public int id(int i) {
+    return id[i - first];
+  }
+
+  public String val(int i) {
+    return val[i - first];
+  }
+
+  /**
+   * Creates the token at index <code>i</code>.
+   */
+  public Token token(int i) {
+    Token t = new Token(kind(i), line(i), col(i));
+    t.numVal = numVal(i);
+    t.val = val(i);
+    t.id = id(i);
+    return t;
+  }
+}
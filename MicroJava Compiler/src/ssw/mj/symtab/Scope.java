@@ -16,6 +16,14 @@ public final class Scope {
    * Declarations of this scope.
    */
   private final Map<String, Obj> locals = new LinkedHashMap<>();
+  /**
+   * Declarations of this scope by name id (see
+   * {@link ssw.mj.scanner.NameTable}), hashed with open addressing; a slot
+   * is empty if its object is null.
+   */
+  private int[] ids = new int[8];
+  private Obj[] objs = new Obj[8];
+  private int nIds;
   /**
    * Number of variables in this scope.
    */
@@ -29,25 +37,80 @@ public final class Scope {
     return nVars;
   }
 
-  public Obj findGlobal(String name) {
-    Obj res = findLocal(name);
-    if (res == null && outer != null) {
-      res = outer.findGlobal(name);
+  public Obj findGlobal(int id) {
+    for (Scope s = this; s != null; s = s.outer) {
+      Obj res = s.findLocal(id);
+      if (res != null) {
+        return res;
+      }
     }
-    return res;
+    return null;
   }
 
-  public Obj findLocal(String name) {
-    return locals.get(name);
+  public Obj findLocal(int id) {
+    int mask = ids.length - 1;
+    for (int i = slot(id) & mask; objs[i] != null; i = (i + 1) & mask) {
+      if (ids[i] == id) {
+        return objs[i];
+      }
+    }
+    return null;
   }
 
-  public void insert(Obj o) {
+  /**
+   * Declares <code>o</code>, whose name has the id <code>id</code>.
+   */
+  public void insert(Obj o, int id) {
     locals.put(o.name, o);
+    put(id, o);
     if (o.kind == Obj.Kind.Var) {
       nVars++;
     }
   }
 
+  private void put(int id, Obj o) {
+    int mask = ids.length - 1;
+    int i = slot(id) & mask;
+    while (objs[i] != null && ids[i] != id) {
+      i = (i + 1) & mask;
+    }
+    if (objs[i] == null) {
+      nIds++;
+    }
+    ids[i] = id;
+    objs[i] = o;
+    if (2 * nIds > ids.length) {
+      int[] oldIds = ids;
+      Obj[] oldObjs = objs;
+      ids = new int[2 * oldIds.length];
+      objs = new Obj[2 * oldIds.length];
+      nIds = 0;
+      for (int k = 0; k < oldIds.length; k++) {
+        if (oldObjs[k] != null) {
+          put(oldIds[k], oldObjs[k]);
+        }
+      }
+    }
+  }
+
+  private static int slot(int id) {
+    return id * 0x9E3779B9 >>> 16;
+  }
+
+  /**
+   * A copy of this scope in the scope <code>outer</code>, which can be
+   * extended without changing this scope.
+   */
+  public Scope copy(Scope outer) {
+    Scope s = new Scope(outer);
+    s.locals.putAll(locals);
+    s.ids = ids.clone();
+    s.objs = objs.clone();
+    s.nIds = nIds;
+    s.nVars = nVars;
+    return s;
+  }
+
   public Scope outer() {
     return outer;
   }
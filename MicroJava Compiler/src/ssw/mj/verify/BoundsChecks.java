@@ -0,0 +1,194 @@
+package ssw.mj.verify;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import static ssw.mj.DecodedCode.*;
+
+/**
+ * Finds the array accesses of a verified program that are always in bounds,
+ * so that they can be executed without checking the reference and the
+ * index.
+ * <p>
+ * Accesses are proven in loops of the form
+ * <pre>
+ *   i = k; // k &gt;= 0
+ *   while (i &lt; len(a)) { // or len(a) &gt; i
+ *     ... a[i] ...
+ *     i++;
+ *   }
+ * </pre>
+ * where <code>i</code> is a local variable and <code>a</code> a local or
+ * global variable. Both the loop condition and the access use the values
+ * of <code>i</code> and <code>a</code> of the same iteration if
+ * <ul>
+ * <li>the loop is only entered through the assignment <code>i = k</code>,
+ * and its body only through the condition,</li>
+ * <li>the body does not assign <code>a</code> or <code>i</code>, and only
+ * increments <code>i</code> by non-negative constants, outside of inner
+ * loops; if <code>a</code> is global, the body does not call any
+ * methods,</li>
+ * <li>the access loads <code>a</code> and <code>i</code> before the first
+ * increment of <code>i</code> in the body.</li>
+ * </ul>
+ * Then <code>i</code> is non-negative at the condition (it starts at
+ * <code>k</code> and only grows by a bounded amount per iteration after
+ * <code>i &lt; len(a)</code> was checked), and the condition fails for a
+ * null array. Other methods cannot change local variables, and an array
+ * keeps its length even if the garbage collector moves it.
+ */
+final class BoundsChecks {
+  private final VerifiedProgram program;
+  private final int[] c;
+  private final BitSet targets = new BitSet(); // instructions that are jump targets
+  private final List<int[]> jumps = new ArrayList<>(); // {source, target} of all reachable jumps
+  private final BitSet inBounds = new BitSet();
+
+  private BoundsChecks(VerifiedProgram program) {
+    this.program = program;
+    this.c = program.code().code;
+  }
+
+  /**
+   * Indices of the <code>aload</code>, <code>astore</code>,
+   * <code>baload</code> and <code>bastore</code> instructions of
+   * <code>program</code> that are always in bounds.
+   */
+  static BitSet analyze(VerifiedProgram program) {
+    BoundsChecks b = new BoundsChecks(program);
+    int end = program.code().end();
+    for (int i = 0; i < end; i += 1 + operands(b.c[i])) {
+      if (program.owner(i) >= 0 && isJump(b.c[i])) {
+        b.jumps.add(new int[]{i, b.c[i + 1]});
+        b.targets.set(b.c[i + 1]);
+      }
+    }
+    for (int[] j : b.jumps) {
+      if (b.c[j[0]] == JMP && j[1] < j[0] && program.owner(j[1]) == program.owner(j[0])) {
+        b.loop(j[1], j[0]);
+      }
+    }
+    return b.inBounds;
+  }
+
+  private static boolean isVar(int op) {
+    return op == LOAD || op == GETSTATIC;
+  }
+
+  private static boolean isJump(int op) {
+    return op >= JMP && op <= JGE;
+  }
+
+  /**
+   * Analyzes the loop with header <code>h</code> that is closed by the
+   * <code>jmp</code> at <code>back</code>.
+   */
+  private void loop(int h, int back) {
+    int i, load, a, exit; // a is loaded by load (load or getstatic)
+    if (c[h] == LOAD && isVar(c[h + 2]) && c[h + 4] == ARRAYLENGTH && c[h + 5] == JGE) {
+      i = c[h + 1]; // i < len(a)
+      load = c[h + 2];
+      a = c[h + 3];
+    } else if (isVar(c[h]) && c[h + 2] == ARRAYLENGTH && c[h + 3] == LOAD && c[h + 5] == JLE) {
+      load = c[h]; // len(a) > i
+      a = c[h + 1];
+      i = c[h + 4];
+    } else {
+      return;
+    }
+    exit = c[h + 6];
+    int body = h + 7;
+    if (load == LOAD && i == a || exit > h && exit <= back || targets.get(h + 2) || targets.get(h + 3)
+            || targets.get(h + 4) || targets.get(h + 5)) {
+      return;
+    }
+    // entered through i = k
+    if (program.code().addressOf(h - 4) < 0 || program.code().addressOf(h - 2) < 0 || c[h - 4] != CONST
+            || c[h - 3] < 0 || c[h - 2] != STORE || c[h - 1] != i || targets.get(h - 2)) {
+      return;
+    }
+    // no jumps into the loop from outside its body
+    for (int[] j : jumps) {
+      if (j[1] >= h && j[1] <= back && (j[0] < body || j[0] > back)) {
+        return;
+      }
+    }
+    // assignments in the body
+    int firstInc = Integer.MAX_VALUE;
+    for (int k = body; k < back; k += 1 + operands(c[k])) {
+      if (c[k] == STORE && c[k + 1] == i || load == LOAD && c[k] == STORE && c[k + 1] == a
+              || load == GETSTATIC && (c[k] == PUTSTATIC && c[k + 1] == a || c[k] == CALL)) {
+        return;
+      }
+      if (c[k] == INC && c[k + 1] == i) {
+        if (c[k + 2] < 0 || inInnerLoop(k, body, back)) {
+          return;
+        }
+        firstInc = Math.min(firstInc, k);
+      }
+    }
+    // accesses a[i] with i loaded before the first increment
+    for (int k = body; k + 2 < firstInc && k < back; k += 1 + operands(c[k])) {
+      if (c[k] == load && c[k + 1] == a && c[k + 2] == LOAD && c[k + 3] == i && !targets.get(k + 2)) {
+        accesses(k + 4, back);
+      }
+    }
+  }
+
+  /**
+   * Whether the instruction at <code>k</code> is inside a loop nested in
+   * the body from <code>body</code> to <code>back</code>.
+   */
+  private boolean inInnerLoop(int k, int body, int back) {
+    for (int[] j : jumps) {
+      if (j[0] != back && j[1] <= j[0] && j[1] >= body && j[0] <= back && j[1] <= k && k <= j[0]) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Follows the array reference and the index pushed before
+   * <code>start</code> through the straight-line code up to
+   * <code>back</code>, and marks the accesses that use them. A
+   * <code>dup2</code> of both (as in <code>a[i]++</code>) makes another
+   * pair.
+   */
+  private void accesses(int start, int back) {
+    List<Integer> pairs = new ArrayList<>(); // stack depths right above each pair
+    pairs.add(program.depth(start));
+    for (int k = start; k < back && !pairs.isEmpty(); k += 1 + operands(c[k])) {
+      int op = c[k];
+      int d = program.depth(k);
+      if (targets.get(k) || d < 0 || isJump(op) || op == RETURN || op == EXIT || op == TRAP) {
+        return;
+      }
+      if ((op == ALOAD || op == BALOAD) && pairs.remove(Integer.valueOf(d))
+              || (op == ASTORE || op == BASTORE) && pairs.remove(Integer.valueOf(d - 1))) {
+        inBounds.set(k);
+      } else if (op == DUP2 && pairs.contains(d)) {
+        pairs.add(d + 2);
+      } else {
+        int low = d - pops(k);
+        pairs.removeIf(p -> low < p);
+      }
+    }
+  }
+
+  /**
+   * Number of words popped by the instruction at <code>k</code>, not
+   * counting words that are only read (<code>dup</code>,
+   * <code>dup2</code>).
+   */
+  private int pops(int k) {
+    return switch (c[k]) {
+      case STORE, PUTSTATIC, POP, GETFIELD, NEG, NEWARRAY, ARRAYLENGTH -> 1;
+      case PUTFIELD, PRINT, BPRINT, ADD, SUB, MUL, DIV, REM, SHL, SHR, ALOAD, BALOAD -> 2;
+      case ASTORE, BASTORE -> 3;
+      case CALL -> program.method(c[k + 1]).psize();
+      default -> 0;
+    };
+  }
+}
@@ -0,0 +1,267 @@
+package ssw.mj.verify;
+
+import java.util.*;
+
+import static ssw.mj.DecodedCode.*;
+
+/**
+ * Finds the objects of a verified program that never escape the method
+ * creating them, and replaces their fields by local variables of the method
+ * (scalar replacement), so that they are not allocated on the heap at all.
+ * <p>
+ * An object is replaced if it is only accessed through a local variable
+ * <code>s</code> of the form
+ * <pre>
+ *   s = new T; ... s.f ... s.f = x; ... s.f++ ...
+ * </pre>
+ * that is, if
+ * <ul>
+ * <li><code>s</code> is not a parameter, every assignment to <code>s</code>
+ * is a <code>new</code>, and <code>s</code> is assigned on every path before
+ * it is used,</li>
+ * <li>every value of <code>s</code> (or a <code>dup</code> of it) is used as
+ * the object of a <code>getfield</code> or <code>putfield</code> in the same
+ * straight-line code, and never passed on, compared, stored or
+ * returned.</li>
+ * </ul>
+ * The fields of such an object become new local variables after the
+ * method's own, and the code is rewritten instruction by instruction, so
+ * that every instruction keeps its index and its stack effect (and the
+ * verified stack depths and the stack maps remain valid):
+ * <pre>
+ *   new size; store s  -&gt;  clear first n
+ *   load s             -&gt;  const 0  (a placeholder for the object)
+ *   getfield f         -&gt;  getlocal first+f
+ *   putfield f         -&gt;  putlocal first+f
+ * </pre>
+ * and the <code>enter</code> of the method allocates the additional local
+ * variables. <code>s</code> itself is never assigned and stays null.
+ */
+public final class EscapeAnalysis {
+  private static final int MAX_FIELDS = 16; // larger objects are not replaced, to keep frames small
+
+  /**
+   * A local variable whose objects are replaced.
+   *
+   * @param method index of the <code>enter</code> of the method
+   * @param local  the local variable
+   * @param first  the first local variable holding the fields
+   * @param size   the number of fields
+   * @param sites  indices of the <code>new</code>s creating the objects
+   */
+  public record Replacement(int method, int local, int first, int size, List<Integer> sites) {
+  }
+
+  private final VerifiedProgram program;
+  private final int[] c;
+  private final int[] rewritten;
+  private final BitSet changed = new BitSet(); // slots that differ from the original code
+  private final BitSet targets = new BitSet(); // instructions that are jump targets
+  private final List<Replacement> replacements = new ArrayList<>();
+
+  private EscapeAnalysis(VerifiedProgram program) {
+    this.program = program;
+    this.c = program.code().code;
+    this.rewritten = c.clone();
+  }
+
+  /**
+   * Analyzes all methods of <code>program</code>.
+   */
+  public static EscapeAnalysis analyze(VerifiedProgram program) {
+    EscapeAnalysis e = new EscapeAnalysis(program);
+    int end = program.code().end();
+    for (int i = 0; i < end; i += 1 + operands(e.c[i])) {
+      if (program.owner(i) >= 0 && e.c[i] >= JMP && e.c[i] <= JGE) {
+        e.targets.set(e.c[i + 1]);
+      }
+    }
+    for (VerifiedMethod m : program.methods()) {
+      e.method(m);
+    }
+    return e;
+  }
+
+  /**
+   * The replaced local variables of all methods.
+   */
+  public List<Replacement> replacements() {
+    return Collections.unmodifiableList(replacements);
+  }
+
+  /**
+   * Whether objects are replaced in the method whose <code>enter</code> is
+   * at index <code>start</code>.
+   */
+  public boolean replaces(int start) {
+    for (Replacement r : replacements) {
+      if (r.method() == start) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * A copy of <code>stream</code>, the decoded code or a variant of it with
+   * the same instruction indices (see {@link ssw.mj.DecodedCode#fused}), with
+   * the replaced objects. A superinstruction that covers a rewritten
+   * instruction is split up again.
+   */
+  public int[] apply(int[] stream) {
+    int[] s = stream.clone();
+    int end = program.code().end();
+    for (int i = 0; i < end; i += 1 + operands(stream[i])) {
+      if (stream[i] != c[i]) {
+        int next = changed.nextSetBit(i);
+        if (next >= 0 && next <= i + operands(stream[i])) {
+          s[i] = c[i];
+        }
+      }
+    }
+    for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+      s[i] = rewritten[i];
+    }
+    return s;
+  }
+
+  private void method(VerifiedMethod m) {
+    Map<Integer, List<Integer>> stores = new TreeMap<>(), loads = new HashMap<>();
+    BitSet rejected = new BitSet();
+    int end = program.code().end();
+    for (int i = m.body(); i < end; i += 1 + operands(c[i])) {
+      if (program.owner(i) != m.start()) {
+        continue;
+      }
+      switch (c[i]) {
+        case STORE -> stores.computeIfAbsent(c[i + 1], k -> new ArrayList<>()).add(i);
+        case LOAD -> loads.computeIfAbsent(c[i + 1], k -> new ArrayList<>()).add(i);
+        case INC -> rejected.set(c[i + 1]);
+        default -> {
+        }
+      }
+    }
+    int lsize = m.lsize();
+    for (Map.Entry<Integer, List<Integer>> e : stores.entrySet()) {
+      int n = e.getKey();
+      List<Integer> uses = new ArrayList<>(); // getfields and putfields
+      int size = n < m.psize() || rejected.get(n) ? -1 : size(e.getValue());
+      List<Integer> ld = loads.getOrDefault(n, List.of());
+      for (int k = 0; k < ld.size() && size > 0; k++) {
+        if (!follow(m, n, ld.get(k), size, uses)) {
+          size = -1;
+        }
+      }
+      if (size <= 0 || !assignedBeforeUse(m, n, ld)) {
+        continue;
+      }
+      List<Integer> sites = new ArrayList<>();
+      for (int k : e.getValue()) {
+        sites.add(k - 2);
+        set(k - 2, CLEAR);
+        set(k - 1, lsize);
+        set(k, size);
+        set(k + 1, 0);
+      }
+      for (int k : ld) {
+        set(k, CONST);
+        set(k + 1, 0);
+      }
+      for (int k : uses) {
+        set(k, c[k] == GETFIELD ? GETLOCAL : PUTLOCAL);
+        set(k + 1, lsize + c[k + 1]);
+      }
+      replacements.add(new Replacement(m.start(), n, lsize, size, Collections.unmodifiableList(sites)));
+      lsize += size;
+    }
+    if (lsize != m.lsize()) {
+      set(m.start() + 2, lsize);
+    }
+  }
+
+  /**
+   * Number of fields of the objects assigned by the <code>store</code>s at
+   * <code>stores</code>, or -1 if one of them does not store a new object.
+   */
+  private int size(List<Integer> stores) {
+    int size = 0;
+    for (int k : stores) {
+      if (targets.get(k) || program.code().addressOf(k - 2) < 0 || c[k - 2] != NEW) {
+        return -1;
+      }
+      size = Math.max(size, (c[k - 1] + 3) / 4);
+    }
+    return size <= MAX_FIELDS ? size : -1;
+  }
+
+  /**
+   * Follows the value pushed by the <code>load</code> at <code>k</code>
+   * through the straight-line code after it, and adds the field accesses
+   * using it (or a copy of it) to <code>uses</code>. Returns false if the
+   * value escapes or is used otherwise, or if local variable <code>n</code>
+   * is assigned another object while the value is in use.
+   */
+  private boolean follow(VerifiedMethod m, int n, int k, int size, List<Integer> uses) {
+    List<Integer> values = new ArrayList<>(); // stack depths of the value and its copies
+    values.add(program.depth(k));
+    for (int i = k + 2; !values.isEmpty(); i += 1 + operands(c[i])) {
+      int op = c[i];
+      int d = program.depth(i);
+      if (targets.get(i) || d < 0 || program.owner(i) != m.start() || op >= JMP && op <= JGE || op == RETURN
+              || op == EXIT || op == TRAP || op == STORE && c[i + 1] == n || op == DUP2 && (values.contains(d - 1) || values.contains(d - 2))) {
+        return false;
+      }
+      if (op == GETFIELD && values.remove(Integer.valueOf(d - 1))
+              || op == PUTFIELD && !values.contains(d - 1) && values.remove(Integer.valueOf(d - 2))) {
+        if (c[i + 1] < 0 || c[i + 1] >= size) {
+          return false;
+        }
+        uses.add(i);
+      } else if (op == DUP && values.contains(d - 1)) {
+        values.add(d);
+      } else {
+        int low = d - StackMaps.pops(program, i);
+        for (int v : values) {
+          if (v >= low) {
+            return false;
+          }
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Whether local variable <code>n</code> is assigned on every path from the
+   * start of method <code>m</code> to the <code>load</code>s at
+   * <code>loads</code>.
+   */
+  private boolean assignedBeforeUse(VerifiedMethod m, int n, List<Integer> loads) {
+    BitSet unassigned = new BitSet(); // reachable without passing an assignment to n
+    Deque<Integer> work = new ArrayDeque<>(List.of(m.body()));
+    while (!work.isEmpty()) {
+      int i = work.pop();
+      if (unassigned.get(i)) {
+        continue;
+      }
+      unassigned.set(i);
+      if (c[i] == STORE && c[i + 1] == n) {
+        continue;
+      }
+      for (int s : Verifier.successors(c, i)) {
+        work.push(s);
+      }
+    }
+    for (int k : loads) {
+      if (unassigned.get(k)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void set(int i, int val) {
+    rewritten[i] = val;
+    changed.set(i, val != c[i]);
+  }
+}
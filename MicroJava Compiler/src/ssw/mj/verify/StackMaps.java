@@ -0,0 +1,171 @@
+package ssw.mj.verify;
+
+import ssw.mj.DecodedCode;
+import ssw.mj.RefMaps;
+
+import java.util.*;
+
+import static ssw.mj.DecodedCode.*;
+
+/**
+ * Reference maps of a verified program for the garbage collector, by
+ * instruction index. The variables of reference type come from the
+ * compiler's {@link RefMaps}; which words of the expression stack hold
+ * references is derived from them by a data flow analysis over the verified
+ * stack depths. Stack maps are kept for the points where a collection can
+ * happen: at every <code>new</code> and <code>newarray</code> of a method,
+ * and at every <code>call</code> for the frames of its callers.
+ */
+public final class StackMaps {
+  private static final BitSet NONE = new BitSet();
+
+  private final BitSet globals;
+  private final Map<Integer, BitSet> locals = new HashMap<>();
+  private final BitSet[] stacks;
+  private final BitSet refArrays = new BitSet();
+  private final Map<Integer, BitSet> objects = new HashMap<>();
+
+  private StackMaps(VerifiedProgram program, RefMaps maps) {
+    this.globals = maps.globals;
+    this.stacks = new BitSet[program.code().code.length];
+  }
+
+  /**
+   * Derives the stack maps of <code>program</code> from the compiler's
+   * <code>maps</code>. Fails if the maps do not fit the code, e.g. if a word
+   * is a reference on one path to an instruction and an int on another.
+   */
+  public static StackMaps compute(VerifiedProgram program, RefMaps maps) throws VerifyException {
+    StackMaps s = new StackMaps(program, maps);
+    DecodedCode code = program.code();
+    for (VerifiedMethod m : program.methods()) {
+      BitSet refs = maps.locals.get(code.addressOf(m.start()));
+      if (refs == null || refs.length() > m.lsize()) {
+        throw new VerifyException("no reference map for method", code.addressOf(m.start()));
+      }
+      s.locals.put(m.start(), refs);
+    }
+    for (VerifiedMethod m : program.methods()) {
+      s.flow(program, maps, m);
+    }
+    return s;
+  }
+
+  /**
+   * Global variables of reference type.
+   */
+  public BitSet globals() {
+    return globals;
+  }
+
+  /**
+   * Local variables of reference type of the method whose <code>enter</code>
+   * is at index <code>start</code>.
+   */
+  public BitSet locals(int start) {
+    return locals.getOrDefault(start, NONE);
+  }
+
+  /**
+   * Words of the method's part of the expression stack that hold references
+   * before the <code>new</code>, <code>newarray</code> or <code>call</code>
+   * at index <code>idx</code>.
+   */
+  public BitSet stack(int idx) {
+    BitSet refs = idx >= 0 && idx < stacks.length ? stacks[idx] : null;
+    return refs != null ? refs : NONE;
+  }
+
+  /**
+   * True if the <code>newarray</code> at index <code>idx</code> creates an
+   * array of references.
+   */
+  public boolean refArray(int idx) {
+    return refArrays.get(idx);
+  }
+
+  /**
+   * Fields of reference type of the object created by the <code>new</code>
+   * at index <code>idx</code>.
+   */
+  public BitSet objectFields(int idx) {
+    return objects.getOrDefault(idx, NONE);
+  }
+
+  private void flow(VerifiedProgram program, RefMaps maps, VerifiedMethod m) throws VerifyException {
+    DecodedCode code = program.code();
+    int[] c = code.code;
+    BitSet localRefs = locals.get(m.start());
+    Map<Integer, BitSet> in = new HashMap<>();
+    Deque<Integer> work = new ArrayDeque<>();
+    in.put(m.body(), new BitSet());
+    work.push(m.body());
+    while (!work.isEmpty()) {
+      int i = work.pop();
+      int d = program.depth(i);
+      int adr = code.addressOf(i);
+      BitSet refs = in.get(i);
+      BitSet out = refs.get(0, d - pops(program, i)); // pushed words are ints unless set below
+      switch (c[i]) {
+        case LOAD -> out.set(d, localRefs.get(c[i + 1]));
+        case STORE -> checkStore(refs.get(d - 1), localRefs.get(c[i + 1]), adr);
+        case GETSTATIC -> out.set(d, globals.get(c[i + 1]));
+        case PUTSTATIC -> checkStore(refs.get(d - 1), globals.get(c[i + 1]), adr);
+        case GETFIELD -> out.set(d - 1, maps.refLoads.get(adr));
+        case ALOAD -> out.set(d - 2, maps.refLoads.get(adr));
+        case NEW -> {
+          BitSet fields = maps.objects.get(adr);
+          if (fields == null || fields.length() > c[i + 1] / 4) {
+            throw new VerifyException("no reference map for new", adr);
+          }
+          objects.put(i, fields);
+          stacks[i] = refs;
+          out.set(d);
+        }
+        case NEWARRAY -> {
+          refArrays.set(i, c[i + 1] != 0 && maps.refArrays.get(adr));
+          stacks[i] = refs;
+          out.set(d - 1);
+        }
+        case CALL -> stacks[i] = refs;
+        case DUP -> out.set(d, refs.get(d - 1));
+        case DUP2 -> {
+          out.set(d, refs.get(d - 2));
+          out.set(d + 1, refs.get(d - 1));
+        }
+        default -> {
+        }
+      }
+      for (int s : Verifier.successors(c, i)) {
+        BitSet old = in.get(s);
+        if (old == null) {
+          in.put(s, out);
+          work.push(s);
+        } else if (!old.equals(out)) {
+          throw new VerifyException("inconsistent reference types", code.addressOf(s));
+        }
+      }
+    }
+  }
+
+  private static void checkStore(boolean ref, boolean refVar, int adr) throws VerifyException {
+    if (ref && !refVar) {
+      throw new VerifyException("reference stored to int variable", adr);
+    }
+  }
+
+  /**
+   * Number of words popped by the instruction at index <code>i</code>.
+   */
+  static int pops(VerifiedProgram program, int i) {
+    int[] c = program.code().code;
+    return switch (c[i]) {
+      case STORE, PUTSTATIC, POP, GETFIELD, NEG, NEWARRAY, ARRAYLENGTH -> 1;
+      case PUTFIELD, JEQ, JNE, JLT, JLE, JGT, JGE, PRINT, BPRINT -> 2;
+      case ADD, SUB, MUL, DIV, REM, SHL, SHR, ALOAD, BALOAD -> 2;
+      case ASTORE, BASTORE -> 3;
+      case CALL -> program.method(c[i + 1]).psize();
+      default -> 0;
+    };
+  }
+}
@@ -0,0 +1,27 @@
+package ssw.mj.verify;
+
+import java.util.Set;
+
+/**
+ * A method of a verified program.
+ *
+ * @param start        index of the method's <code>enter</code> in the decoded code
+ * @param psize        number of parameters
+ * @param lsize        number of local variables (including parameters)
+ * @param maxStack     maximum depth of the method's own part of the
+ *                     expression stack (not counting its callees)
+ * @param maxLocals    number of local variables actually used, i.e. highest
+ *                     accessed local + 1 (at least <code>psize</code>)
+ * @param returnsValue true if the method leaves a return value on the stack
+ * @param callees      <code>enter</code> indices of the methods it calls
+ */
+public record VerifiedMethod(int start, int psize, int lsize, int maxStack, int maxLocals, boolean returnsValue,
+                             Set<Integer> callees) {
+
+  /**
+   * Index of the first instruction after the <code>enter</code>.
+   */
+  public int body() {
+    return start + 3;
+  }
+}
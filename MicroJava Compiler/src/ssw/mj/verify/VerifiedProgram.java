@@ -0,0 +1,81 @@
+package ssw.mj.verify;
+
+import ssw.mj.DecodedCode;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Result of a successful {@link Verifier#verify}: the methods reachable from
+ * main, the expression stack depth at every reachable instruction and the
+ * array accesses that are always in bounds (see {@link BoundsChecks}).
+ */
+public final class VerifiedProgram {
+  private final DecodedCode code;
+  private final Map<Integer, VerifiedMethod> methods;
+  private final int[] owner;
+  private final int[] depth;
+  BitSet inBounds = new BitSet(); // set by the verifier
+
+  VerifiedProgram(DecodedCode code, Map<Integer, VerifiedMethod> methods, int[] owner, int[] depth) {
+    this.code = code;
+    this.methods = Collections.unmodifiableMap(methods);
+    this.owner = owner;
+    this.depth = depth;
+  }
+
+  /**
+   * The verified code.
+   */
+  public DecodedCode code() {
+    return code;
+  }
+
+  /**
+   * The main method.
+   */
+  public VerifiedMethod main() {
+    return methods.values().iterator().next();
+  }
+
+  /**
+   * All methods reachable from main, main first.
+   */
+  public Collection<VerifiedMethod> methods() {
+    return methods.values();
+  }
+
+  /**
+   * The method whose <code>enter</code> is at index <code>start</code>, null
+   * if there is none.
+   */
+  public VerifiedMethod method(int start) {
+    return methods.get(start);
+  }
+
+  /**
+   * Index of the <code>enter</code> of the method that the instruction at
+   * index <code>idx</code> belongs to, -1 if it is not reachable.
+   */
+  public int owner(int idx) {
+    return idx >= 0 && idx < owner.length ? owner[idx] : -1;
+  }
+
+  /**
+   * Depth of the method's part of the expression stack before the
+   * instruction at index <code>idx</code>, -1 if it is not reachable.
+   */
+  public int depth(int idx) {
+    return idx >= 0 && idx < depth.length ? depth[idx] : -1;
+  }
+
+  /**
+   * Whether the array access at index <code>idx</code> is always in bounds,
+   * so that it needs no null or index check.
+   */
+  public boolean inBounds(int idx) {
+    return inBounds.get(idx);
+  }
+}
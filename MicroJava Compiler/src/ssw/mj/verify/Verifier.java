@@ -0,0 +1,344 @@
+package ssw.mj.verify;
+
+import ssw.mj.DecodedCode;
+
+import java.util.*;
+
+import static ssw.mj.DecodedCode.*;
+
+/**
+ * Data flow verifier for MicroJava code.
+ * <p>
+ * Starting at main, every method reachable through calls is analyzed. For
+ * every reachable instruction the verifier computes the depth of the method's
+ * part of the expression stack and checks that
+ * <ul>
+ * <li>the stack never underflows and has the same depth on all paths to an
+ * instruction,</li>
+ * <li>local variables are inside the frame,</li>
+ * <li>jumps and calls lead to instructions of the same method or to an
+ * <code>enter</code>, respectively, and no path leaves the code,</li>
+ * <li>every <code>exit</code> is directly followed by a <code>return</code>
+ * and every <code>return</code> is only reached from an <code>exit</code>,</li>
+ * <li>all returns of a method leave the same number of values (0 or 1) on
+ * the stack.</li>
+ * </ul>
+ * In a verified program, a method invocation can only overflow the
+ * expression stack if the stack depth at its call plus its
+ * {@link VerifiedMethod#maxStack} exceeds the stack size, and it can only
+ * overflow the method stack when its frame is allocated. All other checks
+ * of the interpreter are redundant.
+ */
+public final class Verifier {
+  private static final int UNKNOWN = -1;
+  private static final int TOP = -2; // stack depth after a call to a method of unknown kind
+
+  private static final class Method {
+    final int start;
+    final int psize, lsize;
+    final Set<Integer> callees = new LinkedHashSet<>();
+    int kind = UNKNOWN; // 1 if the method leaves a return value on the stack
+    boolean returns; // a return instruction is reachable
+    int maxStack, maxLocals;
+
+    Method(int start, int psize, int lsize) {
+      this.start = start;
+      this.psize = psize;
+      this.lsize = lsize;
+    }
+  }
+
+  private final DecodedCode code;
+  private final int[] c;
+  private final Map<Integer, Method> methods = new LinkedHashMap<>();
+  private final int[] owner;
+  private final int[] depth;
+
+  private Verifier(DecodedCode code) {
+    this.code = code;
+    this.c = code.code;
+    owner = new int[c.length];
+    depth = new int[c.length];
+    Arrays.fill(owner, UNKNOWN);
+    Arrays.fill(depth, UNKNOWN);
+  }
+
+  /**
+   * Verifies the program whose main method starts at index <code>main</code>
+   * of <code>code</code>.
+   */
+  public static VerifiedProgram verify(DecodedCode code, int main) throws VerifyException {
+    Verifier v = new Verifier(code);
+    if (v.method(main, main).psize != 0) {
+      throw new VerifyException("main must not have parameters", code.addressOf(main));
+    }
+    v.discover();
+    v.inferKinds();
+    Map<Integer, VerifiedMethod> result = new LinkedHashMap<>();
+    for (Method m : v.methods.values()) {
+      v.flow(m, false);
+      result.put(m.start, new VerifiedMethod(m.start, m.psize, m.lsize, m.maxStack, m.maxLocals, m.kind == 1,
+              Collections.unmodifiableSet(m.callees)));
+    }
+    VerifiedProgram p = new VerifiedProgram(code, result, v.owner, v.depth);
+    p.inBounds = BoundsChecks.analyze(p);
+    return p;
+  }
+
+  /**
+   * Indices of the instructions that can follow the instruction at index
+   * <code>i</code> within its method.
+   */
+  public static int[] successors(int[] code, int i) {
+    int op = code[i];
+    int next = i + 1 + operands(op);
+    return switch (op) {
+      case JMP -> new int[]{code[i + 1]};
+      case JEQ, JNE, JLT, JLE, JGT, JGE -> new int[]{next, code[i + 1]};
+      case RETURN, TRAP, ENTER, ILLEGAL, BAD_PC -> new int[0];
+      default -> new int[]{next};
+    };
+  }
+
+  /**
+   * Collects the methods reachable from main through calls.
+   */
+  private void discover() throws VerifyException {
+    Deque<Method> todo = new ArrayDeque<>(methods.values());
+    while (!todo.isEmpty()) {
+      Method m = todo.pop();
+      BitSet seen = new BitSet();
+      Deque<Integer> work = new ArrayDeque<>(List.of(m.start + 3));
+      while (!work.isEmpty()) {
+        int i = work.pop();
+        if (seen.get(i)) {
+          continue;
+        }
+        seen.set(i);
+        check(i);
+        if (c[i] == CALL) {
+          if (!methods.containsKey(c[i + 1])) {
+            todo.push(method(c[i + 1], i));
+          }
+          m.callees.add(c[i + 1]);
+        }
+        for (int s : successors(c, i)) {
+          work.push(s);
+        }
+      }
+    }
+  }
+
+  private Method method(int start, int from) throws VerifyException {
+    Method m = methods.get(start);
+    if (m == null) {
+      if (start < 0 || start >= c.length || c[start] != ENTER) {
+        throw new VerifyException("call target is no enter instruction", code.addressOf(from));
+      }
+      int psize = c[start + 1];
+      int lsize = c[start + 2];
+      if (psize < 0 || lsize < psize) {
+        throw new VerifyException("illegal frame size", code.addressOf(start));
+      }
+      m = new Method(start, psize, lsize);
+      methods.put(start, m);
+    }
+    return m;
+  }
+
+  /**
+   * Checks that the instruction at index <code>i</code> may occur in a
+   * method body.
+   */
+  private void check(int i) throws VerifyException {
+    switch (c[i]) {
+      case ENTER -> throw new VerifyException("enter inside method body", code.addressOf(i));
+      case ILLEGAL -> throw new VerifyException("wrong opcode " + c[i + 1], code.addressOf(i));
+      case BAD_PC -> throw new VerifyException("control flow leaves the code area", -1);
+      case EXIT -> {
+        if (c[i + 1] != RETURN) {
+          throw new VerifyException("exit not followed by return", code.addressOf(i));
+        }
+      }
+      default -> {
+      }
+    }
+  }
+
+  /**
+   * Computes the return kind of every method. Return kinds depend on each
+   * other through calls (even recursively), so the result of calls to methods
+   * of unknown kind is treated as unknown depth until their kind is known. A
+   * method that never returns ends in a trap, which the parser only emits for
+   * non-void methods. A method that only returns the result of a recursive
+   * call gets the kind its code is consistent with.
+   */
+  private void inferKinds() throws VerifyException {
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (Method m : methods.values()) {
+        if (m.kind == UNKNOWN) {
+          m.kind = flow(m, true);
+          changed |= m.kind != UNKNOWN;
+        }
+      }
+      if (!changed) {
+        for (Method m : methods.values()) {
+          if (m.kind == UNKNOWN && !m.returns) {
+            m.kind = 1;
+            changed = true;
+          }
+        }
+      }
+      if (!changed) {
+        // recursion: guess the kind of a method such that its own code returns this kind
+        Method first = null;
+        for (Method m : methods.values()) {
+          if (m.kind == UNKNOWN) {
+            m.kind = guessKind(m);
+            if (m.kind != UNKNOWN) {
+              changed = true;
+              break;
+            }
+            first = first == null ? m : first;
+          }
+        }
+        if (!changed && first != null) {
+          first.kind = 1; // verification fails later if this is wrong
+          changed = true;
+        }
+      }
+    }
+  }
+
+  /**
+   * A return kind for the recursive method <code>m</code> such that its code
+   * is consistent and returns this kind, UNKNOWN if there is none.
+   */
+  private int guessKind(Method m) {
+    for (int kind = 1; kind >= 0; kind--) {
+      m.kind = kind;
+      try {
+        if (flow(m, true) == kind) {
+          return kind;
+        }
+      } catch (VerifyException e) {
+        // try the other kind
+      }
+    }
+    return UNKNOWN;
+  }
+
+  /**
+   * Computes the stack depth at every instruction of <code>m</code> and
+   * returns the method's return kind, or UNKNOWN if no return is reached. If
+   * <code>lenient</code> is set, calls to methods of unknown kind leave an
+   * unknown (TOP) stack depth; otherwise the depths, the owner of every
+   * instruction and the method's stack and local usage are recorded.
+   */
+  private int flow(Method m, boolean lenient) throws VerifyException {
+    int[] d = lenient ? new int[c.length] : depth;
+    if (lenient) {
+      Arrays.fill(d, UNKNOWN);
+    }
+    int kind = UNKNOWN;
+    int maxStack = 0;
+    int maxLocals = m.psize;
+    Deque<Integer> work = new ArrayDeque<>();
+    int entry = m.start + 3;
+    if (c[entry] == RETURN) {
+      throw new VerifyException("return without exit", code.addressOf(entry));
+    }
+    d[entry] = 0;
+    work.push(entry);
+    while (!work.isEmpty()) {
+      int i = work.pop();
+      int di = d[i];
+      int op = c[i];
+      if (!lenient) {
+        if (owner[i] != UNKNOWN && owner[i] != m.start) {
+          throw new VerifyException("code shared by two methods", code.addressOf(i));
+        }
+        owner[i] = m.start;
+      }
+      switch (op) {
+        case LOAD, STORE, INC -> {
+          int n = c[i + 1];
+          if (n < 0 || n >= m.lsize) {
+            throw new VerifyException("local variable outside of frame", code.addressOf(i));
+          }
+          maxLocals = Math.max(maxLocals, n + 1);
+        }
+        case RETURN -> {
+          m.returns = true;
+          if (di != TOP) {
+            if (di > 1 || kind != UNKNOWN && kind != di) {
+              throw new VerifyException("inconsistent return", code.addressOf(i));
+            }
+            kind = di;
+          }
+        }
+        default -> {
+        }
+      }
+      int after = TOP;
+      if (di != TOP) {
+        int[] effect = effect(i); // {pops, pushes}, null if unknown
+        if (effect != null) {
+          if (di < effect[0]) {
+            throw new VerifyException("expression stack underflow", code.addressOf(i));
+          }
+          after = di - effect[0] + effect[1];
+          maxStack = Math.max(maxStack, Math.max(di, after));
+        } else if (!lenient) {
+          throw new VerifyException("return kind of callee not known", code.addressOf(i));
+        }
+      }
+      for (int s : successors(c, i)) {
+        if (c[s] == RETURN && op != EXIT) {
+          throw new VerifyException("return without exit", code.addressOf(s));
+        }
+        if (!lenient && owner[s] != UNKNOWN && owner[s] != m.start) {
+          throw new VerifyException("code shared by two methods", code.addressOf(s));
+        }
+        if (d[s] == UNKNOWN || d[s] == TOP && after != TOP) {
+          d[s] = after;
+          work.push(s);
+        } else if (d[s] != after && after != TOP) {
+          throw new VerifyException("inconsistent stack depth", code.addressOf(s));
+        }
+      }
+    }
+    if (!lenient) {
+      if (kind != UNKNOWN && kind != m.kind) {
+        throw new VerifyException("inconsistent return", code.addressOf(m.start));
+      }
+      m.maxStack = maxStack;
+      m.maxLocals = maxLocals;
+    }
+    return kind;
+  }
+
+  /**
+   * Number of words popped and pushed by the instruction at <code>i</code>,
+   * null for a call to a method of unknown kind.
+   */
+  private int[] effect(int i) {
+    return switch (c[i]) {
+      case LOAD, GETSTATIC, CONST, NEW, READ, BREAD -> new int[]{0, 1};
+      case STORE, PUTSTATIC, POP -> new int[]{1, 0};
+      case GETFIELD, NEG, NEWARRAY, ARRAYLENGTH -> new int[]{1, 1};
+      case PUTFIELD, JEQ, JNE, JLT, JLE, JGT, JGE, PRINT, BPRINT -> new int[]{2, 0};
+      case ADD, SUB, MUL, DIV, REM, SHL, SHR, ALOAD, BALOAD -> new int[]{2, 1};
+      case ASTORE, BASTORE -> new int[]{3, 0};
+      case DUP -> new int[]{1, 2};
+      case DUP2 -> new int[]{2, 4};
+      case CALL -> {
+        Method callee = methods.get(c[i + 1]);
+        yield callee.kind == UNKNOWN ? null : new int[]{callee.psize, callee.kind};
+      }
+      default -> new int[]{0, 0};
+    };
+  }
+}
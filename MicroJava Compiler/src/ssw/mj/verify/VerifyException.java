@@ -0,0 +1,22 @@
+package ssw.mj.verify;
+
+import java.io.Serial;
+
+/**
+ * Thrown by the {@link Verifier} for malformed code.
+ */
+public class VerifyException extends Exception {
+
+  @Serial
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Byte address of the offending instruction, -1 if none.
+   */
+  public final int adr;
+
+  public VerifyException(String msg, int adr) {
+    super(adr >= 0 ? msg + " at " + adr : msg);
+    this.adr = adr;
+  }
+}
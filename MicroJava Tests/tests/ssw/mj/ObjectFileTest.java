@@ -0,0 +1,86 @@
+package ssw.mj;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ssw.mj.impl.Parser;
+import ssw.mj.impl.Scanner;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Loading object files that are rewritten or recompiled while they are
+ * cached (see {@link ObjectFile}).
+ */
+public class ObjectFileTest {
+
+  private static String source(int value) {
+    return "program P { void main() { print(" + value + "); } }";
+  }
+
+  private static String run(Program program) throws IOException {
+    Interpreter.BufferIO io = new Interpreter.BufferIO("");
+    new Interpreter.Builder().program(program).io(io).build().run();
+    return io.getOutput();
+  }
+
+  /**
+   * Writes the object file of <code>source</code> to <code>obj</code> in
+   * place.
+   */
+  private static void compile(String source, Path obj) throws IOException {
+    Parser parser = new Parser(new Scanner(new StringReader(source)));
+    parser.parse();
+    assertEquals("", parser.scanner.errors.dump());
+    parser.code.write(new FileOutputStream(obj.toFile()));
+  }
+
+  @Test
+  public void unchangedFileIsShared(@TempDir Path dir) throws IOException {
+    Path obj = dir.resolve("P.obj");
+    compile(source(1), obj);
+    ObjectFile f = ObjectFile.load(obj);
+    assertSame(f, ObjectFile.load(obj));
+    compile(source(1), obj);
+    assertSame(f, ObjectFile.load(obj));
+  }
+
+  @Test
+  public void sameSizeRewrite(@TempDir Path dir) throws IOException {
+    Path obj = dir.resolve("P.obj");
+    compile(source(1), obj);
+    FileTime modified = Files.getLastModifiedTime(obj);
+    long size = Files.size(obj);
+    assertEquals("1", run(ObjectFile.load(obj).program()));
+
+    compile(source(2), obj);
+    Files.setLastModifiedTime(obj, modified); // rewritten within the resolution of the time
+    assertEquals(size, Files.size(obj));
+    assertEquals("2", run(ObjectFile.load(obj).program()));
+  }
+
+  @Test
+  public void recompile(@TempDir Path dir) throws IOException {
+    Path src = dir.resolve("P.mj");
+    Path obj = dir.resolve("P.obj");
+    Files.writeString(src, source(1));
+    Compiler.main(new String[]{src.toString()});
+    FileTime modified = Files.getLastModifiedTime(obj);
+    Program old = ObjectFile.load(obj).program();
+
+    Files.writeString(src, source(2));
+    Compiler.main(new String[]{src.toString()});
+    Files.setLastModifiedTime(obj, modified);
+    Program recompiled = ObjectFile.load(obj).program();
+    assertNotSame(old, recompiled);
+    assertEquals("2", run(recompiled));
+    assertEquals("1", run(old)); // still mapped from the replaced file
+    assertFalse(Files.exists(dir.resolve("P.obj.tmp")));
+  }
+}
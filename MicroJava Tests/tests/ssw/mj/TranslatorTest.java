@@ -0,0 +1,57 @@
+package ssw.mj;
+
+import org.junit.jupiter.api.Test;
+import ssw.mj.impl.Code;
+import ssw.mj.impl.Parser;
+import ssw.mj.impl.Scanner;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Programs that the {@link Translator} must translate instead of leaving
+ * them to the interpreter, on a collected heap, where allocations take the
+ * stack maps of their site.
+ */
+public class TranslatorTest {
+
+  /**
+   * Allocates objects and arrays in main and in a method called from a loop.
+   */
+  private static final String ALLOCATE = "program Allocate" + "\n" + //
+          "  class Cell { int v; Cell next; }" + "\n" + //
+          "  Cell list;" + "\n" + //
+          "{" + "\n" + //
+          "  void push(int v) Cell c; { c = new Cell; c.v = v; c.next = list; list = c; }" + "\n" + //
+          "  void main() int i, s; int[] a; {" + "\n" + //
+          "    a = new int[10];" + "\n" + //
+          "    while (i < 1000) { push(i); a[i % 10] = a[i % 10] + i; i++; }" + "\n" + //
+          "    while (list != null) { s = s + list.v; list = list.next; }" + "\n" + //
+          "    print(s); print(' '); print(a[3]);" + "\n" + //
+          "  }" + "\n" + //
+          "}";
+
+  private static Program program(String source) {
+    Parser parser = new Parser(new Scanner(new StringReader(source)));
+    parser.parse();
+    assertEquals("", parser.scanner.errors.dump());
+    Code code = parser.code;
+    return new Program(code.buf, code.mainpc, code.dataSize, code.refMaps, code.methods);
+  }
+
+  @Test
+  public void allocations() throws IOException {
+    Program program = program(ALLOCATE);
+    Interpreter.BufferIO io = new Interpreter.BufferIO("");
+    Interpreter vm = new Interpreter.Builder().program(program).io(io).build();
+    assertNotNull(program.stackMaps(), "collected heap");
+    Translator t = new Translator(program.verified(), program.stackMaps(),
+            Interpreter.eStackSize, Interpreter.maxMStackSize);
+    assertNotNull(t.compileMain(vm), "translated");
+
+    vm.runCompiled();
+    assertEquals("499500 49800", io.getOutput());
+  }
+}
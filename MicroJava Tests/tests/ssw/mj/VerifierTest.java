@@ -0,0 +1,127 @@
+package ssw.mj;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ssw.mj.impl.Parser;
+import ssw.mj.impl.Scanner;
+import ssw.mj.verify.VerifiedProgram;
+import ssw.mj.verify.VerifyException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static ssw.mj.impl.Code.OpCode.*;
+import static ssw.mj.test.support.ByteCodeTestSupport.code;
+
+/**
+ * Code that the {@link ssw.mj.verify.Verifier} accepts or rejects, built byte
+ * by byte, and object files with such code loaded by {@link Run}.
+ */
+public class VerifierTest {
+
+  private static VerifiedProgram verify(byte[] code, int startPC) throws VerifyException {
+    return new Program(code, startPC, 0, null, null).verify();
+  }
+
+  private static void expectRejected(String msg, byte[] code, int startPC) {
+    VerifyException e = assertThrows(VerifyException.class, () -> verify(code, startPC));
+    assertEquals(msg, e.getMessage());
+  }
+
+  @Test
+  public void accepted() throws VerifyException {
+    VerifiedProgram p = verify(code(
+            enter, 0, 1, // 0
+            const_1, store_0, // 3
+            load_0, const_0, print, // 5
+            exit, return_), 0); // 8
+    assertEquals(1, p.methods().size());
+    assertEquals(2, p.methods().iterator().next().maxStack());
+  }
+
+  @Test
+  public void stackUnderflow() {
+    expectRejected("expression stack underflow at 4", code(
+            enter, 0, 0, // 0
+            const_1, add, // 3
+            exit, return_), 0);
+  }
+
+  @Test
+  public void depthMismatchAtJoin() {
+    expectRejected("inconsistent stack depth at 9", code(
+            enter, 0, 1, // 0
+            load_0, const_0, jeq, 0, 4, // 3: jumps to 9 with an empty stack
+            const_1, // 8: falls through to 9 with one word on the stack
+            exit, return_), 0); // 9
+  }
+
+  @Test
+  public void jumpIntoInstruction() {
+    expectRejected("control flow leaves the code area", code(
+            enter, 0, 0, // 0
+            jmp, 0, 4, // 3: to the operand of the const at 6
+            const_, 0, 0, 0, 7, pop, // 6
+            exit, return_), 0);
+  }
+
+  @Test
+  public void callOfNoEnter() {
+    expectRejected("call target is no enter instruction at 3", code(
+            enter, 0, 0, // 0
+            call, 0, 3, // 3: to 6
+            exit, return_), 0); // 6
+  }
+
+  @Test
+  public void illegalFrameSize() {
+    expectRejected("illegal frame size at 0", code(
+            enter, 2, 1, // 0: more parameters than locals
+            exit, return_, // 3
+            enter, 0, 0, // 5
+            const_1, const_2, call, -1, -10, // 8, call at 10: to 0
+            exit, return_), 5);
+  }
+
+  @Test
+  public void enterInsideMethod() {
+    expectRejected("enter inside method body at 3", code(
+            enter, 0, 0, // 0
+            enter, 0, 0, // 3
+            exit, return_), 0);
+  }
+
+  @Test
+  public void mainWithParameters() {
+    expectRejected("main must not have parameters at 0", code(
+            enter, 1, 1, // 0
+            exit, return_), 0);
+  }
+
+  @Test
+  public void readRejectsMalformedCode(@TempDir Path dir) throws IOException {
+    Parser parser = new Parser(new Scanner(new StringReader(
+            "program P { void main() { print(1); } }")));
+    parser.parse();
+    assertEquals("", parser.scanner.errors.dump());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    parser.code.write(out);
+    byte[] obj = out.toByteArray();
+    Path good = dir.resolve("good.obj");
+    Files.write(good, obj);
+    assertNotNull(Run.read(good.toString()).verified());
+
+    int main = 14 + parser.code.mainpc; // after the header
+    assertEquals(enter.code(), obj[main]);
+    assertEquals(const_1.code(), obj[main + 3]);
+    obj[main + 3] = (byte) add.code(); // add on an empty stack
+    Path bad = dir.resolve("bad.obj");
+    Files.write(bad, obj);
+    FormatException e = assertThrows(FormatException.class, () -> Run.read(bad.toString()));
+    assertEquals("expression stack underflow at " + (parser.code.mainpc + 3), e.getMessage());
+  }
+}
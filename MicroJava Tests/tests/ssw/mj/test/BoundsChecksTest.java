@@ -0,0 +1,126 @@
+package ssw.mj.test;
+
+import org.junit.jupiter.api.Test;
+import ssw.mj.Interpreter;
+import ssw.mj.test.support.BaseCompilerTestCase;
+import ssw.mj.verify.VerifiedProgram;
+import ssw.mj.verify.VerifyException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static ssw.mj.DecodedCode.*;
+
+/**
+ * Array accesses in counted loops that the verifier proves to be in bounds
+ * (see {@link ssw.mj.verify.BoundsChecks}), and the ones it must leave
+ * checked.
+ */
+public class BoundsChecksTest extends BaseCompilerTestCase {
+
+  @Test
+  public void localArray() throws VerifyException, IOException {
+    String source = "program P" + LF + //
+            "{" + LF + //
+            "  void main() int[] a; int i, s; {" + LF + //
+            "    a = new int[5];" + LF + //
+            "    i = 0;" + LF + //
+            "    while (i < len(a)) { a[i] = i * i; a[i]++; s = s + a[i]; i++; }" + LF + //
+            "    print(s);" + LF + //
+            "  }" + LF + //
+            "}";
+    // a[i] =, a[i]++ (load and store), a[i]
+    assertEquals(List.of(true, true, true, true), inBounds(source));
+
+    initCode(source);
+    Interpreter.BufferIO io = new Interpreter.BufferIO("");
+    new Interpreter.Builder().program(program()).io(io).build().run();
+    assertEquals("35", io.getOutput());
+  }
+
+  @Test
+  public void globalArray() throws VerifyException {
+    assertEquals(List.of(true, false), inBounds("program P" + LF + //
+            "  int[] g;" + LF + //
+            "{" + LF + //
+            "  void main() int i; {" + LF + //
+            "    g = new int[4];" + LF + //
+            "    i = 0;" + LF + //
+            "    while (len(g) > i) { g[i] = i; i++; }" + LF + //
+            "    print(g[3]);" + LF + // outside of the loop
+            "  }" + LF + //
+            "}"));
+  }
+
+  @Test
+  public void otherArray() throws VerifyException {
+    assertEquals(List.of(true, false), inBounds("program P" + LF + //
+            "{" + LF + //
+            "  void main() int[] a, b; int i; {" + LF + //
+            "    a = new int[4]; b = new int[2];" + LF + //
+            "    i = 0;" + LF + //
+            "    while (i < len(a)) { b[i] = a[i]; i++; }" + LF + // b is not bounded by the loop
+            "  }" + LF + //
+            "}"));
+  }
+
+  @Test
+  public void storeToIndex() throws VerifyException {
+    assertEquals(List.of(false, false), inBounds("program P" + LF + //
+            "{" + LF + //
+            "  void main() int[] a; int i; {" + LF + //
+            "    a = new int[4];" + LF + //
+            "    i = 0;" + LF + //
+            "    while (i < len(a)) { a[i] = i; i = i * 2 + 1; a[i] = i; i++; }" + LF + //
+            "  }" + LF + //
+            "}"));
+  }
+
+  @Test
+  public void accessAfterIncrement() throws VerifyException {
+    assertEquals(List.of(true, false), inBounds("program P" + LF + //
+            "{" + LF + //
+            "  void main() int[] a; int i; {" + LF + //
+            "    a = new int[4];" + LF + //
+            "    i = 0;" + LF + //
+            "    while (i < len(a)) { a[i] = 1; i++; a[i] = 2; }" + LF + // i == len(a) in the last iteration
+            "  }" + LF + //
+            "}"));
+  }
+
+  @Test
+  public void callWithGlobalArray() throws VerifyException {
+    assertEquals(List.of(false, true), inBounds("program P" + LF + //
+            "  int[] g;" + LF + //
+            "{" + LF + //
+            "  int shrink(int x) { g = new int[1]; return x; }" + LF + //
+            "  void main() int[] a; int i; {" + LF + //
+            "    g = new int[4];" + LF + //
+            "    i = 0;" + LF + //
+            "    while (i < len(g)) { g[i] = shrink(i); i++; }" + LF + // the call can replace g
+            "    a = new int[4];" + LF + //
+            "    i = 0;" + LF + //
+            "    while (i < len(a)) { a[i] = shrink(i); i++; }" + LF + // but not a
+            "  }" + LF + //
+            "}"));
+  }
+
+  /**
+   * For every array access of <code>source</code>, in the order of the code,
+   * whether it is executed without checks.
+   */
+  private List<Boolean> inBounds(String source) throws VerifyException {
+    initCode(source);
+    VerifiedProgram p = program().verify();
+    int[] c = p.code().code;
+    List<Boolean> result = new ArrayList<>();
+    for (int i = 0; i < p.code().end(); i += 1 + operands(c[i])) {
+      if (c[i] == ALOAD || c[i] == ASTORE || c[i] == BALOAD || c[i] == BASTORE) {
+        result.add(p.inBounds(i));
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,275 @@
+package ssw.mj.test;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ssw.mj.Interpreter;
+import ssw.mj.Program;
+import ssw.mj.test.support.BaseCompilerTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A {@link Interpreter.ChannelIO} must read and write what a
+ * {@link Interpreter.BufferIO} reads and writes, however its buffers cut the
+ * input and the output, and also when it maps an input file. Reading a
+ * mapped file leaves the position of its channel unchanged.
+ */
+public class ChannelIOTest extends BaseCompilerTestCase {
+
+  /**
+   * Reads numbers up to the first 0 and prints each one, its square and a
+   * row of stars, so that the output is far longer than the output buffer.
+   */
+  private static final String ECHO = "program Echo" + LF + //
+          "{" + LF + //
+          "  void main() int n, i; {" + LF + //
+          "    read(n);" + LF + //
+          "    while (n != 0) {" + LF + //
+          "      print(n, 12); print(n * n, 3);" + LF + //
+          "      i = 0; while (i < n % 100) { print('*'); i++; }" + LF + //
+          "      print(chr(10)); read(n);" + LF + //
+          "    }" + LF + //
+          "  }" + LF + //
+          "}";
+
+  private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+  private Interpreter.ChannelIO io(String input, Charset charset) {
+    return io(Channels.newChannel(new ByteArrayInputStream(input.getBytes(StandardCharsets.ISO_8859_1))), charset);
+  }
+
+  private Interpreter.ChannelIO io(ReadableByteChannel in, Charset charset) {
+    out.reset();
+    return new Interpreter.ChannelIO(in, Channels.newChannel(out), charset);
+  }
+
+  @Test
+  public void writeNumbers() {
+    int[] numbers = {0, 7, -7, 10, -10, 1234567890, Integer.MAX_VALUE, Integer.MIN_VALUE, -2147483647};
+    Interpreter.BufferIO expected = new Interpreter.BufferIO("");
+    Interpreter.ChannelIO io = io("", StandardCharsets.US_ASCII);
+    for (int n = 0; n < 3000; n++) { // crosses the output buffer several times
+      int val = numbers[n % numbers.length];
+      expected.writeInt(val);
+      expected.write(' ', n % 3);
+      io.writeInt(val);
+      io.write(' ', n % 3);
+    }
+    io.flush();
+    assertEquals(expected.getOutput(), out.toString(StandardCharsets.US_ASCII));
+  }
+
+  @Test
+  public void writeRuns() {
+    Interpreter.BufferIO expected = new Interpreter.BufferIO("");
+    Interpreter.ChannelIO io = io("", StandardCharsets.US_ASCII);
+    for (int n : new int[]{-5, 0, 1, 8191, 8192, 8193, 20000, 3}) {
+      expected.write('x', n);
+      expected.write('|');
+      io.write('x', n);
+      io.write('|');
+    }
+    io.flush();
+    assertEquals(expected.getOutput(), out.toString(StandardCharsets.US_ASCII));
+  }
+
+  @Test
+  public void readNumbers() {
+    String input = "12 -3 4-5 --6 - 7 x89y 2147483647 -2147483648\n0 00042";
+    Interpreter.BufferIO expected = new Interpreter.BufferIO(input);
+    Interpreter.ChannelIO io = io(input, StandardCharsets.US_ASCII);
+    for (int n = 0; n < 12; n++) { // up to the end of the input and beyond
+      assertEquals(expected.readInt(), io.readInt(), "number " + n);
+    }
+    assertEquals(0, io.readInt());
+    assertEquals(0, io.read());
+  }
+
+  @Test
+  public void readAcrossBlocks() {
+    // a channel that returns at most 3 bytes at a time, so that numbers are cut
+    ReadableByteChannel in = new ReadableByteChannel() {
+      private final ByteBuffer input = ByteBuffer.wrap("123 45678 -9012 7 -0 x".getBytes(StandardCharsets.US_ASCII));
+
+      @Override
+      public int read(ByteBuffer dst) {
+        if (!input.hasRemaining()) {
+          return -1;
+        }
+        int n = Math.min(3, Math.min(dst.remaining(), input.remaining()));
+        dst.put(input.slice(input.position(), n));
+        input.position(input.position() + n);
+        return n;
+      }
+
+      @Override
+      public boolean isOpen() {
+        return true;
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+    Interpreter.ChannelIO io = io(in, StandardCharsets.US_ASCII);
+    for (int expected : new int[]{123, 45678, -9012, 7, 0}) {
+      assertEquals(expected, io.readInt());
+    }
+    assertEquals('x', io.read());
+    assertEquals(0, io.read());
+    assertEquals(0, io.readInt());
+  }
+
+  @Test
+  public void outputBeforeInput() {
+    int[] written = {-1};
+    ReadableByteChannel in = new ReadableByteChannel() {
+      @Override
+      public int read(ByteBuffer dst) {
+        if (written[0] >= 0) {
+          return -1;
+        }
+        written[0] = out.size(); // a prompt must be visible before the program waits for input
+        dst.put((byte) '5');
+        return 1;
+      }
+
+      @Override
+      public boolean isOpen() {
+        return true;
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+    Interpreter.ChannelIO io = io(in, StandardCharsets.US_ASCII);
+    io.write('?', 3);
+    assertEquals(5, io.readInt());
+    assertEquals(3, written[0]);
+  }
+
+  @Test
+  public void encodeChars() {
+    Interpreter.ChannelIO io = io("", StandardCharsets.UTF_8);
+    for (int n = 0; n < 5000; n++) { // 2 bytes per char in UTF-8, cut at the end of the byte buffer
+      io.write(n % 2 == 0 ? 'ä' : 'a');
+    }
+    io.flush();
+    assertEquals("äa".repeat(2500), out.toString(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void runProgram() throws IOException {
+    initCode(ECHO);
+    Program program = program();
+    StringBuilder input = new StringBuilder();
+    for (int n = 1; n < 1000; n++) {
+      input.append(n * 37 % 1000 - 300).append(n % 7 == 0 ? "\n" : " ");
+    }
+    input.append(0);
+    Interpreter.BufferIO expected = new Interpreter.BufferIO(input.toString());
+    new Interpreter.Builder().program(program).io(expected).build().run();
+    assertTrue(expected.getOutput().length() > 3 * 8192);
+
+    Interpreter.ChannelIO io = io(input.toString(), StandardCharsets.US_ASCII);
+    new Interpreter.Builder().program(program).io(io).build().run();
+    assertEquals(expected.getOutput(), out.toString(StandardCharsets.US_ASCII));
+  }
+
+  @Test
+  public void mappedFile(@TempDir Path dir) throws IOException {
+    StringBuilder input = new StringBuilder();
+    for (int n = 0; n < 20000; n++) {
+      input.append(n * 7919 % 100003 - 50000).append(n % 10 == 9 ? "\n" : " ");
+    }
+    Path file = dir.resolve("input.txt");
+    Files.writeString(file, input, StandardCharsets.ISO_8859_1);
+    Interpreter.BufferIO expected = new Interpreter.BufferIO(input.toString());
+    try (FileChannel in = FileChannel.open(file)) {
+      Interpreter.ChannelIO io = io(in, StandardCharsets.US_ASCII);
+      for (int n = 0; n < 20000; n++) {
+        assertEquals(expected.readInt(), io.readInt(), "number " + n);
+      }
+      assertEquals(0, io.readInt());
+      assertEquals(0, in.position(), "mapped, not read");
+    }
+  }
+
+  @Test
+  public void mappedFromPosition(@TempDir Path dir) throws IOException {
+    Path file = dir.resolve("input.txt");
+    Files.writeString(file, "11 22 33 44", StandardCharsets.ISO_8859_1);
+    try (FileChannel in = FileChannel.open(file)) {
+      in.position(5); // e.g. standard input after a header read by another program
+      Interpreter.ChannelIO io = io(in, StandardCharsets.US_ASCII);
+      assertEquals(' ', io.read());
+      assertEquals(33, io.readInt());
+      assertEquals(44, io.readInt());
+      assertEquals(0, io.readInt());
+      assertEquals(5, in.position(), "mapped, not read");
+    }
+  }
+
+  @Test
+  public void emptyFile(@TempDir Path dir) throws IOException {
+    Path file = dir.resolve("input.txt");
+    Files.writeString(file, "");
+    try (FileChannel in = FileChannel.open(file)) {
+      Interpreter.ChannelIO io = io(in, StandardCharsets.US_ASCII);
+      assertEquals(0, io.readInt());
+      assertEquals(0, io.read());
+    }
+  }
+
+  @Test
+  public void acrossWindows(@TempDir Path dir) throws IOException {
+    int window = 1 << 26; // ChannelIO.WINDOW
+    Path file = dir.resolve("input.txt");
+    try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+      // a sparse file of zeros with numbers around the end of the first window
+      out.write(ByteBuffer.wrap("12345 -678 9".getBytes(StandardCharsets.US_ASCII)), window - 3);
+    }
+    try (FileChannel in = FileChannel.open(file)) {
+      Interpreter.ChannelIO io = io(in, StandardCharsets.US_ASCII);
+      for (int i = 0; i < window - 3; i++) {
+        if (io.read() != 0) {
+          fail("zero expected at " + i);
+        }
+      }
+      assertEquals(12345, io.readInt());
+      assertEquals(-678, io.readInt());
+      assertEquals(9, io.readInt());
+      assertEquals(0, io.read());
+    }
+  }
+
+  @Test
+  public void runProgramOnMappedFile(@TempDir Path dir) throws IOException {
+    initCode(ECHO);
+    Program program = program();
+    String input = "5 -17 123456 99 3\n42 0";
+    Interpreter.BufferIO expected = new Interpreter.BufferIO(input);
+    new Interpreter.Builder().program(program).io(expected).build().run();
+
+    Path file = dir.resolve("input.txt");
+    Files.writeString(file, input, StandardCharsets.ISO_8859_1);
+    try (FileChannel in = FileChannel.open(file)) {
+      new Interpreter.Builder().program(program).io(io(in, StandardCharsets.US_ASCII)).build().run();
+    }
+    assertEquals(expected.getOutput(), out.toString(StandardCharsets.US_ASCII));
+  }
+}
@@ -0,0 +1,133 @@
+package ssw.mj.test;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ssw.mj.Interpreter;
+import ssw.mj.Program;
+import ssw.mj.test.support.BaseCompilerTestCase;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A program suspended before its first input, written to a snapshot by
+ * {@link Interpreter#checkpoint} and continued by an interpreter built with
+ * {@link Interpreter.Builder#restore}, must print the same as a run that
+ * was never interrupted, on either heap backend.
+ */
+public class CheckpointTest extends BaseCompilerTestCase {
+
+  /**
+   * Builds a list that survives several collections before it reads its
+   * input, then uses the list and keeps allocating.
+   */
+  private static final String SETUP = "program Setup" + LF + //
+          "  class Node { int v; Node next; int[] a; }" + LF + //
+          "  Node list;" + LF + //
+          "  int[] junk;" + LF + //
+          "{" + LF + //
+          "  int sum(Node n) int s; { while (n != null) { s = s + n.v * n.a[0]; n = n.next; } return s; }" + LF + //
+          "  void main() int i, k; Node n; {" + LF + //
+          "    while (i < 40) {" + LF + //
+          "      n = new Node; n.v = i; n.a = new int[i % 4 + 1]; n.a[0] = i % 5; n.next = list; list = n;" + LF + //
+          "      junk = new int[30];" + LF + //
+          "      i++;" + LF + //
+          "    }" + LF + //
+          "    print(sum(list)); print(' ');" + LF + //
+          "    read(k);" + LF + //
+          "    i = 0;" + LF + //
+          "    while (i < 200) { junk = new int[20]; list.next.v = list.next.v + k; i++; }" + LF + //
+          "    print(sum(list));" + LF + //
+          "  }" + LF + //
+          "}";
+
+  private Program program;
+
+  private Interpreter.Builder builder(boolean offHeap) {
+    return new Interpreter.Builder().program(program).heapSize(64, 1100).offHeap(offHeap);
+  }
+
+  /**
+   * Output of a run on <code>input</code> that is suspended before the
+   * input, written to <code>snapshot</code> with <code>offHeap</code> and
+   * continued from it with <code>restoreOffHeap</code>.
+   */
+  private String runRestored(Path snapshot, boolean offHeap, boolean restoreOffHeap, String input)
+          throws IOException {
+    Interpreter.BufferIO io = new Interpreter.BufferIO("");
+    Interpreter interpreter = builder(offHeap).suspendAtInput(true).io(io).build();
+    assertFalse(interpreter.run(Long.MAX_VALUE), "suspended at the input");
+    assertTrue(interpreter.gcStats().majorCollections() > 0, "collected before the checkpoint");
+    interpreter.checkpoint(snapshot);
+    return io.getOutput() + runFrom(snapshot, restoreOffHeap, input);
+  }
+
+  @Test
+  public void roundTrip(@TempDir Path dir) throws IOException {
+    initCode(SETUP);
+    program = program();
+    for (boolean offHeap : new boolean[]{false, true}) {
+      for (boolean restoreOffHeap : new boolean[]{false, true}) {
+        for (String input : new String[]{"0", "3", "-17"}) {
+          String expected = run(offHeap, input);
+          Path snapshot = dir.resolve("setup-" + offHeap + "-" + restoreOffHeap + "-" + input + ".snap");
+          assertEquals(expected, runRestored(snapshot, offHeap, restoreOffHeap, input),
+                  "offHeap " + offHeap + ", restored offHeap " + restoreOffHeap + ", input " + input);
+        }
+      }
+    }
+    assertEquals("1640 4640", run(false, "5"));
+  }
+
+  @Test
+  public void restoreTwice(@TempDir Path dir) throws IOException {
+    initCode(SETUP);
+    program = program();
+    for (boolean offHeap : new boolean[]{false, true}) {
+      Path snapshot = dir.resolve("setup-" + offHeap + ".snap");
+      String prefix = runRestored(snapshot, offHeap, offHeap, "1");
+      prefix = prefix.substring(0, prefix.indexOf(' ') + 1);
+      // a restored heap mapped from the snapshot does not change the file
+      for (String input : new String[]{"2", "9", "2"}) {
+        assertEquals(run(offHeap, input), prefix + runFrom(snapshot, offHeap, input), "offHeap " + offHeap);
+      }
+    }
+  }
+
+  @Test
+  public void checkpointNeedsSuspendedProgram(@TempDir Path dir) throws IOException {
+    initCode(SETUP);
+    program = program();
+    Interpreter interpreter = builder(false).io(new Interpreter.BufferIO("1")).build();
+    assertThrows(IllegalStateException.class, () -> interpreter.checkpoint(dir.resolve("none.snap")));
+    assertTrue(interpreter.run(Long.MAX_VALUE));
+    assertThrows(IllegalStateException.class, () -> interpreter.checkpoint(dir.resolve("none.snap")));
+  }
+
+  @Test
+  public void snapshotOfAnotherProgram(@TempDir Path dir) throws IOException {
+    initCode(SETUP);
+    program = program();
+    Path snapshot = dir.resolve("setup.snap");
+    runRestored(snapshot, false, false, "1");
+    initCode(SETUP.replace("i < 200", "i < 201"));
+    program = program();
+    for (boolean offHeap : new boolean[]{false, true}) {
+      assertThrows(IOException.class, () -> builder(offHeap).restore(snapshot).build());
+    }
+  }
+
+  private String run(boolean offHeap, String input) throws IOException {
+    Interpreter.BufferIO io = new Interpreter.BufferIO(input);
+    assertTrue(builder(offHeap).io(io).build().run(Long.MAX_VALUE));
+    return io.getOutput();
+  }
+
+  private String runFrom(Path snapshot, boolean offHeap, String input) throws IOException {
+    Interpreter.BufferIO io = new Interpreter.BufferIO(input);
+    assertTrue(builder(offHeap).restore(snapshot).io(io).build().run(Long.MAX_VALUE), "terminated");
+    return io.getOutput();
+  }
+}
@@ -0,0 +1,153 @@
+package ssw.mj.test;
+
+import org.junit.jupiter.api.Test;
+import ssw.mj.Interpreter;
+import ssw.mj.Program;
+import ssw.mj.test.support.BaseCompilerTestCase;
+import ssw.mj.verify.EscapeAnalysis;
+import ssw.mj.verify.VerifiedMethod;
+import ssw.mj.verify.VerifiedProgram;
+import ssw.mj.verify.VerifyException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static ssw.mj.impl.Code.OpCode.*;
+import static ssw.mj.test.support.ByteCodeTestSupport.code;
+
+/**
+ * Objects that the verifier replaces by local variables because they do not
+ * escape their method (see {@link EscapeAnalysis}), and objects it must
+ * leave on the heap.
+ */
+public class EscapeAnalysisTest extends BaseCompilerTestCase {
+
+  @Test
+  public void localObjects() throws VerifyException, IOException {
+    initCode("program P" + LF + //
+            "  class Point { int x, y; }" + LF + //
+            "{" + LF + //
+            "  void main() Point p; int i, s; Point q; {" + LF + //
+            "    p = new Point; p.x = 3; p.y = 4;" + LF + //
+            "    while (i < 3) { q = new Point; q.x = i; q.x++; s = s + q.x; i++; }" + LF + //
+            "    print(p.x * p.x + p.y * p.y + s);" + LF + //
+            "  }" + LF + //
+            "}");
+    Program program = program();
+    VerifiedProgram p = program.verify();
+    EscapeAnalysis e = EscapeAnalysis.analyze(p);
+    assertEquals(List.of(0, 3), replaced(e, p.main()));
+    EscapeAnalysis.Replacement r = e.replacements().get(0);
+    assertEquals(4, r.first()); // after the method's own locals
+    assertEquals(2, r.size());
+    assertEquals(1, r.sites().size());
+    assertEquals(6, e.replacements().get(1).first());
+
+    Interpreter.BufferIO io = new Interpreter.BufferIO("");
+    new Interpreter.Builder().program(program).io(io).build().run();
+    assertEquals("31", io.getOutput());
+  }
+
+  @Test
+  public void passedToMethod() throws VerifyException {
+    initCode("program P" + LF + //
+            "  class Point { int x, y; }" + LF + //
+            "{" + LF + //
+            "  void show(Point a) { print(a.x); }" + LF + //
+            "  void main() Point p, q; {" + LF + //
+            "    p = new Point; p.x = 1; print(p.x);" + LF + //
+            "    q = new Point; q.x = 2; show(q);" + LF + //
+            "  }" + LF + //
+            "}");
+    VerifiedProgram p = program().verify();
+    EscapeAnalysis e = EscapeAnalysis.analyze(p);
+    assertEquals(List.of(0), replaced(e, p.main()));
+    for (VerifiedMethod m : p.methods()) {
+      if (m.start() != p.main().start()) {
+        assertEquals(List.of(), replaced(e, m)); // a parameter
+      }
+    }
+  }
+
+  @Test
+  public void storedOrCompared() throws VerifyException {
+    initCode("program P" + LF + //
+            "  class Point { int x, y; }" + LF + //
+            "  Point g;" + LF + //
+            "{" + LF + //
+            "  void main() Point p, q; {" + LF + //
+            "    p = new Point; p.x = 1; g = p;" + LF + //
+            "    q = new Point; if (q != null) print(q.x);" + LF + //
+            "  }" + LF + //
+            "}");
+    assertEquals(List.of(), replacedInMain(program()));
+  }
+
+  @Test
+  public void notAssignedNew() throws VerifyException {
+    initCode("program P" + LF + //
+            "  class Point { int x, y; }" + LF + //
+            "  Point g;" + LF + //
+            "{" + LF + //
+            "  void main() Point p; int i; {" + LF + //
+            "    g = new Point;" + LF + //
+            "    read(i);" + LF + //
+            "    if (i > 0) p = new Point; else p = g;" + LF + //
+            "    p.x = i;" + LF + //
+            "  }" + LF + //
+            "}");
+    assertEquals(List.of(), replacedInMain(program()));
+  }
+
+  @Test
+  public void usedAcrossJumpTarget() throws VerifyException {
+    // no source code keeps an object on the stack across a jump target
+    assertEquals(List.of(), replacedInMain(new Program(code(
+            enter, 0, 2, // 0
+            load_1, const_0, jeq, 0, 9, // 3: to 14
+            new_, 0, 2, // 8: another object
+            jmp, 0, 8, // 11: to 19
+            new_, 0, 2, store_0, // 14
+            load_0, // 18: the object
+            getfield, 0, 0, // 19: also reached with the other object
+            const_0, print, // 22
+            exit, return_), 0, 0, null, null))); // 24
+    assertEquals(List.of(), replacedInMain(new Program(code(
+            enter, 0, 2, // 0
+            new_, 0, 2, store_0, // 3
+            load_0, // 7: the object
+            load_1, const_0, jeq, 0, 3, // 8: to 13, with the object on the stack either way
+            getfield, 0, 0, // 13
+            const_0, print, // 16
+            exit, return_), 0, 0, null, null))); // 18
+    assertEquals(List.of(0), replacedInMain(new Program(code(
+            enter, 0, 2, // 0
+            new_, 0, 2, store_0, // 3
+            load_0, // 7
+            nop, nop, nop, nop, nop, // 8
+            getfield, 0, 0, // 13
+            const_0, print, // 16
+            exit, return_), 0, 0, null, null))); // 18
+  }
+
+  private static List<Integer> replacedInMain(Program program) throws VerifyException {
+    VerifiedProgram p = program.verify();
+    return replaced(EscapeAnalysis.analyze(p), p.main());
+  }
+
+  /**
+   * The local variables of method <code>m</code> whose objects are
+   * replaced.
+   */
+  private static List<Integer> replaced(EscapeAnalysis e, VerifiedMethod m) {
+    List<Integer> locals = new ArrayList<>();
+    for (EscapeAnalysis.Replacement r : e.replacements()) {
+      if (r.method() == m.start()) {
+        locals.add(r.local());
+      }
+    }
+    return locals;
+  }
+}
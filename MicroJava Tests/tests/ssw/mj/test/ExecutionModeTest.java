@@ -0,0 +1,271 @@
+package ssw.mj.test;
+
+import org.junit.jupiter.api.Test;
+import ssw.mj.GcStats;
+import ssw.mj.Interpreter;
+import ssw.mj.test.support.BaseCompilerTestCase;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs programs interpreted, also in slices cut by fuel, translated to JVM
+ * byte code and in tiered mode, which must all print the same.
+ */
+public class ExecutionModeTest extends BaseCompilerTestCase {
+
+  /**
+   * Allocates far more than the heap can hold, keeping references in locals
+   * and on the expression stack across allocations and calls of methods that
+   * allocate, so that the heap must be collected while compiled code runs.
+   */
+  private static final String CHURN = "program Churn" + LF + //
+          "  class Node { int v; Node next; int[] a; }" + LF + //
+          "  Node[] ring;" + LF + //
+          "  Node made;" + LF + //
+          "{" + LF + //
+          "  int cons(int v, Node next) Node n; {" + LF + //
+          "    n = new Node; n.v = v; n.next = next; n.a = new int[3]; n.a[1] = v; made = n;" + LF + //
+          "    return v;" + LF + //
+          "  }" + LF + //
+          "  int sum(Node n) int s; { while (n != null) { s = s + n.a[1] - n.v + 1; n = n.next; } return s; }" + LF + //
+          "  void main() int i, t; Node l; {" + LF + //
+          "    ring = new Node[16];" + LF + //
+          "    while (i < 16) { cons(i, null); ring[i] = made; i++; }" + LF + //
+          "    i = 0;" + LF + //
+          "    while (i < 20000) {" + LF + //
+          "      cons(i, ring[(i + 15) % 16]); ring[i % 16] = made;" + LF + //
+          "      if (i % 4 == 0) ring[i % 16].next = null;" + LF + //
+          "      ring[i % 16].a = new int[i % 7 + 2];" + LF + //
+          "      ring[i % 16].a[1] = ring[i % 16].v;" + LF + //
+          "      l = new Node; l.a = new int[2];" + LF + //
+          "      l.v = cons(i, l);" + LF + //
+          "      l.next = made; made.next = null;" + LF + //
+          "      ring[(i + 8) % 16].v = cons(i, ring[(i + 8) % 16]) + ring[(i + 8) % 16].v;" + LF + //
+          "      t = t + sum(ring[i % 16]) + sum(l.next) + l.v;" + LF + //
+          "      i++;" + LF + //
+          "    }" + LF + //
+          "    print(t);" + LF + //
+          "  }" + LF + //
+          "}";
+
+  /**
+   * Keeps a chain of objects alive as deep as the input says, until the
+   * heap cannot grow any further.
+   */
+  private static final String FULL = "program Full" + LF + //
+          "  class Node { int v; Node next; }" + LF + //
+          "  Node made;" + LF + //
+          "{" + LF + //
+          "  int mk(int v) Node n; { n = new Node; n.v = v; made = n; return v; }" + LF + //
+          "  int chain(int n, Node prev) Node own; int[] pad; {" + LF + //
+          "    if (n == 0) return 0;" + LF + //
+          "    mk(n); own = made; own.next = prev;" + LF + //
+          "    pad = new int[n % 5 + 1]; pad[0] = n;" + LF + //
+          "    return chain(n - 1, own) + own.v - own.next.v + pad[0] - n;" + LF + //
+          "  }" + LF + //
+          "  void main() int n; {" + LF + //
+          "    read(n);" + LF + //
+          "    mk(n + 1);" + LF + //
+          "    print(chain(n, made));" + LF + //
+          "  }" + LF + //
+          "}";
+
+  /**
+   * Recurses as deep as the input says, allocating on the way down and
+   * checking the objects on the way up, when the heap has been collected
+   * many times.
+   */
+  private static final String RECURSION = "program Recursion" + LF + //
+          "  class Node { int v; Node next; }" + LF + //
+          "  Node made;" + LF + //
+          "{" + LF + //
+          "  int rec(int n) { if (n == 0) return 0; return rec(n - 1) + 1; }" + LF + //
+          "  int mk(int v) Node n; { n = new Node; n.v = v; made = n; return v; }" + LF + //
+          "  int chain(int n, Node prev) Node own; int[] pad; {" + LF + //
+          "    if (n == 0) return 0;" + LF + //
+          "    mk(n); own = made; own.next = prev;" + LF + //
+          "    pad = new int[n % 5 + 1]; pad[0] = n;" + LF + //
+          "    return chain(n - 1, own) + own.v - own.next.v + pad[0] - n;" + LF + //
+          "  }" + LF + //
+          "  void main() int n; {" + LF + //
+          "    read(n);" + LF + //
+          "    print(rec(n)); print(' ');" + LF + //
+          "    mk(n + 1);" + LF + //
+          "    print(chain(n / 4000, made));" + LF + //
+          "  }" + LF + //
+          "}";
+
+  /**
+   * Calls, allocates and prints all along a loop, so that a run cut into
+   * slices by fuel is suspended in every kind of place.
+   */
+  private static final String SLICES = "program Slices" + LF + //
+          "  class Cell { int v; Cell next; }" + LF + //
+          "{" + LF + //
+          "  int tri(int n) { if (n == 0) return 0; return n + tri(n - 1); }" + LF + //
+          "  void main() int i, s; Cell c; {" + LF + //
+          "    while (i < 300) {" + LF + //
+          "      c = new Cell; c.v = i; s = s + tri(i % 25) % 7 + c.v % 3;" + LF + //
+          "      if (i % 50 == 0) { print(s); print(' '); }" + LF + //
+          "      i++;" + LF + //
+          "    }" + LF + //
+          "    print(s);" + LF + //
+          "  }" + LF + //
+          "}";
+
+  /**
+   * The loops of {@link Interpreter#run(long)}: without stack checks, with
+   * the listener hooks, with stack checks (the expression stack is too
+   * small for the verified depth of <code>tri</code>, so the run switches
+   * to checked interpretation halfway) and on the off-heap backend.
+   */
+  private static final String[] FUEL_MODES = {"interpreted", "profiled", "checked", "offHeap"};
+
+  private String run(String mode) throws IOException {
+    return run(mode, "");
+  }
+
+  /**
+   * Output of a run on <code>input</code>, followed by the runtime error if
+   * there is one.
+   */
+  private String run(String mode, String input) throws IOException {
+    Interpreter.BufferIO io = new Interpreter.BufferIO(input);
+    Interpreter interpreter = interpreter(mode, io);
+    try {
+      if (mode.equals("compiled")) {
+        interpreter.runCompiled();
+      } else if (mode.startsWith("tiered=")) {
+        interpreter.runTiered(Integer.parseInt(mode.substring("tiered=".length())));
+      } else {
+        interpreter.run();
+      }
+    } catch (IllegalStateException e) {
+      return io.getOutput() + e.getMessage();
+    }
+    return io.getOutput();
+  }
+
+  private Interpreter interpreter(String mode, Interpreter.IO io) throws IOException {
+    Interpreter.Builder builder = new Interpreter.Builder()
+            .code(parser.code.buf, parser.code.mainpc, parser.code.dataSize)
+            .refMaps(parser.code.refMaps)
+            .heapSize(64, 1100)
+            .io(io);
+    switch (mode) {
+      case "profiled" -> builder.profile(true);
+      case "checked" -> builder.expressionStackSize(27);
+      case "offHeap" -> builder.offHeap(true);
+      default -> {
+      }
+    }
+    return builder.build();
+  }
+
+  private void compile(String source) {
+    initCode(source);
+    parser.parse();
+    assertEquals("", parser.scanner.errors.dump(), "Errors");
+  }
+
+  @Test
+  public void collectInCompiledCode() throws IOException {
+    compile(CHURN);
+    assertEquals("200060000", run("interpreted"));
+    assertEquals("200060000", run("compiled"));
+    assertEquals("200060000", run("tiered=1"));
+    assertEquals("200060000", run("tiered=2"));
+  }
+
+  @Test
+  public void fullHeap() throws IOException {
+    compile(FULL);
+    for (String mode : new String[]{"interpreted", "compiled", "tiered=1"}) {
+      for (int n = 95; n <= 110; n++) {
+        assertEquals(String.valueOf(-n), run(mode, String.valueOf(n)), mode + ", input " + n);
+      }
+      assertEquals("heap overflow", run(mode, "202"), mode);
+    }
+  }
+
+  @Test
+  public void deepRecursion() throws IOException {
+    compile(RECURSION);
+    for (String input : new String[]{"10", "200000", "349523", "349524"}) {
+      String expected = run("interpreted", input);
+      assertEquals(expected, run("tiered=1", input), "tiered=1, input " + input);
+      assertEquals(expected, run("compiled", input), "compiled, input " + input);
+    }
+    assertEquals("200000 -200000", run("interpreted", "200000"));
+    assertEquals("method stack overflow", run("interpreted", "349524"));
+  }
+
+  @Test
+  public void collectWhileSwitchingTiers() throws IOException {
+    compile(CHURN);
+    // the heap is collected about every third iteration: with threshold 200,
+    // main still runs interpreted and calls compiled methods during dozens of
+    // collections, and with 5000 its loop is compiled after more than a
+    // thousand collections in the interpreter
+    for (int threshold : new int[]{3, 200, 5000}) {
+      Interpreter.BufferIO io = new Interpreter.BufferIO("");
+      Interpreter interpreter = interpreter("interpreted", io);
+      interpreter.runTiered(threshold);
+      assertEquals("200060000", io.getOutput(), "threshold " + threshold);
+      GcStats gc = interpreter.gcStats();
+      assertTrue(gc.minorCollections() + gc.majorCollections() > 5000, "threshold " + threshold + ": " + gc);
+    }
+
+    // the recursion switches to compiled code a few frames deep
+    compile(RECURSION);
+    for (String input : new String[]{"10", "200000"}) {
+      String expected = run("interpreted", input);
+      assertEquals(expected, run("tiered=3", input), "tiered=3, input " + input);
+      assertEquals(expected, run("tiered=20", input), "tiered=20, input " + input);
+    }
+  }
+
+  @Test
+  public void runOutOfFuel() throws IOException {
+    compile(SLICES);
+    String expected = run("interpreted");
+    assertEquals("0 155 308 462 617 770 924", expected);
+    for (String mode : FUEL_MODES) {
+      for (long fuel : new long[]{1, 2, 17, 1000, 100000}) {
+        Interpreter.BufferIO io = new Interpreter.BufferIO("");
+        Interpreter interpreter = interpreter(mode, io);
+        int slices = 1;
+        while (!interpreter.run(fuel)) {
+          assertTrue(interpreter.fuel() <= 0, mode + ", fuel " + fuel + ": suspended with fuel left");
+          assertTrue(expected.startsWith(io.getOutput()), mode + ", fuel " + fuel + ": " + io.getOutput());
+          slices++;
+        }
+        assertTrue(interpreter.fuel() > 0, mode + ", fuel " + fuel + ": terminated without fuel");
+        assertEquals(expected, io.getOutput(), mode + ", fuel " + fuel);
+        if (fuel <= 1000) {
+          assertTrue(slices > 1, mode + ", fuel " + fuel + ": never suspended");
+        } else {
+          assertEquals(1, slices, mode + ", fuel " + fuel);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void endlessLoop() throws IOException {
+    compile("program Endless {" + LF + //
+            "  void main() int i; { print('x'); while (i == i) i++; }" + LF + //
+            "}");
+    for (String mode : FUEL_MODES) {
+      Interpreter.BufferIO io = new Interpreter.BufferIO("");
+      Interpreter interpreter = interpreter(mode, io);
+      for (int slice = 0; slice < 10; slice++) {
+        assertFalse(interpreter.run(1000), mode);
+        assertTrue(interpreter.fuel() <= 0, mode);
+      }
+      assertEquals("x", io.getOutput(), mode);
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package ssw.mj.test;
+
+import org.junit.jupiter.api.Test;
+import ssw.mj.ExecutionService;
+import ssw.mj.Interpreter;
+import ssw.mj.Program;
+import ssw.mj.test.support.BaseCompilerTestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Executions run concurrently by an {@link ExecutionService} must print what
+ * a single interpreter prints on the same input, and the service must stop
+ * the ones that use up their fuel and count every outcome.
+ */
+public class ExecutionServiceTest extends BaseCompilerTestCase {
+
+  /**
+   * Prints a sum of allocated values for a positive input, loops forever
+   * for 0 and divides by zero for a negative input.
+   */
+  private static final String JOBS = "program Jobs" + LF + //
+          "  class Cell { int v; }" + LF + //
+          "{" + LF + //
+          "  void main() int n, i, s; Cell c; {" + LF + //
+          "    read(n);" + LF + //
+          "    if (n == 0) while (i == i) i++;" + LF + //
+          "    if (n < 0) print(1 / (n - n));" + LF + //
+          "    while (i < n * 1000) { c = new Cell; c.v = i % 7; s = s + c.v; i++; }" + LF + //
+          "    print(s);" + LF + //
+          "  }" + LF + //
+          "}";
+
+  private static final long FUEL = 20 * ExecutionService.slice; // the endless loop is stopped after 20 slices
+
+  private Program program;
+
+  private String run(String input) throws IOException {
+    Interpreter.BufferIO io = new Interpreter.BufferIO(input);
+    new Interpreter.Builder().program(program).io(io).build().run();
+    return io.getOutput();
+  }
+
+  @Test
+  public void outcomes() throws IOException {
+    initCode(JOBS);
+    program = program();
+    String[] inputs = {"5", "0", "-3", "1", "20"};
+    List<CompletableFuture<ExecutionService.Result>> futures = new ArrayList<>();
+    ExecutionService service = new ExecutionService(program, new Interpreter.Builder(), FUEL);
+    try (service) {
+      for (String input : inputs) {
+        futures.add(service.submit(input));
+      }
+    }
+    for (int i = 0; i < inputs.length; i++) {
+      ExecutionService.Result r = futures.get(i).join();
+      assertTrue(r.latencyNanos() > 0, inputs[i]);
+      switch (inputs[i]) {
+        case "0" -> {
+          assertFalse(r.finished(), "stopped");
+          assertNull(r.error());
+          assertEquals(FUEL, r.fuel());
+        }
+        case "-3" -> {
+          assertTrue(r.finished());
+          assertEquals("division by zero", r.error());
+        }
+        default -> {
+          assertTrue(r.finished(), inputs[i]);
+          assertNull(r.error(), inputs[i]);
+          assertEquals(run(inputs[i]), r.output(), inputs[i]);
+          assertTrue(r.fuel() > 0 && r.fuel() < FUEL, inputs[i] + ": fuel " + r.fuel());
+        }
+      }
+    }
+    assertTrue(futures.get(4).join().fuel() > ExecutionService.slice, "20 runs in several slices");
+
+    ExecutionService.Stats stats = service.stats();
+    assertEquals(inputs.length, stats.submitted());
+    assertEquals(inputs.length, stats.completed());
+    assertEquals(1, stats.failed());
+    assertEquals(1, stats.stopped());
+    assertTrue(0 < stats.p50LatencyNanos() && stats.p50LatencyNanos() <= stats.p99LatencyNanos()
+            && stats.p99LatencyNanos() <= stats.maxLatencyNanos(), stats.toString());
+  }
+
+  @Test
+  public void manyConcurrentExecutions() throws IOException {
+    initCode(JOBS);
+    program = program();
+    List<CompletableFuture<ExecutionService.Result>> futures = new ArrayList<>();
+    ExecutionService service = new ExecutionService(program, new Interpreter.Builder().heapSize(256, 4096));
+    try (service) {
+      for (int i = 0; i < 200; i++) {
+        futures.add(service.submit(String.valueOf(i % 9 + 1)));
+      }
+    }
+    for (int i = 0; i < futures.size(); i++) {
+      ExecutionService.Result r = futures.get(i).join();
+      assertEquals(run(String.valueOf(i % 9 + 1)), r.output(), "execution " + i);
+      assertTrue(r.finished());
+    }
+    ExecutionService.Stats stats = service.stats();
+    assertEquals(200, stats.submitted());
+    assertEquals(200, stats.completed());
+    assertEquals(0, stats.failed() + stats.stopped());
+  }
+
+  @Test
+  public void invalidFuel() {
+    initCode(JOBS);
+    program = program();
+    assertThrows(IllegalArgumentException.class, () -> new ExecutionService(program, new Interpreter.Builder(), 0));
+  }
+}
@@ -0,0 +1,180 @@
+package ssw.mj.test;
+
+import org.junit.jupiter.api.Test;
+import ssw.mj.impl.IncrementalCompiler;
+import ssw.mj.impl.Parser;
+import ssw.mj.impl.Scanner;
+import ssw.mj.symtab.Obj;
+import ssw.mj.test.support.SymTabDumper;
+
+import java.io.StringReader;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Edits of a source compiled by an {@link IncrementalCompiler}, after which
+ * the errors and the symbol table must be those of a compilation of the
+ * whole source.
+ */
+public class IncrementalCompilerTest {
+  private static final String LF = "\n";
+
+  private static final String PROGRAM = "program P" + LF + //
+          "  final int max = 10;" + LF + //
+          "  class Pair { int a, b; }" + LF + //
+          "  int[] data;" + LF + //
+          "{" + LF + //
+          "  int sum(int[] a) int i, s; {" + LF + //
+          "    i = 0;" + LF + //
+          "    while (i < len(a)) { s = s + a[i]; i++; }" + LF + //
+          "    return s;" + LF + //
+          "  }" + LF + //
+          "  void fill(int n) int i; {" + LF + //
+          "    data = new int[n];" + LF + //
+          "    while (i < n) { data[i] = i * i; i++; }" + LF + //
+          "  }" + LF + //
+          "  void main() Pair p; {" + LF + //
+          "    fill(max);" + LF + //
+          "    p = new Pair;" + LF + //
+          "    p.a = sum(data);" + LF + //
+          "    print(p.a);" + LF + //
+          "  }" + LF + //
+          "}" + LF;
+
+  private IncrementalCompiler compiler;
+  private final StringBuilder source = new StringBuilder();
+
+  private void init(String text) {
+    compiler = new IncrementalCompiler(text);
+    source.setLength(0);
+    source.append(text);
+    expectSameAsCompilation(compiler.update());
+  }
+
+  /**
+   * Replaces the first occurrence of <code>old</code> after
+   * <code>after</code> in the source by <code>text</code>.
+   */
+  private IncrementalCompiler.Update edit(String after, String old, String text) {
+    int offset = source.indexOf(old, source.indexOf(after));
+    assertTrue(offset >= 0, old);
+    return edit(offset, old.length(), text);
+  }
+
+  private IncrementalCompiler.Update edit(int offset, int length, String text) {
+    IncrementalCompiler.Update u = compiler.edit(offset, length, text);
+    source.replace(offset, offset + length, text);
+    expectSameAsCompilation(u);
+    return u;
+  }
+
+  /**
+   * Compares <code>u</code> with a compilation of the whole source.
+   */
+  private void expectSameAsCompilation(IncrementalCompiler.Update u) {
+    String text = source.toString();
+    assertEquals(text, compiler.text());
+    Parser parser = new Parser(new Scanner(new StringReader(text)));
+    parser.parse();
+    assertEquals(parser.scanner.errors.getDiagnostics(), u.errors(), text);
+    Obj program = null;
+    for (Obj o : parser.tab.curScope.locals().values()) {
+      if (o.kind == Obj.Kind.Prog) {
+        program = o;
+      }
+    }
+    assertEquals(program == null ? null : SymTabDumper.dump(program),
+            u.program() == null ? null : SymTabDumper.dump(u.program()), text);
+  }
+
+  @Test
+  public void editInMethod() {
+    init(PROGRAM);
+    assertEquals(0, compiler.update().errors().size());
+    IncrementalCompiler.Update u = edit("int sum", "s = s + a[i];", "s = s + a[i] * 2;");
+    assertTrue(u.parsed() < 60, "only sum is parsed again"); // of about 130 tokens
+    edit("int sum", "* 2", "*");
+    assertEquals(1, compiler.update().errors().size());
+    edit("int sum", "*;", "* 3;");
+    edit("void main", "print(p.a);", "print(p.a); print(p.b);");
+    assertEquals(0, compiler.update().errors().size());
+  }
+
+  @Test
+  public void signatureChange() {
+    init(PROGRAM);
+    edit("int sum", "int[] a)", "int[] a, int k)"); // the call in main has too few parameters
+    assertFalse(compiler.update().errors().isEmpty());
+    edit("void main", "sum(data)", "sum(data, 2)");
+    assertEquals(0, compiler.update().errors().size());
+    edit("void fill", "void fill(int n) int i;", "void fill(char n) int i;");
+    edit("void fill", "fill", "fill2");
+    edit("void fill", "void fill2", "int fill2");
+  }
+
+  @Test
+  public void openComment() {
+    init(PROGRAM);
+    edit("{", "  void fill", "/*  void fill"); // up to the end of the source
+    edit("void main", "p = new Pair;", "p = new Pair; */");
+    edit("{", "/*", "/* /*"); // nested
+    edit("{", "/* /*", "");
+    edit("void main", " */", "");
+    edit("void main", "print(", "// print(");
+  }
+
+  @Test
+  public void editDeclarations() {
+    init(PROGRAM);
+    edit("program", "int[] data;", "int[] data; char c;");
+    edit("program", "final int max = 10;", "final int max = 'x';");
+    assertFalse(compiler.update().errors().isEmpty());
+    edit("program", "class Pair { int a, b; }", "class Pair { int a; }"); // p.a remains
+    edit("program", "{" + LF + "  int sum", "  int sum");
+  }
+
+  @Test
+  public void callAtEndOfCodeBuffer() {
+    // the call returning the value ends at every address around the end of the first code buffer
+    for (int n = 0; n < 120; n++) {
+      init("program P" + LF + //
+              "{" + LF + //
+              "  int one() { return 1; }" + LF + //
+              "  void main() int i; {" + LF + //
+              "    " + "i = 0; ".repeat(n / 2) + "i++; ".repeat(n % 2) + LF + //
+              "    i = one();" + LF + //
+              "    print(i);" + LF + //
+              "  }" + LF + //
+              "}" + LF);
+      edit("void main", "print(i);", "print(i + 1);");
+    }
+  }
+
+  @Test
+  public void randomEdits() {
+    String[] inserts = {"", " ", LF, "/*", "*/", "'", "{", "}", "(", ")", ";", "int", "x", "i++;", "return 1;",
+            "void m() {}", "int f(int a) { return a; }", "print(1);", "=", "sum", "data", "Pair"};
+    Random random = new Random(25);
+    init(PROGRAM);
+    for (int n = 0; n < 300; n++) {
+      int offset = random.nextInt(source.length() + 1);
+      int length = Math.min(random.nextInt(8), source.length() - offset);
+      edit(offset, length, inserts[random.nextInt(inserts.length)]);
+      if (n % 50 == 49) {
+        edit(0, source.length(), PROGRAM); // back to a correct program
+      }
+    }
+  }
+
+  @Test
+  public void longText() {
+    init(PROGRAM);
+    String block = "    print(max);" + LF;
+    for (int n = 0; n < 40; n++) { // beyond the gap
+      edit("void main", "    print(p.a);", block.repeat(20) + "    print(p.a);");
+    }
+    edit(source.indexOf("int sum"), 0, "int zero() { return 0; }" + LF + "  ");
+    edit(source.length() - 2, 1, "}");
+  }
+}
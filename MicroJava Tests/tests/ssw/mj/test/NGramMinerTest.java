@@ -0,0 +1,67 @@
+package ssw.mj.test;
+
+import org.junit.jupiter.api.Test;
+import ssw.mj.Interpreter;
+import ssw.mj.codegen.NGramMiner;
+import ssw.mj.test.support.BaseCompilerTestCase;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The n-gram counts of a {@link NGramMiner}, weighted by the loops around
+ * the n-grams or by their executions in a profiled run.
+ */
+public class NGramMinerTest extends BaseCompilerTestCase {
+
+  /**
+   * Loops as often as the input says; the loop body starts with the
+   * n-gram "load load add".
+   */
+  private static final String LOOP = "program Loop" + LF + //
+          "{" + LF + //
+          "  void main() int n, i, s; {" + LF + //
+          "    read(n);" + LF + //
+          "    while (i < n) { s = s + i; i++; }" + LF + //
+          "    print(s);" + LF + //
+          "    if (n < 0) print(s + s);" + LF + //
+          "  }" + LF + //
+          "}";
+
+  private static Map<String, Long> counts(NGramMiner miner) {
+    Map<String, Long> counts = new HashMap<>();
+    for (Map.Entry<String, Long> e : miner.top(Integer.MAX_VALUE)) {
+      counts.put(e.getKey(), e.getValue());
+    }
+    return counts;
+  }
+
+  @Test
+  public void staticWeights() {
+    initCode(LOOP);
+    program();
+    NGramMiner miner = new NGramMiner(3);
+    miner.add(parser.code.buf, parser.code.pc);
+    Map<String, Long> counts = counts(miner);
+    assertEquals(10 + 1, counts.get("load load add")); // in the loop and in the last print
+    assertEquals(10, counts.get("load load jge")); // the loop condition
+  }
+
+  @Test
+  public void executions() throws IOException {
+    initCode(LOOP);
+    Interpreter interpreter = new Interpreter.Builder().program(program()).profile(true)
+            .io(new Interpreter.BufferIO("37")).build();
+    interpreter.run();
+    NGramMiner miner = new NGramMiner(3);
+    miner.add(parser.code.buf, parser.code.pc, interpreter.profile());
+    miner.add(parser.code.buf, parser.code.pc, interpreter.profile());
+    Map<String, Long> counts = counts(miner);
+    assertEquals(2 * 37, counts.get("load load add")); // the last print is not executed
+    assertEquals(2 * 38, counts.get("load load jge"));
+    assertEquals(2, counts.get("load const jge")); // n < 0
+  }
+}
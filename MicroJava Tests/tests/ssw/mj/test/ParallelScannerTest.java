@@ -0,0 +1,103 @@
+package ssw.mj.test;
+
+import org.junit.jupiter.api.Test;
+import ssw.mj.impl.ParallelScanner;
+import ssw.mj.impl.Scanner;
+import ssw.mj.scanner.Token;
+
+import java.io.StringReader;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * A {@link ParallelScanner} must return the same tokens and report the same
+ * errors as a sequential {@link Scanner}, however its chunks cut the source.
+ */
+public class ParallelScannerTest {
+  private static final String LF = "\n";
+  private static final int MAX_CHUNK_SIZE = 40;
+
+  /**
+   * Fragments of sources that change the state of the scanner, from which
+   * random sources are built.
+   */
+  private static final String[] FRAGMENTS = {
+          "/*", "*/", "/* a /* b */ c */", "'", "'x'", "'\\''", "'\\n'", "'\\r'", "'/'", "'*'", "''",
+          "'\\q'", "\"", "\n", "\r", "\r\n", " ", "\t", "x", "abc", "123", "99999999999", "/", "*", "+",
+          "==", "=", ";", "{", "}", "program", "#", "//"
+  };
+
+  private static String tokens(Scanner scanner) {
+    StringBuilder b = new StringBuilder();
+    Token t;
+    do {
+      t = scanner.next();
+      b.append(t).append(", id ").append(t.id).append('\n');
+    } while (t.kind != Token.Kind.eof);
+    return b.append(scanner.errors.dump()).toString();
+  }
+
+  private static void expectSameAsSequential(String source) {
+    String expected = tokens(new Scanner(new StringReader(source)));
+    for (int chunkSize = 1; chunkSize <= MAX_CHUNK_SIZE; chunkSize++) {
+      ParallelScanner scanner = new ParallelScanner(source.toCharArray(), ForkJoinPool.commonPool(), chunkSize);
+      assertEquals(expected, tokens(scanner), "chunk size " + chunkSize + " of " + source);
+    }
+  }
+
+  @Test
+  public void program() {
+    expectSameAsSequential("program P" + LF + //
+            "  final int max = 12;" + LF + //
+            "  char c;" + LF + //
+            "{" + LF + //
+            "  void main() int i; {" + LF + //
+            "    i = 0;" + LF + //
+            "    while (i < max) { print(i, 3); i++; }" + LF + //
+            "    c = 'a';" + LF + //
+            "  }" + LF + //
+            "}" + LF);
+  }
+
+  @Test
+  public void nestedComments() {
+    expectSameAsSequential("a /* b\n/* c\nd */ e\n*/ f\n/* g */ h /* i /*\nj\n*/\n*/ k\n/*/ l */ m\n");
+    expectSameAsSequential("x /* never\nclosed /* and\n nested */\n");
+  }
+
+  @Test
+  public void charConstants() {
+    expectSameAsSequential("c = '/';\nd = '*';\n e = '\\'';\nf = '\"';\ng = '/*';\nh = '*/';\ni = '\n';\n"
+            + "j = '';\nk = '\\n';\n/* 'x */ l = 'y';\n");
+    expectSameAsSequential("a = '\r\nb = '\r';\nc = 'x\n");
+  }
+
+  @Test
+  public void lineEnds() {
+    expectSameAsSequential("a\r\nb /* c\r\nd */ e\r\n'f'\r\n\r\ng\r\n");
+    expectSameAsSequential("a\rb /* c\rd */ e\r'f'\r\rg\r\n h\n\r i\r");
+    expectSameAsSequential("\n\n\r\n\r\n\n a \n\n");
+  }
+
+  @Test
+  public void randomSources() {
+    Random random = new Random(24);
+    for (int n = 0; n < 200; n++) {
+      StringBuilder source = new StringBuilder();
+      int length = random.nextInt(60);
+      for (int i = 0; i < length; i++) {
+        source.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+      }
+      expectSameAsSequential(source.toString());
+    }
+  }
+
+  @Test
+  public void shortSources() {
+    for (String source : new String[]{"", "\n", "\r\n", "/*", "'"}) {
+      expectSameAsSequential(source);
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package ssw.mj.test;
+
+import org.junit.jupiter.api.Test;
+import ssw.mj.Interpreter;
+import ssw.mj.Profile;
+import ssw.mj.Program;
+import ssw.mj.test.support.BaseCompilerTestCase;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The {@link Profile} of a program whose calls, loop iterations and
+ * instructions per method are known.
+ */
+public class ProfileTest extends BaseCompilerTestCase {
+
+  /**
+   * main calls sum 10 times, sum(k) calls sq k times (45 times in all), and
+   * fib(10) calls itself 176 times.
+   */
+  private static final String COUNTS = "program Counts" + LF + //
+          "{" + LF + //
+          "  int sq(int x) { return x * x; }" + LF + //
+          "  int sum(int n) int i, s; { while (i < n) { s = s + sq(i); i++; } return s; }" + LF + //
+          "  int fib(int n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }" + LF + //
+          "  void main() int k, t; {" + LF + //
+          "    while (k < 10) { t = t + sum(k); k++; }" + LF + //
+          "    print(t); print(' '); print(fib(10));" + LF + //
+          "  }" + LF + //
+          "}";
+
+  private Program program;
+
+  private Profile profile(long fuel) throws IOException {
+    Interpreter.BufferIO io = new Interpreter.BufferIO("");
+    Interpreter interpreter = new Interpreter.Builder().program(program).profile(true).io(io).build();
+    while (!interpreter.run(fuel)) {
+      assertTrue(interpreter.fuel() <= 0);
+    }
+    assertEquals("540 55", io.getOutput());
+    return interpreter.profile();
+  }
+
+  @Test
+  public void counts() throws IOException {
+    initCode(COUNTS);
+    program = program();
+    Profile profile = profile(Long.MAX_VALUE);
+    Map<String, Profile.MethodProfile> methods = new HashMap<>();
+    for (Profile.MethodProfile m : profile.methods()) {
+      methods.put(parser.code.methods.nameAt(m.address()), m);
+    }
+    assertEquals(4, methods.size());
+
+    // enter, load_0, load_0, mul, exit, return
+    assertMethod(45, 45 * 6, 45 * 6, methods.get("sq"));
+    // per call of sum(k): enter, k + 1 loop conditions of 3 instructions,
+    // k iterations of 7 and 3 to return
+    int sum = 0;
+    for (int k = 0; k < 10; k++) {
+      sum += 1 + 3 * (k + 1) + 7 * k + 3;
+    }
+    assertMethod(10, sum + 45 * 6, sum, methods.get("sum"));
+    // 89 calls with n < 2 execute 7 instructions, the 88 others 15; the
+    // recursive calls are only counted in the exclusive count
+    assertMethod(177, 89 * 7 + 88 * 15, 89 * 7 + 88 * 15, methods.get("fib"));
+    assertMethod(1, profile.instructions(), profile.instructions() - sum - 45 * 6 - 89 * 7 - 88 * 15,
+            methods.get("main"));
+
+    long executed = 0;
+    Map<String, Long> opcodes = new HashMap<>();
+    for (Profile.OpcodeProfile op : profile.opcodes()) {
+      opcodes.put(op.opcode(), op.count());
+      executed += op.count();
+    }
+    assertEquals(profile.instructions(), executed);
+    assertEquals(10 + 45 + 177, opcodes.get("call"));
+    assertEquals(1 + 10 + 45 + 177, opcodes.get("enter"));
+    assertEquals(45, opcodes.get("mul"));
+
+    // the loops jump out when their condition is false, fib when n >= 2
+    assertEquals(3, profile.branches().size());
+    assertBranch(10, 45, profile.branches().get(0)); // sum
+    assertBranch(88, 89, profile.branches().get(1)); // fib
+    assertBranch(1, 10, profile.branches().get(2)); // main
+  }
+
+  @Test
+  public void countsInSlices() throws IOException {
+    initCode(COUNTS);
+    program = program();
+    String expected = profile(Long.MAX_VALUE).toJson();
+    for (long fuel : new long[]{1, 5, 50}) {
+      assertEquals(expected, profile(fuel).toJson(), "fuel " + fuel);
+    }
+  }
+
+  private static void assertMethod(long calls, long inclusive, long exclusive, Profile.MethodProfile m) {
+    assertEquals(calls, m.calls(), "calls");
+    assertEquals(inclusive, m.inclusive(), "inclusive");
+    assertEquals(exclusive, m.exclusive(), "exclusive");
+  }
+
+  private static void assertBranch(long taken, long notTaken, Profile.BranchProfile b) {
+    assertEquals("jge", b.opcode());
+    assertEquals(taken, b.taken(), "taken");
+    assertEquals(notTaken, b.notTaken(), "not taken");
+  }
+}
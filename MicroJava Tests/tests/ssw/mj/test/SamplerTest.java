@@ -0,0 +1,87 @@
+package ssw.mj.test;
+
+import org.junit.jupiter.api.Test;
+import ssw.mj.Interpreter;
+import ssw.mj.Sampler;
+import ssw.mj.test.support.BaseCompilerTestCase;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Stacks sampled by a {@link Sampler} while a program spends most of its
+ * time in one long loop, whose back-edges take the samples.
+ */
+public class SamplerTest extends BaseCompilerTestCase {
+
+  /**
+   * Loops in spin as often as the input says, then calls step a tenth as
+   * often from main.
+   */
+  private static final String SPIN = "program Spin" + LF + //
+          "{" + LF + //
+          "  int step(int x) { return x * 3 % 1000 + 1; }" + LF + //
+          "  int spin(int n) int i, x; { while (i < n) { x = x + i % 7; i++; } return x; }" + LF + //
+          "  void main() int n, x, i; {" + LF + //
+          "    read(n);" + LF + //
+          "    x = spin(n);" + LF + //
+          "    while (i < n / 10) { x = x + step(i); i++; }" + LF + //
+          "    print(x);" + LF + //
+          "  }" + LF + //
+          "}";
+
+  private static final String INPUT = "3000000";
+
+  private Interpreter interpreter(Interpreter.Builder builder) throws IOException {
+    return builder.sample(Duration.ofNanos(50_000)).io(new Interpreter.BufferIO(INPUT)).build();
+  }
+
+  @Test
+  public void longLoop() throws IOException {
+    initCode(SPIN);
+    Interpreter interpreter = interpreter(new Interpreter.Builder().program(program()));
+    interpreter.run();
+    Sampler sampler = interpreter.sampler();
+    Map<String, Long> stacks = sampler.stacks();
+    assertTrue(sampler.samples() >= 10, stacks.toString());
+    assertTrue(Set.of("main", "main;spin", "main;step").containsAll(stacks.keySet()), stacks.toString());
+    assertTrue(stacks.getOrDefault("main;spin", 0L) > 0, stacks.toString());
+    assertEquals(sampler.samples(), stacks.values().stream().mapToLong(Long::longValue).sum());
+  }
+
+  @Test
+  public void longLoopInSlices() throws IOException, InterruptedException {
+    initCode(SPIN);
+    Interpreter interpreter = interpreter(new Interpreter.Builder().program(program()));
+    while (!interpreter.run(100_000)) {
+      assertTrue(interpreter.fuel() <= 0);
+    }
+    Map<String, Long> stacks = interpreter.sampler().stacks();
+    assertTrue(stacks.getOrDefault("main;spin", 0L) > 0, stacks.toString());
+    // every slice has started a timer, which must have been stopped with it
+    for (Thread t : Thread.getAllStackTraces().keySet()) {
+      if (t.getName().equals("MicroJava sampler")) {
+        t.join(1000);
+        assertFalse(t.isAlive(), "timer still running");
+      }
+    }
+  }
+
+  @Test
+  public void unnamedMethods() throws IOException {
+    initCode(SPIN);
+    parser.parse();
+    Interpreter interpreter = interpreter(new Interpreter.Builder()
+            .code(parser.code.buf, parser.code.mainpc, parser.code.dataSize));
+    interpreter.run();
+    String spin = "@" + parser.code.methods.names.entrySet().stream()
+            .filter(e -> e.getValue().equals("spin")).findFirst().orElseThrow().getKey();
+    String main = "@" + parser.code.mainpc;
+    Map<String, Long> stacks = interpreter.sampler().stacks();
+    assertTrue(stacks.getOrDefault(main + ";" + spin, 0L) > 0, stacks.toString());
+  }
+}
@@ -4,8 +4,10 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Timeout;
 import ssw.mj.Errors;
 import ssw.mj.Interpreter;
+import ssw.mj.Program;
 import ssw.mj.Visualizer;
 import ssw.mj.codegen.Decoder;
+import ssw.mj.impl.Code;
 import ssw.mj.impl.Parser;
 import ssw.mj.impl.Scanner;
 import ssw.mj.scanner.Token;
@@ -13,7 +15,9 @@ import ssw.mj.scanner.Token;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.StringReader;
+import java.io.UncheckedIOException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
@@ -66,6 +70,17 @@ public abstract class BaseCompilerTestCase {
     parser = new Parser(scanner);
   }
 
+  /**
+   * Parses the code set by {@link #initCode}, which must have no errors, and
+   * returns the generated program.
+   */
+  protected Program program() {
+    parser.parse();
+    assertEquals("", parser.scanner.errors.dump(), "Errors");
+    Code code = parser.code;
+    return new Program(code.buf, code.mainpc, code.dataSize, code.refMaps, code.methods);
+  }
+
   protected void initFile(String filename) {
     initScannerFile(filename);
     parser = new Parser(scanner);
@@ -218,14 +233,26 @@ public abstract class BaseCompilerTestCase {
 
   private void run(int i) {
     Interpreter.BufferIO io = new Interpreter.BufferIO(runInputs.get(i));
-    Interpreter interpreter = new Interpreter(
-            parser.code.buf,
-            parser.code.mainpc,
-            parser.code.dataSize,
-            io,
-            Configuration.PRINT_INTERPRETER_DEBUG_OUTPUT);
+    Interpreter interpreter;
     try {
-      interpreter.run();
+      interpreter = new Interpreter.Builder()
+              .code(parser.code.buf, parser.code.mainpc, parser.code.dataSize)
+              .refMaps(parser.code.refMaps)
+              .io(io)
+              .debug(Configuration.PRINT_INTERPRETER_DEBUG_OUTPUT)
+              .offHeap(Configuration.OFF_HEAP)
+              .build();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    try {
+      if (Configuration.RUN_COMPILED) {
+        interpreter.runCompiled();
+      } else if (Configuration.TIER_THRESHOLD > 0) {
+        interpreter.runTiered(Configuration.TIER_THRESHOLD);
+      } else {
+        interpreter.run();
+      }
     } catch (IllegalStateException e) {
       verifyRuntimeError(i, e);
     }
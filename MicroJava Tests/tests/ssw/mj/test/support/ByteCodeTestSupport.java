@@ -1,6 +1,7 @@
 package ssw.mj.test.support;
 
 import ssw.mj.codegen.Decoder;
+import ssw.mj.impl.Code;
 import ssw.mj.impl.Parser;
 
 import java.io.BufferedWriter;
@@ -68,6 +69,18 @@ public class ByteCodeTestSupport {
     }
   }
 
+  /**
+   * The bytes of the given opcodes and operand bytes, in this order, for
+   * code that the compiler does not generate.
+   */
+  public static byte[] code(Object... parts) {
+    byte[] buf = new byte[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      buf[i] = (byte) (parts[i] instanceof Code.OpCode op ? op.code() : (Integer) parts[i]);
+    }
+    return buf;
+  }
+
   public static File getBytecodesFile() {
     String filename = "bytecodes.txt";
     ClassLoader classLoader = BaseCompilerTestCase.class.getClassLoader();
@@ -16,6 +16,27 @@ public class Configuration {
    */
   public static final boolean PRINT_INTERPRETER_DEBUG_OUTPUT = Boolean.getBoolean("microjava.interpreterOutput");
 
+  /**
+   * Set to true to run the test programs translated to JVM byte code
+   * (Interpreter.runCompiled()) instead of interpreting them. Output and
+   * runtime errors must be the same in both modes.
+   */
+  public static final boolean RUN_COMPILED = Boolean.getBoolean("microjava.runCompiled");
+
+  /**
+   * Set to a positive number to run the test programs in tiered mode
+   * (Interpreter.runTiered()) with this compile threshold. A threshold of 1
+   * compiles every method and loop as soon as it is used.
+   */
+  public static final int TIER_THRESHOLD = Integer.getInteger("microjava.tierThreshold", 0);
+
+  /**
+   * Set to true to keep the heap of the test programs off the Java heap
+   * (Interpreter.Builder.offHeap()). Output and runtime errors must be the
+   * same with both heap backends.
+   */
+  public static final boolean OFF_HEAP = Boolean.getBoolean("microjava.offHeap");
+
   /**
    * Determines the timeout after which a test case should fail automatically.
    * Default: 10 seconds. The default should work for all test cases
@@ -16,6 +16,12 @@ public class SymTabDumper {
     return sb.toString();
   }
 
+  public static String dump(Obj obj) {
+    StringBuilder sb = new StringBuilder();
+    dump(obj, sb, "");
+    return sb.toString();
+  }
+
   private static void dump(Scope scope, StringBuilder sb) {
     sb.append("-- begin scope (").append(scope.nVars()).append(" variables) --\n");
     if (!scope.locals().isEmpty()) {